@@ -0,0 +1,455 @@
+package driver;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mongodb.client.MongoCollection;
+import helper.InMemoryMongo;
+import helper.JsonTestStringsFactory;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.bson.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop load test of the whole server, as started by {@link AppController#start}, over the in-process Mongo
+ * stand-in, so it runs the same on any machine and without a network. Requests are sent at a fixed rate, whatever the
+ * response times, each at its own intended start time. Latencies are measured from that intended start, so requests
+ * delayed because the server, or every connection, was busy count the time they waited: this corrects the coordinated
+ * omission of measuring from the actual send only, which is also reported as the service time.
+ * <p>
+ * Options, as <code>--name=value</code>:
+ * <ul>
+ * <li><code>workload</code>, <code>read-heavy</code> (default), <code>write-heavy</code>, <code>bulk-list</code> or
+ * weights such as <code>get=80,update=20</code>, see {@link Workload}</li>
+ * <li><code>rate</code>, requests per second, 1000 by default</li>
+ * <li><code>duration</code> and <code>warmup</code>, in seconds, 30 and 10 by default</li>
+ * <li><code>connections</code>, concurrent requests at most, 64 by default. Too few, and requests queue in the
+ * harness: the corrected latencies show it</li>
+ * <li><code>users</code>, users in the collection before the test, 10000 by default</li>
+ * <li><code>json</code>, file to write the results to</li>
+ * <li>Any key of {@link ServerConfig}, such as <code>--server.mode=async</code>. The environment and system properties
+ * are ignored, so that results only depend on the options</li>
+ * </ul>
+ * The load is generated in the same process as the server, so both share the CPUs of the machine
+ */
+public class LoadTest {
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final int PAGE_SIZE = 100;
+    private static final int BULK_SIZE = 100;
+    private static final String ID = "__ID__";
+
+    private final Workload workload;
+    private final int rate;
+    private final int duration;
+    private final int warmup;
+    private final int connections;
+    private final int users;
+    private final String baseUrl;
+    private final String userTemplate;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Queue<String> created = new ConcurrentLinkedQueue<>();
+    private final Map<Workload.Operation, Histogram> latencies = new EnumMap<>(Workload.Operation.class);
+    private final Histogram latency = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong lastDone = new AtomicLong();
+    private long measureFrom;
+
+    /**
+     * Constructor
+     *
+     * @param options
+     *         Options of the harness
+     * @param port
+     *         Port of the server
+     */
+    LoadTest(final Map<String, String> options, final int port) {
+        this.workload = new Workload(options.get("workload"));
+        this.rate = Integer.parseInt(options.get("rate"));
+        this.duration = Integer.parseInt(options.get("duration"));
+        this.warmup = Integer.parseInt(options.get("warmup"));
+        this.connections = Integer.parseInt(options.get("connections"));
+        this.users = Integer.parseInt(options.get("users"));
+        this.baseUrl = "http://localhost:" + port;
+        this.userTemplate = user(ID).toJson();
+        for (final Workload.Operation operation : Workload.Operation.values()) {
+            this.latencies.put(operation, new ConcurrentHistogram(HIGHEST_MICROS, 3));
+        }
+    }
+
+    /**
+     * Run a load test
+     *
+     * @param args
+     *         Options, as <code>--name=value</code>
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<>();
+        options.put("workload", "read-heavy");
+        options.put("rate", "1000");
+        options.put("duration", "30");
+        options.put("warmup", "10");
+        options.put("connections", "64");
+        options.put("users", "10000");
+        options.put("json", null);
+
+        // Options of the harness, the rest configure the server
+        final Properties settings = new Properties();
+        settings.setProperty(ServerConfig.PORT, "0");
+        settings.setProperty(ServerConfig.MONGO_DATABASE, "load");
+        settings.setProperty(ServerConfig.ACCESS_LOG_SAMPLE_RATE, "0");
+        for (final String arg : args) {
+            final String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid option " + arg + ", expected --name=value");
+            }
+
+            if (options.containsKey(pair[0])) {
+                options.put(pair[0], pair[1]);
+            } else {
+                settings.setProperty(pair[0], pair[1]);
+            }
+        }
+
+        // Keep a connection open per concurrent request
+        System.setProperty("http.maxConnections", options.get("connections"));
+
+        try (final InMemoryMongo mongo = new InMemoryMongo()) {
+            settings.setProperty(ServerConfig.MONGO_URI, mongo.getUri());
+            final ServerConfig config = new ServerConfig(settings, Collections.emptyMap(), new Properties());
+            populate(mongo.getCollection("load", config.getString(ServerConfig.MONGO_COLLECTION)),
+                    Integer.parseInt(options.get("users")));
+
+            final JettyServer server = AppController.start(config);
+            try {
+                final LoadTest test = new LoadTest(options, server.getPort());
+                test.awaitReady();
+                test.run();
+                final Map<String, Object> results = test.report(config.getMode());
+                if (options.get("json") != null) {
+                    new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT)
+                                      .writeValue(new File(options.get("json")), results);
+                    System.out.println("Results written to " + options.get("json"));
+                }
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Create a user of the long shape
+     *
+     * @param id
+     *         ID of the user
+     * @return User
+     */
+    private static Document user(final String id) {
+        return Document.parse(JsonTestStringsFactory.VALID_LONG_JSON).append("id", id);
+    }
+
+    /**
+     * Fill the collection with the users read and updated by the load test
+     *
+     * @param dbCollection
+     *         Collection
+     * @param users
+     *         Number of users, with ids <code>user0</code> to <code>user{users - 1}</code>
+     */
+    private static void populate(final MongoCollection<Document> dbCollection, final int users) {
+        final List<Document> chunk = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            chunk.add(user("user" + i));
+            if (chunk.size() == 1000 || i == users - 1) {
+                dbCollection.insertMany(chunk);
+                chunk.clear();
+            }
+        }
+    }
+
+    /**
+     * Send the requests at the configured rate, through the warmup and the measurement
+     *
+     * @throws InterruptedException
+     */
+    void run() throws InterruptedException {
+        System.out.println("Workload " + this.workload + ", " + this.rate + " requests/s, " + this.connections
+                + " connections, " + this.warmup + " s warmup then " + this.duration + " s");
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        this.measureFrom = start + TimeUnit.SECONDS.toNanos(this.warmup);
+        final long end = this.measureFrom + TimeUnit.SECONDS.toNanos(this.duration);
+        final AtomicLong next = new AtomicLong();
+
+        final List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < this.connections; i++) {
+            final Thread worker = new Thread(() -> this.work(next, start, this.measureFrom, end), "load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Send requests until the end of the test. Each request takes the next intended start time, and waits for it if it
+     * is in the future
+     *
+     * @param next
+     *         Index of the next request
+     * @param start
+     *         Intended start of the first request
+     * @param measureFrom
+     *         Requests intended to start from then on are measured
+     * @param end
+     *         No request is intended to start from then on
+     */
+    private void work(final AtomicLong next, final long start, final long measureFrom, final long end) {
+        while (true) {
+            final long intended = start + next.getAndIncrement() * TimeUnit.SECONDS.toNanos(1) / this.rate;
+            if (intended >= end) {
+                return;
+            }
+
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            final Workload.Operation operation = this.workload.next();
+            final long sent = System.nanoTime();
+            boolean success;
+            try {
+                success = this.send(operation);
+            } catch (final IOException e) {
+                success = false;
+            }
+
+            final long done = System.nanoTime();
+            if (intended >= measureFrom) {
+                if (!success) {
+                    this.errors.increment();
+                }
+
+                record(this.latencies.get(operation), done - intended);
+                record(this.latency, done - intended);
+                record(this.serviceTime, done - sent);
+                this.lastDone.accumulateAndGet(done, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param histogram
+     *         Histogram in microseconds
+     * @param nanos
+     *         Latency in nanoseconds
+     */
+    private static void record(final Histogram histogram, final long nanos) {
+        histogram.recordValue(Math.min(Math.max(nanos / 1000, 1), HIGHEST_MICROS));
+    }
+
+    /**
+     * Send the request of an operation
+     *
+     * @param operation
+     *         Operation
+     * @return True if successful
+     * @throws IOException
+     */
+    private boolean send(final Workload.Operation operation) throws IOException {
+        final int user = ThreadLocalRandom.current().nextInt(this.users);
+        switch (operation) {
+            case GET:
+                return this.request("GET", "/users/user" + user, null);
+            case LIST:
+                return this.request("GET", "/users?limit=" + PAGE_SIZE + "&after=user" + user, null);
+            case UPDATE:
+                return this.request("PUT", "/update",
+                        "{\"id\":\"user" + user + "\",\"lastName\":\"Update" + this.sequence.incrementAndGet() + "\"}");
+            case REMOVE:
+                final String id = this.created.poll();
+                return id == null ? this.create() : this.request("POST", "/remove/" + id, null);
+            case BULK:
+                final List<String> ids = new ArrayList<>(BULK_SIZE);
+                final StringBuilder body = new StringBuilder();
+                for (int i = 0; i < BULK_SIZE; i++) {
+                    ids.add("load-" + this.sequence.incrementAndGet());
+                    body.append(this.userTemplate.replace(ID, ids.get(i))).append('\n');
+                }
+
+                if (this.request("PUT", "/bulk/create", body.toString())) {
+                    this.created.addAll(ids);
+                    return true;
+                }
+
+                return false;
+            default:
+                return this.create();
+        }
+    }
+
+    /**
+     * Create a new user
+     *
+     * @return True if successful
+     * @throws IOException
+     */
+    private boolean create() throws IOException {
+        final String id = "load-" + this.sequence.incrementAndGet();
+        if (this.request("PUT", "/create", this.userTemplate.replace(ID, id))) {
+            this.created.add(id);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait until the server has its indexes
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void awaitReady() throws IOException, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (!this.request("GET", "/ready", null)) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Server not ready");
+            }
+
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Send a request and read the whole response, so that the connection is reused
+     *
+     * @param method
+     *         HTTP method
+     * @param path
+     *         Path and query
+     * @param body
+     *         JSON body, null for none
+     * @return True if the status is a success
+     * @throws IOException
+     */
+    private boolean request(final String method, final String path, final String body) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(this.baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setReadTimeout((int) TimeUnit.MINUTES.toMillis(1));
+        if (body != null) {
+            final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setFixedLengthStreamingMode(bytes.length);
+            try (final OutputStream out = connection.getOutputStream()) {
+                out.write(bytes);
+            }
+        }
+
+        final int status = connection.getResponseCode();
+        try (final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                final byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // Drain
+                }
+            }
+        }
+
+        return status < 300;
+    }
+
+    /**
+     * Print the results
+     *
+     * @param mode
+     *         Server mode
+     * @return Results, for the JSON output
+     */
+    Map<String, Object> report(final String mode) {
+        // Requests sent late complete after the end of the test, then throughput is below the target rate
+        final long completed = this.latency.getTotalCount();
+        final double throughput = completed * 1e9 / Math.max(this.lastDone.get() - this.measureFrom, 1);
+        System.out.printf("%d requests, %.1f requests/s, %d errors%n", completed, throughput, this.errors.sum());
+        if (throughput < this.rate * 0.95) {
+            System.out.println("Target rate not sustained");
+        }
+
+        final Map<String, Object> latencies = new LinkedHashMap<>();
+        System.out.println("Latency from the intended start, in ms:");
+        System.out.printf("%-12s %10s %10s %10s %10s %10s %10s%n", "", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (final Map.Entry<Workload.Operation, Histogram> entry : this.latencies.entrySet()) {
+            if (entry.getValue().getTotalCount() > 0) {
+                latencies.put(entry.getKey().name().toLowerCase(), print(entry.getKey().name().toLowerCase(),
+                        entry.getValue()));
+            }
+        }
+
+        latencies.put("all", print("all", this.latency));
+        System.out.println("Service time from the actual send, without the correction, in ms:");
+        final Map<String, Object> serviceTime = print("all", this.serviceTime);
+
+        final Map<String, Object> results = new LinkedHashMap<>();
+        results.put("workload", this.workload.toString());
+        results.put("mode", mode);
+        results.put("rate", this.rate);
+        results.put("duration", this.duration);
+        results.put("connections", this.connections);
+        results.put("requests", completed);
+        results.put("errors", this.errors.sum());
+        results.put("throughput", throughput);
+        results.put("latencyMillis", latencies);
+        results.put("serviceTimeMillis", serviceTime);
+        return results;
+    }
+
+    /**
+     * Print the percentiles of a histogram
+     *
+     * @param name
+     *         Name of the row
+     * @param histogram
+     *         Histogram in microseconds
+     * @return Percentiles in milliseconds
+     */
+    private static Map<String, Object> print(final String name, final Histogram histogram) {
+        final Map<String, Object> percentiles = new LinkedHashMap<>();
+        percentiles.put("count", histogram.getTotalCount());
+        percentiles.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+        percentiles.put("p90", histogram.getValueAtPercentile(90) / 1000.0);
+        percentiles.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+        percentiles.put("p99.9", histogram.getValueAtPercentile(99.9) / 1000.0);
+        percentiles.put("max", histogram.getMaxValue() / 1000.0);
+        System.out.printf("%-12s %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getTotalCount(),
+                percentiles.get("p50"), percentiles.get("p90"), percentiles.get("p99"), percentiles.get("p99.9"),
+                percentiles.get("max"));
+        return percentiles;
+    }
+}
@@ -0,0 +1,139 @@
+package driver;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import helper.InMemoryMongo;
+import helper.LatencyProxy;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import response.AsyncUserFilter;
+import response.ResponseHandler;
+import user.AsyncUserService;
+import user.UserService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the user routes over HTTP, with many more clients than server threads and a database reply delayed as if
+ * across a network. Handlers blocking on a bounded pool of platform threads hold a thread for the whole query, so
+ * throughput is capped at threads / latency. Asynchronous handlers release the thread, on the same pool, and handlers
+ * blocking on virtual threads only park their own thread, so in both throughput grows with the number of clients.
+ * Requests in flight on the server are throughput * latency. Only single users are served asynchronously, and the
+ * virtual thread mode needs the benchmark to run on JDK 21 or later
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(value = 1, jvmArgsAppend = { "-Dhttp.maxConnections=64", "-Dlog.level=warn" })
+public class RequestPipelineBenchmark {
+    private static final int SERVER_THREADS = 16;
+
+    @Param({ "platform", "async", "virtual" })
+    public String mode;
+
+    @Param({ "20", "100" })
+    public long latencyMillis;
+
+    private InMemoryMongo mongo;
+    private LatencyProxy proxy;
+    private JettyServer server;
+    private URL user;
+    private URL page;
+
+    /**
+     * Start the stand-in behind the proxy, and the server in the mode measured
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setUp() throws Exception {
+        this.mongo = new InMemoryMongo();
+        final MongoCollection<Document> users = this.mongo.getCollection("bench", "users");
+        for (int i = 0; i < 10; i++) {
+            users.insertOne(new Document("id", "user" + i).append("firstName", "test"));
+        }
+
+        this.proxy = new LatencyProxy(this.mongo.getAddress(), this.latencyMillis);
+
+        final MongoClient client = new MongoClient(new MongoClientURI(this.proxy.getUri()));
+        final UserService userService = new UserService(client.getDatabase("bench").getCollection("users"));
+        this.server = "virtual".equals(this.mode)
+                ? new JettyServer(0, new VirtualThreadPool())
+                : new JettyServer(0, SERVER_THREADS);
+        this.server.onStop(client::close);
+        if ("async".equals(this.mode)) {
+            final com.mongodb.async.client.MongoClient asyncClient = MongoClients.create(this.proxy.getUri());
+            this.server.addFilter(new AsyncUserFilter(
+                    new AsyncUserService(asyncClient.getDatabase("bench").getCollection("users")), false));
+            this.server.onStop(asyncClient::close);
+        }
+
+        new AppController(new ResponseHandler(userService, false), this.server);
+        this.user = new URL("http://localhost:" + this.server.getPort() + "/users/user0");
+        this.page = new URL("http://localhost:" + this.server.getPort() + "/users?limit=10");
+    }
+
+    /**
+     * Stop everything
+     *
+     * @throws Exception
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        this.server.stop();
+        this.proxy.close();
+        this.mongo.close();
+    }
+
+    @Benchmark
+    public int getUser() throws IOException {
+        return get(this.user);
+    }
+
+    @Benchmark
+    public int getPage() throws IOException {
+        return get(this.page);
+    }
+
+    /**
+     * Send a request and read the whole response
+     *
+     * @param url
+     *         URL to get
+     * @return HTTP status
+     * @throws IOException
+     */
+    private static int get(final URL url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        final int status = connection.getResponseCode();
+        try (final InputStream in = connection.getInputStream()) {
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // Drain, so the connection is kept alive
+            }
+        }
+
+        return status;
+    }
+}
@@ -0,0 +1,123 @@
+package driver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Mix of operations sent by the load test, as a weight per operation. Either a preset name or a list of weights, such
+ * as <code>get=80,update=20</code>
+ */
+class Workload {
+    /**
+     * Operations, each one request
+     */
+    enum Operation {
+        /**
+         * Get an existing user
+         */
+        GET,
+
+        /**
+         * Get a page of 100 users
+         */
+        LIST,
+
+        /**
+         * Create a new user
+         */
+        CREATE,
+
+        /**
+         * Update an existing user
+         */
+        UPDATE,
+
+        /**
+         * Remove a user created by the load test, or create one if none is left
+         */
+        REMOVE,
+
+        /**
+         * Create 100 new users in bulk
+         */
+        BULK
+    }
+
+    private static final Map<String, String> PRESETS = new LinkedHashMap<>();
+
+    static {
+        PRESETS.put("read-heavy", "get=90,update=5,create=5");
+        PRESETS.put("write-heavy", "get=20,create=40,update=30,remove=10");
+        PRESETS.put("bulk-list", "list=70,get=20,bulk=10");
+    }
+
+    private final String name;
+    private final Map<Operation, Integer> weights = new LinkedHashMap<>();
+    private final Operation[] operations;
+    private final int[] thresholds;
+    private final int total;
+
+    /**
+     * Constructor
+     *
+     * @param mix
+     *         Preset name, or weights by operation name
+     * @throws IllegalArgumentException
+     *         If the mix is not valid
+     */
+    Workload(final String mix) {
+        this.name = mix;
+        final String weights = PRESETS.getOrDefault(mix, mix);
+        for (final String weight : weights.split(",")) {
+            final String[] pair = weight.trim().split("=");
+            try {
+                final int value = Integer.parseInt(pair[1].trim());
+                if (value < 0) {
+                    throw new NumberFormatException();
+                }
+
+                this.weights.put(Operation.valueOf(pair[0].trim().toUpperCase()), value);
+            } catch (final RuntimeException e) {
+                throw new IllegalArgumentException("Invalid workload " + mix + ", expected one of " + PRESETS.keySet()
+                        + " or weights such as get=80,update=20");
+            }
+        }
+
+        // Cumulative weights, to pick an operation with a single random number
+        this.operations = new Operation[this.weights.size()];
+        this.thresholds = new int[this.weights.size()];
+        int total = 0;
+        int i = 0;
+        for (final Map.Entry<Operation, Integer> entry : this.weights.entrySet()) {
+            total += entry.getValue();
+            this.operations[i] = entry.getKey();
+            this.thresholds[i++] = total;
+        }
+
+        if (total == 0) {
+            throw new IllegalArgumentException("Invalid workload " + mix + ", no operation has a weight");
+        }
+
+        this.total = total;
+    }
+
+    /**
+     * @return Next operation, at random with the weights of the mix
+     */
+    Operation next() {
+        final int value = ThreadLocalRandom.current().nextInt(this.total);
+        for (int i = 0; i < this.thresholds.length; i++) {
+            if (value < this.thresholds[i]) {
+                return this.operations[i];
+            }
+        }
+
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " " + this.weights;
+    }
+}
@@ -0,0 +1,27 @@
+package helper;
+
+import java.io.OutputStream;
+
+/**
+ * Stream discarding its bytes after counting them, to measure response sizes without keeping the responses
+ */
+public class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(final int b) {
+        this.count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        this.count += len;
+    }
+
+    /**
+     * @return Number of bytes written
+     */
+    public long getCount() {
+        return this.count;
+    }
+}
@@ -0,0 +1,62 @@
+package helper;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+
+import java.net.InetSocketAddress;
+
+/**
+ * In-process MongoDB stand-in speaking the wire protocol over a local ephemeral port, so that benchmarks exercise the
+ * real driver without a database installed
+ */
+public class InMemoryMongo implements AutoCloseable {
+    private final MongoServer server;
+    private final InetSocketAddress address;
+    private final MongoClient client;
+
+    /**
+     * Start the server and connect to it
+     */
+    public InMemoryMongo() {
+        this.server = new MongoServer(new MemoryBackend());
+        this.address = this.server.bind();
+        this.client = new MongoClient(new ServerAddress(this.address));
+    }
+
+    /**
+     * Get a collection
+     *
+     * @param database
+     *         Name of database
+     * @param collection
+     *         Name of collection
+     * @return Mongo Collection
+     */
+    public MongoCollection<Document> getCollection(final String database, final String collection) {
+        return this.client.getDatabase(database).getCollection(collection);
+    }
+
+    /**
+     * @return Address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return Connection string of the server
+     */
+    public String getUri() {
+        return "mongodb://" + this.address.getHostString() + ":" + this.address.getPort();
+    }
+
+    @Override
+    public void close() {
+        this.client.close();
+        this.server.shutdownNow();
+    }
+}
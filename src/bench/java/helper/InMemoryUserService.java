@@ -0,0 +1,419 @@
+package helper;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import user.BulkResult;
+import user.DuplicateUserException;
+import user.Fields;
+import user.IUserService;
+import user.User;
+import user.UserCodec;
+import user.UserJson;
+import user.UserQuery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * User service over a map of users by id, so that benchmarks measure what is around the service with the database
+ * out of the picture. Every operation behaves as {@link user.UserService} does, with the same results and errors, and
+ * users are kept both decoded and as BSON so that neither form is converted on reads. Written by hand rather than
+ * mocked, as a mock would record every call for the whole run
+ */
+public class InMemoryUserService implements IUserService {
+    private static final DocumentCodec CODEC = new DocumentCodec();
+    private static final UserCodec USER_CODEC = new UserCodec();
+
+    private final NavigableMap<String, Stored> users = new ConcurrentSkipListMap<>();
+
+    /**
+     * User kept in both of the forms read
+     */
+    private static final class Stored {
+        private final Document document;
+        private final RawBsonDocument raw;
+
+        Stored(final Document document) {
+            this.document = document;
+            this.raw = new RawBsonDocument(document, CODEC);
+        }
+    }
+
+    /**
+     * Constructor, without users
+     */
+    public InMemoryUserService() {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param users
+     *         Users to start with, each with an id. Their documents are shared, not copied
+     */
+    public InMemoryUserService(final List<Document> users) {
+        for (final Document user : users) {
+            this.users.put(user.getString("id"), new Stored(user));
+        }
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final Consumer<Document> consumer) {
+        this.scanUsers(after, limit, null, consumer);
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.scan(after, limit).forEach(user -> consumer.accept(Fields.project(user.document, fields)));
+    }
+
+    @Override
+    public void findUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.find(query, after, limit).forEach(user -> consumer.accept(Fields.project(user.document, fields)));
+    }
+
+    @Override
+    public void findRawUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<RawBsonDocument> consumer) {
+        this.find(query, after, limit).forEach(user -> consumer.accept(raw(user, fields)));
+    }
+
+    /**
+     * Page through all users in the order of their id
+     *
+     * @param after
+     *         Keyset cursor, null to start from the beginning
+     * @param limit
+     *         Maximum number of users, 0 for no limit
+     * @return Users
+     */
+    private Stream<Stored> scan(final String after, final int limit) {
+        final Collection<Stored> users = after == null
+                ? this.users.values()
+                : this.users.tailMap(after, false).values();
+        return limit == 0 ? users.stream() : users.stream().limit(limit);
+    }
+
+    /**
+     * Page through the users matching filters, in the order of {@link UserQuery#sort()}
+     *
+     * @param query
+     *         Filters, all users if empty
+     * @param after
+     *         Keyset cursor, the id of the last user seen. Null to start from the beginning
+     * @param limit
+     *         Maximum number of users, 0 for no limit
+     * @return Users
+     * @throws IllegalArgumentException
+     *         If the users are ordered by a field and the last user seen no longer exists
+     */
+    private Stream<Stored> find(final UserQuery query, final String after, final int limit) {
+        if (query.isEmpty()) {
+            return this.scan(after, limit);
+        }
+
+        final List<BsonDocument> filters = new ArrayList<>(query.getFilters().size());
+        for (final Bson filter : query.getFilters()) {
+            filters.add(filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()));
+        }
+
+        final String orderField = query.getOrderField();
+        Stream<Stored> users = this.users.values().stream().filter(user -> matches(user.document, filters));
+        if (orderField == null) {
+            users = after == null ? users : users.filter(user -> user.document.getString("id").compareTo(after) > 0);
+            return limit == 0 ? users : users.limit(limit);
+        }
+
+        // Ordered by the field then by id, as ids are unique the last user seen splits the order in two
+        final Comparator<Stored> order = Comparator.comparing((Stored user) -> valueOf(user.document, orderField))
+                                                   .thenComparing(user -> user.document.getString("id"));
+        users = users.sorted(order);
+        if (after != null) {
+            final Stored last = this.users.get(after);
+            if (last == null || valueOf(last.document, orderField) == null) {
+                throw new IllegalArgumentException("User " + after + " not found to page after");
+            }
+
+            users = users.filter(user -> order.compare(user, last) > 0);
+        }
+
+        return limit == 0 ? users : users.limit(limit);
+    }
+
+    /**
+     * Check if a user matches all the filters of a query, which are exact matches, anchored regular expressions and
+     * ranges on text fields
+     *
+     * @param user
+     *         User
+     * @param filters
+     *         Filters, as the database receives them
+     * @return True if all of them match
+     */
+    private static boolean matches(final Document user, final List<BsonDocument> filters) {
+        for (final BsonDocument filter : filters) {
+            for (final Map.Entry<String, BsonValue> field : filter.entrySet()) {
+                final String value = valueOf(user, field.getKey());
+                if (value == null || !matches(value, field.getValue())) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if the value of a field matches its filter
+     *
+     * @param value
+     *         Value of the field
+     * @param filter
+     *         Value to match, regular expression, or range operators
+     * @return True if it matches
+     */
+    private static boolean matches(final String value, final BsonValue filter) {
+        if (filter.isRegularExpression()) {
+            return Pattern.compile(filter.asRegularExpression().getPattern()).matcher(value).find();
+        }
+
+        if (!filter.isDocument()) {
+            return value.equals(filter.asString().getValue());
+        }
+
+        for (final Map.Entry<String, BsonValue> operator : filter.asDocument().entrySet()) {
+            final boolean matches;
+            switch (operator.getKey()) {
+                case "$gte":
+                    matches = value.compareTo(operator.getValue().asString().getValue()) >= 0;
+                    break;
+                case "$lt":
+                    matches = value.compareTo(operator.getValue().asString().getValue()) < 0;
+                    break;
+                default:
+                    matches = true;
+            }
+
+            if (!matches) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Read a text field of a user
+     *
+     * @param user
+     *         User
+     * @param field
+     *         Field, with dots for nested fields
+     * @return Value of the field, null if missing or not a text
+     */
+    private static String valueOf(final Document user, final String field) {
+        Object value = user;
+        for (final String name : field.split("\\.")) {
+            value = value instanceof Document ? ((Document) value).get(name) : null;
+        }
+
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Get a user as BSON, with only some of its fields
+     *
+     * @param user
+     *         User
+     * @param fields
+     *         Fields to return, null for all of them
+     * @return BSON of the user
+     */
+    private static RawBsonDocument raw(final Stored user, final List<String> fields) {
+        return fields == null ? user.raw : new RawBsonDocument(Fields.project(user.document, fields), CODEC);
+    }
+
+    @Override
+    public Document getUser(final String id) {
+        return this.getUser(id, null);
+    }
+
+    @Override
+    public Document getUser(final String id, final List<String> fields) {
+        final Stored user = this.users.get(id);
+        return user == null ? null : Fields.project(user.document, fields);
+    }
+
+    @Override
+    public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+        final Stored user = this.users.get(id);
+        return user == null ? null : raw(user, fields);
+    }
+
+    @Override
+    public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+        final Map<String, RawBsonDocument> users = new HashMap<>();
+        for (final String id : ids) {
+            final Stored user = this.users.get(id);
+            if (user != null) {
+                users.put(id, raw(user, fields));
+            }
+        }
+
+        return users;
+    }
+
+    @Override
+    public void createUser(final String json) {
+        this.createUser(UserJson.read(json));
+    }
+
+    @Override
+    public void createUser(final User user) {
+        user.validate();
+        if (this.users.putIfAbsent(user.getId(), new Stored(document(user))) != null) {
+            throw new DuplicateUserException("Duplicate user " + user.getId());
+        }
+    }
+
+    @Override
+    public boolean createUser(final User user, final boolean durable) {
+        // Users are always written before returning
+        this.createUser(user);
+        return true;
+    }
+
+    @Override
+    public void updateUser(final String json) throws Exception {
+        this.updateUser(json, false);
+    }
+
+    @Override
+    public void updateUser(final String json, final boolean upsert) throws Exception {
+        this.updateUser(UserJson.read(json), upsert);
+    }
+
+    @Override
+    public void updateUser(final User user, final boolean upsert) throws Exception {
+        if (user.getId() == null) {
+            throw new Exception("User not found to update");
+        }
+
+        user.validate();
+        if (!this.update(user, upsert)) {
+            throw new Exception("User not found to update");
+        }
+    }
+
+    /**
+     * Set the fields given of a user, as a single atomic change
+     *
+     * @param user
+     *         Fields to set, validated
+     * @param upsert
+     *         True to create the user if no user has its id
+     * @return True if the user was updated or created
+     */
+    private boolean update(final User user, final boolean upsert) {
+        final Document fields = document(user);
+        return this.users.compute(user.getId(), (id, existing) -> {
+            if (existing == null) {
+                return upsert ? new Stored(fields) : null;
+            }
+
+            final Document updated = new Document(existing.document);
+            updated.putAll(fields);
+            return new Stored(updated);
+        }) != null;
+    }
+
+    @Override
+    public void removeUser(final String id) throws Exception {
+        if (id == null || this.users.remove(id) == null) {
+            throw new Exception("User not found to remove");
+        }
+    }
+
+    @Override
+    public List<BulkResult> createUsers(final List<User> users) {
+        final List<BulkResult> results = new ArrayList<>(users.size());
+        for (final User user : users) {
+            try {
+                this.createUser(user);
+                results.add(new BulkResult(user.getId(), 200, "User created!!"));
+            } catch (final IllegalArgumentException e) {
+                results.add(new BulkResult(user.getId(), 400, e.getMessage()));
+            } catch (final DuplicateUserException e) {
+                results.add(new BulkResult(user.getId(), 409, e.getMessage()));
+            }
+        }
+
+        return results;
+    }
+
+    @Override
+    public List<BulkResult> updateUsers(final List<User> users) {
+        final List<BulkResult> results = new ArrayList<>(users.size());
+        for (final User user : users) {
+            if (user.getId() == null) {
+                results.add(new BulkResult(null, 400, "User has no id"));
+                continue;
+            }
+
+            try {
+                user.validate();
+                results.add(this.update(user, false)
+                        ? new BulkResult(user.getId(), 200, "User updated!!")
+                        : new BulkResult(user.getId(), 404, "User not found to update"));
+            } catch (final IllegalArgumentException e) {
+                results.add(new BulkResult(user.getId(), 400, e.getMessage()));
+            }
+        }
+
+        return results;
+    }
+
+    @Override
+    public List<BulkResult> removeUsers(final List<String> ids) {
+        final List<BulkResult> results = new ArrayList<>(ids.size());
+        for (final String id : ids) {
+            results.add(id != null && this.users.remove(id) != null
+                    ? new BulkResult(id, 200, "User " + id + " removed!!")
+                    : new BulkResult(id, 404, "User not found to remove"));
+        }
+
+        return results;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Get the fields of a user as a document, as written to the database
+     *
+     * @param user
+     *         User
+     * @return Document, without the fields the user does not have
+     */
+    private static Document document(final User user) {
+        return new RawBsonDocument(user, USER_CODEC).decode(CODEC);
+    }
+}
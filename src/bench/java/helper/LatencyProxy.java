@@ -0,0 +1,101 @@
+package helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * TCP proxy delaying every reply from a server, so that a local stand-in behaves like a database across a network.
+ * Each connection is served by its own pair of threads, so a delay on one connection never holds up another
+ */
+public class LatencyProxy implements AutoCloseable {
+    private final InetSocketAddress target;
+    private final long delayMillis;
+    private final ServerSocket serverSocket;
+
+    /**
+     * Start accepting connections on a local ephemeral port
+     *
+     * @param target
+     *         Address of the server to proxy
+     * @param delayMillis
+     *         Delay added before each chunk of a reply is forwarded
+     * @throws IOException
+     */
+    public LatencyProxy(final InetSocketAddress target, final long delayMillis) throws IOException {
+        this.target = target;
+        this.delayMillis = delayMillis;
+        this.serverSocket = new ServerSocket(0);
+        start("proxy-accept", this::accept);
+    }
+
+    /**
+     * @return Connection string of the proxied server
+     */
+    public String getUri() {
+        return "mongodb://localhost:" + this.serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+    }
+
+    private void accept() {
+        try {
+            while (!this.serverSocket.isClosed()) {
+                final Socket client = this.serverSocket.accept();
+                final Socket server = new Socket(this.target.getAddress(), this.target.getPort());
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                start("proxy-request", () -> pump(client, server, 0));
+                start("proxy-reply", () -> pump(server, client, this.delayMillis));
+            }
+        } catch (final IOException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Copy bytes from one socket to another until either is closed
+     *
+     * @param from
+     *         Socket to read from
+     * @param to
+     *         Socket to write to
+     * @param delayMillis
+     *         Delay before each chunk is written
+     */
+    private static void pump(final Socket from, final Socket to, final long delayMillis) {
+        try (final InputStream in = from.getInputStream(); final OutputStream out = to.getOutputStream()) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (final IOException | InterruptedException e) {
+            // Closed
+        } finally {
+            try {
+                from.close();
+                to.close();
+            } catch (final IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private static void start(final String name, final Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,151 @@
+package response;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import helper.CountingOutputStream;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bytes and time per list response, streamed as the list endpoint does and compressed on the fly as by the server.
+ * The time is spent on a single thread, so it is also the CPU time per response. The users are copies of the same user,
+ * so the ratios are better than for real data
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({ "100", "1000" })
+    public int users;
+
+    /**
+     * Encodings the server negotiates, see {@link driver.JettyServer#setCompression(int, int)}
+     */
+    @Param({ "identity", "gzip" })
+    public String encoding;
+
+    /**
+     * Same level as the default of <code>server.compression.level</code>
+     */
+    @Param({ "6" })
+    public int level;
+
+    private List<Document> documents;
+
+    /**
+     * Size of the last response, reported next to the time of each benchmark
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        public long bytesPerResponse;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.bytesPerResponse = 0;
+        }
+    }
+
+    /**
+     * Create the users of a page
+     */
+    @Setup
+    public void setUp() {
+        this.documents = new ArrayList<>();
+        for (int i = 0; i < this.users; i++) {
+            this.documents.add(Document.parse(JsonTestStringsFactory.VALID_LONG_JSON).append("id", "user" + i));
+        }
+    }
+
+    /**
+     * Single line users, the format of clients asking for compact output
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void compact(final Size size) throws IOException {
+        size.bytesPerResponse = this.stream(JsonWriters.COMPACT);
+    }
+
+    /**
+     * Indented users, the default format
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void pretty(final Size size) throws IOException {
+        size.bytesPerResponse = this.stream(JsonWriters.PRETTY);
+    }
+
+    /**
+     * Stream the users one at a time, separated by new lines
+     *
+     * @param writer
+     *         Writer for the output format
+     * @return Bytes sent
+     * @throws IOException
+     */
+    private long stream(final ObjectWriter writer) throws IOException {
+        final CountingOutputStream sent = new CountingOutputStream();
+        try (OutputStream out = this.encode(sent)) {
+            boolean first = true;
+            for (final Document document : this.documents) {
+                if (!first) {
+                    out.write('\n');
+                }
+
+                writer.writeValue(out, document);
+                first = false;
+            }
+        }
+
+        return sent.getCount();
+    }
+
+    /**
+     * Wrap the connection in the encoder negotiated
+     *
+     * @param sent
+     *         Bytes sent to the client
+     * @return Stream to write the response to
+     * @throws IOException
+     */
+    private OutputStream encode(final OutputStream sent) throws IOException {
+        switch (this.encoding) {
+            case "gzip":
+                return new GZIPOutputStream(sent, 8192) {
+                    {
+                        this.def.setLevel(CompressionBenchmark.this.level);
+                    }
+                };
+            default:
+                return sent;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package response;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import helper.CountingOutputStream;
+import helper.JsonTestStringsFactory;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding cost and size of a list response in each format. Every path starts from the BSON sent by the database, so
+ * encoding JSON and Smile includes decoding the users as the driver does, while transcoding writes them from the BSON
+ * directly and BSON is passed through. Run with <code>-prof gc</code> to compare allocations
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+
+    @Param({ "1", "100" })
+    public int users;
+
+    private List<byte[]> bson;
+
+    /**
+     * Size of the last response, reported next to the time of each benchmark
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        public long bytesPerResponse;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.bytesPerResponse = 0;
+        }
+    }
+
+    /**
+     * Encode the users as the database would send them
+     */
+    @Setup
+    public void setUp() {
+        this.bson = new ArrayList<>();
+        for (int i = 0; i < this.users; i++) {
+            final Document user = Document.parse(JsonTestStringsFactory.VALID_LONG_JSON).append("id", "user" + i);
+            final ByteBuffer buffer = new RawBsonDocument(user, DOCUMENT_CODEC).getByteBuffer().asNIO();
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            this.bson.add(bytes);
+        }
+    }
+
+    /**
+     * Indented JSON, the default format
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void prettyJson(final Size size) throws IOException {
+        size.bytesPerResponse = this.encode(JsonWriters.PRETTY, true);
+    }
+
+    /**
+     * Single line JSON
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void compactJson(final Size size) throws IOException {
+        size.bytesPerResponse = this.encode(JsonWriters.COMPACT, true);
+    }
+
+    /**
+     * Smile
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void smile(final Size size) throws IOException {
+        size.bytesPerResponse = this.encode(JsonWriters.SMILE, false);
+    }
+
+    /**
+     * Single line JSON transcoded from BSON, as the list endpoint does
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void transcodedJson(final Size size) throws IOException {
+        size.bytesPerResponse = this.transcode(JsonWriters.COMPACT, true);
+    }
+
+    /**
+     * Smile transcoded from BSON
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void transcodedSmile(final Size size) throws IOException {
+        size.bytesPerResponse = this.transcode(JsonWriters.SMILE, false);
+    }
+
+    /**
+     * BSON passed through without decoding
+     *
+     * @param size
+     *         Size of the response
+     * @throws IOException
+     */
+    @Benchmark
+    public void bson(final Size size) throws IOException {
+        final CountingOutputStream out = new CountingOutputStream();
+        for (final byte[] bytes : this.bson) {
+            ResponseHandler.writeRaw(out, decode(bytes, RAW_CODEC));
+        }
+
+        size.bytesPerResponse = out.getCount();
+    }
+
+    /**
+     * Decode the users and encode them with a writer
+     *
+     * @param writer
+     *         Writer of the format
+     * @param separated
+     *         True to separate users with new lines
+     * @return Bytes sent
+     * @throws IOException
+     */
+    private long encode(final ObjectWriter writer, final boolean separated) throws IOException {
+        final CountingOutputStream out = new CountingOutputStream();
+        boolean first = true;
+        for (final byte[] bytes : this.bson) {
+            if (separated && !first) {
+                out.write('\n');
+            }
+
+            writer.writeValue(out, decode(bytes, DOCUMENT_CODEC));
+            first = false;
+        }
+
+        return out.getCount();
+    }
+
+    /**
+     * Transcode the users with a writer
+     *
+     * @param writer
+     *         Writer of the format
+     * @param separated
+     *         True to separate users with new lines
+     * @return Bytes sent
+     * @throws IOException
+     */
+    private long transcode(final ObjectWriter writer, final boolean separated) throws IOException {
+        final CountingOutputStream out = new CountingOutputStream();
+        boolean first = true;
+        for (final byte[] bytes : this.bson) {
+            if (separated && !first) {
+                out.write('\n');
+            }
+
+            BsonTranscoder.write(out, decode(bytes, RAW_CODEC), writer);
+            first = false;
+        }
+
+        return out.getCount();
+    }
+
+    /**
+     * Decode a user as read from the connection
+     *
+     * @param bytes
+     *         BSON of the user
+     * @param codec
+     *         Codec of the class to decode into
+     * @return User
+     */
+    private static <T> T decode(final byte[] bytes, final Codec<T> codec) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(bytes))) {
+            return codec.decode(reader, DecoderContext.builder().build());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package response;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import helper.InMemoryUserService;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response handler paths with the database out of the picture: users come from an in-memory user service, so only
+ * lookups, serialization and the handler itself are measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ResponseHandlerBenchmark {
+    private final Request request = new StubRequest("user0", null);
+    private final Request page = new StubRequest(null, String.valueOf(ResponseHandler.MAX_LIMIT));
+    private final Response response = new StubResponse();
+    private ResponseHandler errorHandler;
+    private Exception error;
+
+    /**
+     * Users in the in-memory service
+     */
+    @State(Scope.Benchmark)
+    public static class Users {
+        @Param({ "1", "1000", "100000" })
+        public int users;
+
+        private ResponseHandler handler;
+
+        /**
+         * Create the users and the handler serving them, with compact output as in production
+         */
+        @Setup
+        public void setUp() {
+            final List<Document> documents = new ArrayList<>(this.users);
+            for (int i = 0; i < this.users; i++) {
+                documents.add(Document.parse(JsonTestStringsFactory.VALID_LONG_JSON).append("id", "user" + i));
+            }
+
+            this.handler = new ResponseHandler(new InMemoryUserService(documents), false);
+        }
+    }
+
+    /**
+     * Create the error to report
+     */
+    @Setup
+    public void setUp() {
+        this.errorHandler = new ResponseHandler(new InMemoryUserService(), false);
+        this.error = new Exception("User not found to remove");
+    }
+
+    /**
+     * First page of the users, streamed as <code>/users</code> is served. Pages are at most
+     * {@link ResponseHandler#MAX_LIMIT} users however many there are
+     *
+     * @param users
+     *         Users
+     * @return Empty string, the users are written to the discarded output
+     * @throws Exception
+     */
+    @Benchmark
+    public String streamAllUsers(final Users users) throws Exception {
+        return users.handler.streamAllUsers(this.page, this.response);
+    }
+
+    @Benchmark
+    public String getResponseForSingleUser(final Users users) throws JsonProcessingException {
+        return users.handler.getResponseForSingleUser(this.request, this.response);
+    }
+
+    /**
+     * Serialization of an error, the exception itself is created once
+     *
+     * @return Response with the error
+     */
+    @Benchmark
+    public Response getResponseForError() {
+        return this.errorHandler.getResponseForError(this.error, this.response);
+    }
+
+    /**
+     * Request for a user or a page of users, without headers or query parameters other than the page size
+     */
+    private static class StubRequest extends Request {
+        private final String id;
+        private final String limit;
+
+        StubRequest(final String id, final String limit) {
+            this.id = id;
+            this.limit = limit;
+        }
+
+        @Override
+        public String params(final String param) {
+            return ":id".equals(param) ? this.id : null;
+        }
+
+        @Override
+        public Set<String> queryParams() {
+            return this.limit == null ? Collections.emptySet() : Collections.singleton("limit");
+        }
+
+        @Override
+        public String queryParams(final String queryParam) {
+            return "limit".equals(queryParam) ? this.limit : null;
+        }
+
+        @Override
+        public String headers(final String header) {
+            return null;
+        }
+    }
+
+    /**
+     * Response keeping only its status and body, bodies written directly being discarded
+     */
+    private static class StubResponse extends Response {
+        private static final ServletOutputStream DISCARD = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        };
+
+        private final HttpServletResponse raw = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(), new Class<?>[]{ HttpServletResponse.class },
+                (proxy, method, args) -> "getOutputStream".equals(method.getName()) ? DISCARD : null);
+        private int status;
+        private String body;
+
+        @Override
+        public HttpServletResponse raw() {
+            return this.raw;
+        }
+
+        @Override
+        public void status(final int statusCode) {
+            this.status = statusCode;
+        }
+
+        @Override
+        public void body(final String body) {
+            this.body = body;
+        }
+
+        @Override
+        public String body() {
+            return this.body;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a new mapper per document against the shared writers, for a single user and for a list of users
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({ "1", "1000" })
+    public int users;
+
+    private List<Document> documents;
+
+    /**
+     * Create the users to serialize
+     */
+    @Setup
+    public void setUp() {
+        this.documents = new ArrayList<>();
+        for (int i = 0; i < this.users; i++) {
+            this.documents.add(Document.parse(JsonTestStringsFactory.VALID_LONG_JSON).append("id", "user" + i));
+        }
+    }
+
+    /**
+     * Serialization as it was done before the shared writers, a new mapper for each document
+     *
+     * @return JSON string
+     * @throws JsonProcessingException
+     */
+    @Benchmark
+    public String mapperPerDocument() throws JsonProcessingException {
+        final List<String> json = new ArrayList<>();
+        for (final Document document : this.documents) {
+            final ObjectMapper mapper = new ObjectMapper();
+            mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
+            mapper.enable(SerializationFeature.INDENT_OUTPUT);
+            json.add(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(document));
+        }
+
+        return String.join("\n", json);
+    }
+
+    /**
+     * Shared indented writer
+     *
+     * @return JSON string
+     * @throws JsonProcessingException
+     */
+    @Benchmark
+    public String sharedPretty() throws JsonProcessingException {
+        return this.write(JsonWriters.PRETTY);
+    }
+
+    /**
+     * Shared single line writer
+     *
+     * @return JSON string
+     * @throws JsonProcessingException
+     */
+    @Benchmark
+    public String sharedCompact() throws JsonProcessingException {
+        return this.write(JsonWriters.COMPACT);
+    }
+
+    private String write(final ObjectWriter writer) throws JsonProcessingException {
+        final List<String> json = new ArrayList<>();
+        for (final Document document : this.documents) {
+            json.add(writer.writeValueAsString(document));
+        }
+
+        return String.join("\n", json);
+    }
+}
@@ -0,0 +1,122 @@
+package user;
+
+import com.mongodb.client.MongoCollection;
+import helper.InMemoryMongo;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Users written per second, one request per user against one bulk write per chunk, over the in-process Mongo stand-in
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkWriteBenchmark {
+    private static final int USERS = 1000;
+
+    private InMemoryMongo mongo;
+    private MongoCollection<Document> dbCollection;
+    private UserService userService;
+    private List<String> created;
+    private List<String> updated;
+    private int run;
+
+    /**
+     * Start the stand-in
+     */
+    @Setup(Level.Trial)
+    public void startMongo() {
+        this.mongo = new InMemoryMongo();
+        this.dbCollection = this.mongo.getCollection("bench", "users");
+        this.userService = new UserService(this.dbCollection);
+    }
+
+    /**
+     * Create a chunk of users with new ids, existing in the collection for updates
+     */
+    @Setup(Level.Invocation)
+    public void createChunk() {
+        this.dbCollection.deleteMany(new Document());
+        this.created = new ArrayList<>(USERS);
+        this.updated = new ArrayList<>(USERS);
+        final List<Document> existing = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            final Document user = Document.parse(JsonTestStringsFactory.VALID_LONG_JSON)
+                                          .append("id", this.run + "-" + i);
+            this.created.add(user.toJson());
+            this.updated.add(user.append("lastName", "Update").toJson());
+            existing.add(Document.parse(this.created.get(i)));
+        }
+
+        this.run++;
+        this.dbCollection.insertMany(existing);
+    }
+
+    /**
+     * Stop the stand-in
+     */
+    @TearDown(Level.Trial)
+    public void stopMongo() {
+        this.mongo.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public void createOneByOne() {
+        this.dbCollection.deleteMany(new Document());
+        for (final String json : this.created) {
+            this.userService.createUser(json);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public List<BulkResult> createInBulk() {
+        this.dbCollection.deleteMany(new Document());
+        final List<User> users = new ArrayList<>(USERS);
+        for (final String json : this.created) {
+            users.add(UserJson.read(json));
+        }
+
+        return this.userService.createUsers(users);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public void updateOneByOne() throws Exception {
+        for (final String json : this.updated) {
+            this.userService.updateUser(json);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public List<BulkResult> updateInBulk() {
+        final List<User> users = new ArrayList<>(USERS);
+        for (final String json : this.updated) {
+            users.add(UserJson.read(json));
+        }
+
+        return this.userService.updateUsers(users);
+    }
+}
@@ -0,0 +1,116 @@
+package user;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import helper.InMemoryMongo;
+import helper.JsonTestStringsFactory;
+import helper.LatencyProxy;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many callers reading the same user at once, with a database reply delayed as if across a network. Each caller sends
+ * its own query directly, while coalesced callers share the query in flight. Queries sent to the database are counted
+ * next to the lookups served
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=warn")
+public class CoalescingBenchmark {
+    /**
+     * Counter of the thread sending each query
+     */
+    private static final ThreadLocal<Queries> CURRENT = new ThreadLocal<>();
+
+    @Param({ "direct", "coalesced" })
+    public String mode;
+
+    @Param("1")
+    public long latencyMillis;
+
+    private String id;
+    private InMemoryMongo mongo;
+    private LatencyProxy proxy;
+    private MongoClient client;
+    private IUserService userService;
+
+    /**
+     * Queries sent to the database
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Queries {
+        public long queries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.queries = 0;
+            CURRENT.set(this);
+        }
+    }
+
+    /**
+     * Start the stand-in behind the proxy, with the user to read
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final Document user = Document.parse(JsonTestStringsFactory.VALID_LONG_JSON);
+        this.id = user.getString("id");
+        this.mongo = new InMemoryMongo();
+        this.mongo.getCollection("bench", "users").insertOne(user);
+        this.proxy = new LatencyProxy(this.mongo.getAddress(), this.latencyMillis);
+        this.client = new MongoClient(new MongoClientURI(this.proxy.getUri()));
+
+        final MongoCollection<Document> users = this.client.getDatabase("bench").getCollection("users");
+        final UserService direct = new UserService(users, Runnable::run) {
+            @Override
+            public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+                CURRENT.get().queries++;
+                return super.getRawUser(id, fields);
+            }
+        };
+        this.userService = "direct".equals(this.mode) ? direct : new CoalescingUserService(direct);
+    }
+
+    /**
+     * Stop everything
+     *
+     * @throws Exception
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        this.client.close();
+        this.proxy.close();
+        this.mongo.close();
+    }
+
+    @Benchmark
+    public RawBsonDocument getRawUser(final Queries queries) {
+        return this.userService.getRawUser(this.id, null);
+    }
+}
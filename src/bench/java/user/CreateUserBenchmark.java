@@ -0,0 +1,68 @@
+package user;
+
+import com.mongodb.client.MongoCollection;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of creating a user apart from the database: parsing and validating the JSON, for the short and long user
+ * shapes. The collection is a proxy ignoring every call, see {@link UserModelBenchmark} for the typed model against
+ * documents
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateUserBenchmark {
+    @Param({ "short", "long" })
+    public String shape;
+
+    private String json;
+    private UserService userService;
+
+    /**
+     * Select the user shape and create the service
+     */
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.json = "short".equals(this.shape)
+                ? JsonTestStringsFactory.VALID_SHORT_JSON
+                : JsonTestStringsFactory.VALID_LONG_JSON;
+        final MongoCollection<Document> dbCollection = (MongoCollection<Document>) Proxy.newProxyInstance(
+                MongoCollection.class.getClassLoader(), new Class<?>[]{ MongoCollection.class },
+                (proxy, method, args) -> method.getReturnType() == MongoCollection.class ? proxy : null);
+        this.userService = new UserService(dbCollection);
+    }
+
+    @Benchmark
+    public void createUser() {
+        this.userService.createUser(this.json);
+    }
+
+    /**
+     * Parsing alone, the bulk of a create
+     *
+     * @return User
+     */
+    @Benchmark
+    public User parse() {
+        return UserJson.read(this.json);
+    }
+}
@@ -0,0 +1,163 @@
+package user;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import helper.InMemoryMongo;
+import helper.LatencyProxy;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent callers each reading a random user by id, with a database reply delayed as if across a network. Each
+ * lookup sends its own query directly, while batched lookups share a query for all the ids of their window. Queries
+ * sent to the database are counted next to the lookups served. Run with <code>-t</code> to change the number of callers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=warn")
+public class ReadBatchBenchmark {
+    private static final int USERS = 1000;
+
+    /**
+     * Queries sent to the database during the iteration
+     */
+    private static final LongAdder QUERIES = new LongAdder();
+
+    @Param({ "direct", "batched" })
+    public String mode;
+
+    @Param("1")
+    public long latencyMillis;
+
+    @Param("1")
+    public long windowMillis;
+
+    @Param("8")
+    public int readers;
+
+    private final List<String> ids = new ArrayList<>(USERS);
+    private InMemoryMongo mongo;
+    private LatencyProxy proxy;
+    private MongoClient client;
+    private IUserService userService;
+
+    /**
+     * Queries sent to the database. Batches are read on threads of the service, so each caller reports an equal share
+     * of all the queries of the iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Queries {
+        private int callers;
+
+        @Setup(Level.Iteration)
+        public void reset(final BenchmarkParams params) {
+            this.callers = params.getThreads();
+        }
+
+        public double queries() {
+            return QUERIES.sum() / (double) this.callers;
+        }
+    }
+
+    /**
+     * Start the stand-in behind the proxy, with the users to read
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setUp() throws Exception {
+        this.mongo = new InMemoryMongo();
+        final List<Document> users = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            this.ids.add("user" + i);
+            users.add(new Document("id", "user" + i).append("firstName", "First").append("lastName", "Last"));
+        }
+
+        this.mongo.getCollection("bench", "users").insertMany(users);
+        this.proxy = new LatencyProxy(this.mongo.getAddress(), this.latencyMillis);
+        this.client = new MongoClient(new MongoClientURI(this.proxy.getUri()));
+
+        // Indexes are built before measuring, and queries are counted
+        final MongoCollection<Document> collection = this.client.getDatabase("bench").getCollection("users");
+        final UserService direct = new UserService(collection, Runnable::run) {
+            @Override
+            public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+                QUERIES.increment();
+                return super.getRawUser(id, fields);
+            }
+
+            @Override
+            public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+                QUERIES.increment();
+                return super.getRawUsers(ids, fields);
+            }
+        };
+        this.userService = "direct".equals(this.mode)
+                ? direct
+                : new BatchingUserService(direct, 100, this.readers, this.windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count the queries of each iteration from zero
+     */
+    @Setup(Level.Iteration)
+    public void resetQueries() {
+        QUERIES.reset();
+    }
+
+    /**
+     * Stop everything
+     *
+     * @throws Exception
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        if (this.userService instanceof BatchingUserService) {
+            ((BatchingUserService) this.userService).close();
+        }
+
+        this.client.close();
+        this.proxy.close();
+        this.mongo.close();
+    }
+
+    /**
+     * @param queries
+     *         Counters of this caller, reported with the results
+     * @return User read
+     */
+    @Benchmark
+    public RawBsonDocument getRawUser(final Queries queries) {
+        return this.userService.getRawUser(this.ids.get(ThreadLocalRandom.current().nextInt(USERS)), null);
+    }
+}
@@ -0,0 +1,145 @@
+package user;
+
+import helper.JsonTestStringsFactory;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import response.JsonWriters;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed users against documents, for each step a user goes through: parsing its JSON, encoding it to BSON for the
+ * database, decoding it back and writing it as JSON. Run with <code>-prof gc</code> to compare allocations
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserModelBenchmark {
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private static final UserCodec USER_CODEC = new UserCodec();
+
+    @Param({ "short", "long" })
+    public String shape;
+
+    private String json;
+    private Document document;
+    private User user;
+    private byte[] bson;
+
+    /**
+     * Parse the user of the shape both ways, and encode it as the database would send it
+     */
+    @Setup
+    public void setUp() {
+        this.json = "short".equals(this.shape)
+                ? JsonTestStringsFactory.VALID_SHORT_JSON
+                : JsonTestStringsFactory.VALID_LONG_JSON;
+        this.document = Document.parse(this.json);
+        this.user = UserJson.read(this.json);
+        this.bson = encode(this.document, DOCUMENT_CODEC).toByteArray();
+    }
+
+    @Benchmark
+    public Document parseDocument() {
+        return Document.parse(this.json);
+    }
+
+    @Benchmark
+    public User parseUser() {
+        return UserJson.read(this.json);
+    }
+
+    /**
+     * Validation of a parsed user, done on each create and update on top of parsing
+     *
+     * @return User
+     */
+    @Benchmark
+    public User validateUser() {
+        this.user.validate();
+        return this.user;
+    }
+
+    @Benchmark
+    public BasicOutputBuffer encodeDocument() {
+        return encode(this.document, DOCUMENT_CODEC);
+    }
+
+    @Benchmark
+    public BasicOutputBuffer encodeUser() {
+        return encode(this.user, USER_CODEC);
+    }
+
+    @Benchmark
+    public Document decodeDocument() {
+        return decode(DOCUMENT_CODEC);
+    }
+
+    @Benchmark
+    public User decodeUser() {
+        return decode(USER_CODEC);
+    }
+
+    @Benchmark
+    public byte[] writeDocument() throws IOException {
+        return JsonWriters.COMPACT.writeValueAsBytes(this.document);
+    }
+
+    @Benchmark
+    public byte[] writeUser() throws IOException {
+        return JsonWriters.COMPACT.writeValueAsBytes(this.user);
+    }
+
+    /**
+     * Encode a user to BSON
+     *
+     * @param value
+     *         User
+     * @param codec
+     *         Codec of the user
+     * @return Buffer holding the BSON
+     */
+    private static <T> BasicOutputBuffer encode(final T value, final Codec<T> codec) {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer(512);
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            codec.encode(writer, value, EncoderContext.builder().build());
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Decode the user from its BSON
+     *
+     * @param codec
+     *         Codec of the class to decode into
+     * @return User
+     */
+    private <T> T decode(final Codec<T> codec) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(this.bson))) {
+            return codec.decode(reader, DecoderContext.builder().build());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package user;
+
+import com.mongodb.client.MongoCollection;
+import helper.InMemoryMongo;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single user operations per second from several threads, over the in-process Mongo stand-in, with the logging
+ * configuration of the application. Each operation logs its steps, so this measures the cost of logging on the request
+ * path along with the operation itself
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class UserServiceBenchmark {
+    private InMemoryMongo mongo;
+    private UserService userService;
+
+    /**
+     * Ids of the users created by one thread
+     */
+    @State(Scope.Thread)
+    public static class Ids {
+        private final String prefix = Thread.currentThread().getName() + "-";
+        private int next;
+
+        String next() {
+            return this.prefix + this.next++;
+        }
+    }
+
+    /**
+     * Start the stand-in, with a user to read
+     */
+    @Setup
+    public void setUp() {
+        this.mongo = new InMemoryMongo();
+        final MongoCollection<Document> dbCollection = this.mongo.getCollection("bench", "users");
+        dbCollection.insertOne(Document.parse(JsonTestStringsFactory.VALID_LONG_JSON));
+        this.userService = new UserService(dbCollection);
+    }
+
+    /**
+     * Stop the stand-in
+     */
+    @TearDown
+    public void tearDown() {
+        this.mongo.close();
+    }
+
+    @Benchmark
+    public Document getUser() {
+        return this.userService.getUser("1630215c-2608-44b9-aad4-9d56d8aafd4c");
+    }
+
+    @Benchmark
+    public void createAndRemove(final Ids ids) throws Exception {
+        final String id = ids.next();
+        this.userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON.replace(
+                "1630215c-2608-44b9-aad4-9d56d8aafd4c", id));
+        this.userService.removeUser(id);
+    }
+}
@@ -0,0 +1,129 @@
+package user;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import helper.InMemoryMongo;
+import helper.LatencyProxy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Users created by many concurrent callers, with a database reply delayed as if across a network. Direct creation pays
+ * a round trip per user. Behind the queue, callers waiting for their user share a round trip with the users queued in
+ * the same window, and callers not waiting only pay for the queue, so their throughput is how fast the queue drains.
+ * Users refused by a full queue are counted apart
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=warn")
+public class WriteBehindBenchmark {
+    @Param({ "direct", "durable", "accepted" })
+    public String mode;
+
+    @Param("1")
+    public long latencyMillis;
+
+    @Param({ "1", "5" })
+    public long windowMillis;
+
+    private final AtomicLong ids = new AtomicLong();
+    private InMemoryMongo mongo;
+    private LatencyProxy proxy;
+    private MongoClient client;
+    private UserService direct;
+    private WriteBehindUserService writeBehind;
+
+    /**
+     * Users created or queued, and users refused by a full queue, splitting the throughput
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Outcomes {
+        public long accepted;
+        public long refused;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.accepted = 0;
+            this.refused = 0;
+        }
+    }
+
+    /**
+     * Start the stand-in behind the proxy, and the queue over it
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setUp() throws Exception {
+        this.mongo = new InMemoryMongo();
+        this.proxy = new LatencyProxy(this.mongo.getAddress(), this.latencyMillis);
+        this.client = new MongoClient(new MongoClientURI(this.proxy.getUri()));
+        // Indexes are built before measuring, as the stand-in cannot build them while users are inserted
+        this.direct = new UserService(this.client.getDatabase("bench").getCollection("users"), Runnable::run);
+        this.writeBehind = new WriteBehindUserService(this.direct, 10000, 500, this.windowMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write what is left and stop everything
+     *
+     * @throws Exception
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        this.writeBehind.close();
+        this.client.close();
+        this.proxy.close();
+        this.mongo.close();
+    }
+
+    @Benchmark
+    public boolean createUser(final Outcomes outcomes) {
+        final User user = new User("user" + this.ids.incrementAndGet(), "First", "Last", "first@example.com", null,
+                null, null, null);
+        try {
+            final boolean written;
+            switch (this.mode) {
+                case "direct":
+                    this.direct.createUser(user);
+                    written = true;
+                    break;
+                case "durable":
+                    written = this.writeBehind.createUser(user, true);
+                    break;
+                default:
+                    written = this.writeBehind.createUser(user, false);
+            }
+
+            outcomes.accepted++;
+            return written;
+        } catch (final WriteQueueFullException e) {
+            // Back off for a round trip, as a client told to retry later would, instead of spinning on the queue
+            outcomes.refused++;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(this.latencyMillis));
+            return false;
+        }
+    }
+}
@@ -1,9 +1,31 @@
 package driver;
 
+import com.mongodb.MongoClient;
+import metrics.Metrics;
+import metrics.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import response.AsyncUserFilter;
+import response.ChangeCounter;
+import response.ResponseCache;
 import response.ResponseHandler;
+import spark.Route;
 import spark.Spark;
+import user.AsyncUserService;
+import user.BatchingUserService;
+import user.CachingUserService;
+import user.CoalescingUserService;
+import user.IUserChangeFeed;
+import user.IUserService;
+import user.InstrumentedUserService;
+import user.MongoChangeFeed;
+import user.UserService;
+import user.WriteBehindUserService;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * Driver class
@@ -15,27 +37,50 @@ public class AppController {
     private final Logger logger = LoggerFactory.getLogger(AppController.class);
 
     /**
-     * Constructor to start Spark and configure services
+     * Constructor to serve the routes from an embedded Jetty server instead of the one started by Spark
      *
-     * @param database
-     *         Database to connect to
-     * @param collection
-     *         Collection to fetch
+     * @param responseHandler
+     *         Handler serving all routes
+     * @param server
+     *         Server to start, with any filters to run ahead of the routes already added
+     * @throws Exception
      */
-    public AppController(final String database, final String collection) {
-        // Start spark
-        this.logger.info("Start server on port 8000");
-        Spark.port(8000);
+    public AppController(final ResponseHandler responseHandler, final JettyServer server) throws Exception {
+        this.responseHandler = responseHandler;
+        server.start(this::configureRoutes);
+        this.logger.info("Server started on port {}", server.getPort());
+    }
 
+    /**
+     * Register the routes and the error handler with Spark
+     */
+    private void configureRoutes() {
         // Configure user services
         this.logger.info("Configuring services");
-        this.responseHandler = new ResponseHandler(database, collection);
-        Spark.get("/users", "application/json", (req, res) -> this.responseHandler.getResponseForAllUsers());
-        Spark.get("/users/:id", "application/json",
-                (req, res) -> this.responseHandler.getResponseForSingleUser(req, res));
-        Spark.put("/create", "application/json", (req, res) -> this.responseHandler.create(req));
-        Spark.put("/update", "application/json", (req, res) -> this.responseHandler.update(req));
-        Spark.post("/remove/:id", "application/json", (req, res) -> this.responseHandler.remove(req));
+        // Gets match any Accept header, as users are also served in binary formats
+        Spark.get("/users", this.timed("/users", (req, res) -> this.responseHandler.streamAllUsers(req, res)));
+        Spark.get("/users/:id",
+                this.timed("/users/:id", (req, res) -> this.responseHandler.getResponseForSingleUser(req, res)));
+        Spark.put("/create", "application/json",
+                this.timed("/create", (req, res) -> this.responseHandler.create(req, res)));
+        Spark.put("/update", "application/json", this.timed("/update", (req, res) -> this.responseHandler.update(req)));
+        Spark.post("/remove/:id", "application/json",
+                this.timed("/remove/:id", (req, res) -> this.responseHandler.remove(req)));
+        Spark.put("/bulk/create", "application/json",
+                this.timed("/bulk/create", (req, res) -> this.responseHandler.bulkCreate(req, res)));
+        Spark.put("/bulk/update", "application/json",
+                this.timed("/bulk/update", (req, res) -> this.responseHandler.bulkUpdate(req, res)));
+        Spark.post("/bulk/remove", "application/json",
+                this.timed("/bulk/remove", (req, res) -> this.responseHandler.bulkRemove(req, res)));
+
+        // Configure readiness and metrics
+        Spark.get("/ready", "application/json",
+                (req, res) -> this.responseHandler.getResponseForReadiness(req, res));
+        final Metrics metrics = this.responseHandler.getMetrics();
+        Spark.get("/metrics", (req, res) -> {
+            res.type(Metrics.CONTENT_TYPE);
+            return metrics.toPrometheusText();
+        });
 
         // Configure errors
         Spark.exception(Exception.class, (e, req, res) -> this.responseHandler.getResponseForError(e, res));
@@ -43,15 +88,182 @@ public class AppController {
     }
 
     /**
-     * Driver program
+     * Time a route. Requests throwing an exception or answered with an error status are counted as errors
+     *
+     * @param path
+     *         Path of the route
+     * @param route
+     *         Route to time
+     * @return Timed route
+     */
+    private Route timed(final String path, final Route route) {
+        final Timer timer = ResponseHandler.routeTimer(this.responseHandler.getMetrics(), path);
+        return (req, res) -> {
+            final long start = System.nanoTime();
+            try {
+                final Object body = route.handle(req, res);
+                if (res.raw().getStatus() >= 400) {
+                    timer.recordError(start);
+                } else {
+                    timer.record(start);
+                }
+
+                return body;
+            } catch (final Exception e) {
+                timer.recordError(start);
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Driver program. Settings are read by {@link ServerConfig}, the server mode is one of:
+     * <ul>
+     * <li><code>platform</code>, the default, serves every route on a bounded pool of server threads</li>
+     * <li><code>async</code> serves single users asynchronously on the asynchronous driver</li>
+     * <li><code>virtual</code> serves every route on its own virtual thread, requires JDK 21 or later</li>
+     * </ul>
+     * The main thread waits until the process is asked to stop, then requests in flight are given the shutdown timeout
+     * to complete before the database clients are closed. Latencies of the routes, user service operations and JSON
+     * serialization are served at <code>/metrics</code>. Missing indexes are created while the server starts, and
+     * <code>/ready</code> answers with an error until they exist
      *
      * @param args
      *         Command line arguments
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+        final JettyServer server = start(ServerConfig.load());
+        final Logger logger = LoggerFactory.getLogger(AppController.class);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Stopping server...");
+            try {
+                server.stop();
+            } catch (final Exception e) {
+                logger.error(e.getMessage());
+            }
+
+            // Then, write the remaining log events
+            logger.info("Server stopped");
+            LogManager.shutdown();
+        }, "shutdown"));
+
+        server.join();
+    }
+
+    /**
+     * Start the server and its services as configured
+     *
+     * @param config
+     *         Configuration
+     * @return Running server, stopping it closes the database clients
+     * @throws Exception
      */
-    public static void main(final String[] args) {
-        // Create controller an run an infinite loop
-        new AppController("egen", "users");
-        while (true) {
+    public static JettyServer start(final ServerConfig config) throws Exception {
+        final String mode = config.getMode();
+        final Logger logger = LoggerFactory.getLogger(AppController.class);
+        logger.info("Starting in {} mode", mode);
+
+        // A single client, and so a single connection pool, for all synchronous services
+        final String database = config.getString(ServerConfig.MONGO_DATABASE);
+        final String collection = config.getString(ServerConfig.MONGO_COLLECTION);
+        final MongoClient mongoClient = config.createMongoClient();
+        final Metrics metrics = new Metrics();
+        final InstrumentedUserService userService = new InstrumentedUserService(
+                new UserService(mongoClient.getDatabase(database).getCollection(collection)), metrics);
+        final ThreadPool threadPool = "virtual".equals(mode)
+                ? new VirtualThreadPool()
+                : new QueuedThreadPool(config.getInt(ServerConfig.MAX_THREADS), config.getInt(ServerConfig.MIN_THREADS),
+                        config.getInt(ServerConfig.THREAD_IDLE_TIMEOUT));
+        final JettyServer server = new JettyServer(config.getInt(ServerConfig.PORT), threadPool,
+                config.getLong(ServerConfig.SHUTDOWN_TIMEOUT));
+        server.setRequestLog(new SampledRequestLog(config.getInt(ServerConfig.ACCESS_LOG_SAMPLE_RATE)));
+        if (config.getCompressionMinSize() >= 0) {
+            server.setCompression(config.getCompressionMinSize(), config.getCompressionLevel());
+        }
+
+        // User lists are validated by the writes counted here, and renewed as often as cached users
+        final ChangeCounter changes = new ChangeCounter(config.getLong(ServerConfig.CACHE_TTL));
+        final long maxBodySize = config.getLong(ServerConfig.MAX_BODY_SIZE);
+
+        // Writes of other instances are optionally followed, to count them and evict their users
+        final IUserChangeFeed changeFeed = "mongo".equals(config.getChangeFeed())
+                ? new MongoChangeFeed(mongoClient.getDatabase(database).getCollection(collection),
+                        config.getLong(ServerConfig.CACHE_CHANGE_FEED_RETRY_DELAY), TimeUnit.MILLISECONDS)
+                : null;
+        if (changeFeed != null) {
+            changeFeed.subscribe(changes);
+            server.onStop(changeFeed::close);
+        }
+
+        final ResponseHandler responseHandler;
+        final com.mongodb.async.client.MongoClient asyncClient;
+        if ("async".equals(mode)) {
+            // Serve single users asynchronously, the remaining routes still block on the database
+            asyncClient = config.createAsyncMongoClient();
+            server.addFilter(new AsyncUserFilter(
+                    new AsyncUserService(asyncClient.getDatabase(database).getCollection(collection)), false,
+                    changes, metrics, maxBodySize));
+            responseHandler = new ResponseHandler(userService, false, null, changes, metrics, maxBodySize);
+        } else {
+            // Cached users and compact responses, with users optionally created in batches behind their requests
+            asyncClient = null;
+            IUserService writer = userService;
+            final int writeBehindCapacity = config.getInt(ServerConfig.WRITE_BEHIND_CAPACITY);
+            if (writeBehindCapacity > 0) {
+                final WriteBehindUserService writeBehind = new WriteBehindUserService(userService,
+                        writeBehindCapacity, config.getInt(ServerConfig.WRITE_BEHIND_BATCH_SIZE),
+                        config.getLong(ServerConfig.WRITE_BEHIND_WINDOW), TimeUnit.MILLISECONDS);
+                writer = writeBehind;
+
+                // Users accepted before being written change the lists once written
+                writeBehind.subscribe(changes);
+
+                // Queued users are written before the database client is closed
+                server.onStop(() -> {
+                    try {
+                        writeBehind.close();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+
+            // Users looked up by id are optionally read in batches
+            IUserService reader = writer;
+            final int readBatchSize = config.getInt(ServerConfig.READ_BATCH_SIZE);
+            if (readBatchSize > 0) {
+                final BatchingUserService batching = new BatchingUserService(writer, readBatchSize,
+                        config.getReadBatchReaders(), config.getLong(ServerConfig.READ_BATCH_WINDOW),
+                        TimeUnit.MILLISECONDS);
+                reader = batching;
+                server.onStop(() -> {
+                    try {
+                        batching.close();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+
+            // Cache misses and uncached reads of the same user in flight at once share a single query
+            final int cacheSize = config.getInt(ServerConfig.CACHE_SIZE);
+            final CachingUserService cache = new CachingUserService(new CoalescingUserService(reader), cacheSize,
+                    config.getLong(ServerConfig.CACHE_TTL), TimeUnit.MILLISECONDS);
+            if (changeFeed != null) {
+                changeFeed.subscribe(cache);
+            }
+
+            responseHandler = new ResponseHandler(cache, false, new ResponseCache(cacheSize), changes, metrics,
+                    maxBodySize);
+        }
+
+        server.onStop(mongoClient::close);
+        if (asyncClient != null) {
+            server.onStop(asyncClient::close);
         }
+
+        new AppController(responseHandler, server);
+        return server;
     }
 }
@@ -0,0 +1,193 @@
+package driver;
+
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.servlet.SparkApplication;
+import spark.servlet.SparkFilter;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterConfig;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Embedded Jetty server running the Spark routes as a servlet filter, instead of the server Spark starts on its own.
+ * This gives control over the thread pool and the shutdown, and lets filters such as asynchronous routes run ahead of
+ * Spark. Once started, Spark runs in servlet mode for the rest of the process
+ */
+public class JettyServer {
+    /**
+     * Time given to in-flight requests to complete on stop, unless configured
+     */
+    public static final long DEFAULT_STOP_TIMEOUT = 30000;
+
+    private final Logger logger = LoggerFactory.getLogger(JettyServer.class);
+    private final Server server;
+    private final ServerConnector connector;
+    private final ServletContextHandler context;
+    private final StatisticsHandler statistics;
+    private final List<Runnable> stopActions = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param port
+     *         Port to listen on, 0 for any free port
+     * @param maxThreads
+     *         Maximum number of request threads
+     */
+    public JettyServer(final int port, final int maxThreads) {
+        this(port, new QueuedThreadPool(maxThreads), DEFAULT_STOP_TIMEOUT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param port
+     *         Port to listen on, 0 for any free port
+     * @param threadPool
+     *         Threads running the connector and the requests
+     */
+    public JettyServer(final int port, final ThreadPool threadPool) {
+        this(port, threadPool, DEFAULT_STOP_TIMEOUT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param port
+     *         Port to listen on, 0 for any free port
+     * @param threadPool
+     *         Threads running the connector and the requests
+     * @param stopTimeout
+     *         Milliseconds given to in-flight requests to complete on stop
+     */
+    public JettyServer(final int port, final ThreadPool threadPool, final long stopTimeout) {
+        this.server = new Server(threadPool);
+        this.connector = new ServerConnector(this.server);
+        this.connector.setPort(port);
+        this.server.addConnector(this.connector);
+
+        // Count requests in flight, so that stopping waits for them
+        this.context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        this.context.setContextPath("/");
+        this.statistics = new StatisticsHandler();
+        this.statistics.setHandler(this.context);
+        this.server.setHandler(this.statistics);
+        this.server.setStopTimeout(stopTimeout);
+    }
+
+    /**
+     * Add a filter for all requests, run before the filters added after it and before Spark
+     *
+     * @param filter
+     *         Filter, may process requests asynchronously
+     */
+    public void addFilter(final Filter filter) {
+        final FilterHolder holder = new FilterHolder(filter);
+        holder.setAsyncSupported(true);
+        this.context.addFilter(holder, "/*", EnumSet.of(DispatcherType.REQUEST));
+    }
+
+    /**
+     * Compress JSON and text responses of GET requests with gzip, for clients accepting it. Responses are compressed
+     * while they are written, so streamed responses stay streamed
+     *
+     * @param minSize
+     *         Responses of a known length below this number of bytes are sent as is
+     * @param level
+     *         Compression level, from 1 for the fastest to 9 for the smallest
+     */
+    public void setCompression(final int minSize, final int level) {
+        final GzipHandler gzip = new GzipHandler();
+        gzip.setMinGzipSize(minSize);
+        gzip.setCompressionLevel(level);
+        gzip.setIncludedMimeTypes("application/json", "text/plain");
+        gzip.setHandler(this.context);
+        this.statistics.setHandler(gzip);
+    }
+
+    /**
+     * Log every request once complete
+     *
+     * @param requestLog
+     *         Access log
+     */
+    public void setRequestLog(final RequestLog requestLog) {
+        this.server.setRequestLog(requestLog);
+    }
+
+    /**
+     * Run an action once the server has stopped, such as closing a client the requests used
+     *
+     * @param action
+     *         Action, run after the actions added before it even if one of them failed
+     */
+    public void onStop(final Runnable action) {
+        this.stopActions.add(action);
+    }
+
+    /**
+     * Start the server
+     *
+     * @param application
+     *         Registers the Spark routes, called once while starting
+     * @throws Exception
+     */
+    public void start(final SparkApplication application) throws Exception {
+        this.addFilter(new SparkFilter() {
+            @Override
+            protected SparkApplication getApplication(final FilterConfig filterConfig) {
+                return application;
+            }
+        });
+        this.server.start();
+    }
+
+    /**
+     * @return Port the server listens on
+     */
+    public int getPort() {
+        return this.connector.getLocalPort();
+    }
+
+    /**
+     * Stop the server gracefully: stop accepting connections, then wait for the requests in flight up to the stop
+     * timeout. Then, run the stop actions, each failure being logged so that the remaining actions still run
+     *
+     * @throws Exception
+     */
+    public void stop() throws Exception {
+        try {
+            this.server.stop();
+        } finally {
+            for (final Runnable action : this.stopActions) {
+                try {
+                    action.run();
+                } catch (final RuntimeException e) {
+                    this.logger.error("Stop action failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the server to stop
+     *
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        this.server.join();
+    }
+}
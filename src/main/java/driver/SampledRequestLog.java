@@ -0,0 +1,50 @@
+package driver;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Access log of a sample of the requests, to the <code>access</code> logger. Server errors are always logged, other
+ * requests at random with the configured rate, so the volume stays bounded under load. Requests are logged once
+ * complete, whichever route or filter served them. Latencies are in milliseconds, precise percentiles are served by
+ * the metrics instead
+ */
+public class SampledRequestLog implements RequestLog {
+    private final Logger logger = LoggerFactory.getLogger("access");
+    private final int sampleRate;
+
+    /**
+     * Constructor
+     *
+     * @param sampleRate
+     *         One request out of this number is logged, 1 to log every request and 0 for server errors only
+     */
+    public SampledRequestLog(final int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public void log(final Request request, final Response response) {
+        final int status = response.getStatus();
+        if (this.isSampled(status) && this.logger.isInfoEnabled()) {
+            this.logger.info("{} {} {} {} ms", request.getMethod(), request.getRequestURI(), status,
+                    System.currentTimeMillis() - request.getTimeStamp());
+        }
+    }
+
+    /**
+     * Decide if a request is logged
+     *
+     * @param status
+     *         HTTP status of the response
+     * @return True for server errors, else true at random with the sample rate
+     */
+    boolean isSampled(final int status) {
+        return status >= 500 || this.sampleRate > 0 && ThreadLocalRandom.current().nextInt(this.sampleRate) == 0;
+    }
+}
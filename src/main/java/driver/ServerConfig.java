@@ -0,0 +1,439 @@
+package driver;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.async.client.MongoClientSettings;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.SocketSettings;
+import com.mongodb.connection.SslSettings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server and database settings. Each key is read, by order of precedence, from:
+ * <ol>
+ * <li>A system property, e.g. <code>-Dserver.port=8080</code></li>
+ * <li>An environment variable, the key in upper case with dots replaced by underscores, e.g.
+ * <code>SERVER_PORT=8080</code></li>
+ * <li>The properties file named by the <code>config.file</code> key, <code>application.properties</code> in the
+ * working directory by default</li>
+ * <li>The defaults below</li>
+ * </ol>
+ * Durations are in milliseconds. Options given in the Mongo connection string take precedence over the pool and timeout
+ * keys
+ */
+public class ServerConfig {
+    /**
+     * Server mode, <code>platform</code>, <code>async</code> or <code>virtual</code>
+     */
+    public static final String MODE = "server.mode";
+    public static final String PORT = "server.port";
+    public static final String MIN_THREADS = "server.threads.min";
+    public static final String MAX_THREADS = "server.threads.max";
+    public static final String THREAD_IDLE_TIMEOUT = "server.threads.idleTimeout";
+
+    /**
+     * Time given to in-flight requests to complete on shutdown
+     */
+    public static final String SHUTDOWN_TIMEOUT = "server.shutdownTimeout";
+
+    /**
+     * Responses of a known length below this number of bytes are not compressed, -1 to never compress
+     */
+    public static final String COMPRESSION_MIN_SIZE = "server.compression.minSize";
+
+    /**
+     * Deflate level of compressed responses, from 0 to 9
+     */
+    public static final String COMPRESSION_LEVEL = "server.compression.level";
+
+    /**
+     * Largest body, in bytes, of a request creating or updating a single user
+     */
+    public static final String MAX_BODY_SIZE = "server.maxBodySize";
+
+    public static final String MONGO_URI = "mongo.uri";
+    public static final String MONGO_DATABASE = "mongo.database";
+    public static final String MONGO_COLLECTION = "mongo.collection";
+    public static final String MONGO_MAX_POOL_SIZE = "mongo.pool.maxSize";
+    public static final String MONGO_MIN_POOL_SIZE = "mongo.pool.minSize";
+
+    /**
+     * Requests allowed to wait for a connection, as a multiple of the maximum pool size
+     */
+    public static final String MONGO_WAIT_QUEUE_MULTIPLE = "mongo.pool.waitQueueMultiple";
+    public static final String MONGO_WAIT_QUEUE_TIMEOUT = "mongo.pool.waitQueueTimeout";
+    public static final String MONGO_CONNECT_TIMEOUT = "mongo.connectTimeout";
+    public static final String MONGO_SOCKET_TIMEOUT = "mongo.socketTimeout";
+    public static final String MONGO_SERVER_SELECTION_TIMEOUT = "mongo.serverSelectionTimeout";
+
+    public static final String CACHE_SIZE = "cache.size";
+    public static final String CACHE_TTL = "cache.ttl";
+
+    /**
+     * Feed of the writes of other instances evicting their users from the cache, <code>none</code> or
+     * <code>mongo</code> for the change stream of the users collection
+     */
+    public static final String CACHE_CHANGE_FEED = "cache.changeFeed";
+
+    /**
+     * Time to wait before opening the change stream again after it failed
+     */
+    public static final String CACHE_CHANGE_FEED_RETRY_DELAY = "cache.changeFeed.retryDelay";
+
+    /**
+     * Users waiting to be created in batches, 0 to create each user as its request is served
+     */
+    public static final String WRITE_BEHIND_CAPACITY = "writeBehind.capacity";
+    public static final String WRITE_BEHIND_BATCH_SIZE = "writeBehind.batchSize";
+
+    /**
+     * Longest time a user waits for its batch to fill
+     */
+    public static final String WRITE_BEHIND_WINDOW = "writeBehind.window";
+
+    /**
+     * Most users looked up by id read at once, 0 to read each user as its request is served
+     */
+    public static final String READ_BATCH_SIZE = "readBatch.size";
+
+    /**
+     * Longest time a lookup waits for its batch to fill
+     */
+    public static final String READ_BATCH_WINDOW = "readBatch.window";
+
+    /**
+     * Most batches of users looked up by id read at once, further batches wait for a reader
+     */
+    public static final String READ_BATCH_READERS = "readBatch.readers";
+
+    /**
+     * One request out of this number is written to the access log, 0 for server errors only
+     */
+    public static final String ACCESS_LOG_SAMPLE_RATE = "log.access.sampleRate";
+
+    private static final String CONFIG_FILE = "config.file";
+
+    private final Properties defaults;
+    private final Properties file;
+    private final Map<String, String> env;
+    private final Properties system;
+
+    /**
+     * Constructor for unit testing
+     *
+     * @param file
+     *         Properties read from the configuration file
+     * @param env
+     *         Environment variables
+     * @param system
+     *         System properties
+     */
+    ServerConfig(final Properties file, final Map<String, String> env, final Properties system) {
+        this.defaults = defaults();
+        this.file = file;
+        this.env = env;
+        this.system = system;
+    }
+
+    /**
+     * Load the configuration of this process
+     *
+     * @return Configuration
+     * @throws IOException
+     *         If the configuration file cannot be read
+     */
+    public static ServerConfig load() throws IOException {
+        final ServerConfig bootstrap = new ServerConfig(new Properties(), System.getenv(), System.getProperties());
+        final String fileName = bootstrap.getString(CONFIG_FILE);
+        final Path path = Paths.get(fileName);
+        final Properties file = new Properties();
+        if (Files.exists(path)) {
+            try (final InputStream in = Files.newInputStream(path)) {
+                file.load(in);
+            }
+        } else if (!"application.properties".equals(fileName)) {
+            throw new IOException("Configuration file " + fileName + " not found");
+        }
+
+        return new ServerConfig(file, System.getenv(), System.getProperties());
+    }
+
+    /**
+     * @return Default value of every key
+     */
+    private static Properties defaults() {
+        final Properties defaults = new Properties();
+        defaults.setProperty(CONFIG_FILE, "application.properties");
+        defaults.setProperty(MODE, "platform");
+        defaults.setProperty(PORT, "8000");
+        defaults.setProperty(MIN_THREADS, "8");
+        defaults.setProperty(MAX_THREADS, "200");
+        defaults.setProperty(THREAD_IDLE_TIMEOUT, "60000");
+        defaults.setProperty(SHUTDOWN_TIMEOUT, "30000");
+        defaults.setProperty(COMPRESSION_MIN_SIZE, "1024");
+        defaults.setProperty(COMPRESSION_LEVEL, "6");
+        defaults.setProperty(MAX_BODY_SIZE, "65536");
+        defaults.setProperty(MONGO_URI, "mongodb://localhost");
+        defaults.setProperty(MONGO_DATABASE, "egen");
+        defaults.setProperty(MONGO_COLLECTION, "users");
+        defaults.setProperty(MONGO_MAX_POOL_SIZE, "100");
+        defaults.setProperty(MONGO_MIN_POOL_SIZE, "0");
+        defaults.setProperty(MONGO_WAIT_QUEUE_TIMEOUT, "120000");
+        defaults.setProperty(MONGO_CONNECT_TIMEOUT, "10000");
+        defaults.setProperty(MONGO_SOCKET_TIMEOUT, "0");
+        defaults.setProperty(MONGO_SERVER_SELECTION_TIMEOUT, "30000");
+        defaults.setProperty(CACHE_SIZE, "10000");
+        defaults.setProperty(CACHE_TTL, "300000");
+        defaults.setProperty(CACHE_CHANGE_FEED, "none");
+        defaults.setProperty(CACHE_CHANGE_FEED_RETRY_DELAY, "1000");
+        defaults.setProperty(WRITE_BEHIND_CAPACITY, "0");
+        defaults.setProperty(WRITE_BEHIND_BATCH_SIZE, "500");
+        defaults.setProperty(WRITE_BEHIND_WINDOW, "1");
+        defaults.setProperty(READ_BATCH_SIZE, "0");
+        defaults.setProperty(READ_BATCH_WINDOW, "1");
+        defaults.setProperty(READ_BATCH_READERS, "8");
+        defaults.setProperty(ACCESS_LOG_SAMPLE_RATE, "100");
+        return defaults;
+    }
+
+    /**
+     * Get a value
+     *
+     * @param key
+     *         Key
+     * @return Value from the source with the highest precedence
+     * @throws IllegalArgumentException
+     *         If the key has no value
+     */
+    public String getString(final String key) {
+        String value = this.system.getProperty(key);
+        if (value == null) {
+            value = this.env.get(key.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+
+        if (value == null) {
+            value = this.file.getProperty(key);
+        }
+
+        if (value == null) {
+            value = this.defaults.getProperty(key);
+        }
+
+        if (value == null) {
+            throw new IllegalArgumentException("No value for " + key);
+        }
+
+        return value.trim();
+    }
+
+    /**
+     * Get a positive or zero number
+     *
+     * @param key
+     *         Key
+     * @return Value
+     * @throws IllegalArgumentException
+     *         If the value is not a positive or zero number
+     */
+    public int getInt(final String key) {
+        final long value = this.getLong(key);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value " + value + " for " + key);
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Get a positive or zero number
+     *
+     * @param key
+     *         Key
+     * @return Value
+     * @throws IllegalArgumentException
+     *         If the value is not a positive or zero number
+     */
+    public long getLong(final String key) {
+        final String value = this.getString(key);
+        try {
+            final long number = Long.parseLong(value);
+            if (number >= 0) {
+                return number;
+            }
+        } catch (final NumberFormatException e) {
+            // Reported below
+        }
+
+        throw new IllegalArgumentException("Invalid value " + value + " for " + key);
+    }
+
+    /**
+     * @return Minimum size of the responses compressed, -1 to never compress
+     * @throws IllegalArgumentException
+     *         If the value is neither -1 nor a positive or zero number
+     */
+    public int getCompressionMinSize() {
+        return "-1".equals(this.getString(COMPRESSION_MIN_SIZE)) ? -1 : this.getInt(COMPRESSION_MIN_SIZE);
+    }
+
+    /**
+     * @return Deflate level of compressed responses
+     * @throws IllegalArgumentException
+     *         If the value is not a level from 0 to 9
+     */
+    public int getCompressionLevel() {
+        final int level = this.getInt(COMPRESSION_LEVEL);
+        if (level > 9) {
+            throw new IllegalArgumentException("Invalid value " + level + " for " + COMPRESSION_LEVEL
+                    + ", expected 0 to 9");
+        }
+
+        return level;
+    }
+
+    /**
+     * @return Most batches of users looked up by id read at once
+     * @throws IllegalArgumentException
+     *         If the value is not at least 1
+     */
+    public int getReadBatchReaders() {
+        final int readers = this.getInt(READ_BATCH_READERS);
+        if (readers < 1) {
+            throw new IllegalArgumentException("Invalid value " + readers + " for " + READ_BATCH_READERS
+                    + ", expected at least 1");
+        }
+
+        return readers;
+    }
+
+    /**
+     * @return Server mode
+     */
+    public String getMode() {
+        final String mode = this.getString(MODE);
+        if (!"platform".equals(mode) && !"async".equals(mode) && !"virtual".equals(mode)) {
+            throw new IllegalArgumentException("Invalid value " + mode + " for " + MODE);
+        }
+
+        return mode;
+    }
+
+    /**
+     * @return Change feed, <code>none</code> or <code>mongo</code>
+     */
+    public String getChangeFeed() {
+        final String feed = this.getString(CACHE_CHANGE_FEED);
+        if (!"none".equals(feed) && !"mongo".equals(feed)) {
+            throw new IllegalArgumentException("Invalid value " + feed + " for " + CACHE_CHANGE_FEED);
+        }
+
+        return feed;
+    }
+
+    /**
+     * Requests allowed to wait for a connection, as a multiple of the maximum pool size. Unless set, large enough in
+     * the virtual thread mode for every request to wait instead of failing, as requests are not bounded by a pool
+     *
+     * @return Multiple
+     */
+    public int getMongoWaitQueueMultiple() {
+        if (!this.isSet(MONGO_WAIT_QUEUE_MULTIPLE)) {
+            return "virtual".equals(this.getMode()) ? 500 : 5;
+        }
+
+        return this.getInt(MONGO_WAIT_QUEUE_MULTIPLE);
+    }
+
+    /**
+     * Create the client shared by all synchronous services
+     *
+     * @return Client
+     */
+    public MongoClient createMongoClient() {
+        final MongoClientOptions.Builder options = MongoClientOptions.builder()
+                .connectionsPerHost(this.getInt(MONGO_MAX_POOL_SIZE))
+                .minConnectionsPerHost(this.getInt(MONGO_MIN_POOL_SIZE))
+                .threadsAllowedToBlockForConnectionMultiplier(this.getMongoWaitQueueMultiple())
+                .maxWaitTime(this.getInt(MONGO_WAIT_QUEUE_TIMEOUT))
+                .connectTimeout(this.getInt(MONGO_CONNECT_TIMEOUT))
+                .socketTimeout(this.getInt(MONGO_SOCKET_TIMEOUT))
+                .serverSelectionTimeout(this.getInt(MONGO_SERVER_SELECTION_TIMEOUT));
+        return new MongoClient(new MongoClientURI(this.getString(MONGO_URI), options));
+    }
+
+    /**
+     * Create the client shared by all asynchronous services, with the same settings. The connection string is applied
+     * as a whole, including its SSL, read preference and write concern options
+     *
+     * @return Client
+     */
+    public com.mongodb.async.client.MongoClient createAsyncMongoClient() {
+        final ConnectionString uri = new ConnectionString(this.getString(MONGO_URI));
+        final int maxPoolSize = this.getInt(MONGO_MAX_POOL_SIZE);
+        final ConnectionPoolSettings pool = ConnectionPoolSettings.builder()
+                .maxSize(maxPoolSize)
+                .minSize(this.getInt(MONGO_MIN_POOL_SIZE))
+                .maxWaitQueueSize(maxPoolSize * this.getMongoWaitQueueMultiple())
+                .maxWaitTime(this.getLong(MONGO_WAIT_QUEUE_TIMEOUT), TimeUnit.MILLISECONDS)
+                .applyConnectionString(uri)
+                .build();
+        final SocketSettings socket = SocketSettings.builder()
+                .connectTimeout(this.getInt(MONGO_CONNECT_TIMEOUT), TimeUnit.MILLISECONDS)
+                .readTimeout(this.getInt(MONGO_SOCKET_TIMEOUT), TimeUnit.MILLISECONDS)
+                .applyConnectionString(uri)
+                .build();
+        final ClusterSettings cluster = ClusterSettings.builder()
+                .serverSelectionTimeout(this.getLong(MONGO_SERVER_SELECTION_TIMEOUT), TimeUnit.MILLISECONDS)
+                .applyConnectionString(uri)
+                .build();
+        final MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                                                                       .connectionPoolSettings(pool)
+                                                                       .socketSettings(socket)
+                                                                       .clusterSettings(cluster)
+                                                                       .sslSettings(SslSettings.builder()
+                                                                               .applyConnectionString(uri)
+                                                                               .build())
+                                                                       .credentialList(uri.getCredentialList());
+
+        // Left to the driver defaults unless given, as for the synchronous client
+        if (uri.getReadPreference() != null) {
+            settings.readPreference(uri.getReadPreference());
+        }
+
+        if (uri.getReadConcern() != null) {
+            settings.readConcern(uri.getReadConcern());
+        }
+
+        if (uri.getWriteConcern() != null) {
+            settings.writeConcern(uri.getWriteConcern());
+        }
+
+        return MongoClients.create(settings.build());
+    }
+
+    /**
+     * Check if a key is set by any source other than the defaults
+     *
+     * @param key
+     *         Key
+     * @return True if set
+     */
+    private boolean isSet(final String key) {
+        return this.system.getProperty(key) != null
+                || this.env.get(key.toUpperCase(Locale.ROOT).replace('.', '_')) != null
+                || this.file.getProperty(key) != null;
+    }
+}
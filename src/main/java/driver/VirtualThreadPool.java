@@ -0,0 +1,84 @@
+package driver;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jetty thread pool starting a new virtual thread for every task, instead of reusing a bounded set of platform threads.
+ * Requests are still handled synchronously, so the blocking user services run unchanged, but a request waiting on the
+ * database only parks its virtual thread and the number of requests in flight is no longer capped by a pool size.
+ * Requires JDK 21 or later
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+    private final ExecutorService executor;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @throws UnsupportedOperationException
+     *         If the running JDK does not support virtual threads
+     */
+    public VirtualThreadPool() {
+        this.executor = VirtualThreads.newExecutor();
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        this.threads.incrementAndGet();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    this.threads.decrementAndGet();
+                }
+            });
+        } catch (final RuntimeException e) {
+            this.threads.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        // Interrupt the acceptors and selectors still running, then wait for the requests to finish
+        this.executor.shutdownNow();
+        this.executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        while (!this.executor.awaitTermination(1, TimeUnit.DAYS)) {
+            // Keep waiting until stopped
+        }
+    }
+
+    /**
+     * @return Number of tasks running, each on its own thread
+     */
+    @Override
+    public int getThreads() {
+        return this.threads.get();
+    }
+
+    /**
+     * @return Always 0, threads are never kept idle
+     */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    /**
+     * @return Always false, a new thread can always be started
+     */
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
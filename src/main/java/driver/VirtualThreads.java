@@ -0,0 +1,41 @@
+package driver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads while the code is still compiled for Java 8. They are looked up reflectively, so the same
+ * build runs on any JDK and only the virtual thread server mode requires JDK 21 or later
+ */
+public final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return True if the running JDK supports virtual threads
+     */
+    public static boolean isSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor starting a new virtual thread for each task
+     *
+     * @return Executor
+     * @throws UnsupportedOperationException
+     *         If the running JDK does not support virtual threads
+     */
+    public static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require JDK 21 or later, running on " + System.getProperty("java.version"), e);
+        }
+    }
+}
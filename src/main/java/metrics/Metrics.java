@@ -0,0 +1,144 @@
+package metrics;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the timers of the application, exposed in the Prometheus text format. Each family of timers is written as
+ * a summary of its latencies, <code>&lt;name&gt;_duration_seconds</code>, and a counter of its errors,
+ * <code>&lt;name&gt;_errors_total</code>, with one label telling the timers of a family apart. Timers are meant to be
+ * looked up once and kept, so that the hot path only records
+ */
+public class Metrics {
+    /**
+     * Content type of the Prometheus text format
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Quantiles written for every timer
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * Get a timer, creating it on first use
+     *
+     * @param name
+     *         Name of the family, in snake case
+     * @param help
+     *         Description of the family, such as "HTTP requests by route"
+     * @param label
+     *         Name of the label
+     * @param value
+     *         Value of the label for this timer
+     * @return Timer
+     */
+    public Timer timer(final String name, final String help, final String label, final String value) {
+        final Family family = this.families.computeIfAbsent(name, key -> new Family(help, label));
+        if (!family.label.equals(label)) {
+            throw new IllegalArgumentException("Timers of " + name + " are labelled by " + family.label);
+        }
+
+        return family.timers.computeIfAbsent(value, key -> new Timer());
+    }
+
+    /**
+     * Write all timers in the Prometheus text format
+     *
+     * @return Text
+     */
+    public String toPrometheusText() {
+        final StringBuilder text = new StringBuilder();
+        for (final Map.Entry<String, Family> entry : this.families.entrySet()) {
+            final String name = entry.getKey();
+            final Family family = entry.getValue();
+            final String duration = name + "_duration_seconds";
+            final String errors = name + "_errors_total";
+
+            text.append("# HELP ").append(duration).append(" Latency of ").append(family.help).append('\n');
+            text.append("# TYPE ").append(duration).append(" summary\n");
+            for (final Map.Entry<String, Timer> timer : family.timers.entrySet()) {
+                final String labels = family.label + "=\"" + escape(timer.getKey()) + "\"";
+                final Histogram histogram = timer.getValue().getHistogram();
+                for (final double quantile : QUANTILES) {
+                    final double seconds = histogram.getValueAtPercentile(quantile * 100) / 1e6;
+                    sample(text, duration, labels + ",quantile=\"" + quantile + "\"", seconds);
+                }
+
+                sample(text, duration + "_sum", labels, timer.getValue().getTotalSeconds());
+                sample(text, duration + "_count", labels, histogram.getTotalCount());
+            }
+
+            text.append("# HELP ").append(errors).append(" Failed ").append(family.help).append('\n');
+            text.append("# TYPE ").append(errors).append(" counter\n");
+            for (final Map.Entry<String, Timer> timer : family.timers.entrySet()) {
+                final String labels = family.label + "=\"" + escape(timer.getKey()) + "\"";
+                sample(text, errors, labels, timer.getValue().getErrors());
+            }
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Write a sample
+     *
+     * @param text
+     *         Text to append to
+     * @param name
+     *         Name of the sample
+     * @param labels
+     *         Labels, without braces
+     * @param value
+     *         Value
+     */
+    private static void sample(final StringBuilder text, final String name, final String labels, final double value) {
+        text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Write a sample
+     *
+     * @param text
+     *         Text to append to
+     * @param name
+     *         Name of the sample
+     * @param labels
+     *         Labels, without braces
+     * @param value
+     *         Value
+     */
+    private static void sample(final StringBuilder text, final String name, final String labels, final long value) {
+        text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Escape a label value
+     *
+     * @param value
+     *         Value
+     * @return Value with backslashes, quotes and new lines escaped
+     */
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Timers sharing a name, by label value
+     */
+    private static class Family {
+        private final String help;
+        private final String label;
+        private final ConcurrentMap<String, Timer> timers = new ConcurrentSkipListMap<>();
+
+        Family(final String help, final String label) {
+            this.help = help;
+            this.label = label;
+        }
+    }
+}
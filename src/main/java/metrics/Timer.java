@@ -0,0 +1,85 @@
+package metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram and error count of one operation. Recording is wait-free and allocation-free: values go to a
+ * {@link Recorder}, whose histograms are sized up front, and the counters are {@link LongAdder}s. Only reading takes a
+ * lock, to fold the values recorded since the last read into the histogram since start
+ */
+public class Timer {
+    /**
+     * Longest latency tracked, longer ones are recorded as this value
+     */
+    static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    /**
+     * Precision of the histogram, 1% of the value is enough for percentiles and keeps each histogram small
+     */
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final Recorder recorder = new Recorder(1, HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Histogram total = new Histogram(1, HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    /**
+     * Record a successful operation
+     *
+     * @param startNanos
+     *         Start of the operation, from {@link System#nanoTime()}
+     */
+    public void record(final long startNanos) {
+        this.recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a failed operation
+     *
+     * @param startNanos
+     *         Start of the operation, from {@link System#nanoTime()}
+     */
+    public void recordError(final long startNanos) {
+        this.errors.increment();
+        this.recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record the duration of an operation
+     *
+     * @param nanos
+     *         Duration in nanoseconds
+     */
+    public void recordNanos(final long nanos) {
+        this.totalNanos.add(nanos);
+        this.recorder.recordValue(Math.min(Math.max(nanos / 1000, 1), HIGHEST_MICROS));
+    }
+
+    /**
+     * @return Number of failed operations since start
+     */
+    public long getErrors() {
+        return this.errors.sum();
+    }
+
+    /**
+     * @return Total duration of all operations since start, in seconds
+     */
+    public double getTotalSeconds() {
+        return this.totalNanos.sum() / 1e9;
+    }
+
+    /**
+     * @return Copy of the histogram of all operations since start, in microseconds
+     */
+    public synchronized Histogram getHistogram() {
+        this.interval = this.recorder.getIntervalHistogram(this.interval);
+        this.total.add(this.interval);
+        return this.total.copy();
+    }
+}
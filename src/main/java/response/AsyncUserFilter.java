@@ -0,0 +1,483 @@
+package response;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import metrics.Metrics;
+import metrics.Timer;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import user.Fields;
+import user.IAsyncUserService;
+import user.User;
+import user.UserJson;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Serves the single user routes with asynchronous servlet processing, ahead of the Spark routes. The request thread is
+ * released as soon as the query is sent, and the response is written from the driver callback once the database
+ * replies. Request bodies are read with a {@link ReadListener}, so no thread waits on slow clients either. Every other
+ * request is passed down the chain unchanged. Routes and serialization are timed under the same names as the Spark
+ * routes
+ */
+public class AsyncUserFilter implements Filter {
+    private final IAsyncUserService userService;
+    private final boolean pretty;
+    private final ChangeCounter changes;
+    private final long maxBodySize;
+    private final Timer getUser;
+    private final Timer createUser;
+    private final Timer updateUser;
+    private final Timer removeUser;
+    private final Timer serialization;
+    private final Logger logger = LoggerFactory.getLogger(AsyncUserFilter.class);
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         Asynchronous user service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     */
+    public AsyncUserFilter(final IAsyncUserService userService, final boolean pretty) {
+        this(userService, pretty, new Metrics());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         Asynchronous user service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     * @param metrics
+     *         Registry of the route and serialization timers
+     */
+    public AsyncUserFilter(final IAsyncUserService userService, final boolean pretty, final Metrics metrics) {
+        this(userService, pretty, null, metrics);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         Asynchronous user service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     * @param changes
+     *         Version of the users validating user lists, counting the writes of this filter. Null if not validated
+     * @param metrics
+     *         Registry of the route and serialization timers
+     */
+    public AsyncUserFilter(final IAsyncUserService userService, final boolean pretty, final ChangeCounter changes,
+            final Metrics metrics) {
+        this(userService, pretty, changes, metrics, ResponseHandler.DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         Asynchronous user service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     * @param changes
+     *         Version of the users validating user lists, counting the writes of this filter. Null if not validated
+     * @param metrics
+     *         Registry of the route and serialization timers
+     * @param maxBodySize
+     *         Largest body accepted to create or update a user, in bytes
+     */
+    public AsyncUserFilter(final IAsyncUserService userService, final boolean pretty, final ChangeCounter changes,
+            final Metrics metrics, final long maxBodySize) {
+        this.userService = userService;
+        this.pretty = pretty;
+        this.changes = changes;
+        this.maxBodySize = maxBodySize;
+        this.getUser = ResponseHandler.routeTimer(metrics, "/users/:id");
+        this.createUser = ResponseHandler.routeTimer(metrics, "/create");
+        this.updateUser = ResponseHandler.routeTimer(metrics, "/update");
+        this.removeUser = ResponseHandler.routeTimer(metrics, "/remove/:id");
+        this.serialization = ResponseHandler.serializationTimer(metrics, "response");
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(final ServletRequest servletRequest, final ServletResponse servletResponse,
+            final FilterChain chain) throws IOException, ServletException {
+        final HttpServletRequest request = (HttpServletRequest) servletRequest;
+        final String path = request.getRequestURI().substring(request.getContextPath().length());
+        final String method = request.getMethod();
+
+        if ("GET".equals(method) && isSingleUserPath(path, "/users/")) {
+            final String id = decode(path.substring("/users/".length()));
+            final ObjectWriter writer = this.select(request);
+            final AsyncContext async = this.startAsync(request, this.getUser);
+            final List<String> fields;
+            try {
+                fields = Fields.parse(queryParam(request, "fields"));
+            } catch (final Exception e) {
+                this.writeError(async, e);
+                return;
+            }
+
+            // BSON is passed through as read, other formats are transcoded from it without decoding
+            final ResponseFormat format = ResponseFormat.negotiate(request.getHeader("Accept"));
+            this.userService.getRawUser(id, fields).whenComplete((user, t) -> {
+                if (t != null) {
+                    this.writeError(async, t);
+                } else if (user != null) {
+                    this.logger.debug("[GET] Found user with id: {}", id);
+                    this.writeRaw(async, user, format, format == ResponseFormat.SMILE ? JsonWriters.SMILE : writer);
+                } else {
+                    this.logger.debug("[GET] User not found");
+                    this.write(async, 404, new ResponseMessage("No user with id " + id + " found", 404), writer);
+                }
+            });
+        } else if ("PUT".equals(method) && "/create".equals(path)) {
+            final ObjectWriter writer = this.select(request);
+            final AsyncContext async = this.startAsync(request, this.createUser);
+            this.readUser(async, user -> this.reply(async, this.userService.createUser(user), "[CREATE] User created!",
+                    new ResponseMessage("User created!!", 200), writer));
+        } else if ("PUT".equals(method) && "/update".equals(path)) {
+            final ObjectWriter writer = this.select(request);
+            final boolean upsert = Boolean.parseBoolean(queryParam(request, "upsert"));
+            final AsyncContext async = this.startAsync(request, this.updateUser);
+            this.readUser(async, user -> this.reply(async, this.userService.updateUser(user, upsert),
+                    "[UPDATE] User updated!", new ResponseMessage("User updated!!", 200), writer));
+        } else if ("POST".equals(method) && isSingleUserPath(path, "/remove/")) {
+            final String id = decode(path.substring("/remove/".length()));
+            final ObjectWriter writer = this.select(request);
+            final AsyncContext async = this.startAsync(request, this.removeUser);
+            this.reply(async, this.userService.removeUser(id), "[REMOVE] User " + id + " removed",
+                    new ResponseMessage("User " + id + " removed!!", 200), writer);
+        } else {
+            chain.doFilter(servletRequest, servletResponse);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Check if a path is a prefix followed by a single, non empty path segment
+     *
+     * @param path
+     *         Request path
+     * @param prefix
+     *         Route prefix, ending with a slash
+     * @return True if the path matches
+     */
+    private static boolean isSingleUserPath(final String path, final String prefix) {
+        return path.startsWith(prefix) && path.length() > prefix.length() && path.indexOf('/', prefix.length()) < 0;
+    }
+
+    /**
+     * Decode a path segment
+     *
+     * @param segment
+     *         Encoded segment
+     * @return Decoded segment
+     * @throws UnsupportedEncodingException
+     */
+    private static String decode(final String segment) throws UnsupportedEncodingException {
+        return URLDecoder.decode(segment, StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Get a query parameter. Unlike {@link HttpServletRequest#getParameter}, this never reads a form encoded body,
+     * which would then no longer be available to read without blocking
+     *
+     * @param request
+     *         Request
+     * @param name
+     *         Name of the parameter
+     * @return First value of the parameter, null if not present
+     * @throws UnsupportedEncodingException
+     */
+    private static String queryParam(final HttpServletRequest request, final String name)
+            throws UnsupportedEncodingException {
+        final String query = request.getQueryString();
+        if (query == null) {
+            return null;
+        }
+
+        for (final String parameter : query.split("&")) {
+            final String[] pair = parameter.split("=", 2);
+            if (name.equals(decode(pair[0]))) {
+                return pair.length == 2 ? decode(pair[1]) : "";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Select the writer requested by the client
+     *
+     * @param request
+     *         Request
+     * @return Writer
+     * @throws UnsupportedEncodingException
+     */
+    private ObjectWriter select(final HttpServletRequest request) throws UnsupportedEncodingException {
+        return JsonWriters.select(queryParam(request, "pretty"), request.getHeader("Accept"), this.pretty);
+    }
+
+    /**
+     * Start asynchronous processing, timed until the request completes
+     *
+     * @param request
+     *         Request
+     * @param timer
+     *         Timer of the route, error statuses are counted as errors
+     * @return Asynchronous context of the request
+     */
+    private AsyncContext startAsync(final HttpServletRequest request, final Timer timer) {
+        final long start = System.nanoTime();
+        final AsyncContext async = request.startAsync();
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                if (((HttpServletResponse) event.getSuppliedResponse()).getStatus() >= 400) {
+                    timer.recordError(start);
+                } else {
+                    timer.record(start);
+                }
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+        return async;
+    }
+
+    /**
+     * Read the user of the request body without blocking, then hand it over. Bodies over the size limit are rejected
+     * without reading the rest of them
+     *
+     * @param async
+     *         Asynchronous context of the request
+     * @param then
+     *         Called with the user once the body is fully read and parsed
+     * @throws IOException
+     */
+    private void readUser(final AsyncContext async, final Consumer<User> then) throws IOException {
+        final long length = async.getRequest().getContentLengthLong();
+        if (length > this.maxBodySize) {
+            this.writeError(async, LimitedInputStream.tooLarge(this.maxBodySize));
+            return;
+        }
+
+        final ServletInputStream in = async.getRequest().getInputStream();
+        final Body body = new Body(length > 0 ? (int) length : 4096);
+        in.setReadListener(new ReadListener() {
+            private boolean rejected;
+
+            @Override
+            public void onDataAvailable() throws IOException {
+                final byte[] buffer = new byte[4096];
+                int read;
+                while (in.isReady() && (read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                    if (body.size() > AsyncUserFilter.this.maxBodySize) {
+                        // No more is read, the rest of the body is discarded once the request completes
+                        this.rejected = true;
+                        AsyncUserFilter.this.writeError(async,
+                                LimitedInputStream.tooLarge(AsyncUserFilter.this.maxBodySize));
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public void onAllDataRead() {
+                if (this.rejected) {
+                    return;
+                }
+
+                final User user;
+                try {
+                    user = body.readUser();
+                } catch (final IOException | RuntimeException e) {
+                    AsyncUserFilter.this.writeError(async, e);
+                    return;
+                }
+
+                then.accept(user);
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                if (!this.rejected) {
+                    AsyncUserFilter.this.writeError(async, t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write a success message once a write completes, or its error
+     *
+     * @param async
+     *         Asynchronous context of the request
+     * @param operation
+     *         Pending write
+     * @param log
+     *         Logged on success
+     * @param message
+     *         Written on success
+     * @param writer
+     *         Writer for the output format
+     */
+    private void reply(final AsyncContext async, final CompletableFuture<Void> operation, final String log,
+            final ResponseMessage message, final ObjectWriter writer) {
+        operation.whenComplete((result, t) -> {
+            if (t != null) {
+                this.writeError(async, t);
+            } else {
+                if (this.changes != null) {
+                    this.changes.changed();
+                }
+
+                this.logger.debug(log);
+                this.write(async, 200, message, writer);
+            }
+        });
+    }
+
+    /**
+     * Write an error the same way as {@link ResponseHandler#getResponseForError}, with the same status
+     *
+     * @param async
+     *         Asynchronous context of the request
+     * @param t
+     *         Error, possibly wrapped by a future
+     */
+    private void writeError(final AsyncContext async, final Throwable t) {
+        final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        final int status = ResponseHandler.statusOf(cause);
+        if (status == 503) {
+            ((HttpServletResponse) async.getResponse()).setHeader("Retry-After", ResponseHandler.RETRY_AFTER);
+        }
+
+        this.logger.warn(cause.getMessage());
+        this.write(async, status, new ResponseMessage(cause.getMessage(), status), JsonWriters.get(this.pretty));
+    }
+
+    /**
+     * Write a response and complete the request. Bodies are small enough to fit in the output buffer, so the write does
+     * not block the calling driver thread
+     *
+     * @param async
+     *         Asynchronous context of the request
+     * @param status
+     *         HTTP status
+     * @param body
+     *         Object to print
+     * @param writer
+     *         Writer for the output format
+     */
+    private void write(final AsyncContext async, final int status, final Object body, final ObjectWriter writer) {
+        final HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        try {
+            final long start = System.nanoTime();
+            final byte[] bytes = writer.writeValueAsBytes(body);
+            this.serialization.record(start);
+            response.setStatus(status);
+            response.setContentType("application/json");
+            response.setContentLength(bytes.length);
+            response.getOutputStream().write(bytes);
+        } catch (final IOException e) {
+            this.logger.error(e.getMessage());
+        } finally {
+            async.complete();
+        }
+    }
+
+    /**
+     * Write a user read as BSON in a format and complete the request
+     *
+     * @param async
+     *         Asynchronous context of the request
+     * @param user
+     *         BSON of the user
+     * @param format
+     *         Format of the response
+     * @param writer
+     *         Writer of the format, unused for BSON
+     */
+    private void writeRaw(final AsyncContext async, final RawBsonDocument user, final ResponseFormat format,
+            final ObjectWriter writer) {
+        final HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        try {
+            response.setStatus(200);
+            response.setContentType(format.getMediaType());
+            if (format == ResponseFormat.BSON) {
+                response.setContentLength(user.getByteBuffer().remaining());
+                ResponseHandler.writeRaw(response.getOutputStream(), user);
+            } else {
+                final long start = System.nanoTime();
+                final byte[] bytes = BsonTranscoder.toBytes(user, writer);
+                this.serialization.record(start);
+                response.setContentLength(bytes.length);
+                response.getOutputStream().write(bytes);
+            }
+        } catch (final IOException e) {
+            this.logger.error(e.getMessage());
+        } finally {
+            async.complete();
+        }
+    }
+
+    /**
+     * Request body read so far, parsed in place once complete
+     */
+    private static class Body extends ByteArrayOutputStream {
+        Body(final int size) {
+            super(size);
+        }
+
+        User readUser() throws IOException {
+            return UserJson.read(new InputStreamReader(new ByteArrayInputStream(this.buf, 0, this.count),
+                    StandardCharsets.UTF_8));
+        }
+    }
+}
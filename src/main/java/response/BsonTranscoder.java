@@ -0,0 +1,322 @@
+package response;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes users read as BSON straight to JSON or Smile, in a single pass over their bytes. Neither a document nor its
+ * values are created: strings are copied as the UTF-8 they already are, unless they hold characters outside the Basic
+ * Multilingual Plane, which the writers escape as surrogate pairs, and field names are written from a cache of
+ * the names seen. The JSON is the same as encoding the decoded document with the same writer, and so are the Smile
+ * values, though Smile strings are always marked as Unicode. Users holding types without a JSON equivalent, such as
+ * object ids or binary data, are rare enough to be decoded and encoded as before
+ */
+public final class BsonTranscoder {
+    private static final byte DOUBLE = 0x01;
+    private static final byte STRING = 0x02;
+    private static final byte DOCUMENT = 0x03;
+    private static final byte ARRAY = 0x04;
+    private static final byte BOOLEAN = 0x08;
+    private static final byte DATE_TIME = 0x09;
+    private static final byte NULL = 0x0A;
+    private static final byte INT32 = 0x10;
+    private static final byte INT64 = 0x12;
+
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    /**
+     * Field names by hash of their bytes. Slots are replaced on collisions, and entries are immutable so that threads
+     * can share them without locking
+     */
+    private static final Name[] NAMES = new Name[1024];
+
+    private BsonTranscoder() {
+    }
+
+    /**
+     * Write a user
+     *
+     * @param out
+     *         Stream to write to, left open
+     * @param user
+     *         BSON of the user
+     * @param writer
+     *         Writer of the output format, see {@link JsonWriters}
+     * @throws IOException
+     */
+    public static void write(final OutputStream out, final RawBsonDocument user, final ObjectWriter writer)
+            throws IOException {
+        final ByteBuffer buffer = user.getByteBuffer().asNIO();
+        final byte[] bson = buffer.array();
+        final int offset = buffer.arrayOffset() + buffer.position();
+        if (!isPlain(bson, offset)) {
+            writer.writeValue(out, user.decode(DOCUMENT_CODEC));
+            return;
+        }
+
+        try (JsonGenerator generator = JsonWriters.createGenerator(out, writer)) {
+            transcode(bson, offset, false, generator);
+        }
+    }
+
+    /**
+     * Write a user into a new buffer
+     *
+     * @param user
+     *         BSON of the user
+     * @param writer
+     *         Writer of the output format, see {@link JsonWriters}
+     * @return Encoded user
+     * @throws IOException
+     */
+    public static byte[] toBytes(final RawBsonDocument user, final ObjectWriter writer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(user.getByteBuffer().remaining() * 3 / 2);
+        write(out, user, writer);
+        return out.toByteArray();
+    }
+
+    /**
+     * Check that a document only holds types written directly
+     *
+     * @param bson
+     *         Bytes holding the document
+     * @param start
+     *         Start of the document
+     * @return True if every value, including nested ones, can be transcoded
+     */
+    private static boolean isPlain(final byte[] bson, final int start) {
+        final int end = start + readInt(bson, start) - 1;
+        int position = start + 4;
+        while (position < end) {
+            final byte type = bson[position];
+            position = skipName(bson, position + 1);
+            switch (type) {
+                case DOCUMENT:
+                case ARRAY:
+                    if (!isPlain(bson, position)) {
+                        return false;
+                    }
+
+                    position += readInt(bson, position);
+                    break;
+                case STRING:
+                    position += 4 + readInt(bson, position);
+                    break;
+                case DOUBLE:
+                case DATE_TIME:
+                case INT64:
+                    position += 8;
+                    break;
+                case INT32:
+                    position += 4;
+                    break;
+                case BOOLEAN:
+                    position += 1;
+                    break;
+                case NULL:
+                    break;
+                default:
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Write a document or an array
+     *
+     * @param bson
+     *         Bytes holding the document
+     * @param start
+     *         Start of the document
+     * @param array
+     *         True to write an array, ignoring the names of the elements
+     * @param generator
+     *         Generator to write to
+     * @throws IOException
+     */
+    private static void transcode(final byte[] bson, final int start, final boolean array,
+            final JsonGenerator generator) throws IOException {
+        final int end = start + readInt(bson, start) - 1;
+        int position = start + 4;
+        if (array) {
+            generator.writeStartArray();
+        } else {
+            generator.writeStartObject();
+        }
+
+        while (position < end) {
+            final byte type = bson[position];
+            final int nameEnd = skipName(bson, position + 1) - 1;
+            if (!array) {
+                generator.writeFieldName(name(bson, position + 1, nameEnd));
+            }
+
+            position = nameEnd + 1;
+            switch (type) {
+                case DOCUMENT:
+                case ARRAY:
+                    transcode(bson, position, type == ARRAY, generator);
+                    position += readInt(bson, position);
+                    break;
+                case STRING:
+                    final int length = readInt(bson, position);
+                    if (hasSupplementary(bson, position + 4, length - 1)) {
+                        // Written as escaped surrogate pairs by the generator, unlike its raw UTF-8
+                        generator.writeString(new String(bson, position + 4, length - 1, StandardCharsets.UTF_8));
+                    } else {
+                        generator.writeUTF8String(bson, position + 4, length - 1);
+                    }
+
+                    position += 4 + length;
+                    break;
+                case DOUBLE:
+                    generator.writeNumber(Double.longBitsToDouble(readLong(bson, position)));
+                    position += 8;
+                    break;
+                case DATE_TIME:
+                case INT64:
+                    // Dates are written as their milliseconds, as for decoded dates
+                    generator.writeNumber(readLong(bson, position));
+                    position += 8;
+                    break;
+                case INT32:
+                    generator.writeNumber(readInt(bson, position));
+                    position += 4;
+                    break;
+                case BOOLEAN:
+                    generator.writeBoolean(bson[position] != 0);
+                    position += 1;
+                    break;
+                case NULL:
+                    generator.writeNull();
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected BSON type " + type);
+            }
+        }
+
+        if (array) {
+            generator.writeEndArray();
+        } else {
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Check if a string holds characters outside the Basic Multilingual Plane, encoded in 4 bytes
+     *
+     * @param bson
+     *         Bytes holding the string
+     * @param start
+     *         Start of the string
+     * @param length
+     *         Length of the string in bytes
+     * @return True if any byte starts a 4 byte sequence
+     */
+    private static boolean hasSupplementary(final byte[] bson, final int start, final int length) {
+        for (int i = start; i < start + length; i++) {
+            if ((bson[i] & 0xF8) == 0xF0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get a field name, from the cache if already seen
+     *
+     * @param bson
+     *         Bytes holding the name
+     * @param start
+     *         Start of the name
+     * @param end
+     *         End of the name, exclusive
+     * @return Name
+     */
+    private static SerializableString name(final byte[] bson, final int start, final int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bson[i];
+        }
+
+        final int slot = (hash ^ (hash >>> 16)) & (NAMES.length - 1);
+        final Name cached = NAMES[slot];
+        if (cached != null && cached.matches(bson, start, end)) {
+            return cached.string;
+        }
+
+        final Name name = new Name(Arrays.copyOfRange(bson, start, end));
+        NAMES[slot] = name;
+        return name.string;
+    }
+
+    /**
+     * Skip a name
+     *
+     * @param bson
+     *         Bytes holding the name
+     * @param start
+     *         Start of the name
+     * @return Position after the terminating zero
+     */
+    private static int skipName(final byte[] bson, final int start) {
+        int position = start;
+        while (bson[position] != 0) {
+            position++;
+        }
+
+        return position + 1;
+    }
+
+    private static int readInt(final byte[] bson, final int position) {
+        return (bson[position] & 0xFF)
+                | (bson[position + 1] & 0xFF) << 8
+                | (bson[position + 2] & 0xFF) << 16
+                | (bson[position + 3] & 0xFF) << 24;
+    }
+
+    private static long readLong(final byte[] bson, final int position) {
+        return (readInt(bson, position) & 0xFFFFFFFFL) | (long) readInt(bson, position + 4) << 32;
+    }
+
+    /**
+     * A field name with its encoding
+     */
+    private static final class Name {
+        private final byte[] bytes;
+        private final SerializedString string;
+
+        Name(final byte[] bytes) {
+            this.bytes = bytes;
+            this.string = new SerializedString(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        boolean matches(final byte[] bson, final int start, final int end) {
+            if (end - start != this.bytes.length) {
+                return false;
+            }
+
+            for (int i = 0; i < this.bytes.length; i++) {
+                if (this.bytes[i] != bson[start + i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package response;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import user.User;
+import user.UserJson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the users of a bulk request one at a time, from either a JSON array or new line delimited JSON, so that the
+ * request body is never held in memory as a whole. Users are read as strictly as single users, and one that is not a
+ * user is skipped so that the others are still read. Requests for removal can also list plain ids instead of users
+ */
+class BulkRequestReader {
+    private static final JsonFactory FACTORY = new JsonFactory().enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+                                                                .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES);
+    private final JsonParser parser;
+    private final BufferedReader reader;
+
+    /**
+     * Constructor, detects the format from the first character of the body
+     *
+     * @param in
+     *         Request body
+     * @throws IOException
+     */
+    BulkRequestReader(final InputStream in) throws IOException {
+        final PushbackInputStream input = new PushbackInputStream(in, 1);
+        int first = input.read();
+        while (first != -1 && Character.isWhitespace(first)) {
+            first = input.read();
+        }
+
+        if (first != -1) {
+            input.unread(first);
+        }
+
+        if (first == '[') {
+            // JSON array, skip the start of the array
+            this.parser = FACTORY.createParser(input);
+            this.parser.nextToken();
+            this.reader = null;
+        } else {
+            // One user per line
+            this.parser = null;
+            this.reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Read the next user
+     *
+     * @param idsAllowed
+     *         True to accept plain ids, returned as users with only an id
+     * @return User, not validated. Null at the end of the request
+     * @throws IllegalArgumentException
+     *         If the next value is not a user, it is then skipped
+     * @throws Exception
+     *         If the request is malformed, nothing more can then be read
+     */
+    User next(final boolean idsAllowed) throws Exception {
+        return this.parser != null ? this.nextFromArray(idsAllowed) : this.nextFromLines(idsAllowed);
+    }
+
+    private User nextFromArray(final boolean idsAllowed) throws Exception {
+        final JsonToken token = this.parser.nextToken();
+        if (token == null || token == JsonToken.END_ARRAY) {
+            return null;
+        }
+
+        if (token == JsonToken.START_OBJECT) {
+            final JsonStreamContext array = this.parser.getParsingContext().getParent();
+            try {
+                return UserJson.readUser(this.parser);
+            } catch (final IllegalArgumentException e) {
+                // Skip the rest of the user, up to the array around it
+                while (this.parser.getParsingContext() != array) {
+                    if (this.parser.nextToken() == null) {
+                        throw new Exception("Unexpected end of bulk request");
+                    }
+                }
+
+                throw e;
+            }
+        }
+
+        if (token == JsonToken.VALUE_STRING && idsAllowed) {
+            return idOnly(this.parser.getText());
+        }
+
+        throw new Exception("Unexpected " + this.parser.getText() + " in bulk request");
+    }
+
+    private User nextFromLines(final boolean idsAllowed) throws Exception {
+        String line;
+        while ((line = this.reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.startsWith("{")) {
+                return UserJson.read(line);
+            }
+
+            if (!idsAllowed) {
+                throw new Exception("Unexpected " + line + " in bulk request");
+            }
+
+            // Quoted or plain id
+            if (line.startsWith("\"") || line.startsWith("'")) {
+                try (final JsonParser idParser = FACTORY.createParser(line)) {
+                    idParser.nextToken();
+                    return idOnly(idParser.getText());
+                }
+            }
+
+            return idOnly(line);
+        }
+
+        return null;
+    }
+
+    /**
+     * Get a user to remove from its id
+     *
+     * @param id
+     *         ID of the user
+     * @return User with only an id
+     */
+    private static User idOnly(final String id) {
+        return new User(id, null, null, null, null, null, null, null);
+    }
+}
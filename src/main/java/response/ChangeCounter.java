@@ -0,0 +1,194 @@
+package response;
+
+import user.IUserChangeFeed;
+import user.UserChangeListener;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Version of the users, counting the writes served by this process. The version gives the validators of user lists, so
+ * that a client asking again for an unchanged list is answered with a 304 without reading the database. Writes served
+ * by other processes are not counted unless subscribed to a {@link IUserChangeFeed}, so like the user cache a version
+ * only lasts up to a maximum age, after which it changes on its own
+ */
+public class ChangeCounter implements UserChangeListener {
+    private final long maxAge;
+    private final LongSupplier clock;
+    private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicReference<Version> version;
+
+    /**
+     * Constructor
+     *
+     * @param maxAge
+     *         Milliseconds after which the version changes even without writes
+     */
+    public ChangeCounter(final long maxAge) {
+        this(maxAge, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor for unit testing
+     *
+     * @param maxAge
+     *         Milliseconds after which the version changes even without writes
+     * @param clock
+     *         Current time in milliseconds
+     */
+    ChangeCounter(final long maxAge, final LongSupplier clock) {
+        this.maxAge = maxAge;
+        this.clock = clock;
+        this.version = new AtomicReference<>(this.next(null));
+    }
+
+    /**
+     * Count a write, to be called once the write is done so that a list read meanwhile gets the previous version
+     */
+    public void changed() {
+        this.version.updateAndGet(this::next);
+    }
+
+    /**
+     * Count a write of any instance
+     */
+    @Override
+    public void changed(final String id) {
+        this.changed();
+    }
+
+    /**
+     * Count a removal of any instance
+     */
+    @Override
+    public void removed(final Object key) {
+        this.changed();
+    }
+
+    /**
+     * Count a write of any instance, when unknown which user it was about
+     */
+    @Override
+    public void reset() {
+        this.changed();
+    }
+
+    /**
+     * @return Current version, to be read before the users it validates
+     */
+    public Version current() {
+        final Version current = this.version.get();
+        if (this.clock.getAsLong() - current.lastModified < this.maxAge) {
+            return current;
+        }
+
+        // Expired, unless another thread renewed it already
+        return this.version.updateAndGet(latest -> latest == current ? this.next(current) : latest);
+    }
+
+    /**
+     * Create the next version. Dates only have a precision of a second, so a version is only told apart from the
+     * previous one by its date if it is the first version of its second
+     *
+     * @param previous
+     *         Previous version, null for the first one
+     * @return Version modified now
+     */
+    private Version next(final Version previous) {
+        final long number = previous == null ? 0 : previous.number + 1;
+        final long now = this.clock.getAsLong();
+        final boolean datePrecise = previous == null || previous.lastModified / 1000 != now / 1000;
+        return new Version(this.epoch + "-" + number, number, now, datePrecise);
+    }
+
+    /**
+     * A version of the users, with its validators
+     */
+    public static class Version {
+        private final String etag;
+        private final long number;
+        private final long lastModified;
+        private final boolean datePrecise;
+
+        Version(final String tag, final long number, final long lastModified, final boolean datePrecise) {
+            this.etag = "W/\"" + tag + "\"";
+            this.number = number;
+            this.lastModified = lastModified;
+            this.datePrecise = datePrecise;
+        }
+
+        /**
+         * @return Weak entity tag, the same for every representation of the version
+         */
+        public String getEtag() {
+            return this.etag;
+        }
+
+        /**
+         * @return Time of the version, for the Last-Modified header
+         */
+        public String getLastModified() {
+            return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    ZonedDateTime.ofInstant(Instant.ofEpochMilli(this.lastModified), ZoneOffset.UTC));
+        }
+
+        /**
+         * Check if a conditional request can be answered with this version unchanged. The entity tags take precedence
+         * over the date, as required for HTTP. The date is ignored if an earlier version had the same second
+         *
+         * @param ifNoneMatch
+         *         Value of the If-None-Match header, can be null
+         * @param ifModifiedSince
+         *         Value of the If-Modified-Since header, can be null
+         * @return True if the client already has this version
+         */
+        public boolean matches(final String ifNoneMatch, final String ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                for (final String tag : ifNoneMatch.split(",")) {
+                    // Weak comparison, also ignoring the suffix added to compressed responses
+                    final String opaque = opaque(tag.trim());
+                    if ("*".equals(opaque) || opaque(this.etag).equals(opaque)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            if (ifModifiedSince != null && this.datePrecise) {
+                try {
+                    final long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                                                    .toInstant().toEpochMilli();
+                    return this.lastModified / 1000 <= since / 1000;
+                } catch (final DateTimeParseException e) {
+                    return false;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Get the opaque part of an entity tag
+         *
+         * @param tag
+         *         Entity tag, weak or strong
+         * @return Tag without its weakness indicator, quotes or compression suffix
+         */
+        private static String opaque(final String tag) {
+            String opaque = tag.startsWith("W/") ? tag.substring(2) : tag;
+            if (opaque.length() >= 2 && opaque.startsWith("\"") && opaque.endsWith("\"")) {
+                opaque = opaque.substring(1, opaque.length() - 1);
+            }
+
+            final int suffix = opaque.indexOf("--");
+            return suffix < 0 ? opaque : opaque.substring(0, suffix);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.bson.Document;
+import spark.Request;
+import user.UserJson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Shared JSON writers for all responses. Mappers and writers are expensive to build, as each one creates its own
+ * serializer caches, but are immutable and thread safe once configured, so a single compact and a single pretty writer
+ * are created, warmed up and reused for every response. So is the writer of Smile, the binary form of JSON
+ */
+public final class JsonWriters {
+    private static final ObjectMapper MAPPER = createMapper(new JsonFactory());
+    private static final ObjectMapper SMILE_MAPPER = createMapper(new SmileFactory());
+
+    /**
+     * Writer producing single line JSON
+     */
+    public static final ObjectWriter COMPACT = MAPPER.writer()
+                                                     .without(SerializationFeature.INDENT_OUTPUT)
+                                                     .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Writer producing indented JSON
+     */
+    public static final ObjectWriter PRETTY = MAPPER.writerWithDefaultPrettyPrinter()
+                                                    .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Writer producing Smile, each value starting with its own header so that values can be concatenated
+     */
+    public static final ObjectWriter SMILE = SMILE_MAPPER.writer()
+                                                         .without(SerializationFeature.INDENT_OUTPUT)
+                                                         .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    static {
+        warmUp();
+    }
+
+    private JsonWriters() {
+    }
+
+    /**
+     * Create the mapper shared by all writers of a format
+     *
+     * @param factory
+     *         Factory of the format
+     * @return Configured mapper
+     */
+    private static ObjectMapper createMapper(final JsonFactory factory) {
+        final ObjectMapper mapper = new ObjectMapper(factory);
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
+        mapper.enable(SerializationFeature.INDENT_OUTPUT);
+        mapper.registerModule(UserJson.MODULE);
+
+        // Streams belong to the servlet container, never close them
+        mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        return mapper;
+    }
+
+    /**
+     * Serialize the response types once, so the serializer caches are populated before the first request
+     */
+    private static void warmUp() {
+        final Document document = new Document("id", "warmup").append("address", new Document("zip", "00000"))
+                                                              .append("tags", Arrays.asList("a", "b"))
+                                                              .append("count", 1);
+        final ResponseMessage message = new ResponseMessage("warmup", 200);
+        try {
+            for (final ObjectWriter writer : new ObjectWriter[] { COMPACT, PRETTY, SMILE }) {
+                writer.writeValueAsBytes(document);
+                writer.writeValueAsBytes(message);
+            }
+        } catch (final JsonProcessingException e) {
+            throw new IllegalStateException("Could not warm up JSON writers", e);
+        }
+    }
+
+    /**
+     * Get the writer for a format
+     *
+     * @param pretty
+     *         True for indented output
+     * @return Writer
+     */
+    public static ObjectWriter get(final boolean pretty) {
+        return pretty ? PRETTY : COMPACT;
+    }
+
+    /**
+     * Create a generator for responses written field by field, in the same format as a writer
+     *
+     * @param out
+     *         Stream to write to, left open when the generator is closed
+     * @param writer
+     *         Writer for the output format
+     * @return Generator
+     * @throws IOException
+     */
+    public static JsonGenerator createGenerator(final OutputStream out, final ObjectWriter writer)
+            throws IOException {
+        if (writer == SMILE) {
+            return SMILE_MAPPER.getFactory().createGenerator(out);
+        }
+
+        final JsonGenerator generator = MAPPER.getFactory().createGenerator(out);
+        return writer == PRETTY ? generator.useDefaultPrettyPrinter() : generator;
+    }
+
+    /**
+     * Select the writer requested by the client, either with the <code>pretty</code> query parameter or with a
+     * <code>pretty</code> parameter on the JSON media type of the Accept header, e.g.
+     * <code>application/json; pretty=true</code>
+     *
+     * @param req
+     *         Request, can be null
+     * @param prettyByDefault
+     *         Format to use if the client did not ask for one
+     * @return Writer
+     */
+    public static ObjectWriter select(final Request req, final boolean prettyByDefault) {
+        if (req == null) {
+            return get(prettyByDefault);
+        }
+
+        return select(req.queryParams("pretty"), req.headers("Accept"), prettyByDefault);
+    }
+
+    /**
+     * Select the writer requested by the client, from the raw <code>pretty</code> query parameter and Accept header
+     *
+     * @param query
+     *         Value of the <code>pretty</code> query parameter, can be null
+     * @param accept
+     *         Accept header, can be null
+     * @param prettyByDefault
+     *         Format to use if the client did not ask for one
+     * @return Writer
+     */
+    public static ObjectWriter select(final String query, final String accept, final boolean prettyByDefault) {
+        // Query parameter takes precedence
+        if (query != null) {
+            return get(Boolean.parseBoolean(query));
+        }
+
+        // Then, the media type parameter
+        if (accept != null) {
+            for (final String mediaType : accept.split(",")) {
+                final String[] parameters = mediaType.split(";");
+                for (int i = 1; i < parameters.length; i++) {
+                    final String[] parameter = parameters[i].split("=", 2);
+                    if (parameter.length == 2 && "pretty".equalsIgnoreCase(parameter[0].trim())) {
+                        return get(Boolean.parseBoolean(parameter[1].trim()));
+                    }
+                }
+            }
+        }
+
+        return get(prettyByDefault);
+    }
+}
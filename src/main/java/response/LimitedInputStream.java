@@ -0,0 +1,96 @@
+package response;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a request body up to a number of bytes. Reading past them fails as soon as the body is known to be longer, so
+ * that an oversized body is rejected without being read to its end
+ */
+class LimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long remaining;
+
+    /**
+     * Constructor
+     *
+     * @param in
+     *         Request body
+     * @param limit
+     *         Maximum number of bytes
+     */
+    LimitedInputStream(final InputStream in, final long limit) {
+        super(in);
+        this.limit = limit;
+        this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.remaining == 0) {
+            return this.checkEnd();
+        }
+
+        final int read = super.read();
+        if (read != -1) {
+            this.remaining--;
+        }
+
+        return read;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (this.remaining == 0) {
+            return this.checkEnd();
+        }
+
+        final int read = super.read(b, off, (int) Math.min(len, this.remaining));
+        if (read > 0) {
+            this.remaining -= read;
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        final long skipped = super.skip(Math.min(n, this.remaining));
+        this.remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Check that the body ends once the limit is reached
+     *
+     * @return End of the body
+     * @throws IOException
+     *         If there is more to read
+     */
+    private int checkEnd() throws IOException {
+        if (super.read() != -1) {
+            throw tooLarge(this.limit);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param limit
+     *         Maximum number of bytes
+     * @return Error for a body over the limit
+     */
+    static IOException tooLarge(final long limit) {
+        return new IOException("Request body larger than " + limit + " bytes");
+    }
+}
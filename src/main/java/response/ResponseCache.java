@@ -0,0 +1,168 @@
+package response;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.bson.Document;
+
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of encoded single user responses, keyed by user id. Each entry remembers the document it was encoded from and
+ * is only served for that same document instance, so an entry becomes stale as soon as the user service returns a new
+ * document for the id, e.g. after a write invalidated its document cache. This makes it useful only in front of a
+ * caching user service
+ */
+public class ResponseCache {
+    private final Cache<String, CachedResponse> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param maximumSize
+     *         Maximum number of responses kept in memory
+     */
+    public ResponseCache(final long maximumSize) {
+        this.cache = Caffeine.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Get the encoded response for a user, encoding it on a miss
+     *
+     * @param id
+     *         ID of the user
+     * @param user
+     *         User as returned by the user service
+     * @param writer
+     *         Writer used to encode on a miss
+     * @return Cached response
+     * @throws JsonProcessingException
+     */
+    public CachedResponse get(final String id, final Document user, final ObjectWriter writer)
+            throws JsonProcessingException {
+        CachedResponse cached = this.cache.getIfPresent(id);
+        if (cached != null && cached.source == user) {
+            this.hits.increment();
+            return cached;
+        }
+
+        // Concurrent misses for the same document encode it once, the others wait for it
+        try {
+            return this.cache.asMap().compute(id, (key, current) -> {
+                if (current != null && current.source == user) {
+                    this.hits.increment();
+                    return current;
+                }
+
+                this.misses.increment();
+                try {
+                    return new CachedResponse(user, writer.writeValueAsBytes(user));
+                } catch (final JsonProcessingException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (final UncheckedIOException e) {
+            throw (JsonProcessingException) e.getCause();
+        }
+    }
+
+    /**
+     * Evict the response of a user
+     *
+     * @param id
+     *         ID of the user
+     */
+    public void invalidate(final String id) {
+        this.cache.invalidate(id);
+    }
+
+    /**
+     * @return Number of responses served without encoding
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return Number of responses encoded
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Encoded response body with its entity tag
+     */
+    public static class CachedResponse {
+        private final Document source;
+        private final byte[] body;
+        private final String etag;
+
+        CachedResponse(final Document source, final byte[] body) {
+            this.source = source;
+            this.body = body;
+            this.etag = etag(body);
+        }
+
+        public byte[] getBody() {
+            return this.body;
+        }
+
+        public String getEtag() {
+            return this.etag;
+        }
+
+        /**
+         * Check if a conditional request can be answered with this response unchanged
+         *
+         * @param ifNoneMatch
+         *         Value of the If-None-Match header, can be null
+         * @return True if any of the entity tags matches
+         */
+        public boolean matches(final String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+
+                if (tag.equals("*") || tag.equals(this.etag)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Strong entity tag from the digest of the body
+         *
+         * @param body
+         *         Encoded body
+         * @return Quoted entity tag
+         */
+        private static String etag(final byte[] body) {
+            try {
+                final byte[] digest = MessageDigest.getInstance("MD5").digest(body);
+                final StringBuilder builder = new StringBuilder(digest.length * 2 + 2).append('"');
+                for (final byte b : digest) {
+                    builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+
+                return builder.append('"').toString();
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
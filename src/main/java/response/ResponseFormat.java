@@ -0,0 +1,96 @@
+package response;
+
+/**
+ * Formats of the users returned, negotiated with the Accept header. JSON is the default, the binary formats are meant
+ * for other services: Smile is the binary form of JSON, and BSON is sent as read from the database, without decoding
+ * and encoding the users again. Other responses such as messages and errors are always JSON
+ */
+public enum ResponseFormat {
+    JSON("application/json"),
+    SMILE("application/x-jackson-smile"),
+    BSON("application/bson");
+
+    private final String mediaType;
+
+    ResponseFormat(final String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    /**
+     * @return Media type of the format, for the Content-Type header
+     */
+    public String getMediaType() {
+        return this.mediaType;
+    }
+
+    /**
+     * Select the format preferred by the client. The media type with the highest quality wins, the first one listed
+     * on a tie. Wildcards select JSON, as do clients accepting none of the formats or not sending the header
+     *
+     * @param accept
+     *         Accept header, can be null
+     * @return Format
+     */
+    public static ResponseFormat negotiate(final String accept) {
+        if (accept == null) {
+            return JSON;
+        }
+
+        ResponseFormat best = JSON;
+        double bestQuality = 0;
+        for (final String mediaRange : accept.split(",")) {
+            final String[] parameters = mediaRange.split(";");
+            final ResponseFormat format = of(parameters[0].trim());
+            final double quality = quality(parameters);
+            if (format != null && quality > bestQuality) {
+                best = format;
+                bestQuality = quality;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Get the format of a media range
+     *
+     * @param mediaRange
+     *         Media type or wildcard, without parameters
+     * @return Format, null if not supported
+     */
+    private static ResponseFormat of(final String mediaRange) {
+        if ("*/*".equals(mediaRange) || "application/*".equalsIgnoreCase(mediaRange)) {
+            return JSON;
+        }
+
+        for (final ResponseFormat format : values()) {
+            if (format.mediaType.equalsIgnoreCase(mediaRange)) {
+                return format;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the quality of a media range
+     *
+     * @param parameters
+     *         Media range followed by its parameters
+     * @return Value of the <code>q</code> parameter, 1 if not given and 0 if invalid
+     */
+    private static double quality(final String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            final String[] parameter = parameters[i].split("=", 2);
+            if (parameter.length == 2 && "q".equalsIgnoreCase(parameter[0].trim())) {
+                try {
+                    return Double.parseDouble(parameter[1].trim());
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+}
@@ -1,19 +1,50 @@
 package response;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import metrics.Metrics;
+import metrics.Timer;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
+import user.BulkResult;
+import user.DuplicateUserException;
+import user.Fields;
 import user.IUserService;
-import user.UserService;
+import user.SingleFlight;
+import user.User;
+import user.UserJson;
+import user.UserQuery;
+import user.WriteQueueFullException;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Class to handle the responses to the user
@@ -21,115 +52,559 @@ import java.util.List;
  * Created by ekal on 5/24/16.
  */
 public class ResponseHandler {
+    /**
+     * Upper bound on the page size a client can request
+     */
+    public static final int MAX_LIMIT = 1000;
+
+    /**
+     * Number of users of a bulk request written to the database at once
+     */
+    public static final int BULK_CHUNK_SIZE = 1000;
+
+    /**
+     * Default upper bound on the size of a single user request body, in bytes
+     */
+    public static final long DEFAULT_MAX_BODY_SIZE = 64 * 1024;
+
+    /**
+     * Seconds a client is told to wait before retrying a write refused by a full write queue
+     */
+    static final String RETRY_AFTER = "1";
+
+    /**
+     * Query parameters of the user list that are not filters
+     */
+    private static final Set<String> LIST_PARAMETERS = new HashSet<>(Arrays.asList("after", "limit", "fields",
+            "pretty"));
+
     private final IUserService userService;
+    private final boolean pretty;
+    private final ResponseCache responseCache;
+    private final ChangeCounter changes;
+    private final Metrics metrics;
+    private final long maxBodySize;
+    private final Timer serialization;
+    private final Timer streamSerialization;
+
+    /**
+     * Single users being read and transcoded, by id, fields and writer, shared by concurrent requests for the same
+     */
+    private final SingleFlight<List<Object>, byte[]> transcodings = new SingleFlight<>();
     private final Logger logger = LoggerFactory.getLogger(ResponseHandler.class);
 
+    /**
+     * Constructor for unit testing
+     *
+     * @param userService
+     *         User service
+     */
+    public ResponseHandler(final IUserService userService) {
+        this(userService, true);
+    }
+
     /**
      * Constructor
      *
-     * @param database
-     *         Database to connect to
-     * @param collection
-     *         Collection to fetch
+     * @param userService
+     *         User service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
      */
-    public ResponseHandler(final String database, final String collection) {
-        this(new UserService(database, collection));
+    public ResponseHandler(final IUserService userService, final boolean pretty) {
+        this(userService, pretty, null);
     }
 
     /**
-     * Constructor for unit testing
+     * Constructor
      *
      * @param userService
      *         User service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     * @param responseCache
+     *         Cache of encoded single user responses, null to encode every response
      */
-    public ResponseHandler(final IUserService userService) {
+    public ResponseHandler(final IUserService userService, final boolean pretty, final ResponseCache responseCache) {
+        this(userService, pretty, responseCache, new Metrics());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         User service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     * @param responseCache
+     *         Cache of encoded single user responses, null to encode every response
+     * @param metrics
+     *         Registry of the serialization timers, also used for the routes
+     */
+    public ResponseHandler(final IUserService userService, final boolean pretty, final ResponseCache responseCache,
+            final Metrics metrics) {
+        this(userService, pretty, responseCache, null, metrics);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         User service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     * @param responseCache
+     *         Cache of encoded single user responses, null to encode every response
+     * @param changes
+     *         Version of the users giving the validators of user lists, counting the writes of this handler. Null for
+     *         lists without validators
+     * @param metrics
+     *         Registry of the serialization timers, also used for the routes
+     */
+    public ResponseHandler(final IUserService userService, final boolean pretty, final ResponseCache responseCache,
+            final ChangeCounter changes, final Metrics metrics) {
+        this(userService, pretty, responseCache, changes, metrics, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         User service
+     * @param pretty
+     *         True to indent responses unless the client asks for compact output
+     * @param responseCache
+     *         Cache of encoded single user responses, null to encode every response
+     * @param changes
+     *         Version of the users giving the validators of user lists, counting the writes of this handler. Null for
+     *         lists without validators
+     * @param metrics
+     *         Registry of the serialization timers, also used for the routes
+     * @param maxBodySize
+     *         Largest body accepted to create or update a user, in bytes
+     */
+    public ResponseHandler(final IUserService userService, final boolean pretty, final ResponseCache responseCache,
+            final ChangeCounter changes, final Metrics metrics, final long maxBodySize) {
         this.userService = userService;
+        this.pretty = pretty;
+        this.responseCache = responseCache;
+        this.changes = changes;
+        this.metrics = metrics;
+        this.maxBodySize = maxBodySize;
+        this.serialization = serializationTimer(metrics, "response");
+        this.streamSerialization = serializationTimer(metrics, "stream");
     }
 
     /**
-     * JSON output for all users, error if no users present
+     * Get a JSON serialization timer
      *
-     * @return Response as String
+     * @param metrics
+     *         Registry
+     * @param source
+     *         What is serialized, <code>response</code> for whole responses and <code>stream</code> for users streamed
+     *         one at a time, which includes copying them to the response buffer
+     * @return Timer
+     */
+    public static Timer serializationTimer(final Metrics metrics, final String source) {
+        return metrics.timer("json_serialization", "JSON serialization by source", "source", source);
+    }
+
+    /**
+     * Get the timer of a route
+     *
+     * @param metrics
+     *         Registry
+     * @param route
+     *         Path of the route, with its parameters such as <code>/users/:id</code>
+     * @return Timer
+     */
+    public static Timer routeTimer(final Metrics metrics, final String route) {
+        return metrics.timer("http_request", "HTTP requests by route", "route", route);
+    }
+
+    /**
+     * @return Registry of the timers of this handler
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Streams users straight to the response output stream, one document at a time. Supports keyset pagination through
+     * the optional query parameters <code>limit</code> and <code>after</code>, where <code>after</code> is the id of
+     * the last user of the previous page, and sparse fieldsets through the optional <code>fields</code>. Any other
+     * query parameter is a filter, see {@link UserQuery}. Lists are validated by the version of the users, so an
+     * unchanged list is answered with a 304 before reading the database. Users are in the format negotiated with the
+     * Accept header, see {@link ResponseFormat}
+     *
+     * @param req
+     *         Request containing the paging parameters
+     * @param res
+     *         Response to write to
+     * @return Empty string, as the body is written directly
      * @throws Exception
      */
-    public String getResponseForAllUsers() throws Exception {
-        // Get all users
-        final List<Document> allUsers = this.userService.getAllUsers();
+    public String streamAllUsers(final Request req, final Response res) throws Exception {
+        final String after = req.queryParams("after");
+        final int limit = parseLimit(req.queryParams("limit"));
+        final List<String> fields = Fields.parse(req.queryParams("fields"));
+        final UserQuery query = UserQuery.parse(filters(req));
+
+        // Validators from the version read before the users, so that a write meanwhile changes them
+        if (this.changes != null) {
+            final ChangeCounter.Version version = this.changes.current();
+            res.header("ETag", version.getEtag());
+            res.header("Last-Modified", version.getLastModified());
+            res.header("Vary", "Accept");
+            if (version.matches(req.headers("If-None-Match"), req.headers("If-Modified-Since"))) {
+                this.logger.debug("[GET] Users not modified");
+                res.status(304);
+                return "";
+            }
+        }
 
-        // If no users exists, error
-        if (allUsers.size() == 0) {
-            this.logger.warn("[GET] No users exist");
+        // Stream each user as soon as it is read, passing BSON through or transcoding it without decoding
+        final ResponseFormat format = ResponseFormat.negotiate(req.headers("Accept"));
+        final UserStreamWriter writer = new UserStreamWriter(res, format, this.encoder(format, req),
+                this.streamSerialization);
+        try {
+            this.userService.findRawUsers(query, after, limit, fields, writer);
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // If no users exists on the first page, error. No users matching a filter is not an error
+        if (writer.getCount() == 0 && after == null && query.isEmpty()) {
+            this.logger.debug("[GET] No users exist");
             throw new Exception("Database empty!!");
-        } else {
-            // Else pretty print each user
-            this.logger.info("[GET] Found " + allUsers.size() + " users...");
-            final List<String> users = new ArrayList<>();
-            for (final Document document : allUsers) {
-                users.add(prettyPrint(document));
+        }
+
+        this.logger.debug("[GET] Streamed {} users...", writer.getCount());
+        return "";
+    }
+
+    /**
+     * Get the filters of the user list
+     *
+     * @param req
+     *         Request
+     * @return Value of each query parameter other than the paging and output parameters
+     */
+    private static Map<String, String> filters(final Request req) {
+        final Map<String, String> filters = new LinkedHashMap<>();
+        for (final String name : req.queryParams()) {
+            if (!LIST_PARAMETERS.contains(name)) {
+                filters.put(name, req.queryParams(name));
             }
+        }
+
+        return filters;
+    }
+
+    /**
+     * Parse the page size
+     *
+     * @param limit
+     *         Limit query parameter, can be null
+     * @return Page size capped to {@link #MAX_LIMIT}, 0 if no limit requested
+     * @throws Exception
+     */
+    private static int parseLimit(final String limit) throws Exception {
+        if (limit == null) {
+            return 0;
+        }
+
+        final int value;
+        try {
+            value = Integer.parseInt(limit);
+        } catch (final NumberFormatException e) {
+            throw new Exception("Invalid limit " + limit);
+        }
 
-            return String.join("\n", users);
+        if (value <= 0) {
+            throw new Exception("Invalid limit " + limit);
         }
+
+        return Math.min(value, MAX_LIMIT);
     }
 
     /**
-     * Pretty print in JSON
+     * Print in JSON
      *
      * @param object
      *         Object to print
+     * @param writer
+     *         Shared writer for the output format
      * @return JSON string
      * @throws JsonProcessingException
      */
-    private String prettyPrint(final Object object) throws JsonProcessingException {
-        final ObjectMapper mapper = new ObjectMapper();
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
-        mapper.enable(SerializationFeature.INDENT_OUTPUT);
-        return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(object);
+    private String print(final Object object, final ObjectWriter writer) throws JsonProcessingException {
+        final long start = System.nanoTime();
+        try {
+            final String json = writer.writeValueAsString(object);
+            this.serialization.record(start);
+            return json;
+        } catch (final JsonProcessingException e) {
+            this.serialization.recordError(start);
+            throw e;
+        }
     }
 
     /**
-     * Get JSON for a single user
+     * Print in JSON, in the format requested by the client
      *
+     * @param object
+     *         Object to print
      * @param req
-     *         Request containing the ID
+     *         Request
+     * @return JSON string
+     * @throws JsonProcessingException
+     */
+    private String print(final Object object, final Request req) throws JsonProcessingException {
+        return this.print(object, JsonWriters.select(req, this.pretty));
+    }
+
+    /**
+     * Get a single user, with only the fields requested if any, in the format negotiated with the Accept header
+     *
+     * @param req
+     *         Request containing the ID and the optional fields
      * @param res
      *         Response data
-     * @return JSON string if found, else error
+     * @return JSON string if found, else error. Empty if the user was written directly in a binary format
      * @throws JsonProcessingException
      */
     public String getResponseForSingleUser(final Request req, final Response res) throws JsonProcessingException {
-        // Get the user
-        final String id = req.params(":id");
-        final Document user = this.userService.getUser(id);
+        final List<String> fields;
+        try {
+            fields = Fields.parse(req.queryParams("fields"));
+        } catch (final Exception e) {
+            res.status(400);
+            this.logger.debug("[GET] {}", e.getMessage());
+            return this.print(new ResponseMessage(e.getMessage(), 400), req);
+        }
 
-        // If found, return user details
-        if (user != null) {
-            this.logger.info("[GET] Found user with id: " + id);
-            return prettyPrint(user);
+        // Encoded responses are cached in front of a cache of users
+        final String id = req.params(":id");
+        final ResponseFormat format = ResponseFormat.negotiate(req.headers("Accept"));
+        final ObjectWriter writer = JsonWriters.select(req, this.pretty);
+        if (this.responseCache != null && fields == null && format == ResponseFormat.JSON
+                && writer == JsonWriters.get(this.pretty)) {
+            final Document user = this.userService.getUser(id);
+            if (user != null) {
+                this.logger.debug("[GET] Found user with id: {}", id);
+                return this.writeCached(id, user, writer, req, res);
+            }
+        } else if (format == ResponseFormat.BSON) {
+            // Otherwise the user is passed through as BSON
+            final RawBsonDocument user = this.userService.getRawUser(id, fields);
+            if (user != null) {
+                this.logger.debug("[GET] Found user with id: {}", id);
+                final ByteBuffer bson = user.getByteBuffer().asNIO();
+                this.write(res, format, bson.array(), bson.arrayOffset() + bson.position(), bson.remaining());
+                return "";
+            }
+        } else {
+            // Or transcoded without decoding, once for all the concurrent requests of the same user and encoding
+            final ObjectWriter encoder = format == ResponseFormat.SMILE ? JsonWriters.SMILE : writer;
+            final byte[] body = this.transcodings.get(Arrays.asList(id, fields, encoder), () -> {
+                final RawBsonDocument user = this.userService.getRawUser(id, fields);
+                return user == null ? null : this.transcode(user, encoder);
+            });
+            if (body != null) {
+                this.logger.debug("[GET] Found user with id: {}", id);
+                this.write(res, format, body, 0, body.length);
+                return "";
+            }
         }
 
         // Else, return error
         res.status(404);
-        this.logger.warn("[GET] User not found");
-        return prettyPrint(new ResponseMessage("No user with id " + id + " found", 404));
+        this.logger.debug("[GET] User not found");
+        return this.print(new ResponseMessage("No user with id " + id + " found", 404), req);
+    }
+
+    /**
+     * Transcode a user
+     *
+     * @param user
+     *         BSON of the user
+     * @param writer
+     *         Writer of the format
+     * @return Encoded user
+     */
+    private byte[] transcode(final RawBsonDocument user, final ObjectWriter writer) {
+        final long start = System.nanoTime();
+        try {
+            final byte[] body = BsonTranscoder.toBytes(user, writer);
+            this.serialization.record(start);
+            return body;
+        } catch (final IOException e) {
+            this.serialization.recordError(start);
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
-     * Create user
+     * Get the encoder of users in a format
+     *
+     * @param format
+     *         Format negotiated
+     * @param req
+     *         Request, for the JSON output requested
+     * @return Encoder
+     */
+    private Encoder encoder(final ResponseFormat format, final Request req) {
+        switch (format) {
+            case BSON:
+                return ResponseHandler::writeRaw;
+            case SMILE:
+                return (out, user) -> BsonTranscoder.write(out, user, JsonWriters.SMILE);
+            default:
+                final ObjectWriter writer = JsonWriters.select(req, this.pretty);
+                return (out, user) -> BsonTranscoder.write(out, user, writer);
+        }
+    }
+
+    /**
+     * Write a body directly to the response
+     *
+     * @param res
+     *         Response to write to
+     * @param format
+     *         Format of the body
+     * @param body
+     *         Buffer holding the body
+     * @param offset
+     *         Start of the body in the buffer
+     * @param length
+     *         Length of the body
+     */
+    private void write(final Response res, final ResponseFormat format, final byte[] body, final int offset,
+            final int length) {
+        try {
+            final HttpServletResponse raw = res.raw();
+            raw.setContentType(format.getMediaType());
+            raw.setContentLength(length);
+            raw.getOutputStream().write(body, offset, length);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a user as read from the database, without copying its bytes
+     *
+     * @param out
+     *         Stream to write to
+     * @param user
+     *         BSON of the user
+     * @throws IOException
+     */
+    static void writeRaw(final OutputStream out, final RawBsonDocument user) throws IOException {
+        final ByteBuffer buffer = user.getByteBuffer().asNIO();
+        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Write the cached encoding of a user, or no body at all if the client already has it
+     *
+     * @param id
+     *         ID of the user
+     * @param user
+     *         User found
+     * @param writer
+     *         Writer used to encode the user on a cache miss
+     * @param req
+     *         Request, possibly conditional
+     * @param res
+     *         Response to write to
+     * @return Empty string, as the body is written directly
+     * @throws JsonProcessingException
+     */
+    private String writeCached(final String id, final Document user, final ObjectWriter writer, final Request req,
+            final Response res) throws JsonProcessingException {
+        final ResponseCache.CachedResponse cached = this.responseCache.get(id, user, writer);
+        final HttpServletResponse raw = res.raw();
+        raw.setHeader("ETag", cached.getEtag());
+        if (cached.matches(req.headers("If-None-Match"))) {
+            raw.setStatus(304);
+            return "";
+        }
+
+        this.write(res, ResponseFormat.JSON, cached.getBody(), 0, cached.getBody().length);
+        return "";
+    }
+
+    /**
+     * Get the readiness of the service, ready once the database has all the indexes needed
+     *
+     * @param req
+     *         Request
+     * @param res
+     *         Response data
+     * @return Success response if ready, else error
+     * @throws JsonProcessingException
+     */
+    public String getResponseForReadiness(final Request req, final Response res) throws JsonProcessingException {
+        if (this.userService.isReady()) {
+            return this.print(new ResponseMessage("Ready", 200), req);
+        }
+
+        res.status(503);
+        this.logger.debug("[READY] Indexes not ready");
+        return this.print(new ResponseMessage("Indexes not ready", 503), req);
+    }
+
+    /**
+     * Create user. Clients sending <code>Prefer: respond-async</code> are answered with a 202 as soon as the user is
+     * accepted, if the service writes users behind its callers
      *
      * @param req
      *         Request containing JSON
+     * @param res
+     *         Response, for the status
      * @return Success response
-     * @throws JsonProcessingException
+     * @throws IOException
      */
-    public String create(final Request req) throws JsonProcessingException {
-        this.userService.createUser(req.body());
-        this.logger.info("[CREATE] User created!");
-        return prettyPrint(new ResponseMessage("User created!!", 200));
+    public String create(final Request req, final Response res) throws IOException {
+        final boolean written = this.userService.createUser(this.readUser(req), !prefersAsync(req.headers("Prefer")));
+        if (!written) {
+            // Counted once written, see WriteBehindUserService#subscribe
+            this.logger.debug("[CREATE] User accepted!");
+            res.status(202);
+            res.header("Preference-Applied", "respond-async");
+            return this.print(new ResponseMessage("User accepted!!", 202), req);
+        }
+
+        this.changed();
+        this.logger.debug("[CREATE] User created!");
+        return this.print(new ResponseMessage("User created!!", 200), req);
     }
 
     /**
-     * Update user
+     * Check if a client prefers an asynchronous response
+     *
+     * @param prefer
+     *         <code>Prefer</code> header, can be null
+     * @return True if <code>respond-async</code> is one of the preferences
+     */
+    static boolean prefersAsync(final String prefer) {
+        if (prefer == null) {
+            return false;
+        }
+
+        for (final String preference : prefer.split(",")) {
+            if ("respond-async".equalsIgnoreCase(preference.split(";", 2)[0].trim())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Update user, or create it if the <code>upsert</code> query parameter is true
      *
      * @param req
      *         Request containing JSON
@@ -137,9 +612,13 @@ public class ResponseHandler {
      * @throws Exception
      */
     public String update(final Request req) throws Exception {
-        this.userService.updateUser(req.body());
-        this.logger.info("[UPDATE] User updated!");
-        return prettyPrint(new ResponseMessage("User updated!!", 200));
+        // Read the body first, reading parameters would consume a form encoded body
+        final User user = this.readUser(req);
+        this.userService.updateUser(user, Boolean.parseBoolean(req.queryParams("upsert")));
+
+        this.changed();
+        this.logger.debug("[UPDATE] User updated!");
+        return this.print(new ResponseMessage("User updated!!", 200), req);
     }
 
     /**
@@ -155,8 +634,282 @@ public class ResponseHandler {
         final String id = req.params(":id");
 
         this.userService.removeUser(id);
-        this.logger.info("[REMOVE] User " + id + " removed");
-        return prettyPrint(new ResponseMessage("User " + id + " removed!!", 200));
+        if (this.responseCache != null) {
+            this.responseCache.invalidate(id);
+        }
+        this.changed();
+        this.logger.debug("[REMOVE] User {} removed", id);
+        return this.print(new ResponseMessage("User " + id + " removed!!", 200), req);
+    }
+
+    /**
+     * Create users in bulk
+     *
+     * @param req
+     *         Request containing a JSON array or new line delimited JSON
+     * @param res
+     *         Response to write the result of each user to
+     * @return Empty string, as the body is written directly
+     * @throws Exception
+     */
+    public String bulkCreate(final Request req, final Response res) throws Exception {
+        return this.bulk(req, res, false, this.userService::createUsers);
+    }
+
+    /**
+     * Update users in bulk
+     *
+     * @param req
+     *         Request containing a JSON array or new line delimited JSON
+     * @param res
+     *         Response to write the result of each user to
+     * @return Empty string, as the body is written directly
+     * @throws Exception
+     */
+    public String bulkUpdate(final Request req, final Response res) throws Exception {
+        return this.bulk(req, res, false, this.userService::updateUsers);
+    }
+
+    /**
+     * Remove users in bulk
+     *
+     * @param req
+     *         Request containing a JSON array or new line delimited JSON, of users or ids
+     * @param res
+     *         Response to write the result of each user to
+     * @return Empty string, as the body is written directly
+     * @throws Exception
+     */
+    public String bulkRemove(final Request req, final Response res) throws Exception {
+        return this.bulk(req, res, true, users -> {
+            final List<String> ids = new ArrayList<>(users.size());
+            for (final User user : users) {
+                ids.add(user.getId());
+            }
+
+            final List<BulkResult> results = this.userService.removeUsers(ids);
+            if (this.responseCache != null) {
+                for (final String id : ids) {
+                    this.responseCache.invalidate(id);
+                }
+            }
+
+            return results;
+        });
+    }
+
+    /**
+     * Apply a bulk operation to the users of a chunk, counted as a write even if it failed as some users may have been
+     * written. Values that were not users are rejected in place, without reaching the operation
+     *
+     * @param operation
+     *         Operation
+     * @param chunk
+     *         Users of the chunk, null for a value that was not a user
+     * @param invalid
+     *         Result of each value that was not a user, by index in the chunk
+     * @return Result for each value
+     */
+    private List<BulkResult> apply(final Function<List<User>, List<BulkResult>> operation, final List<User> chunk,
+            final Map<Integer, BulkResult> invalid) {
+        if (invalid.isEmpty()) {
+            return this.applyAll(operation, chunk);
+        }
+
+        final List<User> users = new ArrayList<>(chunk.size() - invalid.size());
+        for (final User user : chunk) {
+            if (user != null) {
+                users.add(user);
+            }
+        }
+
+        final Iterator<BulkResult> applied = users.isEmpty()
+                ? Collections.emptyIterator()
+                : this.applyAll(operation, users).iterator();
+        final List<BulkResult> results = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            results.add(invalid.containsKey(i) ? invalid.get(i) : applied.next());
+        }
+
+        return results;
+    }
+
+    /**
+     * Apply a bulk operation to users, counted as a write even if it failed
+     *
+     * @param operation
+     *         Operation
+     * @param users
+     *         Users
+     * @return Result for each user
+     */
+    private List<BulkResult> applyAll(final Function<List<User>, List<BulkResult>> operation,
+            final List<User> users) {
+        try {
+            return operation.apply(users);
+        } finally {
+            this.changed();
+        }
+    }
+
+    /**
+     * Count a write in the version of the users, if any. Users being read may predate the write, so later requests no
+     * longer share their reads
+     */
+    private void changed() {
+        this.transcodings.forget(key -> true);
+        if (this.changes != null) {
+            this.changes.changed();
+        }
+    }
+
+    /**
+     * Apply a bulk operation chunk by chunk, streaming the result of each user as soon as its chunk is written
+     *
+     * @param req
+     *         Request containing the users
+     * @param res
+     *         Response to write to
+     * @param idsAllowed
+     *         True to accept plain ids instead of users
+     * @param operation
+     *         Operation applied to each chunk
+     * @return Empty string, as the body is written directly
+     * @throws Exception
+     */
+    private String bulk(final Request req, final Response res, final boolean idsAllowed,
+            final Function<List<User>, List<BulkResult>> operation) throws Exception {
+        // Apply the first chunk before writing anything, so that a malformed request is still reported as an error
+        final BulkRequestReader reader = new BulkRequestReader(body(req));
+        final Map<Integer, BulkResult> invalid = new HashMap<>();
+        List<User> chunk = readChunk(reader, idsAllowed, invalid);
+        if (chunk.isEmpty()) {
+            throw new Exception("No users in request");
+        }
+
+        List<BulkResult> results = this.apply(operation, chunk, invalid);
+
+        final HttpServletResponse raw = res.raw();
+        raw.setStatus(200);
+        raw.setContentType("application/json");
+        int index = 0;
+        int succeeded = 0;
+        String error = null;
+        try (final JsonGenerator generator = JsonWriters.createGenerator(raw.getOutputStream(),
+                JsonWriters.select(req, this.pretty))) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("items");
+            while (results != null) {
+                for (final BulkResult result : results) {
+                    generator.writeStartObject();
+                    generator.writeNumberField("index", index++);
+                    if (result.getId() != null) {
+                        generator.writeStringField("id", result.getId());
+                    }
+
+                    generator.writeNumberField("status", result.getStatus());
+                    generator.writeStringField("message", result.getMessage());
+                    generator.writeEndObject();
+                    succeeded += result.isSuccess() ? 1 : 0;
+                }
+
+                // Then, the next chunk. Past this point errors can only be reported in the body
+                results = null;
+                try {
+                    invalid.clear();
+                    chunk = readChunk(reader, idsAllowed, invalid);
+                    if (!chunk.isEmpty()) {
+                        results = this.apply(operation, chunk, invalid);
+                    }
+                } catch (final Exception e) {
+                    this.logger.warn("[BULK] Stopped after {} users: {}", index, e.getMessage());
+                    error = e.getMessage();
+                }
+            }
+
+            generator.writeEndArray();
+            generator.writeNumberField("succeeded", succeeded);
+            generator.writeNumberField("failed", index - succeeded);
+            if (error != null) {
+                generator.writeStringField("error", error);
+            }
+
+            generator.writeEndObject();
+        }
+
+        this.logger.debug("[BULK] {} of {} users succeeded", succeeded, index);
+        return "";
+    }
+
+    /**
+     * Read the user of a request as its body is received, rejecting bodies over the size limit
+     *
+     * @param req
+     *         Request containing JSON
+     * @return User, not validated
+     * @throws IOException
+     *         If the body is too large or cannot be read
+     */
+    private User readUser(final Request req) throws IOException {
+        // Bodies of a known length are rejected before reading anything, others once the limit is read
+        final long length = req.raw().getContentLengthLong();
+        if (length > this.maxBodySize) {
+            throw LimitedInputStream.tooLarge(this.maxBodySize);
+        }
+
+        // Malformed UTF-8 is replaced, as when the body was read as a string
+        return UserJson.read(new InputStreamReader(new LimitedInputStream(body(req), this.maxBodySize),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get the body of a request as it is received
+     *
+     * @param req
+     *         Request
+     * @return Body
+     * @throws IOException
+     */
+    private static InputStream body(final Request req) throws IOException {
+        // The request Spark wraps would buffer the whole body on the first read, so the request it wraps is read
+        final ServletRequest raw = req.raw();
+        return raw instanceof ServletRequestWrapper ? ((ServletRequestWrapper) raw).getRequest().getInputStream()
+                : raw.getInputStream();
+    }
+
+    /**
+     * Read the next chunk of a bulk request
+     *
+     * @param reader
+     *         Request reader
+     * @param idsAllowed
+     *         True to accept plain ids instead of users
+     * @param invalid
+     *         Map filled with the result of each value that was not a user, by index in the chunk
+     * @return Users, null for a value that was not a user. Empty at the end of the request
+     * @throws Exception
+     */
+    private static List<User> readChunk(final BulkRequestReader reader, final boolean idsAllowed,
+            final Map<Integer, BulkResult> invalid) throws Exception {
+        final List<User> chunk = new ArrayList<>();
+        while (chunk.size() < BULK_CHUNK_SIZE) {
+            final User user;
+            try {
+                user = reader.next(idsAllowed);
+            } catch (final IllegalArgumentException e) {
+                invalid.put(chunk.size(), new BulkResult(null, 400, e.getMessage()));
+                chunk.add(null);
+                continue;
+            }
+
+            if (user == null) {
+                break;
+            }
+
+            chunk.add(user);
+        }
+
+        return chunk;
     }
 
     /**
@@ -169,17 +922,100 @@ public class ResponseHandler {
      * @return Response with modified body
      */
     public Response getResponseForError(final Exception e, final Response res) {
-        res.status(400);
+        final int status = statusOf(e);
+        res.status(status);
+        if (status == 503) {
+            res.header("Retry-After", RETRY_AFTER);
+        }
+
         try {
-            // Pretty print error
+            // Print error
             this.logger.warn(e.getMessage());
-            res.body(prettyPrint(new ResponseMessage(e.getMessage(), 400)));
+            res.body(this.print(new ResponseMessage(e.getMessage(), status), JsonWriters.get(this.pretty)));
         } catch (final Exception e1) {
-            // If pretty print failed, set errors in string
+            // If print failed, set errors in string
             this.logger.error(e1.getMessage());
             res.body(e1.getMessage());
         }
 
         return res;
     }
+
+    /**
+     * Get the HTTP status of an error. A full write queue is temporary, so the client is told to try again after
+     * {@link #RETRY_AFTER} seconds
+     *
+     * @param e
+     *         Error
+     * @return 503 for a full write queue, 409 for a duplicate user, 400 otherwise
+     */
+    static int statusOf(final Throwable e) {
+        return e instanceof WriteQueueFullException ? 503 : isDuplicate(e) ? 409 : 400;
+    }
+
+    /**
+     * Check if an error is a user created with the id of another
+     *
+     * @param e
+     *         Error
+     * @return True for a duplicate user, whether written directly or behind its request
+     */
+    private static boolean isDuplicate(final Throwable e) {
+        return e instanceof DuplicateUserException || e instanceof MongoWriteException
+                && ((MongoWriteException) e).getError().getCategory() == ErrorCategory.DUPLICATE_KEY;
+    }
+
+    /**
+     * Writes each user to the response as it arrives. JSON users are separated by new lines, while binary users are
+     * concatenated as each one gives its own length or header
+     */
+    private static class UserStreamWriter implements Consumer<RawBsonDocument> {
+        private final Response res;
+        private final ResponseFormat format;
+        private final Encoder encoder;
+        private final Timer timer;
+        private OutputStream out;
+        private int count;
+
+        UserStreamWriter(final Response res, final ResponseFormat format, final Encoder encoder, final Timer timer) {
+            this.res = res;
+            this.format = format;
+            this.encoder = encoder;
+            this.timer = timer;
+        }
+
+        @Override
+        public void accept(final RawBsonDocument user) {
+            try {
+                // Open the stream lazily so that errors can still be reported if nothing was found
+                if (this.out == null) {
+                    final HttpServletResponse raw = this.res.raw();
+                    raw.setStatus(200);
+                    raw.setContentType(this.format.getMediaType());
+                    this.out = raw.getOutputStream();
+                } else if (this.format == ResponseFormat.JSON) {
+                    this.out.write('\n');
+                }
+
+                final long start = System.nanoTime();
+                this.encoder.encode(this.out, user);
+                this.timer.record(start);
+                this.count++;
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int getCount() {
+            return this.count;
+        }
+    }
+
+    /**
+     * Writes a user to a stream
+     */
+    @FunctionalInterface
+    private interface Encoder {
+        void encode(OutputStream out, RawBsonDocument user) throws IOException;
+    }
 }
@@ -0,0 +1,64 @@
+package user;
+
+import java.util.Objects;
+
+/**
+ * Postal address of a user, every field optional
+ */
+public class Address {
+    private final String street;
+    private final String city;
+    private final String zip;
+    private final String state;
+    private final String country;
+
+    public Address(final String street, final String city, final String zip, final String state,
+            final String country) {
+        this.street = street;
+        this.city = city;
+        this.zip = zip;
+        this.state = state;
+        this.country = country;
+    }
+
+    public String getStreet() {
+        return this.street;
+    }
+
+    public String getCity() {
+        return this.city;
+    }
+
+    public String getZip() {
+        return this.zip;
+    }
+
+    public String getState() {
+        return this.state;
+    }
+
+    public String getCountry() {
+        return this.country;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Address)) {
+            return false;
+        }
+
+        final Address address = (Address) o;
+        return Objects.equals(this.street, address.street) && Objects.equals(this.city, address.city)
+                && Objects.equals(this.zip, address.zip) && Objects.equals(this.state, address.state)
+                && Objects.equals(this.country, address.country);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.street, this.city, this.zip, this.state, this.country);
+    }
+}
@@ -0,0 +1,195 @@
+package user;
+
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Class to implement the single user services on the asynchronous driver, so that no thread waits on the database
+ */
+public class AsyncUserService implements IAsyncUserService {
+    private final Logger logger = LoggerFactory.getLogger(AsyncUserService.class);
+    private final MongoCollection<Document> dbCollection;
+    private final MongoCollection<User> users;
+
+    /**
+     * Constructor for unit testing
+     *
+     * @param dbCollection
+     *         DB collection
+     */
+    public AsyncUserService(final MongoCollection<Document> dbCollection) {
+        this.dbCollection = dbCollection;
+        this.users = dbCollection.withCodecRegistry(UserCodec.REGISTRY).withDocumentClass(User.class);
+    }
+
+    @Override
+    public CompletableFuture<Document> getUser(final String id) {
+        return this.getUser(id, null);
+    }
+
+    @Override
+    public CompletableFuture<Document> getUser(final String id, final List<String> fields) {
+        this.logger.debug("[GET] Getting user with ID {} and fields {}", id, fields);
+        final CompletableFuture<Document> future = new CompletableFuture<>();
+        this.dbCollection.find(Filters.eq("id", id)).projection(Fields.projection(fields))
+                         .first(callback(future, document -> document));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<RawBsonDocument> getRawUser(final String id, final List<String> fields) {
+        this.logger.debug("[GET] Getting raw user with ID {} and fields {}", id, fields);
+        final CompletableFuture<RawBsonDocument> future = new CompletableFuture<>();
+        this.dbCollection.find(Filters.eq("id", id), RawBsonDocument.class).projection(Fields.projection(fields))
+                         .first(callback(future, document -> document));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> createUser(final String json) {
+        this.logger.debug("[CREATE] Parsing JSON....");
+        final User user;
+        try {
+            user = UserJson.read(json);
+        } catch (final RuntimeException e) {
+            return failed(e);
+        }
+
+        return this.createUser(user);
+    }
+
+    @Override
+    public CompletableFuture<Void> createUser(final User user) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            user.validate();
+
+            this.logger.debug("[CREATE] Creating user...");
+            this.users.insertOne(user, callback(future, result -> null));
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> updateUser(final String json, final boolean upsert) {
+        this.logger.debug("[UPDATE] Parsing JSON....");
+        final User user;
+        try {
+            user = UserJson.read(json);
+        } catch (final RuntimeException e) {
+            return failed(e);
+        }
+
+        return this.updateUser(user, upsert);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateUser(final User user, final boolean upsert) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            // A missing id would match every user without one
+            final String id = user.getId();
+            if (id == null) {
+                this.logger.debug("[UPDATE] User has no id");
+                future.completeExceptionally(new Exception("User not found to update"));
+                return future;
+            }
+
+            user.validate();
+
+            this.logger.debug("[UPDATE] Updating user with ID {}", id);
+            this.users.updateOne(Filters.eq("id", id), new Document("$set", user),
+                    new UpdateOptions().upsert(upsert), callback(future, result -> {
+                        // If not found, fail
+                        if (result.getMatchedCount() == 0 && result.getUpsertedId() == null) {
+                            this.logger.debug("[UPDATE] User not found");
+                            throw new Exception("User not found to update");
+                        }
+
+                        return null;
+                    }));
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> removeUser(final String id) {
+        this.logger.debug("[REMOVE] Removing user with ID {}", id);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.dbCollection.deleteOne(Filters.eq("id", id), callback(future, result -> {
+            // If not found, fail
+            if (result.getDeletedCount() == 0) {
+                this.logger.debug("[REMOVE] User not found");
+                throw new Exception("User not found to remove");
+            }
+
+            return null;
+        }));
+        return future;
+    }
+
+    /**
+     * Create a future that already failed
+     *
+     * @param e
+     *         Failure
+     * @return Future
+     */
+    private static CompletableFuture<Void> failed(final Exception e) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Create a driver callback completing a future
+     *
+     * @param future
+     *         Future to complete
+     * @param mapper
+     *         Maps the driver result to the value of the future, failing it by throwing
+     * @param <T>
+     *         Type of the driver result
+     * @param <R>
+     *         Type of the future value
+     * @return Callback
+     */
+    private static <T, R> SingleResultCallback<T> callback(final CompletableFuture<R> future,
+            final ResultMapper<T, R> mapper) {
+        return (result, t) -> {
+            if (t != null) {
+                future.completeExceptionally(t);
+                return;
+            }
+
+            try {
+                future.complete(mapper.apply(result));
+            } catch (final Exception e) {
+                future.completeExceptionally(e);
+            }
+        };
+    }
+
+    /**
+     * Maps the result of a driver operation
+     */
+    @FunctionalInterface
+    private interface ResultMapper<T, R> {
+        R apply(T result) throws Exception;
+    }
+}
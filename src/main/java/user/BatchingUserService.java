@@ -0,0 +1,374 @@
+package user;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Reads users looked up by id concurrently in batches, in front of another user service. Lookups of whole users, with
+ * or without their internal <code>_id</code>, are queued, and a dispatcher thread sends them as a single query for all
+ * their ids once the batch is full, or once its oldest lookup has waited for the time window. Lookups with the
+ * <code>_id</code> are read in a query of their own. Batches are read by a fixed number of readers, so that several can
+ * be in flight without loading a slow database with more queries. While every reader is busy, lookups keep queueing and
+ * are read in fuller batches. Every caller gets its own user back, or null if not found. Lookups of some fields only
+ * and every other operation are passed through
+ */
+public class BatchingUserService implements IUserService, AutoCloseable {
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private final Logger logger = LoggerFactory.getLogger(BatchingUserService.class);
+    private final IUserService userService;
+    private final int batchSize;
+    private final long windowNanos;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Lookups queued and not yet taken by the dispatcher, counted so that a full batch wakes it up
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder batches = new LongAdder();
+    private final ExecutorService readers;
+
+    /**
+     * Readers free to take a batch, the dispatcher waits for one before taking a batch from the queue
+     */
+    private final Semaphore idle;
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    /**
+     * Constructor, starts the dispatcher
+     *
+     * @param userService
+     *         User service reading the batches
+     * @param batchSize
+     *         Maximum number of users read at once
+     * @param readers
+     *         Maximum number of batches read at once
+     * @param window
+     *         Longest time a lookup waits for its batch to fill
+     * @param unit
+     *         Unit of the window
+     */
+    public BatchingUserService(final IUserService userService, final int batchSize, final int readers,
+            final long window, final TimeUnit unit) {
+        this.userService = userService;
+        this.batchSize = batchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.readers = Executors.newFixedThreadPool(readers, task -> {
+            final Thread thread = new Thread(task, "user-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.idle = new Semaphore(readers);
+        this.dispatcher = new Thread(this::dispatch, "user-batch-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, consumer);
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.findUsers(query, after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findRawUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<RawBsonDocument> consumer) {
+        this.userService.findRawUsers(query, after, limit, fields, consumer);
+    }
+
+    /**
+     * The user is read in a batch as BSON, then decoded
+     */
+    @Override
+    public Document getUser(final String id) {
+        return this.getUser(id, null);
+    }
+
+    @Override
+    public Document getUser(final String id, final List<String> fields) {
+        if (!isBatched(fields)) {
+            return this.userService.getUser(id, fields);
+        }
+
+        final RawBsonDocument user = this.getRawUser(id, fields);
+        return user == null ? null : user.decode(DOCUMENT_CODEC);
+    }
+
+    @Override
+    public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+        if (!isBatched(fields) || this.closed) {
+            return this.userService.getRawUser(id, fields);
+        }
+
+        final Pending pending = new Pending(id, fields);
+        final int queued = this.size.getAndIncrement();
+        this.queue.offer(pending);
+
+        // Wake the dispatcher to start a window on an empty queue, or to send a full batch
+        if (queued == 0 || queued + 1 == this.batchSize) {
+            LockSupport.unpark(this.dispatcher);
+        }
+
+        // A lookup queued as the service closed, and not taken by it, is read on its own
+        if (this.closed && this.queue.remove(pending)) {
+            this.size.decrementAndGet();
+            return this.userService.getRawUser(id, fields);
+        }
+
+        try {
+            return pending.user.join();
+        } catch (final CompletionException e) {
+            // Batches only ever fail with runtime exceptions
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    @Override
+    public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+        return this.userService.getRawUsers(ids, fields);
+    }
+
+    @Override
+    public void createUser(final String json) {
+        this.userService.createUser(json);
+    }
+
+    @Override
+    public void createUser(final User user) {
+        this.userService.createUser(user);
+    }
+
+    @Override
+    public boolean createUser(final User user, final boolean durable) {
+        return this.userService.createUser(user, durable);
+    }
+
+    @Override
+    public void updateUser(final String json) throws Exception {
+        this.userService.updateUser(json);
+    }
+
+    @Override
+    public void updateUser(final String json, final boolean upsert) throws Exception {
+        this.userService.updateUser(json, upsert);
+    }
+
+    @Override
+    public void updateUser(final User user, final boolean upsert) throws Exception {
+        this.userService.updateUser(user, upsert);
+    }
+
+    @Override
+    public void removeUser(final String id) throws Exception {
+        this.userService.removeUser(id);
+    }
+
+    @Override
+    public List<BulkResult> createUsers(final List<User> users) {
+        return this.userService.createUsers(users);
+    }
+
+    @Override
+    public List<BulkResult> updateUsers(final List<User> users) {
+        return this.userService.updateUsers(users);
+    }
+
+    @Override
+    public List<BulkResult> removeUsers(final List<String> ids) {
+        return this.userService.removeUsers(ids);
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.userService.isReady();
+    }
+
+    /**
+     * Check if lookups of some fields are read in batches
+     *
+     * @param fields
+     *         Fields looked up
+     * @return True for whole users, with or without their internal <code>_id</code>
+     */
+    private static boolean isBatched(final List<String> fields) {
+        return fields == null || Fields.WITH_ID.equals(fields);
+    }
+
+    /**
+     * @return Number of batches read, each a single query
+     */
+    public long getBatchCount() {
+        return this.batches.sum();
+    }
+
+    /**
+     * Read the lookups still queued, then stop the dispatcher. Later lookups are read one by one
+     *
+     * @throws InterruptedException
+     *         If interrupted while waiting for the dispatcher
+     */
+    @Override
+    public void close() throws InterruptedException {
+        this.closed = true;
+        LockSupport.unpark(this.dispatcher);
+        this.dispatcher.join();
+
+        // Lookups queued while the dispatcher was stopping
+        final List<Pending> rest = new ArrayList<>();
+        Pending pending;
+        while ((pending = this.queue.poll()) != null) {
+            rest.add(pending);
+        }
+
+        if (!rest.isEmpty()) {
+            this.read(rest);
+        }
+
+        this.readers.shutdown();
+    }
+
+    /**
+     * Hand batches to the readers until closed
+     */
+    private void dispatch() {
+        while (!this.closed) {
+            final Pending oldest = this.queue.peek();
+            if (oldest == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            final long wait = oldest.requested + this.windowNanos - System.nanoTime();
+            if (wait > 0 && this.size.get() < this.batchSize) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            // Lookups queued while every reader is busy are taken together once one is free
+            this.idle.acquireUninterruptibly();
+            final List<Pending> batch = new ArrayList<>(this.batchSize);
+            Pending pending;
+            while (batch.size() < this.batchSize && (pending = this.queue.poll()) != null) {
+                batch.add(pending);
+            }
+
+            this.size.addAndGet(-batch.size());
+            if (batch.isEmpty()) {
+                // Taken back by lookups as the service closed
+                this.idle.release();
+                continue;
+            }
+
+            this.readers.execute(() -> {
+                try {
+                    this.read(batch);
+                } finally {
+                    this.idle.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Read a batch and complete its lookups, in one query for the lookups with the internal <code>_id</code> and one
+     * for the others
+     *
+     * @param batch
+     *         Lookups taken from the queue
+     */
+    private void read(final List<Pending> batch) {
+        final List<Pending> withId = new ArrayList<>();
+        final List<Pending> withoutId = new ArrayList<>(batch.size());
+        for (final Pending pending : batch) {
+            (pending.fields == null ? withoutId : withId).add(pending);
+        }
+
+        if (!withoutId.isEmpty()) {
+            this.read(withoutId, null);
+        }
+
+        if (!withId.isEmpty()) {
+            this.read(withId, Fields.WITH_ID);
+        }
+    }
+
+    /**
+     * Read lookups of the same fields and complete them
+     *
+     * @param batch
+     *         Lookups
+     * @param fields
+     *         Fields of all of them
+     */
+    private void read(final List<Pending> batch, final List<String> fields) {
+        final Set<String> ids = new LinkedHashSet<>();
+        for (final Pending pending : batch) {
+            ids.add(pending.id);
+        }
+
+        this.logger.debug("[GET] Reading {} users for {} lookups", ids.size(), batch.size());
+        this.batches.increment();
+        final Map<String, RawBsonDocument> users;
+        try {
+            users = this.userService.getRawUsers(ids, fields);
+        } catch (final RuntimeException e) {
+            this.logger.warn("[GET] {} users not read: {}", ids.size(), e.getMessage());
+            for (final Pending pending : batch) {
+                pending.user.completeExceptionally(e);
+            }
+
+            return;
+        }
+
+        for (final Pending pending : batch) {
+            pending.user.complete(users.get(pending.id));
+        }
+    }
+
+    /**
+     * A lookup waiting for its batch
+     */
+    private static class Pending {
+        private final String id;
+        private final long requested = System.nanoTime();
+        private final List<String> fields;
+        private final CompletableFuture<RawBsonDocument> user = new CompletableFuture<>();
+
+        Pending(final String id, final List<String> fields) {
+            this.id = id;
+            this.fields = fields;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package user;
+
+/**
+ * Outcome of a single user in a bulk operation
+ */
+public class BulkResult {
+    private final String id;
+    private final int status;
+    private final String message;
+
+    public BulkResult(final String id, final int status, final String message) {
+        this.id = id;
+        this.status = status;
+        this.message = message;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * @return True if the operation succeeded for this user
+     */
+    public boolean isSuccess() {
+        return this.status == 200;
+    }
+}
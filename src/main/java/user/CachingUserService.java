@@ -0,0 +1,344 @@
+package user;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Read-through cache in front of another user service. Single user lookups are served from a bounded in-memory cache
+ * with W-TinyLFU eviction and a time to live, and entries are invalidated whenever a user is written through this
+ * service. Subscribed to a {@link IUserChangeFeed}, entries are also invalidated as other instances write their users.
+ * Users are read with their internal <code>_id</code>, which is kept aside rather than served, as a removal only tells
+ * that one. Missing users are not cached. Cached documents are shared between callers and must not be modified
+ */
+public class CachingUserService implements IUserService, UserChangeListener {
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private final Logger logger = LoggerFactory.getLogger(CachingUserService.class);
+    private final IUserService userService;
+    private final Cache<String, Cached> cache;
+
+    /**
+     * Users cached, by their internal <code>_id</code>
+     */
+    private final Map<Object, Cached> keys = new ConcurrentHashMap<>();
+
+    /**
+     * User cached, with its internal <code>_id</code>
+     */
+    private static final class Cached {
+        private final String id;
+        private final Document user;
+        private final Object key;
+
+        Cached(final String id, final Document user, final Object key) {
+            this.id = id;
+            this.user = user;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         User service to cache
+     * @param maximumSize
+     *         Maximum number of users kept in memory
+     * @param ttl
+     *         Time after which a cached user is read again
+     * @param unit
+     *         Unit of the time to live
+     */
+    public CachingUserService(final IUserService userService, final long maximumSize, final long ttl,
+            final TimeUnit unit) {
+        this(userService, maximumSize, ttl, unit, Ticker.systemTicker(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for unit testing
+     *
+     * @param userService
+     *         User service to cache
+     * @param maximumSize
+     *         Maximum number of users kept in memory
+     * @param ttl
+     *         Time after which a cached user is read again
+     * @param unit
+     *         Unit of the time to live
+     * @param ticker
+     *         Time source for expiration
+     * @param executor
+     *         Executor for cache maintenance
+     */
+    CachingUserService(final IUserService userService, final long maximumSize, final long ttl, final TimeUnit unit,
+            final Ticker ticker, final Executor executor) {
+        this.userService = userService;
+        this.cache = Caffeine.newBuilder()
+                             .maximumSize(maximumSize)
+                             .expireAfterWrite(ttl, unit)
+                             .ticker(ticker)
+                             .executor(executor)
+                             .recordStats()
+                             .<String, Cached>removalListener((id, cached, cause) -> {
+                                 if (cached != null && cached.key != null) {
+                                     this.keys.remove(cached.key, cached);
+                                 }
+                             })
+                             .build();
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, consumer);
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.findUsers(query, after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findRawUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<RawBsonDocument> consumer) {
+        this.userService.findRawUsers(query, after, limit, fields, consumer);
+    }
+
+    @Override
+    public Document getUser(final String id) {
+        final Cached cached = this.cache.get(id, this::load);
+        return cached == null ? null : cached.user;
+    }
+
+    /**
+     * Read a user to cache
+     *
+     * @param id
+     *         ID of the user
+     * @return User without its internal <code>_id</code>, null if not present
+     */
+    private Cached load(final String id) {
+        final Document found = this.userService.getUser(id, Fields.WITH_ID);
+        if (found == null) {
+            return null;
+        }
+
+        // Copied, as the same document may be handed to concurrent lookups
+        final Document user = new Document(found);
+        final Cached cached = new Cached(id, user, user.remove("_id"));
+        if (cached.key != null) {
+            this.keys.put(cached.key, cached);
+        }
+
+        return cached;
+    }
+
+    /**
+     * A cached user is projected in memory. Otherwise only the fields requested are read, and the partial user is not
+     * cached
+     */
+    @Override
+    public Document getUser(final String id, final List<String> fields) {
+        if (fields == null) {
+            return this.getUser(id);
+        }
+
+        final Cached cached = this.cache.getIfPresent(id);
+        if (cached != null) {
+            return Fields.project(cached.user, fields);
+        }
+
+        return this.userService.getUser(id, fields);
+    }
+
+    /**
+     * A cached user is encoded to BSON, which is cheaper than reading it again. Otherwise the user is read without
+     * being cached, as the cache holds decoded users
+     */
+    @Override
+    public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+        final Cached cached = this.cache.getIfPresent(id);
+        if (cached != null) {
+            return new RawBsonDocument(Fields.project(cached.user, fields), DOCUMENT_CODEC);
+        }
+
+        return this.userService.getRawUser(id, fields);
+    }
+
+    @Override
+    public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+        return this.userService.getRawUsers(ids, fields);
+    }
+
+    @Override
+    public void createUser(final String json) {
+        this.createUser(UserJson.read(json));
+    }
+
+    @Override
+    public void createUser(final User user) {
+        this.userService.createUser(user);
+        this.invalidate(user.getId());
+    }
+
+    @Override
+    public boolean createUser(final User user, final boolean durable) {
+        final boolean written = this.userService.createUser(user, durable);
+        this.invalidate(user.getId());
+        return written;
+    }
+
+    @Override
+    public void updateUser(final String json) throws Exception {
+        this.updateUser(UserJson.read(json), false);
+    }
+
+    @Override
+    public void updateUser(final String json, final boolean upsert) throws Exception {
+        this.updateUser(UserJson.read(json), upsert);
+    }
+
+    @Override
+    public void updateUser(final User user, final boolean upsert) throws Exception {
+        try {
+            this.userService.updateUser(user, upsert);
+        } finally {
+            this.invalidate(user.getId());
+        }
+    }
+
+    @Override
+    public void removeUser(final String id) throws Exception {
+        try {
+            this.userService.removeUser(id);
+        } finally {
+            this.invalidate(id);
+        }
+    }
+
+    @Override
+    public List<BulkResult> createUsers(final List<User> users) {
+        return this.invalidate(this.userService.createUsers(users));
+    }
+
+    @Override
+    public List<BulkResult> updateUsers(final List<User> users) {
+        return this.invalidate(this.userService.updateUsers(users));
+    }
+
+    @Override
+    public List<BulkResult> removeUsers(final List<String> ids) {
+        return this.invalidate(this.userService.removeUsers(ids));
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.userService.isReady();
+    }
+
+    /**
+     * Evict all users of a bulk operation from the cache
+     *
+     * @param results
+     *         Results of the operation
+     * @return Same results
+     */
+    private List<BulkResult> invalidate(final List<BulkResult> results) {
+        for (final BulkResult result : results) {
+            if (result.getId() != null) {
+                this.cache.invalidate(result.getId());
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Evict a user from the cache
+     *
+     * @param id
+     *         ID of the user, ignored if null
+     */
+    public void invalidate(final String id) {
+        if (id != null) {
+            this.logger.debug("[CACHE] Invalidating user with ID {}", id);
+            this.cache.invalidate(id);
+        }
+    }
+
+    /**
+     * Evict all users from the cache
+     */
+    public void invalidateAll() {
+        this.logger.debug("[CACHE] Invalidating all users");
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Evict a user changed by any instance
+     */
+    @Override
+    public void changed(final String id) {
+        this.invalidate(id);
+    }
+
+    /**
+     * Evict a user removed by any instance, if cached
+     */
+    @Override
+    public void removed(final Object key) {
+        final Cached cached = this.keys.get(key);
+        if (cached != null) {
+            this.invalidate(cached.id);
+        }
+    }
+
+    /**
+     * Evict all users, as any may have changed
+     */
+    @Override
+    public void reset() {
+        this.invalidateAll();
+    }
+
+    /**
+     * @return Number of lookups served from the cache
+     */
+    public long getHitCount() {
+        return this.cache.stats().hitCount();
+    }
+
+    /**
+     * @return Number of lookups that went to the underlying service
+     */
+    public long getMissCount() {
+        return this.cache.stats().missCount();
+    }
+
+    /**
+     * @return Number of users evicted because of size or expiration
+     */
+    public long getEvictionCount() {
+        return this.cache.stats().evictionCount();
+    }
+}
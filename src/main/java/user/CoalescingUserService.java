@@ -0,0 +1,221 @@
+package user;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces concurrent lookups of the same user in front of another user service. A lookup of a user already being
+ * read, with the same fields, waits for that read and shares its result, so a burst of requests for one user sends a
+ * single query to the database. Nothing is kept once a read completes, so this holds whatever the cache TTL. A write
+ * through this service stops later lookups from joining reads started before it. Shared documents must not be modified
+ */
+public class CoalescingUserService implements IUserService {
+    private final Logger logger = LoggerFactory.getLogger(CoalescingUserService.class);
+    private final IUserService userService;
+    private final SingleFlight<Lookup, Object> lookups = new SingleFlight<>();
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         User service reading the users
+     */
+    public CoalescingUserService(final IUserService userService) {
+        this.userService = userService;
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, consumer);
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.findUsers(query, after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findRawUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<RawBsonDocument> consumer) {
+        this.userService.findRawUsers(query, after, limit, fields, consumer);
+    }
+
+    @Override
+    public Document getUser(final String id) {
+        return (Document) this.lookups.get(new Lookup(id, null, false), () -> this.userService.getUser(id));
+    }
+
+    @Override
+    public Document getUser(final String id, final List<String> fields) {
+        return (Document) this.lookups.get(new Lookup(id, fields, false), () -> this.userService.getUser(id, fields));
+    }
+
+    @Override
+    public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+        return (RawBsonDocument) this.lookups.get(new Lookup(id, fields, true),
+                () -> this.userService.getRawUser(id, fields));
+    }
+
+    @Override
+    public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+        return this.userService.getRawUsers(ids, fields);
+    }
+
+    @Override
+    public void createUser(final String json) {
+        this.createUser(UserJson.read(json));
+    }
+
+    @Override
+    public void createUser(final User user) {
+        try {
+            this.userService.createUser(user);
+        } finally {
+            this.forget(user.getId());
+        }
+    }
+
+    @Override
+    public boolean createUser(final User user, final boolean durable) {
+        try {
+            return this.userService.createUser(user, durable);
+        } finally {
+            this.forget(user.getId());
+        }
+    }
+
+    @Override
+    public void updateUser(final String json) throws Exception {
+        this.updateUser(UserJson.read(json), false);
+    }
+
+    @Override
+    public void updateUser(final String json, final boolean upsert) throws Exception {
+        this.updateUser(UserJson.read(json), upsert);
+    }
+
+    @Override
+    public void updateUser(final User user, final boolean upsert) throws Exception {
+        try {
+            this.userService.updateUser(user, upsert);
+        } finally {
+            this.forget(user.getId());
+        }
+    }
+
+    @Override
+    public void removeUser(final String id) throws Exception {
+        try {
+            this.userService.removeUser(id);
+        } finally {
+            this.forget(id);
+        }
+    }
+
+    @Override
+    public List<BulkResult> createUsers(final List<User> users) {
+        return this.forget(this.userService.createUsers(users));
+    }
+
+    @Override
+    public List<BulkResult> updateUsers(final List<User> users) {
+        return this.forget(this.userService.updateUsers(users));
+    }
+
+    @Override
+    public List<BulkResult> removeUsers(final List<String> ids) {
+        return this.forget(this.userService.removeUsers(ids));
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.userService.isReady();
+    }
+
+    /**
+     * @return Number of lookups sent to the underlying service
+     */
+    public long getReadCount() {
+        return this.lookups.getLoadCount();
+    }
+
+    /**
+     * @return Number of lookups that shared a read in flight
+     */
+    public long getCoalescedCount() {
+        return this.lookups.getJoinCount();
+    }
+
+    /**
+     * Stop sharing the reads in flight of all users of a bulk operation
+     *
+     * @param results
+     *         Results of the operation
+     * @return Same results
+     */
+    private List<BulkResult> forget(final List<BulkResult> results) {
+        for (final BulkResult result : results) {
+            this.forget(result.getId());
+        }
+
+        return results;
+    }
+
+    /**
+     * Stop sharing the reads in flight of a user
+     *
+     * @param id
+     *         ID of the user, ignored if null
+     */
+    private void forget(final String id) {
+        if (id != null) {
+            this.logger.debug("[COALESCE] Forgetting reads in flight of user with ID {}", id);
+            this.lookups.forget(lookup -> lookup.id.equals(id));
+        }
+    }
+
+    /**
+     * A lookup of a user, equal to the lookups of the same user with the same fields and result type
+     */
+    private static final class Lookup {
+        private final String id;
+        private final List<String> fields;
+        private final boolean raw;
+
+        Lookup(final String id, final List<String> fields, final boolean raw) {
+            this.id = id;
+            this.fields = fields;
+            this.raw = raw;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Lookup)) {
+                return false;
+            }
+
+            final Lookup other = (Lookup) o;
+            return this.raw == other.raw && this.id.equals(other.id) && Objects.equals(this.fields, other.fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.id.hashCode() + Objects.hashCode(this.fields)) + (this.raw ? 1 : 0);
+        }
+    }
+}
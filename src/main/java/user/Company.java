@@ -0,0 +1,43 @@
+package user;
+
+import java.util.Objects;
+
+/**
+ * Company a user works for, every field optional
+ */
+public class Company {
+    private final String name;
+    private final String website;
+
+    public Company(final String name, final String website) {
+        this.name = name;
+        this.website = website;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public String getWebsite() {
+        return this.website;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Company)) {
+            return false;
+        }
+
+        final Company company = (Company) o;
+        return Objects.equals(this.name, company.name) && Objects.equals(this.website, company.website);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.name, this.website);
+    }
+}
@@ -0,0 +1,16 @@
+package user;
+
+/**
+ * Thrown when a user cannot be created because another user already has its id
+ */
+public class DuplicateUserException extends RuntimeException {
+    /**
+     * Constructor
+     *
+     * @param message
+     *         Message
+     */
+    public DuplicateUserException(final String message) {
+        super(message);
+    }
+}
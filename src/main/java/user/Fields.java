@@ -0,0 +1,180 @@
+package user;
+
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Sparse fieldsets: the fields of a user a client asks for, such as <code>firstName,address.city</code>. The same
+ * fields are pushed down to the database as a projection, or applied to a user already in memory. The id is always
+ * included, as it is the cursor of the next page
+ */
+public final class Fields {
+    /**
+     * Upper bound on the number of fields a client can request
+     */
+    public static final int MAX_FIELDS = 100;
+
+    /**
+     * All the fields of a user together with its internal <code>_id</code>, which is never requested by clients but
+     * tells which user a removal seen in the change stream was about
+     */
+    public static final List<String> WITH_ID = Collections.singletonList("_id");
+
+    /**
+     * Top level or dotted field names, starting with a letter so that neither <code>_id</code> nor operators can be
+     * requested
+     */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]*(\\.[A-Za-z][A-Za-z0-9_]*)*");
+
+    private Fields() {
+    }
+
+    /**
+     * Parse the fields requested
+     *
+     * @param fields
+     *         Comma separated field names, can be null
+     * @return Field names including the id, without duplicates or fields already included by a parent. Null if no
+     * fields requested, for all of them
+     * @throws Exception
+     */
+    public static List<String> parse(final String fields) throws Exception {
+        if (fields == null) {
+            return null;
+        }
+
+        final String[] requested = fields.split(",", -1);
+        if (requested.length > MAX_FIELDS) {
+            throw new Exception("Too many fields, at most " + MAX_FIELDS + " allowed");
+        }
+
+        final Set<String> names = new LinkedHashSet<>();
+        names.add("id");
+        for (final String field : requested) {
+            final String name = field.trim();
+            if (!NAME.matcher(name).matches()) {
+                throw new Exception("Invalid fields " + fields);
+            }
+
+            names.add(name);
+        }
+
+        // Overlapping paths are rejected by the database
+        final List<String> result = new ArrayList<>(names.size());
+        for (final String name : names) {
+            if (!hasParent(name, names)) {
+                result.add(name);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Check if a parent of a field is also included
+     *
+     * @param name
+     *         Field name
+     * @param names
+     *         All field names
+     * @return True if a parent of the field is in the names
+     */
+    private static boolean hasParent(final String name, final Set<String> names) {
+        for (int dot = name.indexOf('.'); dot > 0; dot = name.indexOf('.', dot + 1)) {
+            if (names.contains(name.substring(0, dot))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the projection of users, never including the internal <code>_id</code> unless asked with {@link #WITH_ID}
+     *
+     * @param fields
+     *         Fields to include, null for all of them
+     * @return Projection
+     */
+    public static Bson projection(final List<String> fields) {
+        if (fields == null) {
+            return Projections.excludeId();
+        }
+
+        if (WITH_ID.equals(fields)) {
+            return new Document();
+        }
+
+        return Projections.fields(Projections.excludeId(), Projections.include(fields));
+    }
+
+    /**
+     * Apply the fields to a user already in memory, keeping the order of the user as the database would
+     *
+     * @param user
+     *         User with all its fields, left unchanged
+     * @param fields
+     *         Fields to include, null or {@link #WITH_ID} for all of them
+     * @return New user with only the fields requested, or the same user if all of them are requested
+     */
+    public static Document project(final Document user, final List<String> fields) {
+        if (fields == null || WITH_ID.equals(fields)) {
+            return user;
+        }
+
+        return project(user, fields, "");
+    }
+
+    /**
+     * Apply the fields to a nested document
+     *
+     * @param document
+     *         Document at the prefix
+     * @param fields
+     *         All fields requested
+     * @param prefix
+     *         Path of the document, empty or ending with a dot
+     * @return New document with only the fields under the prefix
+     */
+    private static Document project(final Document document, final List<String> fields, final String prefix) {
+        final Document result = new Document();
+        for (final Map.Entry<String, Object> entry : document.entrySet()) {
+            final String path = prefix + entry.getKey();
+            if (fields.contains(path)) {
+                result.put(entry.getKey(), entry.getValue());
+            } else if (entry.getValue() instanceof Document && isParent(path, fields)) {
+                result.put(entry.getKey(), project((Document) entry.getValue(), fields, path + "."));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Check if a path is the parent of a field requested
+     *
+     * @param path
+     *         Path of a nested document
+     * @param fields
+     *         All fields requested
+     * @return True if a field is under the path
+     */
+    private static boolean isParent(final String path, final List<String> fields) {
+        for (final String field : fields) {
+            if (field.length() > path.length() && field.charAt(path.length()) == '.' && field.startsWith(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
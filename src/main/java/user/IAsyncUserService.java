@@ -0,0 +1,94 @@
+package user;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking definition of the single user operations. Each operation returns as soon as the query is sent, and its
+ * future completes from the driver callback once the database replies, failing with the same errors as
+ * {@link IUserService}
+ */
+public interface IAsyncUserService {
+    /**
+     * Returns a single user
+     *
+     * @param id
+     *         ID of the user
+     * @return Future of the user with the id specified, completed with null if not present
+     */
+    CompletableFuture<Document> getUser(String id);
+
+    /**
+     * Returns a single user, with only some of its fields
+     *
+     * @param id
+     *         ID of the user
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @return Future of the user with the id specified, completed with null if not present
+     */
+    CompletableFuture<Document> getUser(String id, List<String> fields);
+
+    /**
+     * Returns a single user as the BSON read from the database, without decoding it
+     *
+     * @param id
+     *         ID of the user
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @return Future of the user with the id specified, completed with null if not present
+     */
+    CompletableFuture<RawBsonDocument> getRawUser(String id, List<String> fields);
+
+    /**
+     * Creates a user
+     *
+     * @param json
+     *         JSON string
+     * @return Future completed once the user is created
+     */
+    CompletableFuture<Void> createUser(String json);
+
+    /**
+     * Creates a user already parsed
+     *
+     * @param user
+     *         User, validated before it is written
+     * @return Future completed once the user is created
+     */
+    CompletableFuture<Void> createUser(User user);
+
+    /**
+     * Updates a specific user, optionally creating it if it does not exist
+     *
+     * @param json
+     *         JSON string
+     * @param upsert
+     *         True to create the user if no user has its id
+     * @return Future completed once the user is updated
+     */
+    CompletableFuture<Void> updateUser(String json, boolean upsert);
+
+    /**
+     * Updates a specific user already parsed, optionally creating it if it does not exist
+     *
+     * @param user
+     *         Fields to set, validated before they are written
+     * @param upsert
+     *         True to create the user if no user has its id
+     * @return Future completed once the user is updated
+     */
+    CompletableFuture<Void> updateUser(User user, boolean upsert);
+
+    /**
+     * Removes a user
+     *
+     * @param id
+     *         ID of the user to be removed
+     * @return Future completed once the user is removed
+     */
+    CompletableFuture<Void> removeUser(String id);
+}
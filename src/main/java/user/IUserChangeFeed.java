@@ -0,0 +1,21 @@
+package user;
+
+/**
+ * Feed of the changes of users written by every instance sharing the database, so that each instance can evict what it
+ * keeps in memory about them. Changes are delivered in order, some time after their write
+ */
+public interface IUserChangeFeed extends AutoCloseable {
+    /**
+     * Deliver the changes to a listener, starting with a reset as the changes before are unknown
+     *
+     * @param listener
+     *         Listener
+     */
+    void subscribe(UserChangeListener listener);
+
+    /**
+     * Stop delivering changes
+     */
+    @Override
+    void close();
+}
@@ -1,8 +1,12 @@
 package user;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Abstract definition of supported operations
@@ -10,11 +14,66 @@ import java.util.List;
  */
 public interface IUserService {
     /**
-     * Returns a list of all users
+     * Streams users one document at a time without materializing the collection. When paging, users are returned in
+     * ascending order of their id so that the id of the last user seen can be used as the cursor for the next page
      *
-     * @return List of documents for each user
+     * @param after
+     *         Keyset cursor, only users with an id greater than this are returned. Null to start from the beginning
+     * @param limit
+     *         Maximum number of users to return, 0 for no limit
+     * @param consumer
+     *         Callback invoked for each user
      */
-    List<Document> getAllUsers();
+    void scanUsers(String after, int limit, Consumer<Document> consumer);
+
+    /**
+     * Streams users like {@link #scanUsers(String, int, Consumer)}, with only some of their fields read from the
+     * database
+     *
+     * @param after
+     *         Keyset cursor, only users with an id greater than this are returned. Null to start from the beginning
+     * @param limit
+     *         Maximum number of users to return, 0 for no limit
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @param consumer
+     *         Callback invoked for each user
+     */
+    void scanUsers(String after, int limit, List<String> fields, Consumer<Document> consumer);
+
+    /**
+     * Streams the users matching a query, in the order of {@link UserQuery#sort()} so that the id of the last user seen
+     * can be used as the cursor for the next page
+     *
+     * @param query
+     *         Filters on indexed fields, all users if empty
+     * @param after
+     *         Keyset cursor, only users after the user with this id are returned. Null to start from the beginning
+     * @param limit
+     *         Maximum number of users to return, 0 for no limit
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @param consumer
+     *         Callback invoked for each user
+     */
+    void findUsers(UserQuery query, String after, int limit, List<String> fields, Consumer<Document> consumer);
+
+    /**
+     * Streams users like {@link #findUsers}, as the BSON read from the database without decoding them
+     *
+     * @param query
+     *         Filters on indexed fields, all users if empty
+     * @param after
+     *         Keyset cursor, only users after the user with this id are returned. Null to start from the beginning
+     * @param limit
+     *         Maximum number of users to return, 0 for no limit
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @param consumer
+     *         Callback invoked for each user
+     */
+    void findRawUsers(UserQuery query, String after, int limit, List<String> fields,
+            Consumer<RawBsonDocument> consumer);
 
     /**
      * Returns a single users
@@ -25,6 +84,39 @@ public interface IUserService {
      */
     Document getUser(String id);
 
+    /**
+     * Returns a single user, with only some of its fields
+     *
+     * @param id
+     *         ID of the user
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @return User with the id specified, null if not present
+     */
+    Document getUser(String id, List<String> fields);
+
+    /**
+     * Returns a single user as the BSON read from the database, without decoding it
+     *
+     * @param id
+     *         ID of the user
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @return User with the id specified, null if not present
+     */
+    RawBsonDocument getRawUser(String id, List<String> fields);
+
+    /**
+     * Returns several users as the BSON read from the database, in a single query
+     *
+     * @param ids
+     *         IDs of the users
+     * @param fields
+     *         Fields to return, as parsed by {@link Fields#parse}. Null for all of them
+     * @return Users found, by ID. Users not present are missing from the map
+     */
+    Map<String, RawBsonDocument> getRawUsers(Collection<String> ids, List<String> fields);
+
     /**
      * Creates a user
      *
@@ -33,6 +125,26 @@ public interface IUserService {
      */
     void createUser(String json);
 
+    /**
+     * Creates a user already parsed
+     *
+     * @param user
+     *         User, validated before it is written
+     */
+    void createUser(User user);
+
+    /**
+     * Creates a user already parsed, returning either once it is written or as soon as it is accepted to be written
+     * later. Services writing every user before returning ignore the choice
+     *
+     * @param user
+     *         User, validated before it is accepted
+     * @param durable
+     *         True to return once the user is written, false to allow returning once it is accepted
+     * @return True if the user was written, false if it was only accepted
+     */
+    boolean createUser(User user, boolean durable);
+
     /**
      * Updates a specific user
      *
@@ -41,6 +153,26 @@ public interface IUserService {
      */
     void updateUser(String json) throws Exception;
 
+    /**
+     * Updates a specific user, optionally creating it if it does not exist
+     *
+     * @param json
+     *         JSON string
+     * @param upsert
+     *         True to create the user if no user has its id
+     */
+    void updateUser(String json, boolean upsert) throws Exception;
+
+    /**
+     * Updates a specific user already parsed, optionally creating it if it does not exist
+     *
+     * @param user
+     *         Fields to set, validated before they are written
+     * @param upsert
+     *         True to create the user if no user has its id
+     */
+    void updateUser(User user, boolean upsert) throws Exception;
+
     /**
      * Removes a user
      *
@@ -48,4 +180,38 @@ public interface IUserService {
      *         ID of the user to be removed
      */
     void removeUser(String id) throws Exception;
+
+    /**
+     * Creates users in a single batch, the outcome of each user is independent of the others
+     *
+     * @param users
+     *         Users to create, each validated before it is written
+     * @return Result for each user, in the same order
+     */
+    List<BulkResult> createUsers(List<User> users);
+
+    /**
+     * Updates users in a single batch, the outcome of each user is independent of the others
+     *
+     * @param users
+     *         Fields to set for each user, identified by their id and validated before they are written
+     * @return Result for each user, in the same order
+     */
+    List<BulkResult> updateUsers(List<User> users);
+
+    /**
+     * Removes users in a single batch, the outcome of each user is independent of the others
+     *
+     * @param ids
+     *         IDs of the users to be removed
+     * @return Result for each user, in the same order
+     */
+    List<BulkResult> removeUsers(List<String> ids);
+
+    /**
+     * Checks if the service can serve requests, with all the indexes it needs
+     *
+     * @return True if ready
+     */
+    boolean isReady();
 }
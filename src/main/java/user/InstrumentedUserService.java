@@ -0,0 +1,300 @@
+package user;
+
+import metrics.Metrics;
+import metrics.Timer;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Times every operation of another user service. Operations throwing an exception are counted as errors. A scan is
+ * timed until its last user is consumed, so it includes the time spent by the consumer
+ */
+public class InstrumentedUserService implements IUserService {
+    private final IUserService userService;
+    private final Timer scanUsers;
+    private final Timer findUsers;
+    private final Timer findRawUsers;
+    private final Timer getUser;
+    private final Timer getRawUser;
+    private final Timer getRawUsers;
+    private final Timer createUser;
+    private final Timer updateUser;
+    private final Timer removeUser;
+    private final Timer createUsers;
+    private final Timer updateUsers;
+    private final Timer removeUsers;
+
+    /**
+     * Constructor
+     *
+     * @param userService
+     *         User service to time
+     * @param metrics
+     *         Registry of the timers, one per method
+     */
+    public InstrumentedUserService(final IUserService userService, final Metrics metrics) {
+        this.userService = userService;
+        this.scanUsers = timer(metrics, "scanUsers");
+        this.findUsers = timer(metrics, "findUsers");
+        this.findRawUsers = timer(metrics, "findRawUsers");
+        this.getUser = timer(metrics, "getUser");
+        this.getRawUser = timer(metrics, "getRawUser");
+        this.getRawUsers = timer(metrics, "getRawUsers");
+        this.createUser = timer(metrics, "createUser");
+        this.updateUser = timer(metrics, "updateUser");
+        this.removeUser = timer(metrics, "removeUser");
+        this.createUsers = timer(metrics, "createUsers");
+        this.updateUsers = timer(metrics, "updateUsers");
+        this.removeUsers = timer(metrics, "removeUsers");
+    }
+
+    /**
+     * Get the timer of a method
+     *
+     * @param metrics
+     *         Registry
+     * @param method
+     *         Name of the method
+     * @return Timer
+     */
+    private static Timer timer(final Metrics metrics, final String method) {
+        return metrics.timer("user_service", "user service operations by method", "method", method);
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final Consumer<Document> consumer) {
+        final long start = System.nanoTime();
+        try {
+            this.userService.scanUsers(after, limit, consumer);
+            this.scanUsers.record(start);
+        } catch (final RuntimeException e) {
+            this.scanUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        final long start = System.nanoTime();
+        try {
+            this.userService.scanUsers(after, limit, fields, consumer);
+            this.scanUsers.record(start);
+        } catch (final RuntimeException e) {
+            this.scanUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void findUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        final long start = System.nanoTime();
+        try {
+            this.userService.findUsers(query, after, limit, fields, consumer);
+            this.findUsers.record(start);
+        } catch (final RuntimeException e) {
+            this.findUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void findRawUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<RawBsonDocument> consumer) {
+        final long start = System.nanoTime();
+        try {
+            this.userService.findRawUsers(query, after, limit, fields, consumer);
+            this.findRawUsers.record(start);
+        } catch (final RuntimeException e) {
+            this.findRawUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Document getUser(final String id) {
+        final long start = System.nanoTime();
+        try {
+            final Document user = this.userService.getUser(id);
+            this.getUser.record(start);
+            return user;
+        } catch (final RuntimeException e) {
+            this.getUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Document getUser(final String id, final List<String> fields) {
+        final long start = System.nanoTime();
+        try {
+            final Document user = this.userService.getUser(id, fields);
+            this.getUser.record(start);
+            return user;
+        } catch (final RuntimeException e) {
+            this.getUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+        final long start = System.nanoTime();
+        try {
+            final RawBsonDocument user = this.userService.getRawUser(id, fields);
+            this.getRawUser.record(start);
+            return user;
+        } catch (final RuntimeException e) {
+            this.getRawUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+        final long start = System.nanoTime();
+        try {
+            final Map<String, RawBsonDocument> users = this.userService.getRawUsers(ids, fields);
+            this.getRawUsers.record(start);
+            return users;
+        } catch (final RuntimeException e) {
+            this.getRawUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void createUser(final String json) {
+        final long start = System.nanoTime();
+        try {
+            this.userService.createUser(json);
+            this.createUser.record(start);
+        } catch (final RuntimeException e) {
+            this.createUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void createUser(final User user) {
+        final long start = System.nanoTime();
+        try {
+            this.userService.createUser(user);
+            this.createUser.record(start);
+        } catch (final RuntimeException e) {
+            this.createUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean createUser(final User user, final boolean durable) {
+        final long start = System.nanoTime();
+        try {
+            final boolean written = this.userService.createUser(user, durable);
+            this.createUser.record(start);
+            return written;
+        } catch (final RuntimeException e) {
+            this.createUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void updateUser(final String json) throws Exception {
+        final long start = System.nanoTime();
+        try {
+            this.userService.updateUser(json);
+            this.updateUser.record(start);
+        } catch (final Exception e) {
+            this.updateUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void updateUser(final String json, final boolean upsert) throws Exception {
+        final long start = System.nanoTime();
+        try {
+            this.userService.updateUser(json, upsert);
+            this.updateUser.record(start);
+        } catch (final Exception e) {
+            this.updateUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void updateUser(final User user, final boolean upsert) throws Exception {
+        final long start = System.nanoTime();
+        try {
+            this.userService.updateUser(user, upsert);
+            this.updateUser.record(start);
+        } catch (final Exception e) {
+            this.updateUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void removeUser(final String id) throws Exception {
+        final long start = System.nanoTime();
+        try {
+            this.userService.removeUser(id);
+            this.removeUser.record(start);
+        } catch (final Exception e) {
+            this.removeUser.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<BulkResult> createUsers(final List<User> users) {
+        final long start = System.nanoTime();
+        try {
+            final List<BulkResult> results = this.userService.createUsers(users);
+            this.createUsers.record(start);
+            return results;
+        } catch (final RuntimeException e) {
+            this.createUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<BulkResult> updateUsers(final List<User> users) {
+        final long start = System.nanoTime();
+        try {
+            final List<BulkResult> results = this.userService.updateUsers(users);
+            this.updateUsers.record(start);
+            return results;
+        } catch (final RuntimeException e) {
+            this.updateUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<BulkResult> removeUsers(final List<String> ids) {
+        final long start = System.nanoTime();
+        try {
+            final List<BulkResult> results = this.userService.removeUsers(ids);
+            this.removeUsers.record(start);
+            return results;
+        } catch (final RuntimeException e) {
+            this.removeUsers.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.userService.isReady();
+    }
+}
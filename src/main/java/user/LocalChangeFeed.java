@@ -0,0 +1,53 @@
+package user;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process stand-in for a change feed, e.g. to run several instances in tests. Changes are published by calling this
+ * feed as a listener, and delivered at once to every listener subscribed, on the thread publishing them
+ */
+public class LocalChangeFeed implements IUserChangeFeed, UserChangeListener {
+    private final List<UserChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void subscribe(final UserChangeListener listener) {
+        this.listeners.add(listener);
+        listener.reset();
+    }
+
+    /**
+     * Publish the change of a user
+     */
+    @Override
+    public void changed(final String id) {
+        for (final UserChangeListener listener : this.listeners) {
+            listener.changed(id);
+        }
+    }
+
+    /**
+     * Publish the removal of a user
+     */
+    @Override
+    public void removed(final Object key) {
+        for (final UserChangeListener listener : this.listeners) {
+            listener.removed(key);
+        }
+    }
+
+    /**
+     * Publish a change of any user
+     */
+    @Override
+    public void reset() {
+        for (final UserChangeListener listener : this.listeners) {
+            listener.reset();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.listeners.clear();
+    }
+}
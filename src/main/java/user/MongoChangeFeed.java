@@ -0,0 +1,234 @@
+package user;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Follows the change stream of the users collection, which requires a replica set. A thread reads the stream as an
+ * aggregation, as this driver has no change stream API, and tells the listeners which user each change was about.
+ * Updated users are looked up by the database, as an update only carries the fields it changed, and changes are
+ * projected to the ids of their users. A removal only tells the internal <code>_id</code>, which is handed to the
+ * listeners as is. Drops and renames of the collection reset the listeners. When the stream fails, it is resumed after
+ * the last change seen, or opened anew with a reset if it cannot resume from there
+ */
+public class MongoChangeFeed implements IUserChangeFeed {
+    private final Logger logger = LoggerFactory.getLogger(MongoChangeFeed.class);
+    private final MongoCollection<Document> collection;
+    private final long retryDelayNanos;
+    private final List<UserChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+    private final Thread follower;
+    private volatile boolean closed;
+
+    /**
+     * Constructor, starts following the changes
+     *
+     * @param collection
+     *         Collection of the users
+     * @param retryDelay
+     *         Time to wait before opening the stream again after it failed
+     * @param unit
+     *         Unit of the delay
+     */
+    public MongoChangeFeed(final MongoCollection<Document> collection, final long retryDelay, final TimeUnit unit) {
+        this.collection = collection;
+        this.retryDelayNanos = unit.toNanos(retryDelay);
+        this.follower = new Thread(this::follow, "user-change-feed");
+        this.follower.setDaemon(true);
+        this.follower.start();
+    }
+
+    @Override
+    public void subscribe(final UserChangeListener listener) {
+        this.listeners.add(listener);
+        listener.reset();
+    }
+
+    /**
+     * Stop following the changes. The stream is closed by the thread following it, once its current wait for changes
+     * ends
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.listeners.clear();
+        LockSupport.unpark(this.follower);
+    }
+
+    /**
+     * @return Number of changes and removals delivered for a single user
+     */
+    public long getChangeCount() {
+        return this.changes.sum();
+    }
+
+    /**
+     * @return Number of resets delivered, including those of the stream being opened anew
+     */
+    public long getResetCount() {
+        return this.resets.sum();
+    }
+
+    /**
+     * Get the user a change is about
+     *
+     * @param change
+     *         Change event, as projected by the stream
+     * @return ID of the user, null if the change does not tell
+     */
+    static String userId(final Document change) {
+        switch (String.valueOf(change.getString("operationType"))) {
+            case "insert":
+            case "replace":
+            case "update":
+                // Null for an update if the user was removed before it was looked up
+                final Document user = change.get("fullDocument", Document.class);
+                final Object id = user == null ? null : user.get("id");
+                return id == null ? null : id.toString();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the user a removal is about
+     *
+     * @param change
+     *         Change event, as projected by the stream
+     * @return Internal <code>_id</code> of the user, null if the change is not a removal
+     */
+    static Object removedKey(final Document change) {
+        final Document key = "delete".equals(change.getString("operationType"))
+                ? change.get("documentKey", Document.class)
+                : null;
+        return key == null ? null : key.get("_id");
+    }
+
+    /**
+     * Follow the stream until closed
+     */
+    private void follow() {
+        // Id of the last change seen, to resume after it
+        Object resumeToken = null;
+        while (!this.closed) {
+            final MongoCursor<Document> cursor;
+            try {
+                cursor = this.collection.aggregate(pipeline(resumeToken)).iterator();
+            } catch (final RuntimeException e) {
+                // The stream may not resume from there, e.g. if the oplog no longer goes that far back
+                this.logger.warn("[FEED] Change stream not opened: {}", e.getMessage());
+                resumeToken = null;
+                this.pause();
+                continue;
+            }
+
+            // Changes before the stream was opened are unknown
+            if (resumeToken == null) {
+                this.logger.info("[FEED] Following the changes of users");
+                this.reset();
+            }
+
+            try {
+                while (!this.closed && cursor.hasNext()) {
+                    final Document change = cursor.next();
+
+                    // An invalidated stream cannot be resumed
+                    resumeToken = "invalidate".equals(change.getString("operationType")) ? null : change.get("_id");
+                    this.deliver(change);
+                }
+            } catch (final RuntimeException e) {
+                if (!this.closed) {
+                    this.logger.warn("[FEED] Change stream interrupted: {}", e.getMessage());
+                }
+            } finally {
+                cursor.close();
+            }
+
+            this.pause();
+        }
+    }
+
+    /**
+     * Tell the listeners about a change
+     *
+     * @param change
+     *         Change event
+     */
+    private void deliver(final Document change) {
+        final Object key = removedKey(change);
+        if (key != null) {
+            this.logger.debug("[FEED] Removal of user with _id {}", key);
+            for (final UserChangeListener listener : this.listeners) {
+                listener.removed(key);
+            }
+
+            this.changes.increment();
+
+            return;
+        }
+
+        final String id = userId(change);
+        if (id == null) {
+            this.logger.debug("[FEED] Change of any user: {}", change.getString("operationType"));
+            this.reset();
+            return;
+        }
+
+        this.logger.debug("[FEED] Change of user with ID {}", id);
+        for (final UserChangeListener listener : this.listeners) {
+            listener.changed(id);
+        }
+
+        this.changes.increment();
+    }
+
+    /**
+     * Reset the listeners
+     */
+    private void reset() {
+        this.resets.increment();
+        for (final UserChangeListener listener : this.listeners) {
+            listener.reset();
+        }
+    }
+
+    /**
+     * Wait before opening the stream again, unless closed meanwhile
+     */
+    private void pause() {
+        if (!this.closed) {
+            LockSupport.parkNanos(this, this.retryDelayNanos);
+        }
+    }
+
+    /**
+     * Get the pipeline of the stream, projecting the changes to the ids of their users, or the internal
+     * <code>_id</code> of the users removed
+     *
+     * @param resumeToken
+     *         Id of the change to resume after, null to start from now
+     * @return Pipeline
+     */
+    private static List<Bson> pipeline(final Object resumeToken) {
+        final Document stream = new Document("fullDocument", "updateLookup");
+        if (resumeToken != null) {
+            stream.append("resumeAfter", resumeToken);
+        }
+
+        final Document projection = new Document("operationType", 1).append("fullDocument.id", 1)
+                                                                    .append("documentKey._id", 1);
+        return Arrays.asList(new Document("$changeStream", stream), new Document("$project", projection));
+    }
+}
@@ -0,0 +1,102 @@
+package user;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Runs a single load at a time per key. A caller asking for a key already being loaded waits for that load and gets
+ * the same result, or the same exception, instead of loading it again. Nothing is kept once a load completes, so this
+ * is no cache: a caller arriving after the load gets a fresh one
+ *
+ * @param <K>
+ *         Type of the keys
+ * @param <V>
+ *         Type of the values, null allowed
+ */
+public final class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+
+    /**
+     * Get a value, joining the load in flight for its key if any
+     *
+     * @param key
+     *         Key
+     * @param loader
+     *         Load of the value, run by the first caller only
+     * @return Value, shared with every caller that joined the load
+     */
+    public V get(final K key, final Supplier<V> loader) {
+        final CompletableFuture<V> load = new CompletableFuture<>();
+        final CompletableFuture<V> current = this.inFlight.putIfAbsent(key, load);
+        if (current != null) {
+            this.joins.increment();
+            try {
+                return current.join();
+            } catch (final CompletionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+
+        // The load is removed before it completes, so that no caller can join it once its result is known
+        this.loads.increment();
+        final V value;
+        try {
+            value = loader.get();
+        } catch (final RuntimeException | Error e) {
+            this.inFlight.remove(key, load);
+            load.completeExceptionally(e);
+            throw e;
+        }
+
+        this.inFlight.remove(key, load);
+        load.complete(value);
+        return value;
+    }
+
+    /**
+     * Stop sharing the loads in flight for some keys, e.g. after a write made them stale. Their callers still get their
+     * result, while new callers start a new load
+     *
+     * @param keys
+     *         Keys to forget
+     */
+    public void forget(final Predicate<K> keys) {
+        this.inFlight.keySet().removeIf(keys);
+    }
+
+    /**
+     * @return Number of loads run
+     */
+    public long getLoadCount() {
+        return this.loads.sum();
+    }
+
+    /**
+     * @return Number of callers that joined a load instead of running their own
+     */
+    public long getJoinCount() {
+        return this.joins.sum();
+    }
+
+    /**
+     * Rethrow the failure of a load as is. Loads only fail with unchecked exceptions
+     *
+     * @param cause
+     *         Failure of the load
+     * @return Nothing, declared for callers to throw
+     */
+    private static RuntimeException rethrow(final Throwable cause) {
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        return (RuntimeException) cause;
+    }
+}
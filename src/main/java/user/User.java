@@ -0,0 +1,197 @@
+package user;
+
+import java.time.YearMonth;
+import java.util.Objects;
+
+/**
+ * A user as written by clients. Fields not given are null, so that an update only sets the fields it gives. Users are
+ * read from JSON by {@link UserJson} and written to the database by {@link UserCodec}, both field by field without
+ * reflection
+ */
+public class User {
+    private final String id;
+    private final String firstName;
+    private final String lastName;
+    private final String email;
+    private final Address address;
+    private final String dateCreated;
+    private final Company company;
+    private final String profilePic;
+
+    public User(final String id, final String firstName, final String lastName, final String email,
+            final Address address, final String dateCreated, final Company company, final String profilePic) {
+        this.id = id;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.email = email;
+        this.address = address;
+        this.dateCreated = dateCreated;
+        this.company = company;
+        this.profilePic = profilePic;
+    }
+
+    /**
+     * Check the values of the fields given, so that malformed users never reach the database. Checks are written out
+     * rather than going through patterns or parsers, as they run on every create and update
+     *
+     * @throws IllegalArgumentException
+     *         If the user has no id or a field is malformed
+     */
+    public void validate() {
+        if (this.id == null || this.id.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid user, no id");
+        }
+
+        if (this.email != null && !isEmail(this.email)) {
+            throw new IllegalArgumentException("Invalid email " + this.email);
+        }
+
+        // Dates are kept as text, compared as such by the range filters
+        if (this.dateCreated != null && !isInstant(this.dateCreated)) {
+            throw new IllegalArgumentException("Invalid dateCreated " + this.dateCreated
+                    + ", expected an instant such as 2016-03-15T07:02:40.896Z");
+        }
+
+        if (this.profilePic != null && !isHttpUrl(this.profilePic)) {
+            throw new IllegalArgumentException("Invalid profilePic " + this.profilePic + ", expected an HTTP URL");
+        }
+
+        if (this.company != null && this.company.getWebsite() != null && !isHttpUrl(this.company.getWebsite())) {
+            throw new IllegalArgumentException("Invalid company.website " + this.company.getWebsite()
+                    + ", expected an HTTP URL");
+        }
+    }
+
+    /**
+     * Loose check of an email address, the mail server being the only one able to tell if it exists
+     *
+     * @param email
+     *         Email address
+     * @return True for a single <code>@</code> between a local part and a dotted domain, without spaces
+     */
+    private static boolean isEmail(final String email) {
+        final int at = email.indexOf('@');
+        if (at < 1 || at != email.lastIndexOf('@') || hasSpace(email)) {
+            return false;
+        }
+
+        final int dot = email.indexOf('.', at + 2);
+        return dot > 0 && dot < email.length() - 1;
+    }
+
+    /**
+     * Check an instant in UTC, as written by {@link java.time.Instant#toString()}
+     *
+     * @param date
+     *         Date
+     * @return True for <code>yyyy-MM-ddTHH:mm:ssZ</code> with an optional fraction of up to nine digits, of an
+     * existing day
+     */
+    private static boolean isInstant(final String date) {
+        final int length = date.length();
+        if (length < 20 || length == 21 || length > 30 || date.charAt(4) != '-' || date.charAt(7) != '-'
+                || date.charAt(10) != 'T' || date.charAt(13) != ':' || date.charAt(16) != ':'
+                || date.charAt(length - 1) != 'Z' || (length > 20 && date.charAt(19) != '.')) {
+            return false;
+        }
+
+        for (int i = 0; i < length - 1; i++) {
+            if (i != 4 && i != 7 && i != 10 && i != 13 && i != 16 && i != 19
+                    && (date.charAt(i) < '0' || date.charAt(i) > '9')) {
+                return false;
+            }
+        }
+
+        final int month = number(date, 5);
+        final int day = number(date, 8);
+        return month >= 1 && month <= 12 && day >= 1
+                && YearMonth.of(number(date, 0) * 100 + number(date, 2), month).isValidDay(day)
+                && number(date, 11) < 24 && number(date, 14) < 60 && number(date, 17) < 60;
+    }
+
+    /**
+     * Check an absolute HTTP or HTTPS URL
+     *
+     * @param url
+     *         URL
+     * @return True if the scheme is followed by a host, without spaces
+     */
+    private static boolean isHttpUrl(final String url) {
+        final int host = url.regionMatches(true, 0, "http://", 0, 7)
+                ? 7
+                : url.regionMatches(true, 0, "https://", 0, 8) ? 8 : -1;
+        return host > 0 && url.length() > host && url.charAt(host) != '/' && !hasSpace(url);
+    }
+
+    private static boolean hasSpace(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isWhitespace(value.charAt(i)) || Character.isISOControl(value.charAt(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Two digit number at a position
+     */
+    private static int number(final String value, final int position) {
+        return (value.charAt(position) - '0') * 10 + value.charAt(position + 1) - '0';
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public String getFirstName() {
+        return this.firstName;
+    }
+
+    public String getLastName() {
+        return this.lastName;
+    }
+
+    public String getEmail() {
+        return this.email;
+    }
+
+    public Address getAddress() {
+        return this.address;
+    }
+
+    public String getDateCreated() {
+        return this.dateCreated;
+    }
+
+    public Company getCompany() {
+        return this.company;
+    }
+
+    public String getProfilePic() {
+        return this.profilePic;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof User)) {
+            return false;
+        }
+
+        final User user = (User) o;
+        return Objects.equals(this.id, user.id) && Objects.equals(this.firstName, user.firstName)
+                && Objects.equals(this.lastName, user.lastName) && Objects.equals(this.email, user.email)
+                && Objects.equals(this.address, user.address) && Objects.equals(this.dateCreated, user.dateCreated)
+                && Objects.equals(this.company, user.company) && Objects.equals(this.profilePic, user.profilePic);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.id, this.firstName, this.lastName, this.email, this.address, this.dateCreated,
+                this.company, this.profilePic);
+    }
+}
@@ -0,0 +1,28 @@
+package user;
+
+/**
+ * Receives the changes of users from a {@link IUserChangeFeed}, whichever instance wrote them
+ */
+public interface UserChangeListener {
+    /**
+     * A user was created, updated or removed
+     *
+     * @param id
+     *         ID of the user
+     */
+    void changed(String id);
+
+    /**
+     * A user was removed, known only by its internal <code>_id</code> as the user itself is gone
+     *
+     * @param key
+     *         Internal <code>_id</code> of the user
+     */
+    void removed(Object key);
+
+    /**
+     * Any user may have changed, e.g. changes were missed while the feed was reconnecting, or a change did not tell
+     * which user it was about
+     */
+    void reset();
+}
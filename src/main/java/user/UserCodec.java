@@ -0,0 +1,219 @@
+package user;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Codec of typed users, reading and writing each field by name instead of going through a map of values. Fields that
+ * are null are not written, so that an encoded user can be used as the fields to set by an update. Fields of other
+ * types or unknown to the model are skipped when decoding, as users written before the model may hold them
+ */
+public class UserCodec implements Codec<User> {
+    /**
+     * Default codecs of the driver, with this one added
+     */
+    public static final CodecRegistry REGISTRY = CodecRegistries.fromRegistries(
+            CodecRegistries.fromCodecs(new UserCodec()), MongoClient.getDefaultCodecRegistry());
+
+    @Override
+    public void encode(final BsonWriter writer, final User user, final EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writeString(writer, "id", user.getId());
+        writeString(writer, "firstName", user.getFirstName());
+        writeString(writer, "lastName", user.getLastName());
+        writeString(writer, "email", user.getEmail());
+        final Address address = user.getAddress();
+        if (address != null) {
+            writer.writeStartDocument("address");
+            writeString(writer, "street", address.getStreet());
+            writeString(writer, "city", address.getCity());
+            writeString(writer, "zip", address.getZip());
+            writeString(writer, "state", address.getState());
+            writeString(writer, "country", address.getCountry());
+            writer.writeEndDocument();
+        }
+
+        writeString(writer, "dateCreated", user.getDateCreated());
+        final Company company = user.getCompany();
+        if (company != null) {
+            writer.writeStartDocument("company");
+            writeString(writer, "name", company.getName());
+            writeString(writer, "website", company.getWebsite());
+            writer.writeEndDocument();
+        }
+
+        writeString(writer, "profilePic", user.getProfilePic());
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public User decode(final BsonReader reader, final DecoderContext decoderContext) {
+        String id = null;
+        String firstName = null;
+        String lastName = null;
+        String email = null;
+        Address address = null;
+        String dateCreated = null;
+        Company company = null;
+        String profilePic = null;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "id":
+                    id = readString(reader);
+                    break;
+                case "firstName":
+                    firstName = readString(reader);
+                    break;
+                case "lastName":
+                    lastName = readString(reader);
+                    break;
+                case "email":
+                    email = readString(reader);
+                    break;
+                case "address":
+                    address = readAddress(reader);
+                    break;
+                case "dateCreated":
+                    dateCreated = readString(reader);
+                    break;
+                case "company":
+                    company = readCompany(reader);
+                    break;
+                case "profilePic":
+                    profilePic = readString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.readEndDocument();
+        return new User(id, firstName, lastName, email, address, dateCreated, company, profilePic);
+    }
+
+    @Override
+    public Class<User> getEncoderClass() {
+        return User.class;
+    }
+
+    /**
+     * Read an address
+     *
+     * @param reader
+     *         Reader positioned on the value
+     * @return Address, null if the value is not a document
+     */
+    private static Address readAddress(final BsonReader reader) {
+        if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String street = null;
+        String city = null;
+        String zip = null;
+        String state = null;
+        String country = null;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "street":
+                    street = readString(reader);
+                    break;
+                case "city":
+                    city = readString(reader);
+                    break;
+                case "zip":
+                    zip = readString(reader);
+                    break;
+                case "state":
+                    state = readString(reader);
+                    break;
+                case "country":
+                    country = readString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.readEndDocument();
+        return new Address(street, city, zip, state, country);
+    }
+
+    /**
+     * Read a company
+     *
+     * @param reader
+     *         Reader positioned on the value
+     * @return Company, null if the value is not a document
+     */
+    private static Company readCompany(final BsonReader reader) {
+        if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String name = null;
+        String website = null;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "name":
+                    name = readString(reader);
+                    break;
+                case "website":
+                    website = readString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.readEndDocument();
+        return new Company(name, website);
+    }
+
+    /**
+     * Read a string
+     *
+     * @param reader
+     *         Reader positioned on the value
+     * @return String, null if the value is not one
+     */
+    private static String readString(final BsonReader reader) {
+        if (reader.getCurrentBsonType() != BsonType.STRING) {
+            reader.skipValue();
+            return null;
+        }
+
+        return reader.readString();
+    }
+
+    /**
+     * Write a string field, if not null
+     *
+     * @param writer
+     *         Writer
+     * @param name
+     *         Name of the field
+     * @param value
+     *         Value, can be null
+     */
+    private static void writeString(final BsonWriter writer, final String name, final String value) {
+        if (value != null) {
+            writer.writeString(name, value);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package user;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * JSON of typed users, read and written field by field on the streaming parser and generator. Users are read strictly:
+ * a field unknown to the model or of the wrong type is an error instead of being stored as given. Quotes are as lenient
+ * as they were when users were parsed as documents, so single quoted and unquoted names are still accepted. A value of
+ * the wrong type is rejected on its first token, so nesting is never read deeper than the address and company
+ */
+public final class UserJson {
+    private static final JsonFactory FACTORY = new JsonFactory().enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+                                                                .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES)
+                                                                .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /**
+     * Serializer and deserializer of users, for mappers
+     */
+    public static final Module MODULE = new SimpleModule("UserJson").addSerializer(User.class, new Serializer())
+                                                                    .addDeserializer(User.class, new Deserializer());
+
+    private UserJson() {
+    }
+
+    /**
+     * Read a user
+     *
+     * @param json
+     *         JSON of a single user
+     * @return User, not validated
+     * @throws IllegalArgumentException
+     *         If the JSON is malformed or not a user
+     */
+    public static User read(final String json) {
+        try {
+            return read(FACTORY.createParser(json));
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read a user as its JSON is received, without holding the JSON in memory
+     *
+     * @param in
+     *         JSON of a single user, read to its end and left open
+     * @return User, not validated
+     * @throws IllegalArgumentException
+     *         If the JSON is malformed or not a user
+     * @throws IOException
+     *         If the JSON cannot be read
+     */
+    public static User read(final Reader in) throws IOException {
+        return read(FACTORY.createParser(in));
+    }
+
+    /**
+     * Read a user and check that nothing follows it
+     *
+     * @param parser
+     *         Parser at the start of its input, closed once read
+     * @return User
+     * @throws IOException
+     *         If the input cannot be read
+     */
+    private static User read(final JsonParser parser) throws IOException {
+        try (JsonParser closed = parser) {
+            closed.nextToken();
+            final User user = readUser(closed);
+            if (closed.nextToken() != null) {
+                throw new IllegalArgumentException("Invalid user, unexpected content after it");
+            }
+
+            return user;
+        } catch (final JsonProcessingException e) {
+            // The message of the parser holds the whole body, so only its location is given back
+            final JsonLocation location = e.getLocation();
+            throw new IllegalArgumentException(location == null
+                    ? "Invalid JSON"
+                    : "Invalid JSON at line " + location.getLineNr() + ", column " + location.getColumnNr());
+        }
+    }
+
+    /**
+     * Read a user among other values, e.g. an element of an array
+     *
+     * @param parser
+     *         Parser positioned on the start of the user, left on its end once read
+     * @return User, not validated
+     * @throws IllegalArgumentException
+     *         If the value is not a user, the parser is then left within it
+     * @throws IOException
+     *         If the JSON is malformed or cannot be read
+     */
+    public static User readUser(final JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Invalid user, expected an object");
+        }
+
+        String id = null;
+        String firstName = null;
+        String lastName = null;
+        String email = null;
+        Address address = null;
+        String dateCreated = null;
+        Company company = null;
+        String profilePic = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    id = readString(parser, "id");
+                    break;
+                case "firstName":
+                    firstName = readString(parser, "firstName");
+                    break;
+                case "lastName":
+                    lastName = readString(parser, "lastName");
+                    break;
+                case "email":
+                    email = readString(parser, "email");
+                    break;
+                case "address":
+                    address = readAddress(parser);
+                    break;
+                case "dateCreated":
+                    dateCreated = readString(parser, "dateCreated");
+                    break;
+                case "company":
+                    company = readCompany(parser);
+                    break;
+                case "profilePic":
+                    profilePic = readString(parser, "profilePic");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid field " + field);
+            }
+        }
+
+        return new User(id, firstName, lastName, email, address, dateCreated, company, profilePic);
+    }
+
+    /**
+     * Read an address
+     *
+     * @param parser
+     *         Parser positioned on the value
+     * @return Address, null if the value is null
+     * @throws IOException
+     */
+    private static Address readAddress(final JsonParser parser) throws IOException {
+        if (!startObject(parser, "address")) {
+            return null;
+        }
+
+        String street = null;
+        String city = null;
+        String zip = null;
+        String state = null;
+        String country = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "street":
+                    street = readString(parser, "address.street");
+                    break;
+                case "city":
+                    city = readString(parser, "address.city");
+                    break;
+                case "zip":
+                    zip = readString(parser, "address.zip");
+                    break;
+                case "state":
+                    state = readString(parser, "address.state");
+                    break;
+                case "country":
+                    country = readString(parser, "address.country");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid field address." + field);
+            }
+        }
+
+        return new Address(street, city, zip, state, country);
+    }
+
+    /**
+     * Read a company
+     *
+     * @param parser
+     *         Parser positioned on the value
+     * @return Company, null if the value is null
+     * @throws IOException
+     */
+    private static Company readCompany(final JsonParser parser) throws IOException {
+        if (!startObject(parser, "company")) {
+            return null;
+        }
+
+        String name = null;
+        String website = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "name":
+                    name = readString(parser, "company.name");
+                    break;
+                case "website":
+                    website = readString(parser, "company.website");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid field company." + field);
+            }
+        }
+
+        return new Company(name, website);
+    }
+
+    /**
+     * Check that a value is an object
+     *
+     * @param parser
+     *         Parser positioned on the value
+     * @param field
+     *         Name of the field, for errors
+     * @return True if an object, false if null
+     */
+    private static boolean startObject(final JsonParser parser, final String field) {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+            return false;
+        }
+
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Invalid field " + field + ", expected an object");
+        }
+
+        return true;
+    }
+
+    /**
+     * Read a string
+     *
+     * @param parser
+     *         Parser positioned on the value
+     * @param field
+     *         Name of the field, for errors
+     * @return String, null if the value is null
+     * @throws IOException
+     */
+    private static String readString(final JsonParser parser, final String field) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new IllegalArgumentException("Invalid field " + field + ", expected a string");
+        }
+    }
+
+    /**
+     * Write a user, without the fields that are null
+     *
+     * @param user
+     *         User
+     * @param generator
+     *         Generator to write to
+     * @throws IOException
+     */
+    public static void write(final User user, final JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        writeString(generator, "id", user.getId());
+        writeString(generator, "firstName", user.getFirstName());
+        writeString(generator, "lastName", user.getLastName());
+        writeString(generator, "email", user.getEmail());
+        final Address address = user.getAddress();
+        if (address != null) {
+            generator.writeObjectFieldStart("address");
+            writeString(generator, "street", address.getStreet());
+            writeString(generator, "city", address.getCity());
+            writeString(generator, "zip", address.getZip());
+            writeString(generator, "state", address.getState());
+            writeString(generator, "country", address.getCountry());
+            generator.writeEndObject();
+        }
+
+        writeString(generator, "dateCreated", user.getDateCreated());
+        final Company company = user.getCompany();
+        if (company != null) {
+            generator.writeObjectFieldStart("company");
+            writeString(generator, "name", company.getName());
+            writeString(generator, "website", company.getWebsite());
+            generator.writeEndObject();
+        }
+
+        writeString(generator, "profilePic", user.getProfilePic());
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write a string field, if not null
+     *
+     * @param generator
+     *         Generator
+     * @param name
+     *         Name of the field
+     * @param value
+     *         Value, can be null
+     * @throws IOException
+     */
+    private static void writeString(final JsonGenerator generator, final String name, final String value)
+            throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    /**
+     * Writes users for mappers
+     */
+    private static class Serializer extends JsonSerializer<User> {
+        @Override
+        public void serialize(final User user, final JsonGenerator generator, final SerializerProvider provider)
+                throws IOException {
+            write(user, generator);
+        }
+
+        @Override
+        public Class<User> handledType() {
+            return User.class;
+        }
+    }
+
+    /**
+     * Reads users for mappers
+     */
+    private static class Deserializer extends JsonDeserializer<User> {
+        @Override
+        public User deserialize(final JsonParser parser, final DeserializationContext context) throws IOException {
+            return readUser(parser);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package user;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filters on the users, only on the fields with an index so that no query scans the whole collection. Each field is
+ * indexed together with the id, so equality matches are read in the order of the id for keyset paging. Without an
+ * equality match, users are read in the order of the index of a prefix or range, by that field then by id, as sorting
+ * all their matches by id would be done in memory. A filter is given by its parameter:
+ * <ul>
+ * <li><code>email=Darby_Leffler68@gmail.com</code> for an exact match</li>
+ * <li><code>address.city=South*</code> for a prefix, on text fields</li>
+ * <li><code>dateCreated.gte=2016-01-01&amp;dateCreated.lt=2017-01-01</code> for a range, on dates</li>
+ * </ul>
+ * Several filters must all match
+ */
+public final class UserQuery {
+    /**
+     * Kind of filters supported by a field
+     */
+    private enum Kind {
+        /**
+         * Exact match or prefix
+         */
+        TEXT,
+
+        /**
+         * Exact match or range, on ISO-8601 dates in UTC which order as strings
+         */
+        RANGE
+    }
+
+    private static final Map<String, Kind> FIELDS = new LinkedHashMap<>();
+
+    static {
+        FIELDS.put("email", Kind.TEXT);
+        FIELDS.put("company.name", Kind.TEXT);
+        FIELDS.put("address.city", Kind.TEXT);
+        FIELDS.put("dateCreated", Kind.RANGE);
+    }
+
+    /**
+     * Special characters of regular expressions, escaped in prefixes
+     */
+    private static final String SPECIAL = "\\^$.|?*+()[]{}";
+
+    private final Map<String, String> parameters;
+    private final List<Bson> filters;
+    private final String orderField;
+
+    /**
+     * Constructor
+     *
+     * @param parameters
+     *         Filter parameters, as given
+     * @param filters
+     *         Filter of each parameter
+     * @param orderField
+     *         Field the users are ordered by before their id, null to order them by id only
+     */
+    private UserQuery(final Map<String, String> parameters, final List<Bson> filters, final String orderField) {
+        this.parameters = parameters;
+        this.filters = filters;
+        this.orderField = orderField;
+    }
+
+    /**
+     * Parse the filters of a request
+     *
+     * @param parameters
+     *         Filter parameters by name, without the paging and output parameters
+     * @return Query, empty if there are no parameters
+     * @throws Exception
+     *         If a parameter is not a filter on an indexed field, or its value is not valid
+     */
+    public static UserQuery parse(final Map<String, String> parameters) throws Exception {
+        final List<Bson> filters = new ArrayList<>(parameters.size());
+        final Set<String> ranged = new HashSet<>();
+        boolean equality = false;
+        for (final Map.Entry<String, String> parameter : parameters.entrySet()) {
+            filters.add(filter(parameter.getKey(), parameter.getValue()));
+            final String field = rangedField(parameter.getKey(), parameter.getValue());
+            if (field == null) {
+                equality = true;
+            } else {
+                ranged.add(field);
+            }
+        }
+
+        // An equality match reads its users in the order of the id, otherwise the first field ranged gives the order
+        String orderField = null;
+        if (!equality) {
+            for (final String field : FIELDS.keySet()) {
+                if (ranged.contains(field)) {
+                    orderField = field;
+                    break;
+                }
+            }
+        }
+
+        return new UserQuery(new LinkedHashMap<>(parameters), filters, orderField);
+    }
+
+    /**
+     * Get the field of a prefix or range filter
+     *
+     * @param name
+     *         Name of a valid parameter
+     * @param value
+     *         Value of the parameter
+     * @return Field, null for an exact match
+     */
+    private static String rangedField(final String name, final String value) {
+        final int dot = name.lastIndexOf('.');
+        if (dot > 0 && FIELDS.get(name.substring(0, dot)) == Kind.RANGE) {
+            return name.substring(0, dot);
+        }
+
+        return FIELDS.get(name) == Kind.TEXT && value.endsWith("*") ? name : null;
+    }
+
+    /**
+     * Get the filter of a parameter
+     *
+     * @param name
+     *         Field name, followed by the range operator if any
+     * @param value
+     *         Value of the parameter
+     * @return Filter
+     * @throws Exception
+     */
+    private static Bson filter(final String name, final String value) throws Exception {
+        // Range on a date
+        final int dot = name.lastIndexOf('.');
+        if (dot > 0 && FIELDS.get(name.substring(0, dot)) == Kind.RANGE) {
+            final String field = name.substring(0, dot);
+            final String operator = name.substring(dot + 1);
+            if (!"gte".equals(operator) && !"lt".equals(operator)) {
+                throw new Exception("Invalid filter " + name + ", ranges are given with " + field + ".gte and "
+                        + field + ".lt");
+            }
+
+            checkValue(name, value);
+            return "gte".equals(operator) ? Filters.gte(field, value) : Filters.lt(field, value);
+        }
+
+        final Kind kind = FIELDS.get(name);
+        if (kind == null) {
+            throw new Exception("Invalid filter " + name + ", users can only be filtered on " + FIELDS.keySet());
+        }
+
+        // Prefix on a text, anchored so that only a range of the index is read
+        checkValue(name, value);
+        if (kind == Kind.TEXT && value.endsWith("*")) {
+            return Filters.regex(name, "^" + escape(value.substring(0, value.length() - 1)));
+        }
+
+        return Filters.eq(name, value);
+    }
+
+    /**
+     * Check that a filter has a value
+     *
+     * @param name
+     *         Name of the parameter
+     * @param value
+     *         Value of the parameter
+     * @throws Exception
+     */
+    private static void checkValue(final String name, final String value) throws Exception {
+        if (value == null || value.isEmpty()) {
+            throw new Exception("Missing value for filter " + name);
+        }
+    }
+
+    /**
+     * Escape a prefix for a regular expression, with a backslash before each special character so that the database
+     * still reads it as a plain prefix
+     *
+     * @param prefix
+     *         Prefix
+     * @return Regular expression matching the prefix
+     */
+    private static String escape(final String prefix) {
+        final StringBuilder regex = new StringBuilder(prefix.length() * 2);
+        for (int i = 0; i < prefix.length(); i++) {
+            final char c = prefix.charAt(i);
+            if (SPECIAL.indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+
+            regex.append(c);
+        }
+
+        return regex.toString();
+    }
+
+    /**
+     * @return Indexes serving the filters, one per field with the id, built in the background
+     */
+    public static List<IndexModel> indexes() {
+        final List<IndexModel> indexes = new ArrayList<>(FIELDS.size());
+        for (final String field : FIELDS.keySet()) {
+            indexes.add(new IndexModel(Indexes.ascending(field, "id"), new IndexOptions().background(true)));
+        }
+
+        return indexes;
+    }
+
+    /**
+     * @return True if there are no filters, for all users
+     */
+    public boolean isEmpty() {
+        return this.filters.isEmpty();
+    }
+
+    /**
+     * @return Filters of the query
+     */
+    public List<Bson> getFilters() {
+        return Collections.unmodifiableList(this.filters);
+    }
+
+    /**
+     * @return Field the users are ordered by before their id, null if they are ordered by id only
+     */
+    public String getOrderField() {
+        return this.orderField;
+    }
+
+    /**
+     * @return Order of the users, the order of the index read for the filters
+     */
+    public Bson sort() {
+        return this.orderField == null ? Sorts.ascending("id") : Sorts.ascending(this.orderField, "id");
+    }
+
+    /**
+     * Get the keyset filter of the users after the last one seen, in the order of {@link #sort()}
+     *
+     * @param id
+     *         ID of the last user seen
+     * @param value
+     *         Value of the order field for the last user seen, ignored if the users are ordered by id only
+     * @return Filter
+     */
+    public Bson after(final String id, final Object value) {
+        if (this.orderField == null) {
+            return Filters.gt("id", id);
+        }
+
+        // The lower bound keeps the range of the index read tight, the rest skips the users up to the last one seen
+        return Filters.and(Filters.gte(this.orderField, value),
+                Filters.or(Filters.gt(this.orderField, value), Filters.gt("id", id)));
+    }
+
+    @Override
+    public String toString() {
+        return this.parameters.toString();
+    }
+}
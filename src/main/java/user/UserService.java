@@ -1,18 +1,47 @@
 package user;
 
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertOneModel;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /**
  * Class to implement user services
@@ -21,17 +50,22 @@ import java.util.List;
 public class UserService implements IUserService {
     private final Logger logger = LoggerFactory.getLogger(UserService.class);
     private final MongoCollection<Document> dbCollection;
+    private final MongoCollection<User> users;
+    private final Executor executor;
+    private CompletableFuture<Void> indexes;
 
     /**
-     * Constructor to connect to MongoDB and get DB collection
+     * Constructor, indexes are reconciled on a thread of their own
      *
-     * @param database
-     *         Database to connect to
-     * @param collection
-     *         Collection to fetch
+     * @param dbCollection
+     *         DB collection
      */
-    public UserService(final String database, final String collection) {
-        this(getCollection(database, collection));
+    public UserService(final MongoCollection<Document> dbCollection) {
+        this(dbCollection, task -> {
+            final Thread thread = new Thread(task, "user-indexes");
+            thread.setDaemon(true);
+            thread.start();
+        });
     }
 
     /**
@@ -39,98 +73,521 @@ public class UserService implements IUserService {
      *
      * @param dbCollection
      *         DB collection
+     * @param executor
+     *         Executor reconciling the indexes
      */
-    public UserService(final MongoCollection<Document> dbCollection) {
+    UserService(final MongoCollection<Document> dbCollection, final Executor executor) {
         this.dbCollection = dbCollection;
+        this.users = dbCollection.withCodecRegistry(UserCodec.REGISTRY).withDocumentClass(User.class);
+        this.executor = executor;
+        this.indexes = this.reconcileIndexes();
+    }
+
+    /**
+     * @return Indexes the service needs: the unique index on the id, and the indexes of the queries. All are built in
+     * the background so that the collection stays available meanwhile
+     */
+    static List<IndexModel> indexes() {
+        final List<IndexModel> indexes = new ArrayList<>();
+        final IndexOptions id = new IndexOptions().unique(true).sparse(true).background(true);
+        indexes.add(new IndexModel(Indexes.ascending("id"), id));
+        indexes.addAll(UserQuery.indexes());
+        return indexes;
+    }
 
-        // Create Index on ID
-        final Document key = new Document("id", 1);
-        final IndexOptions options = new IndexOptions();
-        options.unique(true);
-        options.sparse(true);
+    /**
+     * Create the missing indexes, without waiting for them. Existing indexes are left as they are, even with other
+     * options than needed, as dropping one would make its queries scan the collection until it is rebuilt
+     *
+     * @return Future completed once all indexes exist
+     */
+    private CompletableFuture<Void> reconcileIndexes() {
+        return CompletableFuture.runAsync(() -> {
+            // Existing indexes by key
+            final Map<String, Document> existing = new HashMap<>();
+            for (final Document index : this.dbCollection.listIndexes()) {
+                existing.put(keyOf(index.get("key", Document.class)), index);
+            }
+
+            final List<IndexModel> missing = new ArrayList<>();
+            for (final IndexModel index : indexes()) {
+                final Document current = existing.get(keyOf(index.getKeys()));
+                if (current == null) {
+                    missing.add(index);
+                } else if (current.getBoolean("unique", false) != index.getOptions().isUnique()) {
+                    this.logger.warn("[INDEX] Index {} is not unique as expected, drop it to have it rebuilt",
+                            current.getString("name"));
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                this.logger.info("[INDEX] Creating {} missing indexes...", missing.size());
+                this.dbCollection.createIndexes(missing);
+            }
 
-        this.dbCollection.dropIndexes();
-        this.dbCollection.createIndex(key, options);
+            this.logger.info("[INDEX] Indexes ready");
+        }, this.executor).whenComplete((result, t) -> {
+            if (t != null) {
+                this.logger.error("[INDEX] Indexes not reconciled: {}", t.getMessage());
+            }
+        });
     }
 
     /**
-     * Get collection from Mongo DB
+     * Get the key of an index, the same whatever the numeric type of its directions
      *
-     * @param database
-     *         Name of database
-     * @param collection
-     *         Name of collection
-     * @return Mongo Collection
+     * @param keys
+     *         Keys of the index
+     * @return Fields and directions, such as <code>email:1,id:1</code>
      */
-    public static MongoCollection<Document> getCollection(final String database, final String collection) {
-        final MongoClient mongoClient = new MongoClient(new MongoClientURI("mongodb://localhost"));
-        return mongoClient.getDatabase(database).getCollection(collection);
+    private static String keyOf(final Bson keys) {
+        final StringJoiner key = new StringJoiner(",");
+        for (final Map.Entry<String, BsonValue> entry : keys.toBsonDocument(BsonDocument.class,
+                MongoClient.getDefaultCodecRegistry()).entrySet()) {
+            final BsonValue direction = entry.getValue();
+            key.add(entry.getKey() + ":" + (direction.isNumber() ? direction.asNumber().intValue() : direction));
+        }
+
+        return key.toString();
     }
 
+    /**
+     * Ready once all indexes exist. If reconciling them failed, for instance as the database was not reachable yet,
+     * it is tried again
+     */
     @Override
-    public List<Document> getAllUsers() {
-        this.logger.info("[GET] Getting all users...");
-        final List<Document> documents = new ArrayList<>();
-        final MongoCursor<Document> cursor = this.dbCollection.find().projection(Projections.excludeId()).iterator();
-        while (cursor.hasNext()) {
-            documents.add(cursor.next());
+    public synchronized boolean isReady() {
+        if (this.indexes.isCompletedExceptionally()) {
+            this.indexes = this.reconcileIndexes();
+        }
+
+        return this.indexes.isDone() && !this.indexes.isCompletedExceptionally();
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final Consumer<Document> consumer) {
+        this.scanUsers(after, limit, null, consumer);
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        forEach(this.scan(after, limit, Document.class).projection(Fields.projection(fields)), consumer);
+    }
+
+    @Override
+    public void findUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        if (query.isEmpty()) {
+            this.scanUsers(after, limit, fields, consumer);
+            return;
+        }
+
+        forEach(this.find(query, after, limit, Document.class).projection(Fields.projection(fields)), consumer);
+    }
+
+    @Override
+    public void findRawUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<RawBsonDocument> consumer) {
+        final FindIterable<RawBsonDocument> iterable = query.isEmpty()
+                ? this.scan(after, limit, RawBsonDocument.class)
+                : this.find(query, after, limit, RawBsonDocument.class);
+        forEach(iterable.projection(Fields.projection(fields)), consumer);
+    }
+
+    /**
+     * Query all users
+     *
+     * @param after
+     *         Keyset cursor, null to start from the beginning
+     * @param limit
+     *         Maximum number of users, 0 for no limit
+     * @param documentClass
+     *         Class to decode the users into
+     * @return Query
+     */
+    private <T> FindIterable<T> scan(final String after, final int limit, final Class<T> documentClass) {
+        this.logger.debug("[GET] Scanning users after {} with limit {}", after, limit);
+        if (after == null && limit == 0) {
+            // Plain scan in natural order, includes users without an id
+            return this.dbCollection.find(documentClass);
+        }
+
+        // Keyset page over the id index
+        final Bson filter = after == null ? Filters.exists("id") : Filters.gt("id", after);
+        return this.dbCollection.find(filter, documentClass).sort(Sorts.ascending("id")).limit(limit);
+    }
+
+    /**
+     * Query the users matching filters
+     *
+     * @param query
+     *         Filters, not empty
+     * @param after
+     *         Keyset cursor, the id of the last user seen. Null to start from the beginning
+     * @param limit
+     *         Maximum number of users, 0 for no limit
+     * @param documentClass
+     *         Class to decode the users into
+     * @return Query, in the order of {@link UserQuery#sort()}
+     */
+    private <T> FindIterable<T> find(final UserQuery query, final String after, final int limit,
+            final Class<T> documentClass) {
+        this.logger.debug("[GET] Finding users matching {} after {} with limit {}", query, after, limit);
+        final List<Bson> filters = new ArrayList<>(query.getFilters());
+        if (after != null) {
+            final String orderField = query.getOrderField();
+            filters.add(query.after(after, orderField == null ? null : this.valueOf(after, orderField)));
+        }
+
+        return this.dbCollection.find(Filters.and(filters), documentClass).sort(query.sort()).limit(limit);
+    }
+
+    /**
+     * Read a field of a user, to page after it in the order of that field
+     *
+     * @param id
+     *         ID of the user
+     * @param field
+     *         Field, with dots for nested fields
+     * @return Value of the field
+     * @throws IllegalArgumentException
+     *         If the user or its field no longer exists
+     */
+    private Object valueOf(final String id, final String field) {
+        Object value = this.dbCollection.find(Filters.eq("id", id)).projection(Projections.include(field)).first();
+        for (final String name : field.split("\\.")) {
+            value = value instanceof Document ? ((Document) value).get(name) : null;
+        }
+
+        if (value == null) {
+            throw new IllegalArgumentException("User " + id + " not found to page after");
         }
 
-        return documents;
+        return value;
+    }
+
+    /**
+     * Hand over each user of a query, closing the cursor even if the consumer fails
+     *
+     * @param iterable
+     *         Query
+     * @param consumer
+     *         Callback invoked for each user
+     */
+    private static <T> void forEach(final FindIterable<T> iterable, final Consumer<T> consumer) {
+        try (final MongoCursor<T> cursor = iterable.iterator()) {
+            while (cursor.hasNext()) {
+                consumer.accept(cursor.next());
+            }
+        }
     }
 
     @Override
     public Document getUser(final String id) {
-        this.logger.info("[GET] Getting user with ID " + id);
-        final Document document = this.dbCollection.find(Filters.eq("id", id)).projection(Projections.excludeId())
+        return this.getUser(id, null);
+    }
+
+    @Override
+    public Document getUser(final String id, final List<String> fields) {
+        this.logger.debug("[GET] Getting user with ID {} and fields {}", id, fields);
+        final Document document = this.dbCollection.find(Filters.eq("id", id)).projection(Fields.projection(fields))
                                                    .first();
         return document;
     }
 
+    @Override
+    public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+        this.logger.debug("[GET] Getting raw user with ID {} and fields {}", id, fields);
+        return this.dbCollection.find(Filters.eq("id", id), RawBsonDocument.class).projection(Fields.projection(fields))
+                                .first();
+    }
+
+    @Override
+    public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+        this.logger.debug("[GET] Getting {} raw users with fields {}", ids.size(), fields);
+        final Map<String, RawBsonDocument> users = new HashMap<>();
+        for (final RawBsonDocument user : this.dbCollection.find(Filters.in("id", ids), RawBsonDocument.class)
+                                                           .projection(Fields.projection(fields))) {
+            users.put(user.getString("id").getValue(), user);
+        }
+
+        return users;
+    }
+
     @Override
     public void createUser(final String json) {
-        this.logger.info("[CREATE] Parsing JSON....");
-        final Document document = Document.parse(json);
+        this.logger.debug("[CREATE] Parsing JSON....");
+        this.createUser(UserJson.read(json));
+    }
+
+    @Override
+    public void createUser(final User user) {
+        user.validate();
 
-        this.logger.info("[CREATE] JSON parsed as: " + document.toJson());
-        this.logger.info("[CREATE] Creating user...");
-        this.dbCollection.insertOne(document);
+        this.logger.debug("[CREATE] Creating user...");
+        this.users.insertOne(user);
+    }
+
+    @Override
+    public boolean createUser(final User user, final boolean durable) {
+        // Users are always written before returning
+        this.createUser(user);
+        return true;
     }
 
     @Override
     public void updateUser(final String json) throws Exception {
-        // Find the user by ID
-        this.logger.info("[UPDATE] Parsing JSON....");
-        final Document document = Document.parse(json);
-
-        final String id = document.getString("id");
-        this.logger.info("[UPDATE] Finding user with ID " + id);
-        final Document user = this.dbCollection.find(Filters.eq("id", id)).first();
-
-        // If found, update
-        if (user != null) {
-            this.logger.info("[UPDATE] User found! Updating...");
-            this.dbCollection.updateOne(user, new Document("$set", document));
-        } else {
-            // Else, throw an error
-            this.logger.warn("[UPDATE] User not found");
+        this.updateUser(json, false);
+    }
+
+    @Override
+    public void updateUser(final String json, final boolean upsert) throws Exception {
+        this.logger.debug("[UPDATE] Parsing JSON....");
+        this.updateUser(UserJson.read(json), upsert);
+    }
+
+    @Override
+    public void updateUser(final User user, final boolean upsert) throws Exception {
+        // A missing id would match every user without one
+        final String id = user.getId();
+        if (id == null) {
+            this.logger.debug("[UPDATE] User has no id");
+            throw new Exception("User not found to update");
+        }
+
+        user.validate();
+
+        // Update by ID in a single round trip, setting only the fields given
+        this.logger.debug("[UPDATE] Updating user with ID {}", id);
+        final UpdateResult result = this.users.updateOne(Filters.eq("id", id), new Document("$set", user),
+                new UpdateOptions().upsert(upsert));
+
+        // If not found, throw an error
+        if (result.getMatchedCount() == 0 && result.getUpsertedId() == null) {
+            this.logger.debug("[UPDATE] User not found");
             throw new Exception("User not found to update");
         }
     }
 
     @Override
     public void removeUser(final String id) throws Exception {
-        this.logger.info("[REMOVE] Finding user with ID " + id);
-        final Document user = this.dbCollection.find(Filters.eq("id", id)).first();
-
-        // If found, remove
-        if (user != null) {
-            this.logger.info("[REMOVE] User found! Removing...");
-            this.dbCollection.deleteOne(user);
-        } else {
-            // Else, throw an error
-            this.logger.warn("[REMOVE] User not found");
+        // Remove by ID in a single round trip
+        this.logger.debug("[REMOVE] Removing user with ID {}", id);
+        final DeleteResult result = this.dbCollection.deleteOne(Filters.eq("id", id));
+
+        // If not found, throw an error
+        if (result.getDeletedCount() == 0) {
+            this.logger.debug("[REMOVE] User not found");
             throw new Exception("User not found to remove");
         }
     }
+
+    @Override
+    public List<BulkResult> createUsers(final List<User> users) {
+        this.logger.debug("[CREATE] Creating {} users...", users.size());
+        final List<WriteModel<User>> models = new ArrayList<>(users.size());
+        final List<Integer> indexes = new ArrayList<>(users.size());
+        final BulkResult[] results = new BulkResult[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            try {
+                users.get(i).validate();
+                models.add(new InsertOneModel<>(users.get(i)));
+                indexes.add(i);
+            } catch (final IllegalArgumentException e) {
+                results[i] = new BulkResult(users.get(i).getId(), 400, e.getMessage());
+            }
+        }
+
+        final Map<Integer, BulkWriteError> errors = new HashMap<>();
+        this.bulkWrite(this.users, models, errors);
+
+        for (int i = 0; i < models.size(); i++) {
+            final int index = indexes.get(i);
+            final String id = users.get(index).getId();
+            results[index] = errors.containsKey(i)
+                    ? failure(id, errors.get(i))
+                    : new BulkResult(id, 200, "User created!!");
+        }
+
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public List<BulkResult> updateUsers(final List<User> users) {
+        this.logger.debug("[UPDATE] Updating {} users...", users.size());
+        final List<WriteModel<User>> models = new ArrayList<>(users.size());
+        final List<Integer> indexes = new ArrayList<>(users.size());
+        final List<String> ids = new ArrayList<>(users.size());
+        final BulkResult[] results = new BulkResult[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            final User user = users.get(i);
+            if (user.getId() == null) {
+                results[i] = new BulkResult(null, 400, "User has no id");
+                continue;
+            }
+
+            try {
+                user.validate();
+                models.add(new UpdateOneModel<>(Filters.eq("id", user.getId()), new Document("$set", user)));
+                indexes.add(i);
+                ids.add(user.getId());
+            } catch (final IllegalArgumentException e) {
+                results[i] = new BulkResult(user.getId(), 400, e.getMessage());
+            }
+        }
+
+        // Update all, then find which users did not match only if some did not
+        final Map<Integer, BulkWriteError> errors = new HashMap<>();
+        final BulkWriteResult result = this.bulkWrite(this.users, models, errors);
+        final Set<String> found = result == null || result.getMatchedCount() + errors.size() >= models.size()
+                ? null
+                : this.findExistingIds(ids);
+
+        for (int i = 0; i < models.size(); i++) {
+            final int index = indexes.get(i);
+            final String id = ids.get(i);
+            if (errors.containsKey(i)) {
+                results[index] = failure(id, errors.get(i));
+            } else if (found != null && !found.contains(id)) {
+                results[index] = new BulkResult(id, 404, "User not found to update");
+            } else {
+                results[index] = new BulkResult(id, 200, "User updated!!");
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public List<BulkResult> removeUsers(final List<String> ids) {
+        this.logger.debug("[REMOVE] Removing {} users...", ids.size());
+
+        // Find which users exist, then remove each of those once. An id repeated is not found once removed
+        final Set<String> found = this.findExistingIds(ids);
+        final Set<String> removed = new HashSet<>(found.size());
+        final List<WriteModel<Document>> models = new ArrayList<>(found.size());
+        final List<Integer> indexes = new ArrayList<>(found.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (found.contains(ids.get(i)) && removed.add(ids.get(i))) {
+                models.add(new DeleteOneModel<>(Filters.eq("id", ids.get(i))));
+                indexes.add(i);
+            }
+        }
+
+        final Map<Integer, BulkWriteError> errors = new HashMap<>();
+        final BulkWriteResult result = this.bulkWrite(this.dbCollection, models, errors);
+
+        // Users removed by another request meanwhile are gone all the same, so removing them again succeeds
+        if (result != null && result.getDeletedCount() + errors.size() < models.size()) {
+            this.logger.warn("[REMOVE] {} of {} users removed by another request", models.size() - errors.size()
+                    - result.getDeletedCount(), models.size());
+        }
+
+        final BulkResult[] results = new BulkResult[ids.size()];
+        for (int i = 0; i < models.size(); i++) {
+            final int index = indexes.get(i);
+            final String id = ids.get(index);
+            if (errors.containsKey(i)) {
+                results[index] = failure(id, errors.get(i));
+            } else {
+                results[index] = new BulkResult(id, 200, "User " + id + " removed!!");
+            }
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new BulkResult(ids.get(i), 404, "User not found to remove");
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Run an unordered bulk write, collecting the errors instead of failing
+     *
+     * @param collection
+     *         Collection to write to
+     * @param models
+     *         Writes to run
+     * @param errors
+     *         Map filled with the error of each failed write, by index
+     * @return Result, null if there was nothing to write
+     */
+    private <T> BulkWriteResult bulkWrite(final MongoCollection<T> collection, final List<WriteModel<T>> models,
+            final Map<Integer, BulkWriteError> errors) {
+        if (models.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (final MongoBulkWriteException e) {
+            this.logger.warn("[BULK] {} of {} writes failed", e.getWriteErrors().size(), models.size());
+            for (final BulkWriteError error : e.getWriteErrors()) {
+                errors.put(error.getIndex(), error);
+            }
+
+            return e.getWriteResult();
+        }
+    }
+
+    /**
+     * Find which of the users exist, in a single query
+     *
+     * @param ids
+     *         IDs of the users to look for, null for none
+     * @return IDs of the users found
+     */
+    private Set<String> findExistingIds(final List<String> ids) {
+        final List<String> given = new ArrayList<>(ids.size());
+        for (final String id : ids) {
+            if (id != null) {
+                given.add(id);
+            }
+        }
+
+        if (given.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        final Set<String> found = new HashSet<>();
+        final FindIterable<Document> iterable = this.dbCollection.find(Filters.in("id", given))
+                                                                 .projection(Projections.include("id"));
+        for (final Document document : iterable) {
+            found.add(idOf(document));
+        }
+
+        return found;
+    }
+
+    /**
+     * Result of a failed write
+     *
+     * @param id
+     *         ID of the user
+     * @param error
+     *         Error returned by the database
+     * @return Result, conflict for duplicate users
+     */
+    private static BulkResult failure(final String id, final BulkWriteError error) {
+        if (error.getCode() == 11000) {
+            return new BulkResult(id, 409, "Duplicate user " + id);
+        }
+
+        return new BulkResult(id, 400, error.getMessage());
+    }
+
+    /**
+     * Get the ID of a user as a string
+     *
+     * @param user
+     *         User document
+     * @return ID, null if the user has none
+     */
+    private static String idOf(final Document user) {
+        final Object id = user.get("id");
+        return id == null ? null : id.toString();
+    }
 }
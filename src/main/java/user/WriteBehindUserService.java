@@ -0,0 +1,365 @@
+package user;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Creates users in batches behind the callers of another user service. Users are validated as they are accepted, then
+ * queued, and a single flusher thread inserts them in batches. A batch is written once it is full, or once its oldest
+ * user has waited for the time window. A caller either waits for its batch to be written, or returns as soon as its
+ * user is queued. The queue is bounded without locks, and users over its capacity are refused with a
+ * {@link WriteQueueFullException} instead of blocking. Every other operation is passed through
+ */
+public class WriteBehindUserService implements IUserService, AutoCloseable {
+    private final Logger logger = LoggerFactory.getLogger(WriteBehindUserService.class);
+    private final IUserService userService;
+    private final int capacity;
+    private final int batchSize;
+    private final long windowNanos;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Users accepted and not yet taken by the flusher, counted ahead of the queue so that it never exceeds its capacity
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    private final List<UserChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    /**
+     * Constructor, starts the flusher
+     *
+     * @param userService
+     *         User service writing the batches
+     * @param capacity
+     *         Maximum number of users waiting to be written
+     * @param batchSize
+     *         Maximum number of users written at once
+     * @param window
+     *         Longest time a user waits for its batch to fill
+     * @param unit
+     *         Unit of the window
+     */
+    public WriteBehindUserService(final IUserService userService, final int capacity, final int batchSize,
+            final long window, final TimeUnit unit) {
+        this.userService = userService;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.flusher = new Thread(this::flush, "write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, consumer);
+    }
+
+    @Override
+    public void scanUsers(final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.scanUsers(after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<Document> consumer) {
+        this.userService.findUsers(query, after, limit, fields, consumer);
+    }
+
+    @Override
+    public void findRawUsers(final UserQuery query, final String after, final int limit, final List<String> fields,
+            final Consumer<RawBsonDocument> consumer) {
+        this.userService.findRawUsers(query, after, limit, fields, consumer);
+    }
+
+    @Override
+    public Document getUser(final String id) {
+        return this.userService.getUser(id);
+    }
+
+    @Override
+    public Document getUser(final String id, final List<String> fields) {
+        return this.userService.getUser(id, fields);
+    }
+
+    @Override
+    public RawBsonDocument getRawUser(final String id, final List<String> fields) {
+        return this.userService.getRawUser(id, fields);
+    }
+
+    @Override
+    public Map<String, RawBsonDocument> getRawUsers(final Collection<String> ids, final List<String> fields) {
+        return this.userService.getRawUsers(ids, fields);
+    }
+
+    @Override
+    public void createUser(final String json) {
+        this.createUser(UserJson.read(json));
+    }
+
+    @Override
+    public void createUser(final User user) {
+        this.createUser(user, true);
+    }
+
+    @Override
+    public boolean createUser(final User user, final boolean durable) {
+        final Pending pending = this.accept(user, durable);
+        if (!durable) {
+            return false;
+        }
+
+        try {
+            pending.written.join();
+            return true;
+        } catch (final CompletionException e) {
+            // Users only ever fail with runtime exceptions
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    @Override
+    public void updateUser(final String json) throws Exception {
+        this.userService.updateUser(json);
+    }
+
+    @Override
+    public void updateUser(final String json, final boolean upsert) throws Exception {
+        this.userService.updateUser(json, upsert);
+    }
+
+    @Override
+    public void updateUser(final User user, final boolean upsert) throws Exception {
+        this.userService.updateUser(user, upsert);
+    }
+
+    @Override
+    public void removeUser(final String id) throws Exception {
+        this.userService.removeUser(id);
+    }
+
+    @Override
+    public List<BulkResult> createUsers(final List<User> users) {
+        return this.userService.createUsers(users);
+    }
+
+    @Override
+    public List<BulkResult> updateUsers(final List<User> users) {
+        return this.userService.updateUsers(users);
+    }
+
+    @Override
+    public List<BulkResult> removeUsers(final List<String> ids) {
+        return this.userService.removeUsers(ids);
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.userService.isReady();
+    }
+
+    /**
+     * Tell a listener about each user written after its caller returned, as the write is not known otherwise
+     *
+     * @param listener
+     *         Listener
+     */
+    public void subscribe(final UserChangeListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * @return Number of users waiting to be written
+     */
+    public int getQueued() {
+        return this.size.get();
+    }
+
+    /**
+     * Write the users still queued, then stop the flusher. Users can no longer be created afterwards
+     *
+     * @throws InterruptedException
+     *         If interrupted while waiting for the flusher
+     */
+    @Override
+    public void close() throws InterruptedException {
+        this.closed = true;
+        LockSupport.unpark(this.flusher);
+        this.flusher.join();
+
+        // Users queued while the flusher was stopping
+        final List<Pending> rest = new ArrayList<>();
+        Pending pending;
+        while ((pending = this.queue.poll()) != null) {
+            rest.add(pending);
+        }
+
+        if (!rest.isEmpty()) {
+            this.write(rest);
+        }
+    }
+
+    /**
+     * Validate and queue a user
+     *
+     * @param user
+     *         User
+     * @param durable
+     *         True if the caller waits for the user to be written
+     * @return Queued user
+     * @throws WriteQueueFullException
+     *         If the queue is full
+     * @throws IllegalStateException
+     *         If the service is closed, even while the user is being queued
+     */
+    private Pending accept(final User user, final boolean durable) {
+        if (this.closed) {
+            throw closedError();
+        }
+
+        user.validate();
+
+        int queued;
+        do {
+            queued = this.size.get();
+            if (queued >= this.capacity) {
+                this.logger.debug("[CREATE] Queue full, user {} refused", user.getId());
+                throw new WriteQueueFullException(this.capacity);
+            }
+        } while (!this.size.compareAndSet(queued, queued + 1));
+
+        final Pending pending = new Pending(user, durable);
+        this.queue.offer(pending);
+
+        // A user queued as the service closed, and not taken by it, would never be written
+        if (this.closed && this.queue.remove(pending)) {
+            this.size.decrementAndGet();
+            throw closedError();
+        }
+
+        // Wake the flusher to start a window on an empty queue, or to write a full batch
+        if (queued == 0 || queued + 1 == this.batchSize) {
+            LockSupport.unpark(this.flusher);
+        }
+
+        return pending;
+    }
+
+    /**
+     * @return Error for a user created once the service is closed
+     */
+    private static IllegalStateException closedError() {
+        return new IllegalStateException("Users can no longer be created, the service is closed");
+    }
+
+    /**
+     * Write batches until closed and the queue is empty
+     */
+    private void flush() {
+        final List<Pending> batch = new ArrayList<>(this.batchSize);
+        while (!this.closed || !this.queue.isEmpty()) {
+            final Pending oldest = this.queue.peek();
+            if (oldest == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            final long wait = oldest.accepted + this.windowNanos - System.nanoTime();
+            if (wait > 0 && this.size.get() < this.batchSize && !this.closed) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            Pending pending;
+            while (batch.size() < this.batchSize && (pending = this.queue.poll()) != null) {
+                batch.add(pending);
+            }
+
+            this.size.addAndGet(-batch.size());
+            this.write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write a batch and complete its users
+     *
+     * @param batch
+     *         Users taken from the queue
+     */
+    private void write(final List<Pending> batch) {
+        final List<User> users = new ArrayList<>(batch.size());
+        for (final Pending pending : batch) {
+            users.add(pending.user);
+        }
+
+        this.logger.debug("[CREATE] Writing {} queued users", users.size());
+        final List<BulkResult> results;
+        try {
+            results = this.userService.createUsers(users);
+        } catch (final RuntimeException e) {
+            this.logger.warn("[CREATE] {} queued users not written: {}", users.size(), e.getMessage());
+            for (final Pending pending : batch) {
+                pending.written.completeExceptionally(e);
+            }
+
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            final Pending pending = batch.get(i);
+            final BulkResult result = results.get(i);
+            if (result.isSuccess()) {
+                if (!pending.durable) {
+                    // Its caller was answered before, so the write is only known from here
+                    for (final UserChangeListener listener : this.listeners) {
+                        listener.changed(result.getId());
+                    }
+                }
+
+                pending.written.complete(null);
+            } else {
+                if (!pending.durable) {
+                    // Nobody waits for this user, the log is the only trace of the failure
+                    this.logger.warn("[CREATE] Queued user {} not written: {}", result.getId(), result.getMessage());
+                }
+
+                pending.written.completeExceptionally(result.getStatus() == 409
+                        ? new DuplicateUserException(result.getMessage())
+                        : new IllegalArgumentException(result.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * A user waiting to be written
+     */
+    private static class Pending {
+        private final User user;
+        private final boolean durable;
+        private final long accepted = System.nanoTime();
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Pending(final User user, final boolean durable) {
+            this.user = user;
+            this.durable = durable;
+        }
+    }
+}
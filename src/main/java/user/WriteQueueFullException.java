@@ -0,0 +1,17 @@
+package user;
+
+/**
+ * Thrown when a user cannot be accepted because too many are already waiting to be written. The request can be tried
+ * again once the queue drains
+ */
+public class WriteQueueFullException extends RuntimeException {
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *         Number of users the queue holds
+     */
+    public WriteQueueFullException(final int capacity) {
+        super("Too many users waiting to be created (" + capacity + "), try again later");
+    }
+}
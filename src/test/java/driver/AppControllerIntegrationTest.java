@@ -1,13 +1,16 @@
 package driver;
 
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
 import helper.JsonTestStringsFactory;
+import org.bson.Document;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import spark.Spark;
+import response.ResponseHandler;
 import spark.utils.IOUtils;
 import user.UserService;
 
@@ -24,17 +27,22 @@ import java.net.URL;
 public class AppControllerIntegrationTest {
     private static final Logger logger = LoggerFactory.getLogger(AppControllerIntegrationTest.class);
     private static final String TEST = "test";
+    private static MongoCollection<Document> dbCollection;
+    private static JettyServer server;
 
     /**
-     * Start server
+     * Start server, on a free port and with the database client configured
      *
      * @throws Exception
      */
     @BeforeClass
     public static void setUp() throws Exception {
         logger.info("Start Spark server and connect to MongoDB...");
-        new AppController(TEST, TEST);
-        Thread.sleep(2000);
+        final MongoClient mongoClient = ServerConfig.load().createMongoClient();
+        dbCollection = mongoClient.getDatabase(TEST).getCollection(TEST);
+        server = new JettyServer(0, 8);
+        server.onStop(mongoClient::close);
+        new AppController(new ResponseHandler(new UserService(dbCollection)), server);
         logger.info("Server started!");
     }
 
@@ -46,8 +54,8 @@ public class AppControllerIntegrationTest {
     @AfterClass
     public static void tearDown() throws Exception {
         logger.info("Removing all the test work..");
-        UserService.getCollection(TEST, TEST).drop();
-        Spark.stop();
+        dbCollection.drop();
+        server.stop();
     }
 
     /**
@@ -78,6 +86,13 @@ public class AppControllerIntegrationTest {
         // Again check if DB empty
         response = this.execute("/users", null, "GET");
         Assert.assertEquals("No users expected", JsonTestStringsFactory.NO_USERS_FOUND, response);
+
+        // Finally, check the requests were timed
+        response = this.execute("/metrics", null, "GET");
+        Assert.assertTrue("Create not timed",
+                response.contains("http_request_duration_seconds_count{route=\"/create\"} 1"));
+        Assert.assertTrue("Errors not counted",
+                response.contains("http_request_errors_total{route=\"/remove/:id\"} 1"));
     }
 
     /**
@@ -95,7 +110,7 @@ public class AppControllerIntegrationTest {
         HttpURLConnection connection = null;
         try {
             // Create connection
-            final URL url = new URL("http://localhost:8000" + targetURL);
+            final URL url = new URL("http://localhost:" + server.getPort() + targetURL);
             connection = (HttpURLConnection) url.openConnection();
             connection.setRequestMethod(method);
             connection.setRequestProperty("Content-Type", "application/json");
@@ -0,0 +1,37 @@
+package driver;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test for stopping the embedded server
+ */
+public class JettyServerTest {
+    private static final Logger logger = LoggerFactory.getLogger(JettyServerTest.class);
+
+    /**
+     * Every stop action runs in order, even after one of them failed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void stopActions() throws Exception {
+        final List<String> ran = new ArrayList<>();
+        final JettyServer server = new JettyServer(0, 8);
+        server.onStop(() -> ran.add("first"));
+        server.onStop(() -> {
+            ran.add("failing");
+            throw new IllegalStateException("Client already closed");
+        });
+        server.onStop(() -> ran.add("last"));
+
+        JettyServerTest.logger.info("Stopping server...");
+        server.stop();
+        Assert.assertEquals("All actions expected", "[first, failing, last]", ran.toString());
+    }
+}
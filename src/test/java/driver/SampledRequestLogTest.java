@@ -0,0 +1,40 @@
+package driver;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test for the sampling of the access log
+ */
+public class SampledRequestLogTest {
+    private static final Logger logger = LoggerFactory.getLogger(SampledRequestLogTest.class);
+
+    /**
+     * Server errors are always logged
+     */
+    @Test
+    public void serverErrors() {
+        final SampledRequestLog requestLog = new SampledRequestLog(0);
+        Assert.assertTrue("Server error not logged", requestLog.isSampled(500));
+        Assert.assertFalse("Success logged", requestLog.isSampled(200));
+    }
+
+    /**
+     * Other requests are logged at the sample rate
+     */
+    @Test
+    public void sampleRate() {
+        Assert.assertTrue("Every request expected", new SampledRequestLog(1).isSampled(404));
+
+        final SampledRequestLog requestLog = new SampledRequestLog(100);
+        int sampled = 0;
+        for (int i = 0; i < 100000; i++) {
+            sampled += requestLog.isSampled(200) ? 1 : 0;
+        }
+
+        SampledRequestLogTest.logger.info("Sampled {} of 100000 requests", sampled);
+        Assert.assertTrue("About 1 in 100 expected", sampled > 800 && sampled < 1200);
+    }
+}
@@ -0,0 +1,195 @@
+package driver;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.async.client.MongoClientSettings;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Test for the server configuration and its sources
+ */
+public class ServerConfigTest {
+    private static final Logger logger = LoggerFactory.getLogger(ServerConfigTest.class);
+    private Properties file;
+    private Map<String, String> env;
+    private Properties system;
+    private ServerConfig config;
+
+    @Rule
+    public ExpectedException expectedEx = ExpectedException.none();
+
+    /**
+     * Empty sources
+     */
+    @Before
+    public void setUp() {
+        this.file = new Properties();
+        this.env = new HashMap<>();
+        this.system = new Properties();
+        this.config = new ServerConfig(this.file, this.env, this.system);
+    }
+
+    /**
+     * System properties take precedence over the environment, which takes precedence over the file
+     */
+    @Test
+    public void precedence() {
+        Assert.assertEquals("Default expected", 8000, this.config.getInt(ServerConfig.PORT));
+
+        this.file.setProperty(ServerConfig.PORT, "8001");
+        Assert.assertEquals("File expected", 8001, this.config.getInt(ServerConfig.PORT));
+
+        this.env.put("SERVER_PORT", "8002");
+        Assert.assertEquals("Environment expected", 8002, this.config.getInt(ServerConfig.PORT));
+
+        this.system.setProperty(ServerConfig.PORT, " 8003 ");
+        Assert.assertEquals("System property expected", 8003, this.config.getInt(ServerConfig.PORT));
+    }
+
+    /**
+     * Invalid numbers are rejected with the key in error
+     */
+    @Test
+    public void invalidNumber() {
+        this.env.put("SERVER_THREADS_MAX", "-1");
+        this.expectedEx.expect(IllegalArgumentException.class);
+        this.expectedEx.expectMessage("Invalid value -1 for server.threads.max");
+        this.config.getInt(ServerConfig.MAX_THREADS);
+    }
+
+    /**
+     * Invalid modes are rejected
+     */
+    @Test
+    public void invalidMode() {
+        this.system.setProperty(ServerConfig.MODE, "fast");
+        this.expectedEx.expect(IllegalArgumentException.class);
+        this.expectedEx.expectMessage("Invalid value fast for server.mode");
+        this.config.getMode();
+    }
+
+    /**
+     * Compression is turned off with a minimum size of -1, and only valid levels are accepted
+     */
+    @Test
+    public void compression() {
+        Assert.assertEquals("Default minimum size expected", 1024, this.config.getCompressionMinSize());
+        Assert.assertEquals("Default level expected", 6, this.config.getCompressionLevel());
+        this.system.setProperty(ServerConfig.COMPRESSION_MIN_SIZE, "-1");
+        Assert.assertEquals("Compression expected to be off", -1, this.config.getCompressionMinSize());
+        this.system.setProperty(ServerConfig.COMPRESSION_MIN_SIZE, "-2");
+        try {
+            this.config.getCompressionMinSize();
+            Assert.fail("Invalid minimum size accepted");
+        } catch (final IllegalArgumentException e) {
+            ServerConfigTest.logger.info(e.getMessage());
+            Assert.assertEquals("Error does not match", "Invalid value -2 for server.compression.minSize",
+                    e.getMessage());
+        }
+
+        this.env.put("SERVER_COMPRESSION_LEVEL", "10");
+        this.expectedEx.expect(IllegalArgumentException.class);
+        this.expectedEx.expectMessage("Invalid value 10 for server.compression.level, expected 0 to 9");
+        this.config.getCompressionLevel();
+    }
+
+    /**
+     * Only known change feeds are accepted
+     */
+    @Test
+    public void changeFeed() {
+        Assert.assertEquals("No feed expected by default", "none", this.config.getChangeFeed());
+        this.env.put("CACHE_CHANGEFEED", "mongo");
+        Assert.assertEquals("Change stream expected", "mongo", this.config.getChangeFeed());
+
+        this.system.setProperty(ServerConfig.CACHE_CHANGE_FEED, "oplog");
+        this.expectedEx.expect(IllegalArgumentException.class);
+        this.expectedEx.expectMessage("Invalid value oplog for cache.changeFeed");
+        this.config.getChangeFeed();
+    }
+
+    /**
+     * Batches of reads need at least one reader
+     */
+    @Test
+    public void readBatchReaders() {
+        Assert.assertEquals("Default readers expected", 8, this.config.getReadBatchReaders());
+        this.env.put("READBATCH_READERS", "0");
+        this.expectedEx.expect(IllegalArgumentException.class);
+        this.expectedEx.expectMessage("Invalid value 0 for readBatch.readers, expected at least 1");
+        this.config.getReadBatchReaders();
+    }
+
+    /**
+     * The wait queue is larger in the virtual thread mode, unless set
+     */
+    @Test
+    public void waitQueueMultiple() {
+        Assert.assertEquals("Driver default expected", 5, this.config.getMongoWaitQueueMultiple());
+
+        this.system.setProperty(ServerConfig.MODE, "virtual");
+        Assert.assertEquals("Larger queue expected", 500, this.config.getMongoWaitQueueMultiple());
+
+        this.file.setProperty(ServerConfig.MONGO_WAIT_QUEUE_MULTIPLE, "20");
+        Assert.assertEquals("Configured queue expected", 20, this.config.getMongoWaitQueueMultiple());
+    }
+
+    /**
+     * Pool settings are applied to the client, unless given in the connection string
+     */
+    @Test
+    public void mongoClient() {
+        this.file.setProperty(ServerConfig.MONGO_MAX_POOL_SIZE, "20");
+        this.file.setProperty(ServerConfig.MONGO_SERVER_SELECTION_TIMEOUT, "1000");
+        this.env.put("MONGO_URI", "mongodb://localhost/?waitQueueTimeoutMS=2000");
+
+        ServerConfigTest.logger.info("Creating client...");
+        final MongoClient client = this.config.createMongoClient();
+        try {
+            final MongoClientOptions options = client.getMongoClientOptions();
+            Assert.assertEquals("Pool size not applied", 20, options.getConnectionsPerHost());
+            Assert.assertEquals("Timeout not applied", 1000, options.getServerSelectionTimeout());
+            Assert.assertEquals("Connection string option expected", 2000, options.getMaxWaitTime());
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Options of the connection string are applied to the asynchronous client as well, including SSL
+     */
+    @Test
+    public void asyncMongoClient() {
+        this.env.put("MONGO_URI", "mongodb://localhost/?readPreference=secondaryPreferred&w=majority&journal=true");
+
+        ServerConfigTest.logger.info("Creating async client...");
+        final com.mongodb.async.client.MongoClient client = this.config.createAsyncMongoClient();
+        try {
+            final MongoClientSettings settings = client.getSettings();
+            Assert.assertEquals("Read preference not applied", ReadPreference.secondaryPreferred(),
+                    settings.getReadPreference());
+            Assert.assertEquals("Write concern not applied", WriteConcern.MAJORITY.withJournal(true),
+                    settings.getWriteConcern());
+            Assert.assertFalse("SSL not expected", settings.getSslSettings().isEnabled());
+        } finally {
+            client.close();
+        }
+
+        // The asynchronous socket channel has no SSL support, so the client is refused rather than left in plaintext
+        this.env.put("MONGO_URI", "mongodb://localhost/?ssl=true");
+        this.expectedEx.expect(UnsupportedOperationException.class);
+        this.config.createAsyncMongoClient().close();
+    }
+}
@@ -0,0 +1,70 @@
+package driver;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the virtual thread pool, on whichever JDK runs the tests
+ */
+public class VirtualThreadPoolTest {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadPoolTest.class);
+
+    /**
+     * Virtual threads are reported as unsupported before JDK 21
+     */
+    @Test
+    public void unsupported() {
+        if (VirtualThreads.isSupported()) {
+            return;
+        }
+
+        VirtualThreadPoolTest.logger.info("Virtual threads not supported on " + System.getProperty("java.version"));
+        try {
+            new VirtualThreadPool();
+            Assert.fail("Expected virtual threads to be unsupported");
+        } catch (final UnsupportedOperationException e) {
+            Assert.assertTrue("Expected JDK version in error", e.getMessage().contains("JDK 21"));
+        }
+    }
+
+    /**
+     * Every task blocks on its own thread, many more than a platform pool would hold
+     *
+     * @throws Exception
+     */
+    @Test
+    public void blockingTasks() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+
+        final VirtualThreadPool pool = new VirtualThreadPool();
+        pool.start();
+        final CountDownLatch running = new CountDownLatch(10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 10000; i++) {
+            pool.execute(() -> {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        // All tasks wait at once
+        Assert.assertTrue("Tasks not running concurrently", running.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals("Expected a thread per task", 10000, pool.getThreads());
+        Assert.assertFalse("Pool never runs low", pool.isLowOnThreads());
+
+        release.countDown();
+        pool.stop();
+        Assert.assertEquals("Expected all tasks done", 0, pool.getThreads());
+    }
+}
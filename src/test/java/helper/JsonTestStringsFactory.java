@@ -84,11 +84,19 @@ public class JsonTestStringsFactory {
             "  }\n" +
             "}";
 
+    public static final String GET_ONE_USER_COMPACT = "{\"id\":\"one\",\"name\":{\"firstName\":\"test\"}}";
+
     public static final String GET_ALL_USERS = GET_ONE_USER + "\n" +
             "{\n" +
             "  \"id\" : \"two\"\n" +
             "}";
 
+    public static final String BULK_CREATED = "{\"items\":[" +
+            "{\"index\":0,\"id\":\"1630215c-2608-44b9-aad4-9d56d8aafd4c\",\"status\":200," +
+            "\"message\":\"User created!!\"}," +
+            "{\"index\":1,\"id\":\"short\",\"status\":409,\"message\":\"Duplicate user short\"}]," +
+            "\"succeeded\":1,\"failed\":1}";
+
     public static final String GET_ERROR = "{\n" +
             "  \"message\" : \"test exception\",\n" +
             "  \"status\" : 400\n" +
@@ -0,0 +1,68 @@
+package metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the timers and their Prometheus text format
+ */
+public class MetricsTest {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsTest.class);
+
+    /**
+     * Latencies are written as quantiles in seconds, with their sum, count and errors
+     */
+    @Test
+    public void prometheusText() {
+        final Metrics metrics = new Metrics();
+        final Timer timer = metrics.timer("http_request", "HTTP requests by route", "route", "/users/:id");
+        for (int i = 1; i <= 100; i++) {
+            timer.recordNanos(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        timer.recordError(System.nanoTime());
+
+        final String text = metrics.toPrometheusText();
+        MetricsTest.logger.info(text);
+        Assert.assertTrue("Summary type expected",
+                text.contains("# TYPE http_request_duration_seconds summary\n"));
+        Assert.assertTrue("Median expected", text.contains(
+                "http_request_duration_seconds{route=\"/users/:id\",quantile=\"0.5\"} 0.05"));
+        Assert.assertTrue("Count expected",
+                text.contains("http_request_duration_seconds_count{route=\"/users/:id\"} 101\n"));
+        Assert.assertTrue("Sum expected",
+                text.contains("http_request_duration_seconds_sum{route=\"/users/:id\"} 5.05"));
+        Assert.assertTrue("Errors expected", text.contains("http_request_errors_total{route=\"/users/:id\"} 1\n"));
+    }
+
+    /**
+     * The same timer is returned for the same label value, values are kept across reads
+     */
+    @Test
+    public void sameTimer() {
+        final Metrics metrics = new Metrics();
+        final Timer timer = metrics.timer("user_service", "user service operations by method", "method", "getUser");
+        Assert.assertSame("Same timer expected", timer,
+                metrics.timer("user_service", "user service operations by method", "method", "getUser"));
+
+        timer.recordNanos(1000);
+        Assert.assertEquals("Value expected", 1, timer.getHistogram().getTotalCount());
+        timer.recordNanos(TimeUnit.HOURS.toNanos(1));
+        Assert.assertEquals("Values kept expected", 2, timer.getHistogram().getTotalCount());
+        Assert.assertEquals("Longest latency capped", Timer.HIGHEST_MICROS,
+                timer.getHistogram().getMaxValue(), Timer.HIGHEST_MICROS / 100);
+    }
+
+    /**
+     * A family has a single label
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void differentLabel() {
+        final Metrics metrics = new Metrics();
+        metrics.timer("user_service", "user service operations by method", "method", "getUser");
+        metrics.timer("user_service", "user service operations by method", "route", "/users");
+    }
+}
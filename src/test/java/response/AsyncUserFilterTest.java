@@ -0,0 +1,282 @@
+package response;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import helper.JsonTestStringsFactory;
+import metrics.Metrics;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import user.IAsyncUserService;
+import user.UserJson;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Test for the asynchronous single user routes, over a mocked servlet container
+ */
+public class AsyncUserFilterTest {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncUserFilterTest.class);
+    private IAsyncUserService userService;
+    private AsyncUserFilter filter;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private AsyncContext async;
+    private FilterChain chain;
+    private ByteArrayOutputStream out;
+
+    /**
+     * Mock the container, with an asynchronous context writing to a buffer
+     *
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        AsyncUserFilterTest.logger.info("Mocking servlet container..");
+        this.userService = Mockito.mock(IAsyncUserService.class);
+        this.filter = new AsyncUserFilter(this.userService, true);
+        this.request = Mockito.mock(HttpServletRequest.class);
+        this.response = Mockito.mock(HttpServletResponse.class);
+        this.async = Mockito.mock(AsyncContext.class);
+        this.chain = Mockito.mock(FilterChain.class);
+        this.out = new ByteArrayOutputStream();
+
+        Mockito.when(this.request.getContextPath()).thenReturn("");
+        Mockito.when(this.request.startAsync()).thenReturn(this.async);
+        Mockito.when(this.async.getRequest()).thenReturn(this.request);
+        Mockito.when(this.async.getResponse()).thenReturn(this.response);
+        Mockito.when(this.response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(final int b) {
+                AsyncUserFilterTest.this.out.write(b);
+            }
+        });
+        AsyncUserFilterTest.logger.info("Mocks created");
+    }
+
+    /**
+     * Users are written once the query completes, in the format requested
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getUser() throws Exception {
+        final CompletableFuture<RawBsonDocument> pending = new CompletableFuture<>();
+        Mockito.when(this.userService.getRawUser("one", null)).thenReturn(pending);
+        this.mockRequest("GET", "/users/one", "pretty=false");
+
+        // Nothing is written while the query is in flight
+        this.filter.doFilter(this.request, this.response, this.chain);
+        Mockito.verify(this.async, Mockito.never()).complete();
+
+        // Then, the user
+        AsyncUserFilterTest.logger.info("Completing query...");
+        pending.complete(new RawBsonDocument(
+                new Document("id", "one").append("name", new Document("firstName", "test")), new DocumentCodec()));
+        Assert.assertEquals("Compact user expected", JsonTestStringsFactory.GET_ONE_USER_COMPACT, this.body());
+        Mockito.verify(this.response).setStatus(200);
+        Mockito.verify(this.async).complete();
+        Mockito.verifyZeroInteractions(this.chain);
+    }
+
+    /**
+     * Missing users are reported as not found
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getMissingUser() throws Exception {
+        Mockito.when(this.userService.getRawUser("invalidTest", null))
+               .thenReturn(CompletableFuture.completedFuture(null));
+        this.mockRequest("GET", "/users/invalidTest", null);
+
+        this.filter.doFilter(this.request, this.response, this.chain);
+        Assert.assertEquals("Error expected when user not found", JsonTestStringsFactory.NO_USER_FOUND, this.body());
+        Mockito.verify(this.response).setStatus(404);
+    }
+
+    /**
+     * Bodies are read through a read listener, and failures reported as errors
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createUser() throws Exception {
+        Mockito.when(this.userService.createUser(UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON)))
+               .thenReturn(CompletableFuture.completedFuture(null));
+        this.mockRequest("PUT", "/create", null);
+        this.mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
+
+        this.filter.doFilter(this.request, this.response, this.chain);
+        Assert.assertEquals("User not created", JsonTestStringsFactory.USER_CREATED, this.body());
+
+        // Failed write
+        AsyncUserFilterTest.logger.info("Failing update...");
+        final CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new Exception("User not found to update"));
+        Mockito.when(this.userService.updateUser(UserJson.read(JsonTestStringsFactory.VALID_SHORT_JSON), true))
+               .thenReturn(failed);
+        this.mockRequest("PUT", "/update", "upsert=true");
+        this.mockInputStream(JsonTestStringsFactory.VALID_SHORT_JSON);
+        this.out.reset();
+
+        this.filter.doFilter(this.request, this.response, this.chain);
+        Assert.assertTrue("Error expected", this.body().contains("User not found to update"));
+        Mockito.verify(this.response).setStatus(400);
+    }
+
+    /**
+     * A user created with the id of another is reported as a conflict, as on the Spark routes
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createDuplicateUser() throws Exception {
+        final CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new MongoWriteException(
+                new WriteError(11000, "E11000 duplicate key error", new BsonDocument()), new ServerAddress()));
+        Mockito.when(this.userService.createUser(UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON)))
+               .thenReturn(failed);
+        this.mockRequest("PUT", "/create", null);
+        this.mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
+
+        this.filter.doFilter(this.request, this.response, this.chain);
+        Assert.assertTrue("Conflict expected", this.body().contains("\"status\" : 409"));
+        Mockito.verify(this.response).setStatus(409);
+    }
+
+    /**
+     * Bodies over the size limit are rejected, before reading them if their length is known
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createTooLargeUser() throws Exception {
+        this.filter = new AsyncUserFilter(this.userService, true, null, new Metrics(), 100);
+        this.mockRequest("PUT", "/create", null);
+        this.mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
+
+        // Length unknown, rejected once the limit is read
+        this.filter.doFilter(this.request, this.response, this.chain);
+        AsyncUserFilterTest.logger.info(this.body());
+        Assert.assertTrue("Error expected", this.body().contains("Request body larger than 100 bytes"));
+
+        // Length known, the body is not read at all
+        this.mockRequest("PUT", "/update", null);
+        Mockito.when(this.request.getContentLengthLong()).thenReturn(1000L);
+        this.out.reset();
+
+        this.filter.doFilter(this.request, this.response, this.chain);
+        Assert.assertTrue("Error expected", this.body().contains("Request body larger than 100 bytes"));
+        Mockito.verify(this.request, Mockito.times(1)).getInputStream();
+        Mockito.verify(this.response, Mockito.times(2)).setStatus(400);
+        Mockito.verifyZeroInteractions(this.userService);
+    }
+
+    /**
+     * Other routes are left to Spark
+     *
+     * @throws Exception
+     */
+    @Test
+    public void passThrough() throws Exception {
+        for (final String path : new String[] { "/users", "/users/one/two", "/bulk/remove" }) {
+            this.mockRequest("GET", path, null);
+            this.filter.doFilter(this.request, this.response, this.chain);
+        }
+
+        this.mockRequest("POST", "/bulk/remove", null);
+        this.filter.doFilter(this.request, this.response, this.chain);
+
+        Mockito.verify(this.chain, Mockito.times(4)).doFilter(this.request, this.response);
+        Mockito.verify(this.request, Mockito.never()).startAsync();
+    }
+
+    /**
+     * Mock the request line
+     *
+     * @param method
+     *         HTTP method
+     * @param path
+     *         Request path
+     * @param query
+     *         Query string, can be null
+     */
+    private void mockRequest(final String method, final String path, final String query) {
+        Mockito.when(this.request.getMethod()).thenReturn(method);
+        Mockito.when(this.request.getRequestURI()).thenReturn(path);
+        Mockito.when(this.request.getQueryString()).thenReturn(query);
+    }
+
+    /**
+     * Mock a request body, all available as soon as the read listener is set
+     *
+     * @param body
+     *         Request body
+     * @throws Exception
+     */
+    private void mockInputStream(final String body) throws Exception {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        Mockito.when(this.request.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(final ReadListener readListener) {
+                try {
+                    readListener.onDataAvailable();
+                    readListener.onAllDataRead();
+                } catch (final Exception e) {
+                    readListener.onError(e);
+                }
+            }
+
+            @Override
+            public int read() {
+                return in.read();
+            }
+        });
+    }
+
+    /**
+     * @return Body written so far
+     */
+    private String body() {
+        return new String(this.out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
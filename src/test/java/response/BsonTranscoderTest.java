@@ -0,0 +1,84 @@
+package response;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Test for the transcoding of BSON users
+ */
+public class BsonTranscoderTest {
+    private static final Logger logger = LoggerFactory.getLogger(BsonTranscoderTest.class);
+    private static final ObjectMapper SMILE = new ObjectMapper(new SmileFactory());
+
+    /**
+     * Transcoded users are the same as encoded decoded users, for every value transcoded
+     *
+     * @throws Exception
+     */
+    @Test
+    public void write() throws Exception {
+        final Document values = new Document("id", "values").append("null", null)
+                                                            .append("empty", "")
+                                                            .append("escaped", "\"quoted\"\n\\ é中 😀")
+                                                            .append("int", -1)
+                                                            .append("long", Long.MAX_VALUE)
+                                                            .append("double", 1e20)
+                                                            .append("nan", Double.NaN)
+                                                            .append("boolean", true)
+                                                            .append("date", new Date(1465948800000L))
+                                                            .append("emptyArray", new ArrayList<>())
+                                                            .append("emptyDocument", new Document())
+                                                            .append("array", Arrays.asList(1, "two",
+                                                                    new Document("three", Arrays.asList(3.0, null))));
+        for (final Document user : new Document[]{ values, Document.parse(JsonTestStringsFactory.VALID_LONG_JSON),
+                Document.parse(JsonTestStringsFactory.VALID_SHORT_JSON) }) {
+            assertTranscoded(user);
+        }
+    }
+
+    /**
+     * Users with types without a JSON equivalent are still encoded as before
+     *
+     * @throws Exception
+     */
+    @Test
+    public void writeOtherTypes() throws Exception {
+        assertTranscoded(new Document("id", "other").append("address", new Document("oid", new ObjectId())));
+    }
+
+    /**
+     * Check that a user is transcoded to the same JSON as its encoding, and to the same Smile values
+     *
+     * @param user
+     *         User
+     * @throws Exception
+     */
+    private static void assertTranscoded(final Document user) throws Exception {
+        final RawBsonDocument raw = new RawBsonDocument(user, new DocumentCodec());
+        for (final ObjectWriter writer : new ObjectWriter[]{ JsonWriters.COMPACT, JsonWriters.PRETTY }) {
+            Assert.assertArrayEquals("Same JSON expected", writer.writeValueAsBytes(user),
+                    BsonTranscoder.toBytes(raw, writer));
+        }
+
+        // Strings may be written as Unicode even if ASCII
+        Assert.assertEquals("Same Smile values expected",
+                SMILE.readTree(JsonWriters.SMILE.writeValueAsBytes(user)),
+                SMILE.readTree(BsonTranscoder.toBytes(raw, JsonWriters.SMILE)));
+
+        BsonTranscoderTest.logger.info(new String(BsonTranscoder.toBytes(raw, JsonWriters.COMPACT), "UTF-8"));
+    }
+}
@@ -0,0 +1,98 @@
+package response;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test for the version of the users
+ */
+public class ChangeCounterTest {
+    private static final Logger logger = LoggerFactory.getLogger(ChangeCounterTest.class);
+
+    /**
+     * Entity tags change with each write, and match weakly whatever the compression of the response
+     */
+    @Test
+    public void etag() {
+        final AtomicLong clock = new AtomicLong(1_000_000);
+        final ChangeCounter changes = new ChangeCounter(60_000, clock::get);
+        final ChangeCounter.Version version = changes.current();
+        ChangeCounterTest.logger.info("Version {}", version.getEtag());
+
+        Assert.assertSame("Same version expected without writes", version, changes.current());
+        Assert.assertTrue("Own tag should match", version.matches(version.getEtag(), null));
+        final String opaque = version.getEtag().substring(3, version.getEtag().length() - 1);
+        Assert.assertTrue("Compressed tag should match", version.matches("\"" + opaque + "--gzip\"", null));
+        Assert.assertTrue("Any tag should match", version.matches("W/\"other\", " + version.getEtag(), null));
+        Assert.assertTrue("Wildcard should match", version.matches("*", null));
+        Assert.assertFalse("Other tag should not match", version.matches("W/\"other\"", null));
+
+        changes.changed();
+        Assert.assertNotEquals("New tag expected after a write", version.getEtag(), changes.current().getEtag());
+        Assert.assertFalse("Old tag should not match", changes.current().matches(version.getEtag(), null));
+    }
+
+    /**
+     * Dates only validate the first version of their second, and tags take precedence over them
+     */
+    @Test
+    public void lastModified() {
+        final AtomicLong clock = new AtomicLong(1_000_000);
+        final ChangeCounter changes = new ChangeCounter(60_000, clock::get);
+        final ChangeCounter.Version first = changes.current();
+        Assert.assertEquals("Unexpected date", "Thu, 1 Jan 1970 00:16:40 GMT", first.getLastModified());
+        Assert.assertTrue("Same date should match", first.matches(null, first.getLastModified()));
+        Assert.assertTrue("Later date should match", first.matches(null, "Thu, 1 Jan 1970 00:20:00 GMT"));
+        Assert.assertFalse("Earlier date should not match", first.matches(null, "Thu, 1 Jan 1970 00:16:39 GMT"));
+        Assert.assertFalse("Invalid date should not match", first.matches(null, "yesterday"));
+        Assert.assertFalse("Tag should take precedence", first.matches("W/\"other\"", first.getLastModified()));
+
+        // A write in the same second cannot be told apart by its date
+        clock.addAndGet(500);
+        changes.changed();
+        Assert.assertFalse("Imprecise date should not match", changes.current().matches(null, first.getLastModified()));
+        clock.addAndGet(1000);
+        changes.changed();
+        Assert.assertTrue("Precise date should match",
+                changes.current().matches(null, changes.current().getLastModified()));
+    }
+
+    /**
+     * Changes of other instances change the version
+     */
+    @Test
+    public void changeFeed() {
+        final ChangeCounter changes = new ChangeCounter(60_000, () -> 1_000_000);
+        final ChangeCounter.Version first = changes.current();
+        changes.changed("test");
+        final ChangeCounter.Version changed = changes.current();
+        ChangeCounterTest.logger.info("Versions {} and {}", first.getEtag(), changed.getEtag());
+        Assert.assertFalse("Old tag should not match after a change", changed.matches(first.getEtag(), null));
+
+        changes.reset();
+        Assert.assertFalse("Old tag should not match after a reset",
+                changes.current().matches(changed.getEtag(), null));
+    }
+
+    /**
+     * Without writes the version still changes after its maximum age, for writes of other processes
+     */
+    @Test
+    public void maxAge() {
+        final AtomicLong clock = new AtomicLong(1_000_000);
+        final ChangeCounter changes = new ChangeCounter(60_000, clock::get);
+        final ChangeCounter.Version first = changes.current();
+
+        clock.addAndGet(59_999);
+        Assert.assertSame("Same version expected before the maximum age", first, changes.current());
+        clock.addAndGet(1);
+        final ChangeCounter.Version renewed = changes.current();
+        Assert.assertNotSame("New version expected after the maximum age", first, renewed);
+        Assert.assertFalse("Old tag should not match", renewed.matches(first.getEtag(), null));
+        Assert.assertSame("Renewed version expected", renewed, changes.current());
+    }
+}
@@ -0,0 +1,29 @@
+package response;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for the negotiation of response formats
+ */
+public class ResponseFormatTest {
+    /**
+     * The supported media type of highest quality wins, JSON otherwise
+     */
+    @Test
+    public void negotiate() {
+        Assert.assertEquals("JSON expected without header", ResponseFormat.JSON, ResponseFormat.negotiate(null));
+        Assert.assertEquals("JSON expected for wildcards", ResponseFormat.JSON, ResponseFormat.negotiate("*/*"));
+        Assert.assertEquals("JSON expected for unknown types", ResponseFormat.JSON,
+                ResponseFormat.negotiate("application/cbor, text/html"));
+        Assert.assertEquals("BSON expected", ResponseFormat.BSON, ResponseFormat.negotiate("application/bson"));
+        Assert.assertEquals("First type expected on a tie", ResponseFormat.SMILE,
+                ResponseFormat.negotiate("application/x-jackson-smile, application/json"));
+        Assert.assertEquals("Highest quality expected", ResponseFormat.BSON,
+                ResponseFormat.negotiate("application/json;q=0.5, application/bson;q=0.9, */*;q=0.1"));
+        Assert.assertEquals("Refused type should be ignored", ResponseFormat.JSON,
+                ResponseFormat.negotiate("application/bson;q=0, application/json; pretty=true"));
+        Assert.assertEquals("Invalid quality should be ignored", ResponseFormat.JSON,
+                ResponseFormat.negotiate("application/bson;q=high"));
+    }
+}
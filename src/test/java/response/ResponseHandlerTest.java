@@ -1,14 +1,26 @@
 package response;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
 import helper.JsonTestStringsFactory;
+import metrics.Metrics;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
@@ -16,10 +28,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
+import user.BulkResult;
+import user.DuplicateUserException;
+import user.User;
+import user.UserJson;
+import user.UserQuery;
 import user.UserService;
+import user.WriteQueueFullException;
 
-import java.util.ArrayList;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Test for response handler
@@ -53,43 +84,361 @@ public class ResponseHandlerTest {
     }
 
     /**
-     * Checks if error is thrown when getting users from an empty database
+     * Test that all users are streamed to the output stream, one JSON document per line
      *
      * @throws Exception
      */
     @Test
-    public void testInvalidGetAll() throws Exception {
-        // Setup user service to return empty list
-        ResponseHandlerTest.logger.info("Mock user service to return empty list");
-        Mockito.when(userService.getAllUsers()).thenReturn(new ArrayList<>());
+    public void streamAllUsers() throws Exception {
+        // Setup user service to stream users with nested elements
+        ResponseHandlerTest.logger.info("Mock user service to stream users...");
+        Mockito.doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            final Consumer<RawBsonDocument> consumer = (Consumer<RawBsonDocument>) invocation.getArguments()[4];
+            consumer.accept(raw(new Document().append("id", "one").append("name", new Document().append("firstName",
+                    "test"))));
+            consumer.accept(raw(new Document().append("id", "two")));
+            return null;
+        }).when(userService).findRawUsers(Matchers.any(UserQuery.class), Matchers.anyString(), Matchers.anyInt(),
+                Matchers.anyListOf(String.class), Matchers.any(Consumer.class));
+        Mockito.when(request.queryParams("limit")).thenReturn("2");
+        Mockito.when(request.queryParams("after")).thenReturn(null);
+        final ByteArrayOutputStream out = mockOutputStream();
 
-        // Expect error
+        // Stream the users and validate the page requested
+        ResponseHandlerTest.logger.info("Mocking complete. Streaming all users...");
+        handler.streamAllUsers(request, response);
+        final ArgumentCaptor<UserQuery> query = ArgumentCaptor.forClass(UserQuery.class);
+        Mockito.verify(userService).findRawUsers(query.capture(), Matchers.eq((String) null), Matchers.eq(2),
+                Matchers.eq((List<String>) null), Matchers.any(Consumer.class));
+        Assert.assertTrue("No filters expected", query.getValue().isEmpty());
+        Assert.assertEquals("Result does not match", JsonTestStringsFactory.GET_ALL_USERS,
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks that a list is validated by the version of the users, unchanged lists answered without a scan
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamNotModified() throws Exception {
+        Mockito.reset(ResponseHandlerTest.userService, ResponseHandlerTest.response);
+        final ResponseHandler validatingHandler = new ResponseHandler(userService, false, null,
+                new ChangeCounter(60_000), new Metrics());
+        Mockito.doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            final Consumer<RawBsonDocument> consumer = (Consumer<RawBsonDocument>) invocation.getArguments()[4];
+            consumer.accept(raw(new Document().append("id", "one")));
+            return null;
+        }).when(userService).findRawUsers(Matchers.any(UserQuery.class), Matchers.anyString(), Matchers.anyInt(),
+                Matchers.anyListOf(String.class), Matchers.any(Consumer.class));
+        Mockito.when(request.queryParams("limit")).thenReturn(null);
+        Mockito.when(request.queryParams("after")).thenReturn(null);
+        mockOutputStream();
+
+        // First request gets the validators
+        validatingHandler.streamAllUsers(request, response);
+        final ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(response).header(Matchers.eq("ETag"), etag.capture());
+        Mockito.verify(response).header(Matchers.eq("Last-Modified"), Matchers.anyString());
+
+        try {
+            // Unchanged list
+            Mockito.when(request.headers("If-None-Match")).thenReturn(etag.getValue());
+            Assert.assertEquals("Empty body expected", "", validatingHandler.streamAllUsers(request, response));
+            Mockito.verify(response).status(304);
+            Mockito.verify(userService).findRawUsers(Matchers.any(UserQuery.class), Matchers.anyString(),
+                    Matchers.anyInt(), Matchers.anyListOf(String.class), Matchers.any(Consumer.class));
+
+            // Changed by a write
+            Mockito.when(request.params(Matchers.any(String.class))).thenReturn("one");
+            validatingHandler.remove(request);
+            validatingHandler.streamAllUsers(request, response);
+            Mockito.verify(userService, Mockito.times(2)).findRawUsers(Matchers.any(UserQuery.class),
+                    Matchers.anyString(), Matchers.anyInt(), Matchers.anyListOf(String.class),
+                    Matchers.any(Consumer.class));
+        } finally {
+            Mockito.when(request.headers("If-None-Match")).thenReturn(null);
+        }
+    }
+
+    /**
+     * Checks that an empty page after a cursor is not an error, but an empty first page is
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamEmptyPage() throws Exception {
+        // Setup user service to stream nothing
+        Mockito.reset(ResponseHandlerTest.userService);
+        Mockito.when(request.queryParams("limit")).thenReturn(null);
+        Mockito.when(request.queryParams("after")).thenReturn("two");
+        final ByteArrayOutputStream out = mockOutputStream();
+
+        // Past the last page
+        Assert.assertEquals("Empty body expected", "", handler.streamAllUsers(request, response));
+        Assert.assertEquals("Nothing should be written", 0, out.size());
+
+        // First page of an empty database
+        Mockito.when(request.queryParams("after")).thenReturn(null);
         this.expectedEx.expect(Exception.class);
         this.expectedEx.expectMessage("Database empty");
+        handler.streamAllUsers(request, response);
+    }
 
-        // Try to get response for all users when DB is empty
-        ResponseHandlerTest.logger.info("Get response for all users");
-        handler.getResponseForAllUsers();
+    /**
+     * Checks that the fields requested are pushed down to the scan
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamAllUsersWithFields() throws Exception {
+        Mockito.reset(ResponseHandlerTest.userService);
+        Mockito.doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            final Consumer<RawBsonDocument> consumer = (Consumer<RawBsonDocument>) invocation.getArguments()[4];
+            consumer.accept(raw(new Document().append("id", "one")));
+            return null;
+        }).when(userService).findRawUsers(Matchers.any(UserQuery.class), Matchers.anyString(), Matchers.anyInt(),
+                Matchers.anyListOf(String.class), Matchers.any(Consumer.class));
+        Mockito.when(request.queryParams("limit")).thenReturn(null);
+        Mockito.when(request.queryParams("after")).thenReturn(null);
+        Mockito.when(request.queryParams("fields")).thenReturn("email");
+        final ByteArrayOutputStream out = mockOutputStream();
+        try {
+            handler.streamAllUsers(request, response);
+        } finally {
+            Mockito.when(request.queryParams("fields")).thenReturn(null);
+        }
+
+        Mockito.verify(userService).findRawUsers(Matchers.any(UserQuery.class), Matchers.eq((String) null),
+                Matchers.eq(0), Matchers.eq(Arrays.asList("id", "email")), Matchers.any(Consumer.class));
+        Assert.assertTrue("User expected", new String(out.toByteArray(), StandardCharsets.UTF_8).contains("one"));
+    }
+
+    /**
+     * Checks that other query parameters are filters, and that no match is not an error
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamFilteredUsers() throws Exception {
+        Mockito.reset(ResponseHandlerTest.userService);
+        Mockito.when(request.queryParams()).thenReturn(new HashSet<>(Arrays.asList("email", "limit")));
+        Mockito.when(request.queryParams("email")).thenReturn("ekalgolas@gmail.com");
+        Mockito.when(request.queryParams("limit")).thenReturn("10");
+        Mockito.when(request.queryParams("after")).thenReturn(null);
+        final ByteArrayOutputStream out = mockOutputStream();
+        try {
+            Assert.assertEquals("Empty body expected", "", handler.streamAllUsers(request, response));
+
+            // Unindexed field
+            Mockito.when(request.queryParams()).thenReturn(new HashSet<>(Arrays.asList("firstName", "limit")));
+            this.expectedEx.expect(Exception.class);
+            this.expectedEx.expectMessage("Invalid filter firstName");
+            handler.streamAllUsers(request, response);
+        } finally {
+            Mockito.when(request.queryParams()).thenReturn(new HashSet<>());
+            final ArgumentCaptor<UserQuery> query = ArgumentCaptor.forClass(UserQuery.class);
+            Mockito.verify(userService).findRawUsers(query.capture(), Matchers.eq((String) null), Matchers.eq(10),
+                    Matchers.eq((List<String>) null), Matchers.any(Consumer.class));
+            Assert.assertEquals("Unexpected filters", "{email=ekalgolas@gmail.com}", query.getValue().toString());
+            Assert.assertEquals("Nothing should be written", 0, out.size());
+        }
+    }
+
+    /**
+     * Checks that invalid page sizes are rejected
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamInvalidLimit() throws Exception {
+        Mockito.when(request.queryParams("limit")).thenReturn("-1");
+
+        // Expect error
+        this.expectedEx.expect(Exception.class);
+        this.expectedEx.expectMessage("Invalid limit");
+        handler.streamAllUsers(request, response);
     }
 
     /**
-     * Test pretty print response for valid get all
+     * Test bulk creation from new line delimited JSON, with the result of each user
      *
      * @throws Exception
      */
     @Test
-    public void getResponseForAllUsers() throws Exception {
-        // Setup user service to return list with nested elements
-        ResponseHandlerTest.logger.info("Mock user service to return users...");
-        final List<Document> list = new ArrayList<>();
-        list.add(new Document().append("id", "one").append("name", new Document().append("firstName", "test")));
-        list.add(new Document().append("id", "two"));
-        Mockito.when(userService.getAllUsers()).thenReturn(list);
+    public void bulkCreate() throws Exception {
+        // Setup mock for request and user service
+        ResponseHandlerTest.logger.info("Mocking spark request...");
+        mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON + "\n\n" + JsonTestStringsFactory.VALID_SHORT_JSON);
+        Mockito.when(userService.createUsers(Matchers.anyListOf(User.class))).thenReturn(Arrays.asList(
+                new BulkResult("1630215c-2608-44b9-aad4-9d56d8aafd4c", 200, "User created!!"),
+                new BulkResult("short", 409, "Duplicate user short")));
+        Mockito.when(request.queryParams("pretty")).thenReturn("false");
+        final ByteArrayOutputStream out = mockOutputStream();
+
+        // Get response for bulk create
+        try {
+            handler.bulkCreate(request, response);
+        } finally {
+            Mockito.when(request.queryParams("pretty")).thenReturn(null);
+        }
 
-        // Try to get response for all users when DB is empty
-        ResponseHandlerTest.logger.info("Mocking complete. Getting response for all users...");
-        final String result = handler.getResponseForAllUsers();
-        Assert.assertEquals("Result does not match", JsonTestStringsFactory.GET_ALL_USERS, result);
+        // Validate a single batch and match the response
+        Mockito.verify(userService).createUsers(Matchers.argThat(new ArgumentMatcher<List<User>>() {
+            @Override
+            public boolean matches(final Object argument) {
+                return ((List<?>) argument).size() == 2;
+            }
+        }));
+        Assert.assertEquals("Result does not match", JsonTestStringsFactory.BULK_CREATED,
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that values of a bulk request that are not users are rejected in place, without reaching the service
+     *
+     * @throws Exception
+     */
+    @Test
+    public void bulkCreateInvalid() throws Exception {
+        // Setup mock for request and user service
+        Mockito.reset(ResponseHandlerTest.userService);
+        mockInputStream("[" + JsonTestStringsFactory.VALID_LONG_JSON + ", {'id': 'bad', 'extra': {'a': [1, {}]}}, "
+                + JsonTestStringsFactory.VALID_SHORT_JSON + "]");
+        Mockito.when(userService.createUsers(Matchers.anyListOf(User.class))).thenReturn(Arrays.asList(
+                new BulkResult("1630215c-2608-44b9-aad4-9d56d8aafd4c", 200, "User created!!"),
+                new BulkResult("short", 200, "User created!!")));
+        final ByteArrayOutputStream out = mockOutputStream();
+
+        // Only the users are created, and the value skipped is reported at its index
+        handler.bulkCreate(request, response);
+        Mockito.verify(userService).createUsers(Matchers.argThat(new ArgumentMatcher<List<User>>() {
+            @Override
+            public boolean matches(final Object argument) {
+                final List<?> users = (List<?>) argument;
+                return users.size() == 2 && "short".equals(((User) users.get(1)).getId());
+            }
+        }));
+
+        final Document result = Document.parse(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        ResponseHandlerTest.logger.info("Result: {}", result.toJson());
+        final Document invalid = (Document) ((List<?>) result.get("items")).get(1);
+        Assert.assertEquals("Invalid user should be rejected", 400, invalid.get("status"));
+        Assert.assertEquals("Message does not match", "Invalid field extra", invalid.get("message"));
+        Assert.assertEquals("Users created do not match", 2, result.get("succeeded"));
+        Assert.assertEquals("Users rejected do not match", 1, result.get("failed"));
+    }
+
+    /**
+     * Test bulk removal from a JSON array of ids, and that malformed requests are rejected before any write
+     *
+     * @throws Exception
+     */
+    @Test
+    public void bulkRemove() throws Exception {
+        // Setup mock for request and user service
+        Mockito.reset(ResponseHandlerTest.userService);
+        mockInputStream("['one', {'id': 'two'}]");
+        Mockito.when(userService.removeUsers(Matchers.anyListOf(String.class))).thenReturn(Arrays.asList(
+                new BulkResult("one", 200, "User one removed!!"), new BulkResult("two", 404, "User not found")));
+        mockOutputStream();
+
+        // Validate the ids
+        handler.bulkRemove(request, response);
+        Mockito.verify(userService).removeUsers(Arrays.asList("one", "two"));
+
+        // Plain ids are not users
+        mockInputStream("[\"one\"]");
+        this.expectedEx.expect(Exception.class);
+        this.expectedEx.expectMessage("Unexpected one");
+        handler.bulkCreate(request, response);
+    }
+
+    /**
+     * Mock the raw servlet request to read a body
+     *
+     * @param body
+     *         Request body
+     * @throws Exception
+     */
+    private static void mockInputStream(final String body) throws Exception {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        final HttpServletRequest raw = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(raw.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(final ReadListener readListener) {
+            }
+
+            @Override
+            public int read() {
+                return in.read();
+            }
+        });
+        Mockito.when(request.raw()).thenReturn(raw);
+    }
+
+    /**
+     * Get a user written directly to the response
+     *
+     * @return Body written
+     * @throws Exception
+     */
+    private static String getSingleUser() throws Exception {
+        final ByteArrayOutputStream out = mockOutputStream();
+        Assert.assertEquals("Empty body expected", "", handler.getResponseForSingleUser(request, response));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode a user as read from the database
+     *
+     * @param user
+     *         User
+     * @return BSON of the user
+     */
+    private static RawBsonDocument raw(final Document user) {
+        return new RawBsonDocument(user, new DocumentCodec());
+    }
+
+    /**
+     * Mock the raw servlet response to capture the streamed body
+     *
+     * @return Stream the body is written to
+     * @throws Exception
+     */
+    private static ByteArrayOutputStream mockOutputStream() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final HttpServletResponse raw = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(raw.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(final int b) {
+                out.write(b);
+            }
+        });
+        Mockito.when(response.raw()).thenReturn(raw);
+        return out;
     }
 
     /**
@@ -101,7 +450,8 @@ public class ResponseHandlerTest {
     public void testInvalidGet() throws JsonProcessingException {
         // Setup mock call of request and user service
         ResponseHandlerTest.logger.info("Mock user service and spark request to return users...");
-        Mockito.when(userService.getUser(Matchers.any(String.class))).thenReturn(null);
+        Mockito.when(userService.getRawUser(Matchers.any(String.class), Matchers.anyListOf(String.class)))
+               .thenReturn(null);
         Mockito.when(request.params(Matchers.any(String.class))).thenReturn("invalidTest");
         Mockito.reset(ResponseHandlerTest.response);
 
@@ -125,17 +475,195 @@ public class ResponseHandlerTest {
         ResponseHandlerTest.logger.info("Mock user service and spark request to return users...");
         final Document document = new Document().append("id", "one")
                                                 .append("name", new Document().append("firstName", "test"));
-        Mockito.when(userService.getUser(Matchers.any(String.class))).thenReturn(document);
+        Mockito.when(userService.getRawUser(Matchers.any(String.class), Matchers.anyListOf(String.class)))
+               .thenReturn(raw(document));
         Mockito.when(request.params(Matchers.any(String.class))).thenReturn("test");
 
         // Get the response for single user
         ResponseHandlerTest.logger.info("Mocking complete. Getting response for valid user...");
-        final String result = handler.getResponseForSingleUser(request, response);
+        final String result = getSingleUser();
 
         // Validate
         Assert.assertEquals("Result does not match", JsonTestStringsFactory.GET_ONE_USER, result);
     }
 
+    /**
+     * Checks that the fields requested are passed to the user service, and that invalid fields are rejected
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getResponseForSingleUserWithFields() throws Exception {
+        final Document document = new Document().append("id", "one")
+                                                .append("name", new Document().append("firstName", "test"));
+        Mockito.when(userService.getRawUser("test", Arrays.asList("id", "name.firstName")))
+               .thenReturn(raw(document));
+        Mockito.when(request.params(Matchers.any(String.class))).thenReturn("test");
+        try {
+            // Valid fields
+            Mockito.when(request.queryParams("fields")).thenReturn("name.firstName");
+            Assert.assertEquals("Result does not match", JsonTestStringsFactory.GET_ONE_USER, getSingleUser());
+
+            // Invalid fields
+            Mockito.reset(ResponseHandlerTest.response);
+            Mockito.when(request.queryParams("fields")).thenReturn("$where");
+            final String result = handler.getResponseForSingleUser(request, response);
+            Mockito.verify(response).status(400);
+            Assert.assertTrue("Error expected", result.contains("Invalid fields $where"));
+        } finally {
+            Mockito.when(request.queryParams("fields")).thenReturn(null);
+        }
+    }
+
+    /**
+     * Checks that clients can ask for compact output, with the query parameter or the Accept header
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getCompactResponseForSingleUser() throws Exception {
+        // Setup mock for user service and request
+        final Document document = new Document().append("id", "one")
+                                                .append("name", new Document().append("firstName", "test"));
+        Mockito.when(userService.getRawUser(Matchers.any(String.class), Matchers.anyListOf(String.class)))
+               .thenReturn(raw(document));
+        Mockito.when(request.params(Matchers.any(String.class))).thenReturn("test");
+
+        try {
+            // Query parameter
+            Mockito.when(request.queryParams("pretty")).thenReturn("false");
+            Assert.assertEquals("Result does not match", JsonTestStringsFactory.GET_ONE_USER_COMPACT,
+                    getSingleUser());
+
+            // Accept header
+            Mockito.when(request.queryParams("pretty")).thenReturn(null);
+            Mockito.when(request.headers("Accept")).thenReturn("text/html, application/json; pretty=false");
+            Assert.assertEquals("Result does not match", JsonTestStringsFactory.GET_ONE_USER_COMPACT,
+                    getSingleUser());
+        } finally {
+            Mockito.when(request.queryParams("pretty")).thenReturn(null);
+            Mockito.when(request.headers("Accept")).thenReturn(null);
+        }
+    }
+
+    /**
+     * Checks that users are written in the binary format negotiated, BSON as returned by the user service
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getBinaryResponses() throws Exception {
+        Mockito.reset(ResponseHandlerTest.userService);
+        final Document document = new Document().append("id", "one")
+                                                .append("name", new Document().append("firstName", "test"));
+        final RawBsonDocument raw = new RawBsonDocument(document, new DocumentCodec());
+        final int length = raw.getByteBuffer().remaining();
+        Mockito.when(userService.getRawUser(Matchers.any(String.class), Matchers.anyListOf(String.class)))
+               .thenReturn(raw);
+        Mockito.doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            final Consumer<RawBsonDocument> consumer = (Consumer<RawBsonDocument>) invocation.getArguments()[4];
+            consumer.accept(raw);
+            consumer.accept(raw);
+            return null;
+        }).when(userService).findRawUsers(Matchers.any(UserQuery.class), Matchers.anyString(), Matchers.anyInt(),
+                Matchers.anyListOf(String.class), Matchers.any(Consumer.class));
+        Mockito.when(request.params(Matchers.any(String.class))).thenReturn("test");
+        Mockito.when(request.queryParams("limit")).thenReturn(null);
+        Mockito.when(request.queryParams("after")).thenReturn(null);
+        final ObjectMapper smile = new ObjectMapper(new SmileFactory());
+        try {
+            // Smile, users concatenated in a list
+            Mockito.when(request.headers("Accept")).thenReturn("application/x-jackson-smile");
+            ByteArrayOutputStream out = mockOutputStream();
+            Assert.assertEquals("Empty body expected", "", handler.getResponseForSingleUser(request, response));
+            Mockito.verify(response.raw()).setContentType("application/x-jackson-smile");
+            Assert.assertEquals("Same user expected", JsonWriters.COMPACT.writeValueAsString(document),
+                    JsonWriters.COMPACT.writeValueAsString(smile.readValue(out.toByteArray(), Map.class)));
+
+            out = mockOutputStream();
+            handler.streamAllUsers(request, response);
+            final MappingIterator<Map<?, ?>> users = smile.readerFor(Map.class).readValues(out.toByteArray());
+            Assert.assertEquals("Two users expected", 2, users.readAll().size());
+
+            // BSON as read, users concatenated in a list
+            Mockito.when(request.headers("Accept")).thenReturn("application/bson");
+            out = mockOutputStream();
+            Assert.assertEquals("Empty body expected", "", handler.getResponseForSingleUser(request, response));
+            Mockito.verify(response.raw()).setContentType("application/bson");
+            Mockito.verify(response.raw()).setContentLength(length);
+            Assert.assertEquals("Same user expected", raw, new RawBsonDocument(out.toByteArray()));
+
+            out = mockOutputStream();
+            handler.streamAllUsers(request, response);
+            Assert.assertEquals("Two users expected without separator", 2 * length, out.size());
+            Assert.assertEquals("Same user expected", raw,
+                    new RawBsonDocument(Arrays.copyOfRange(out.toByteArray(), length, 2 * length)));
+        } finally {
+            Mockito.when(request.headers("Accept")).thenReturn(null);
+        }
+    }
+
+    /**
+     * Checks that encoded responses are reused for the same document and revalidated with entity tags
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getCachedResponseForSingleUser() throws Exception {
+        // Setup mock for user service and request
+        final ResponseCache cache = new ResponseCache(10);
+        final ResponseHandler cachedHandler = new ResponseHandler(userService, true, cache);
+        final Document document = new Document().append("id", "one")
+                                                .append("name", new Document().append("firstName", "test"));
+        Mockito.when(userService.getUser(Matchers.any(String.class))).thenReturn(document);
+        Mockito.when(request.params(Matchers.any(String.class))).thenReturn("test");
+        final ByteArrayOutputStream out = mockOutputStream();
+
+        // Get the same user twice
+        ResponseHandlerTest.logger.info("Mocking complete. Getting cached response for valid user...");
+        cachedHandler.getResponseForSingleUser(request, response);
+        cachedHandler.getResponseForSingleUser(request, response);
+        Assert.assertEquals("Result does not match", JsonTestStringsFactory.GET_ONE_USER + JsonTestStringsFactory
+                .GET_ONE_USER, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals("Expected one encoding", 1, cache.getMissCount());
+        Assert.assertEquals("Expected one cached response", 1, cache.getHitCount());
+
+        // Conditional request with the entity tag returned
+        final ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(response.raw(), Mockito.atLeastOnce()).setHeader(Matchers.eq("ETag"), etag.capture());
+        try {
+            Mockito.when(request.headers("If-None-Match")).thenReturn(etag.getValue());
+            out.reset();
+            cachedHandler.getResponseForSingleUser(request, response);
+            Mockito.verify(response.raw()).setStatus(304);
+            Assert.assertEquals("No body expected when not modified", 0, out.size());
+        } finally {
+            Mockito.when(request.headers("If-None-Match")).thenReturn(null);
+        }
+
+        // A new document for the same user is encoded again
+        Mockito.when(userService.getUser(Matchers.any(String.class))).thenReturn(new Document(document));
+        cachedHandler.getResponseForSingleUser(request, response);
+        Assert.assertEquals("Expected a new encoding", 2, cache.getMissCount());
+    }
+
+    /**
+     * Checks the readiness response, an error until the user service is ready
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getResponseForReadiness() throws Exception {
+        Mockito.reset(ResponseHandlerTest.response);
+        Mockito.when(userService.isReady()).thenReturn(false);
+        Assert.assertTrue("Error expected", handler.getResponseForReadiness(request, response).contains("not ready"));
+        Mockito.verify(response).status(503);
+
+        Mockito.when(userService.isReady()).thenReturn(true);
+        Assert.assertTrue("Ready expected", handler.getResponseForReadiness(request, response).contains("Ready"));
+    }
+
     /**
      * Test creation response
      *
@@ -145,18 +673,53 @@ public class ResponseHandlerTest {
     public void create() throws Exception {
         // Setup mock for request
         ResponseHandlerTest.logger.info("Mocking spark request...");
-        Mockito.when(request.body()).thenReturn(JsonTestStringsFactory.VALID_LONG_JSON);
+        mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
         Mockito.reset(ResponseHandlerTest.userService);
+        Mockito.when(userService.createUser(Matchers.any(User.class), Matchers.anyBoolean())).thenReturn(true);
 
         // Get response for create
         ResponseHandlerTest.logger.info("Mocking complete. Getting response for create user...");
-        final String result = handler.create(request);
+        final String result = handler.create(request, response);
 
         // Validate call to create and match the response
-        Mockito.verify(userService).createUser(Matchers.any(String.class));
+        Mockito.verify(userService).createUser(UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON), true);
         Assert.assertEquals("Result does not match", JsonTestStringsFactory.USER_CREATED, result);
     }
 
+    /**
+     * Clients preferring an asynchronous response are answered once their user is accepted, if the service allows it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createAccepted() throws Exception {
+        mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
+        Mockito.when(request.headers("Prefer")).thenReturn("wait=10, respond-async");
+        Mockito.reset(ResponseHandlerTest.userService, ResponseHandlerTest.response);
+        Mockito.when(userService.createUser(Matchers.any(User.class), Matchers.eq(false))).thenReturn(false);
+        final ChangeCounter changes = new ChangeCounter(60_000);
+        final ChangeCounter.Version version = changes.current();
+
+        try {
+            final String result = new ResponseHandler(userService, true, null, changes, new Metrics()).create(request,
+                    response);
+            ResponseHandlerTest.logger.info(result);
+            Assert.assertTrue("Accepted message expected", result.contains("User accepted!!"));
+        } finally {
+            Mockito.when(request.headers("Prefer")).thenReturn(null);
+        }
+
+        // Counted once written, not once accepted
+        Assert.assertSame("Same version expected until written", version, changes.current());
+        Mockito.verify(response).status(202);
+        Mockito.verify(response).header("Preference-Applied", "respond-async");
+
+        // Services writing users right away answer as usual
+        Assert.assertFalse("No preference expected", ResponseHandler.prefersAsync(null));
+        Assert.assertFalse("Other preference expected", ResponseHandler.prefersAsync("return=minimal"));
+        Assert.assertTrue("Preference with parameters expected", ResponseHandler.prefersAsync("Respond-Async; x=1"));
+    }
+
     /**
      * Test update response
      *
@@ -166,7 +729,7 @@ public class ResponseHandlerTest {
     public void update() throws Exception {
         // Setup mock for request
         ResponseHandlerTest.logger.info("Mocking spark request...");
-        Mockito.when(request.body()).thenReturn(JsonTestStringsFactory.VALID_LONG_JSON);
+        mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
         Mockito.reset(ResponseHandlerTest.userService);
 
         // Get response for update
@@ -174,10 +737,67 @@ public class ResponseHandlerTest {
         final String result = handler.update(request);
 
         // Validate call to update and match the response
-        Mockito.verify(userService).updateUser(Matchers.any(String.class));
+        Mockito.verify(userService).updateUser(Matchers.any(User.class), Matchers.eq(false));
         Assert.assertEquals("Result does not match", JsonTestStringsFactory.USER_UPDATED, result);
     }
 
+    /**
+     * Test update response when creating missing users
+     *
+     * @throws Exception
+     */
+    @Test
+    public void upsert() throws Exception {
+        // Setup mock for request
+        mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
+        Mockito.when(request.queryParams("upsert")).thenReturn("true");
+        Mockito.reset(ResponseHandlerTest.userService);
+
+        // Get response for upsert
+        try {
+            final String result = handler.update(request);
+            Assert.assertEquals("Result does not match", JsonTestStringsFactory.USER_UPDATED, result);
+        } finally {
+            Mockito.when(request.queryParams("upsert")).thenReturn(null);
+        }
+
+        // Validate call to update
+        Mockito.verify(userService).updateUser(Matchers.any(User.class), Matchers.eq(true));
+    }
+
+    /**
+     * Bodies over the size limit are rejected, before reading them if their length is known
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createTooLarge() throws Exception {
+        final ResponseHandler limited = new ResponseHandler(userService, true, null, null, new Metrics(), 100);
+        mockInputStream(JsonTestStringsFactory.VALID_LONG_JSON);
+        Mockito.reset(ResponseHandlerTest.userService);
+
+        // Length unknown, rejected once the limit is read
+        try {
+            limited.create(request, response);
+            Assert.fail("Body over the limit expected to be rejected");
+        } catch (final IOException e) {
+            ResponseHandlerTest.logger.info(e.getMessage());
+            Assert.assertEquals("Error does not match", "Request body larger than 100 bytes", e.getMessage());
+        }
+
+        // Length known
+        Mockito.when(request.raw().getContentLengthLong()).thenReturn(1000L);
+        try {
+            limited.update(request);
+            Assert.fail("Body over the limit expected to be rejected");
+        } catch (final IOException e) {
+            Assert.assertEquals("Error does not match", "Request body larger than 100 bytes", e.getMessage());
+        }
+
+        Mockito.verify(request.raw(), Mockito.times(1)).getInputStream();
+        Mockito.verifyZeroInteractions(userService);
+    }
+
     /**
      * Test remove response
      *
@@ -226,4 +846,35 @@ public class ResponseHandlerTest {
         Mockito.verify(ResponseHandlerTest.response).status(Matchers.any(Integer.class));
         Mockito.verify(ResponseHandlerTest.response).body(JsonTestStringsFactory.GET_ERROR);
     }
+
+    /**
+     * A full write queue is reported as temporarily unavailable
+     */
+    @Test
+    public void getResponseForFullQueue() {
+        Mockito.reset(ResponseHandlerTest.response);
+        ResponseHandlerTest.handler.getResponseForError(new WriteQueueFullException(10), ResponseHandlerTest.response);
+
+        Mockito.verify(ResponseHandlerTest.response).status(503);
+        Mockito.verify(ResponseHandlerTest.response).header("Retry-After", "1");
+        Mockito.verify(ResponseHandlerTest.response).body(Matchers.contains("\"status\" : 503"));
+    }
+
+    /**
+     * A duplicate user is reported as a conflict, whether written directly or behind its request
+     */
+    @Test
+    public void getResponseForDuplicate() {
+        Mockito.reset(ResponseHandlerTest.response);
+        ResponseHandlerTest.handler.getResponseForError(new DuplicateUserException("Duplicate user test"),
+                ResponseHandlerTest.response);
+        Mockito.verify(ResponseHandlerTest.response).status(409);
+
+        Mockito.reset(ResponseHandlerTest.response);
+        ResponseHandlerTest.handler.getResponseForError(new MongoWriteException(
+                new WriteError(11000, "E11000 duplicate key error", new BsonDocument()), new ServerAddress()),
+                ResponseHandlerTest.response);
+        Mockito.verify(ResponseHandlerTest.response).status(409);
+        Mockito.verify(ResponseHandlerTest.response).body(Matchers.contains("\"status\" : 409"));
+    }
 }
@@ -0,0 +1,122 @@
+package user;
+
+import com.mongodb.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class to test the asynchronous user services against the local MongoDB
+ */
+public class AsyncUserServiceTest {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncUserServiceTest.class);
+    private static final String TEST = "asyncTest";
+    private static final String ID = "1630215c-2608-44b9-aad4-9d56d8aafd4c";
+    private static MongoClient mongoClient;
+    private static com.mongodb.async.client.MongoClient asyncClient;
+    private static AsyncUserService userService;
+
+    /**
+     * Create a separate DB for unit testing, with the unique index created by the synchronous service
+     */
+    @BeforeClass
+    public static void beforeClass() {
+        AsyncUserServiceTest.logger.info("Creating connection to local MongoDB..");
+        AsyncUserServiceTest.mongoClient = new MongoClient();
+        new UserService(AsyncUserServiceTest.mongoClient.getDatabase(TEST).getCollection(TEST), Runnable::run);
+        AsyncUserServiceTest.asyncClient = MongoClients.create();
+        final MongoCollection<Document> dbCollection = AsyncUserServiceTest.asyncClient.getDatabase(TEST)
+                                                                                        .getCollection(TEST);
+        AsyncUserServiceTest.userService = new AsyncUserService(dbCollection);
+        AsyncUserServiceTest.logger.info("Connection created");
+    }
+
+    /**
+     * Delete all work after testing
+     */
+    @AfterClass
+    public static void afterClass() {
+        AsyncUserServiceTest.logger.info("Removing all work..");
+        AsyncUserServiceTest.mongoClient.getDatabase(TEST).getCollection(TEST).drop();
+        AsyncUserServiceTest.asyncClient.close();
+        AsyncUserServiceTest.mongoClient.close();
+        AsyncUserServiceTest.logger.info("Done!");
+    }
+
+    /**
+     * Flow as create -> get -> update -> remove, with an error for each operation on a missing or duplicate user
+     *
+     * @throws Exception
+     */
+    @Test
+    public void userFlow() throws Exception {
+        // Create, twice
+        AsyncUserServiceTest.logger.info("Creating user...");
+        await(userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON));
+        Assert.assertTrue("Duplicate user created",
+                failure(userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON)).contains("duplicate key"));
+
+        // Get
+        Assert.assertEquals("User not found", ID, await(userService.getUser(ID)).getString("id"));
+        Assert.assertNull("Null expected when user not present", await(userService.getUser("invalidTest")));
+
+        // Update
+        AsyncUserServiceTest.logger.info("Updating user...");
+        await(userService.updateUser(JsonTestStringsFactory.VALID_LONG_JSON_UPDATED, false));
+        Assert.assertEquals("User not updated", "Update", await(userService.getUser(ID)).getString("lastName"));
+        Assert.assertEquals("Missing user updated", "User not found to update",
+                failure(userService.updateUser(JsonTestStringsFactory.VALID_SHORT_JSON, false)));
+        Assert.assertEquals("User without id updated", "User not found to update",
+                failure(userService.updateUser(JsonTestStringsFactory.INVALID_SHORT_JSON, true)));
+
+        // Remove, twice
+        AsyncUserServiceTest.logger.info("Removing user...");
+        await(userService.removeUser(ID));
+        Assert.assertEquals("Missing user removed", "User not found to remove",
+                failure(userService.removeUser(ID)));
+    }
+
+    /**
+     * Wait for an operation
+     *
+     * @param future
+     *         Pending operation
+     * @param <T>
+     *         Type of the result
+     * @return Result
+     * @throws Exception
+     */
+    private static <T> T await(final CompletableFuture<T> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Wait for an operation expected to fail
+     *
+     * @param future
+     *         Pending operation
+     * @return Error message
+     * @throws Exception
+     */
+    private static String failure(final CompletableFuture<?> future) throws Exception {
+        try {
+            await(future);
+        } catch (final ExecutionException e) {
+            return e.getCause().getMessage();
+        }
+
+        Assert.fail("Operation expected to fail");
+        return null;
+    }
+}
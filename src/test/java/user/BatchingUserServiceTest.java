@@ -0,0 +1,196 @@
+package user;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the reading of users in batches, over a mocked user service
+ */
+public class BatchingUserServiceTest {
+    private static final Logger logger = LoggerFactory.getLogger(BatchingUserServiceTest.class);
+    private IUserService delegate;
+    private List<List<String>> batches;
+    private ExecutorService executor;
+    private BatchingUserService userService;
+
+    /**
+     * Mock a service recording each batch, holding every user but the missing one
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.delegate = Mockito.mock(IUserService.class);
+        this.batches = new CopyOnWriteArrayList<>();
+        Mockito.when(this.delegate.getRawUsers(Matchers.anyCollection(), Matchers.anyList())).then(invocation -> {
+            final List<String> ids = new ArrayList<>((Collection<String>) invocation.getArguments()[0]);
+            if (ids.contains("failed")) {
+                throw new IllegalStateException("Database unavailable");
+            }
+
+            final Map<String, RawBsonDocument> users = new HashMap<>();
+            for (final String id : ids) {
+                if (!"missing".equals(id)) {
+                    users.put(id, new RawBsonDocument(new Document("id", id), new DocumentCodec()));
+                }
+            }
+
+            this.batches.add(ids);
+            return users;
+        });
+
+        this.executor = Executors.newFixedThreadPool(8);
+    }
+
+    /**
+     * Stop the callers and the dispatcher
+     *
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdownNow();
+        this.userService.close();
+    }
+
+    /**
+     * Concurrent lookups are read together, in batches of at most the batch size, and each gets its own user
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getRawUser() throws Exception {
+        this.userService = new BatchingUserService(this.delegate, 4, 8, 200, TimeUnit.MILLISECONDS);
+        final List<Future<RawBsonDocument>> users = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final String id = i == 7 ? "missing" : "user" + i;
+            users.add(this.executor.submit(() -> this.userService.getRawUser(id, null)));
+        }
+
+        for (int i = 0; i < 7; i++) {
+            Assert.assertEquals("Own user expected", "user" + i,
+                    users.get(i).get(10, TimeUnit.SECONDS).getString("id").getValue());
+        }
+
+        Assert.assertNull("Missing user expected", users.get(7).get(10, TimeUnit.SECONDS));
+
+        // Users are read together, never more than the batch size at once
+        BatchingUserServiceTest.logger.info("Batches: {}", this.batches);
+        int read = 0;
+        for (final List<String> batch : this.batches) {
+            Assert.assertTrue("Batch over its size", batch.size() <= 4);
+            read += batch.size();
+        }
+
+        Assert.assertEquals("All users expected to be read", 8, read);
+        Assert.assertTrue("Users expected to be batched", this.batches.size() < 8);
+        Assert.assertEquals("Counted batches expected", this.batches.size(), this.userService.getBatchCount());
+    }
+
+    /**
+     * While every reader is busy, no further query is sent and lookups keep queueing to be read together
+     *
+     * @throws Exception
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getRawUserSaturated() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final IUserService slow = Mockito.mock(IUserService.class);
+        Mockito.when(slow.getRawUsers(Matchers.anyCollection(), Matchers.anyList())).then(invocation -> {
+            release.await();
+            return this.delegate.getRawUsers((Collection<String>) invocation.getArguments()[0], null);
+        });
+        this.userService = new BatchingUserService(slow, 100, 1, 1, TimeUnit.MILLISECONDS);
+
+        // The first lookup holds the only reader
+        final List<Future<RawBsonDocument>> users = new ArrayList<>();
+        users.add(this.executor.submit(() -> this.userService.getRawUser("user0", null)));
+        while (this.userService.getBatchCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        for (int i = 1; i < 6; i++) {
+            final String id = "user" + i;
+            users.add(this.executor.submit(() -> this.userService.getRawUser(id, null)));
+        }
+
+        // Many windows elapse, and still no other query is sent
+        Thread.sleep(100);
+        Mockito.verify(slow, Mockito.times(1)).getRawUsers(Matchers.anyCollection(), Matchers.anyList());
+
+        release.countDown();
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals("Own user expected", "user" + i,
+                    users.get(i).get(10, TimeUnit.SECONDS).getString("id").getValue());
+        }
+
+        BatchingUserServiceTest.logger.info("Batches: {}", this.batches);
+        Assert.assertEquals("Lookups queued behind the reader expected to be read together", 2, this.batches.size());
+        Assert.assertEquals("Batch does not match", new HashSet<>(Arrays.asList("user1", "user2", "user3", "user4",
+                "user5")), new HashSet<>(this.batches.get(1)));
+    }
+
+    /**
+     * A single lookup is read once the window elapses, decoded for callers of documents
+     */
+    @Test
+    public void getUser() {
+        this.userService = new BatchingUserService(this.delegate, 100, 8, 50, TimeUnit.MILLISECONDS);
+        final long start = System.nanoTime();
+        Assert.assertEquals("User expected", new Document("id", "test"), this.userService.getUser("test"));
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        BatchingUserServiceTest.logger.info("Read after {} ms", elapsed);
+        Assert.assertTrue("Window expected to elapse first", elapsed >= 50);
+        Assert.assertNull("Missing user expected", this.userService.getUser("missing"));
+    }
+
+    /**
+     * A failed batch fails each of its lookups, lookups of some fields are not batched
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getRawUserFailed() throws Exception {
+        this.userService = new BatchingUserService(this.delegate, 2, 8, 1, TimeUnit.MINUTES);
+        final Future<RawBsonDocument> failed = this.executor.submit(() -> this.userService.getRawUser("failed", null));
+        final Future<RawBsonDocument> other = this.executor.submit(() -> this.userService.getRawUser("other", null));
+        for (final Future<RawBsonDocument> user : Arrays.asList(failed, other)) {
+            try {
+                user.get(10, TimeUnit.SECONDS);
+                Assert.fail("Failure expected");
+            } catch (final ExecutionException e) {
+                BatchingUserServiceTest.logger.info(e.getCause().getMessage());
+                Assert.assertEquals("Error does not match", "Database unavailable", e.getCause().getMessage());
+            }
+        }
+
+        final List<String> fields = Fields.parse("firstName");
+        this.userService.getRawUser("test", fields);
+        Mockito.verify(this.delegate).getRawUser("test", fields);
+    }
+}
@@ -0,0 +1,203 @@
+package user;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test for the caching user service, over a user service with a mocked collection
+ */
+public class CachingUserServiceTest {
+    private static final Logger logger = LoggerFactory.getLogger(CachingUserServiceTest.class);
+    private MongoCollection<Document> dbCollection;
+    private FindIterable<Document> findIterable;
+    private AtomicLong time;
+    private CachingUserService userService;
+
+    /**
+     * Mock the collection and build the cache with a manual clock
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        CachingUserServiceTest.logger.info("Mocking collection..");
+        this.dbCollection = Mockito.mock(MongoCollection.class);
+        Mockito.when(this.dbCollection.withCodecRegistry(UserCodec.REGISTRY)).thenReturn(this.dbCollection);
+        Mockito.doReturn(this.dbCollection).when(this.dbCollection).withDocumentClass(User.class);
+        this.findIterable = Mockito.mock(FindIterable.class);
+        Mockito.when(this.dbCollection.find(Matchers.any(Bson.class))).thenReturn(this.findIterable);
+        Mockito.when(this.findIterable.projection(Matchers.any(Bson.class))).thenReturn(this.findIterable);
+        Mockito.when(this.findIterable.first()).thenReturn(new Document("id", "test"));
+        Mockito.when(this.dbCollection.updateOne(Matchers.any(Bson.class), Matchers.any(Bson.class),
+                Matchers.any(UpdateOptions.class))).thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        Mockito.when(this.dbCollection.deleteOne(Matchers.any(Bson.class))).thenReturn(DeleteResult.acknowledged(1));
+
+        this.time = new AtomicLong();
+        final Ticker ticker = this.time::get;
+        this.userService = new CachingUserService(new UserService(this.dbCollection, task -> { }), 2, 1,
+                TimeUnit.MINUTES, ticker, Runnable::run);
+        CachingUserServiceTest.logger.info("Mocks created");
+    }
+
+    /**
+     * Repeated lookups are served from the cache
+     */
+    @Test
+    public void getUser() {
+        final Document first = this.userService.getUser("test");
+        final Document second = this.userService.getUser("test");
+
+        // Validate a single query and the counters
+        Assert.assertSame("Cached user expected", first, second);
+        Mockito.verify(this.dbCollection, Mockito.times(1)).find(Matchers.any(Bson.class));
+        Assert.assertEquals("Expected one hit", 1, this.userService.getHitCount());
+        Assert.assertEquals("Expected one miss", 1, this.userService.getMissCount());
+    }
+
+    /**
+     * Cached users are projected in memory, other users are read partially and not cached
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getUserWithFields() throws Exception {
+        Mockito.when(this.findIterable.first()).thenReturn(new Document("id", "test").append("firstName", "first"));
+        final List<String> fields = Fields.parse("lastName");
+
+        // Not cached, the full user is read again
+        this.userService.getUser("test", fields);
+        Assert.assertEquals("Full user expected", "first", this.userService.getUser("test").getString("firstName"));
+
+        // Cached
+        Assert.assertEquals("Cached user expected with the fields requested", new Document("id", "test"),
+                this.userService.getUser("test", fields));
+        Mockito.verify(this.dbCollection, Mockito.times(2)).find(Matchers.any(Bson.class));
+    }
+
+    /**
+     * Missing users are not cached
+     */
+    @Test
+    public void getMissingUser() {
+        Mockito.when(this.findIterable.first()).thenReturn(null);
+        Assert.assertNull("Null expected when user not present", this.userService.getUser("test"));
+        Assert.assertNull("Null expected when user not present", this.userService.getUser("test"));
+        Mockito.verify(this.dbCollection, Mockito.times(2)).find(Matchers.any(Bson.class));
+    }
+
+    /**
+     * Entries are read again once expired
+     */
+    @Test
+    public void expireUser() {
+        this.userService.getUser("test");
+        this.time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        this.userService.getUser("test");
+
+        // Validate
+        Mockito.verify(this.dbCollection, Mockito.times(2)).find(Matchers.any(Bson.class));
+        Assert.assertEquals("Expected no hits", 0, this.userService.getHitCount());
+    }
+
+    /**
+     * Size is bounded
+     */
+    @Test
+    public void evictUser() {
+        CachingUserServiceTest.logger.info("Filling cache over its maximum size...");
+        for (int i = 0; i < 10; i++) {
+            this.userService.getUser("test" + i);
+        }
+
+        Assert.assertEquals("Expected all but 2 users to be evicted", 8, this.userService.getEvictionCount());
+    }
+
+    /**
+     * Writes invalidate the cached user
+     *
+     * @throws Exception
+     */
+    @Test
+    public void invalidateOnWrite() throws Exception {
+        final String id = "1630215c-2608-44b9-aad4-9d56d8aafd4c";
+
+        // Update
+        CachingUserServiceTest.logger.info("Updating cached user...");
+        this.userService.getUser(id);
+        this.userService.updateUser(JsonTestStringsFactory.VALID_LONG_JSON_UPDATED);
+        this.userService.getUser(id);
+        Assert.assertEquals("Expected a miss after update", 2, this.userService.getMissCount());
+        Mockito.verify(this.dbCollection, Mockito.times(2)).find(Matchers.any(Bson.class));
+
+        // Remove
+        CachingUserServiceTest.logger.info("Removing cached user...");
+        this.userService.removeUser(id);
+        this.userService.getUser(id);
+        Assert.assertEquals("Expected a miss after remove", 3, this.userService.getMissCount());
+        Mockito.verify(this.dbCollection, Mockito.times(3)).find(Matchers.any(Bson.class));
+
+        // Create
+        CachingUserServiceTest.logger.info("Creating cached user...");
+        this.userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON);
+        this.userService.getUser(id);
+        Assert.assertEquals("Expected a miss after create", 4, this.userService.getMissCount());
+        Assert.assertEquals("Expected no hits", 0, this.userService.getHitCount());
+    }
+
+    /**
+     * Writes of another instance, delivered by a change feed, invalidate the cached user
+     *
+     * @throws Exception
+     */
+    @Test
+    public void invalidateOnChange() throws Exception {
+        final String id = "1630215c-2608-44b9-aad4-9d56d8aafd4c";
+        final CachingUserService other = new CachingUserService(new UserService(this.dbCollection, task -> { }), 2, 1,
+                TimeUnit.MINUTES, this.time::get, Runnable::run);
+        final LocalChangeFeed feed = new LocalChangeFeed();
+        feed.subscribe(this.userService);
+        feed.subscribe(other);
+
+        // The other instance updates the user, and the feed tells both
+        CachingUserServiceTest.logger.info("Updating user cached by both instances...");
+        this.userService.getUser(id);
+        other.getUser(id);
+        other.updateUser(JsonTestStringsFactory.VALID_LONG_JSON_UPDATED);
+        this.userService.getUser(id);
+        Assert.assertEquals("Expected a hit before the change is delivered", 1, this.userService.getHitCount());
+        feed.changed(id);
+        this.userService.getUser(id);
+        Assert.assertEquals("Expected a miss after the change", 2, this.userService.getMissCount());
+
+        // Changes of unknown users invalidate every user
+        CachingUserServiceTest.logger.info("Resetting both instances...");
+        other.getUser(id);
+        feed.reset();
+        this.userService.getUser(id);
+        other.getUser(id);
+        Assert.assertEquals("Expected a miss after the reset", 3, this.userService.getMissCount());
+        Assert.assertEquals("Expected a miss after the reset", 3, other.getMissCount());
+
+        feed.close();
+        feed.changed(id);
+        this.userService.getUser(id);
+        Assert.assertEquals("Expected no change once closed", 2, this.userService.getHitCount());
+    }
+}
@@ -0,0 +1,181 @@
+package user;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test for the coalescing of concurrent lookups, over a mocked user service whose reads wait for a latch
+ */
+public class CoalescingUserServiceTest {
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingUserServiceTest.class);
+    private IUserService delegate;
+    private AtomicInteger reads;
+    private CountDownLatch release;
+    private ExecutorService executor;
+    private CoalescingUserService userService;
+
+    /**
+     * Mock a service counting its reads, each returning a new user once released
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.delegate = Mockito.mock(IUserService.class);
+        this.reads = new AtomicInteger();
+        this.release = new CountDownLatch(1);
+        Mockito.when(this.delegate.getRawUser(Matchers.anyString(), Matchers.anyList())).then(invocation -> {
+            this.reads.incrementAndGet();
+            this.release.await();
+            return new RawBsonDocument(new Document("id", invocation.getArguments()[0]), new DocumentCodec());
+        });
+        Mockito.when(this.delegate.getUser(Matchers.anyString())).then(invocation -> {
+            this.reads.incrementAndGet();
+            this.release.await();
+            throw new IllegalStateException("Database unavailable");
+        });
+
+        this.executor = Executors.newFixedThreadPool(8);
+        this.userService = new CoalescingUserService(this.delegate);
+    }
+
+    /**
+     * Stop the callers
+     */
+    @After
+    public void tearDown() {
+        this.release.countDown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Concurrent lookups of the same user share a single read and its result
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getRawUser() throws Exception {
+        final List<Future<RawBsonDocument>> users = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            users.add(this.executor.submit(() -> this.userService.getRawUser("test", null)));
+        }
+
+        // Every caller waits on the first read
+        this.awaitCoalesced(7);
+        this.release.countDown();
+        final RawBsonDocument first = users.get(0).get(10, TimeUnit.SECONDS);
+        for (final Future<RawBsonDocument> user : users) {
+            Assert.assertSame("Shared user expected", first, user.get(10, TimeUnit.SECONDS));
+        }
+
+        Assert.assertEquals("Single read expected", 1, this.reads.get());
+        Assert.assertEquals("Single read expected", 1, this.userService.getReadCount());
+
+        // Nothing is kept once read
+        Assert.assertNotSame("New read expected", first, this.userService.getRawUser("test", null));
+        Assert.assertEquals("Second read expected", 2, this.reads.get());
+    }
+
+    /**
+     * Lookups of other users or other fields are not shared
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getRawUserOthers() throws Exception {
+        final Future<RawBsonDocument> user = this.executor.submit(() -> this.userService.getRawUser("test", null));
+        final Future<RawBsonDocument> other = this.executor.submit(() -> this.userService.getRawUser("other", null));
+        final Future<RawBsonDocument> fields = this.executor.submit(
+                () -> this.userService.getRawUser("test", Fields.parse("firstName")));
+        while (this.reads.get() < 3) {
+            Thread.sleep(1);
+        }
+
+        this.release.countDown();
+        Assert.assertEquals("Requested user expected", "other",
+                other.get(10, TimeUnit.SECONDS).getString("id").getValue());
+        Assert.assertNotSame("Separate reads expected", user.get(10, TimeUnit.SECONDS),
+                fields.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Nothing coalesced expected", 0, this.userService.getCoalescedCount());
+    }
+
+    /**
+     * A failed read fails every caller that shared it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getUserFailed() throws Exception {
+        final Future<Document> first = this.executor.submit(() -> this.userService.getUser("test"));
+        final Future<Document> second = this.executor.submit(() -> this.userService.getUser("test"));
+        this.awaitCoalesced(1);
+        this.release.countDown();
+
+        for (final Future<Document> user : new Future[] { first, second }) {
+            try {
+                user.get(10, TimeUnit.SECONDS);
+                Assert.fail("Failure expected");
+            } catch (final ExecutionException e) {
+                CoalescingUserServiceTest.logger.info(e.getCause().getMessage());
+                Assert.assertEquals("Error does not match", "Database unavailable", e.getCause().getMessage());
+            }
+        }
+
+        Assert.assertEquals("Single read expected", 1, this.reads.get());
+    }
+
+    /**
+     * Lookups after a write do not share the reads started before it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void updateUser() throws Exception {
+        final Future<RawBsonDocument> before = this.executor.submit(() -> this.userService.getRawUser("test", null));
+        while (this.reads.get() < 1) {
+            Thread.sleep(1);
+        }
+
+        this.userService.updateUser(new User("test", "First", null, null, null, null, null, null), false);
+        final Future<RawBsonDocument> after = this.executor.submit(() -> this.userService.getRawUser("test", null));
+        while (this.reads.get() < 2) {
+            Thread.sleep(1);
+        }
+
+        this.release.countDown();
+        Assert.assertNotSame("Separate reads expected", before.get(10, TimeUnit.SECONDS),
+                after.get(10, TimeUnit.SECONDS));
+        Mockito.verify(this.delegate).updateUser(Matchers.any(User.class), Matchers.eq(false));
+    }
+
+    /**
+     * Wait for callers to join a read
+     *
+     * @param callers
+     *         Number of callers
+     * @throws InterruptedException
+     */
+    private void awaitCoalesced(final int callers) throws InterruptedException {
+        while (this.userService.getCoalescedCount() < callers) {
+            Thread.sleep(1);
+        }
+    }
+}
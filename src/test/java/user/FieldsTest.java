@@ -0,0 +1,77 @@
+package user;
+
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test for sparse fieldsets
+ */
+public class FieldsTest {
+    private static final Logger logger = LoggerFactory.getLogger(FieldsTest.class);
+
+    @Rule
+    public ExpectedException expectedEx = ExpectedException.none();
+
+    /**
+     * The id is always included, duplicates and fields under a parent are dropped
+     *
+     * @throws Exception
+     */
+    @Test
+    public void parse() throws Exception {
+        Assert.assertNull("All fields expected without the parameter", Fields.parse(null));
+        Assert.assertEquals("Unexpected fields", Arrays.asList("id", "firstName", "address"),
+                Fields.parse("firstName, address.city,address,firstName,id"));
+    }
+
+    /**
+     * Operators and the internal id cannot be requested
+     *
+     * @throws Exception
+     */
+    @Test
+    public void parseInvalid() throws Exception {
+        for (final String fields : new String[]{ "", "firstName,", "_id", "$where", "address..city", "a b" }) {
+            try {
+                Fields.parse(fields);
+                Assert.fail("Fields should be rejected: " + fields);
+            } catch (final Exception e) {
+                FieldsTest.logger.info(e.getMessage());
+            }
+        }
+
+        this.expectedEx.expect(Exception.class);
+        this.expectedEx.expectMessage("Too many fields");
+        Fields.parse(String.join(",", new String[Fields.MAX_FIELDS + 1]).replace("null", "f"));
+    }
+
+    /**
+     * Projection in memory keeps the order of the user and nested fields
+     *
+     * @throws Exception
+     */
+    @Test
+    public void project() throws Exception {
+        final Document user = Document.parse(JsonTestStringsFactory.VALID_LONG_JSON);
+        final List<String> fields = Fields.parse("company,address.city,firstName");
+
+        final Document projected = Fields.project(user, fields);
+        final Document expected = new Document("id", user.get("id"))
+                .append("firstName", user.get("firstName"))
+                .append("address", new Document("city", ((Document) user.get("address")).get("city")))
+                .append("company", user.get("company"));
+        Assert.assertEquals("Unexpected projection", expected.toJson(), projected.toJson());
+        Assert.assertEquals("User should be left unchanged", 5, ((Document) user.get("address")).size());
+        Assert.assertSame("Same user expected for all fields", user, Fields.project(user, null));
+        Assert.assertSame("Same user expected for all fields with the _id", user, Fields.project(user, Fields.WITH_ID));
+    }
+}
@@ -0,0 +1,78 @@
+package user;
+
+import metrics.Metrics;
+import metrics.Timer;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test for the timed user service, over a mocked user service
+ */
+public class InstrumentedUserServiceTest {
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentedUserServiceTest.class);
+    private IUserService delegate;
+    private Metrics metrics;
+    private InstrumentedUserService userService;
+
+    /**
+     * Mock the timed service
+     */
+    @Before
+    public void setUp() {
+        InstrumentedUserServiceTest.logger.info("Mocking user service..");
+        this.delegate = Mockito.mock(IUserService.class);
+        this.metrics = new Metrics();
+        this.userService = new InstrumentedUserService(this.delegate, this.metrics);
+    }
+
+    /**
+     * Each method has its own timer
+     */
+    @Test
+    public void getUser() {
+        final Document user = new Document("id", "test");
+        Mockito.when(this.delegate.getUser("test")).thenReturn(user);
+        Assert.assertSame("User expected", user, this.userService.getUser("test"));
+
+        final Timer timer = this.timer("getUser");
+        Assert.assertEquals("Call not timed", 1, timer.getHistogram().getTotalCount());
+        Assert.assertEquals("No error expected", 0, timer.getErrors());
+        Assert.assertEquals("Other method timed", 0, this.timer("removeUser").getHistogram().getTotalCount());
+    }
+
+    /**
+     * Exceptions are counted as errors and rethrown
+     *
+     * @throws Exception
+     */
+    @Test
+    public void removeUserError() throws Exception {
+        Mockito.doThrow(new Exception("User not found to remove")).when(this.delegate).removeUser("test");
+        try {
+            this.userService.removeUser("test");
+            Assert.fail("Exception expected");
+        } catch (final Exception e) {
+            Assert.assertEquals("Same exception expected", "User not found to remove", e.getMessage());
+        }
+
+        final Timer timer = this.timer("removeUser");
+        Assert.assertEquals("Call not timed", 1, timer.getHistogram().getTotalCount());
+        Assert.assertEquals("Error expected", 1, timer.getErrors());
+    }
+
+    /**
+     * Get the timer of a method
+     *
+     * @param method
+     *         Name of the method
+     * @return Timer
+     */
+    private Timer timer(final String method) {
+        return this.metrics.timer("user_service", "user service operations by method", "method", method);
+    }
+}
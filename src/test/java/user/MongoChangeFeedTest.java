@@ -0,0 +1,209 @@
+package user;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the feed of the changes of users, over a mocked change stream
+ */
+public class MongoChangeFeedTest {
+    private static final Logger logger = LoggerFactory.getLogger(MongoChangeFeedTest.class);
+    private MongoCollection<Document> dbCollection;
+    private List<List<?>> pipelines;
+    private List<String> events;
+    private CountDownLatch subscribed;
+    private MongoChangeFeed feed;
+
+    /**
+     * Mock a stream failing after a few changes, then resumed with one more change
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        final MongoCursor<Document> failing = Mockito.mock(MongoCursor.class);
+        Mockito.when(failing.hasNext()).thenReturn(true, true).thenThrow(new MongoException("Connection reset"));
+        Mockito.when(failing.next()).thenReturn(change("1", "insert", "a"), removal("2", "c"));
+        final MongoCursor<Document> resumed = Mockito.mock(MongoCursor.class);
+        Mockito.when(resumed.hasNext()).thenReturn(true, false);
+        Mockito.when(resumed.next()).thenReturn(change("3", "update", "b"));
+
+        final AggregateIterable<Document> first = Mockito.mock(AggregateIterable.class);
+        Mockito.when(first.iterator()).thenReturn(failing);
+        final AggregateIterable<Document> second = Mockito.mock(AggregateIterable.class);
+        Mockito.when(second.iterator()).thenReturn(resumed);
+
+        // The stream is only opened once subscribed to
+        this.pipelines = new CopyOnWriteArrayList<>();
+        this.subscribed = new CountDownLatch(1);
+        this.dbCollection = Mockito.mock(MongoCollection.class);
+        Mockito.when(this.dbCollection.aggregate(Matchers.anyList())).then(invocation -> {
+            this.subscribed.await();
+            this.pipelines.add((List<?>) invocation.getArguments()[0]);
+            return this.pipelines.size() == 1 ? first : second;
+        });
+
+        this.events = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Stop following the stream
+     */
+    @After
+    public void tearDown() {
+        if (this.feed != null) {
+            this.feed.close();
+        }
+
+        this.subscribed.countDown();
+    }
+
+    /**
+     * Changes are delivered by user when known, and the stream is resumed after the last change once failed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void follow() throws Exception {
+        this.feed = new MongoChangeFeed(this.dbCollection, 10, TimeUnit.MILLISECONDS);
+        this.feed.subscribe(new UserChangeListener() {
+            @Override
+            public void changed(final String id) {
+                MongoChangeFeedTest.this.events.add(id);
+            }
+
+            @Override
+            public void removed(final Object key) {
+                MongoChangeFeedTest.this.events.add("removed " + key);
+            }
+
+            @Override
+            public void reset() {
+                MongoChangeFeedTest.this.events.add("reset");
+            }
+        });
+        this.subscribed.countDown();
+
+        final List<String> expected = Arrays.asList("reset", "reset", "a", "removed c", "b");
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.events.size() < expected.size() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Reset when subscribed and once the stream is opened, a removal is told by the internal id of its user
+        MongoChangeFeedTest.logger.info("Events: {}", this.events);
+        Assert.assertEquals("Events do not match", expected, this.events.subList(0, expected.size()));
+        Assert.assertEquals("Changes do not match", 3, this.feed.getChangeCount());
+
+        // Resumed after the last change seen
+        final Document stream = (Document) ((Document) this.pipelines.get(1).get(0)).get("$changeStream");
+        Assert.assertEquals("Resume token does not match", new Document("token", "2"), stream.get("resumeAfter"));
+        Assert.assertNull("First stream should start from now",
+                ((Document) ((Document) this.pipelines.get(0).get(0)).get("$changeStream")).get("resumeAfter"));
+    }
+
+    /**
+     * A removal evicts its own user from a cache following the feed, and no other
+     *
+     * @throws Exception
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void removal() throws Exception {
+        final IUserService userService = Mockito.mock(IUserService.class);
+        Mockito.when(userService.getUser("a", Fields.WITH_ID))
+               .then(invocation -> new Document("_id", "key-a").append("id", "a"));
+        Mockito.when(userService.getUser("b", Fields.WITH_ID))
+               .then(invocation -> new Document("_id", "key-b").append("id", "b"));
+
+        // The removal is only read once both users are cached
+        final CountDownLatch cached = new CountDownLatch(1);
+        final MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+        Mockito.when(cursor.hasNext()).then(invocation -> cached.await(10, TimeUnit.SECONDS)).thenReturn(false);
+        Mockito.when(cursor.next()).thenReturn(removal("1", "key-a"));
+        final AggregateIterable<Document> stream = Mockito.mock(AggregateIterable.class);
+        Mockito.when(stream.iterator()).thenReturn(cursor);
+        Mockito.doReturn(stream).when(this.dbCollection).aggregate(Matchers.anyList());
+
+        this.feed = new MongoChangeFeed(this.dbCollection, 10, TimeUnit.MILLISECONDS);
+        final CachingUserService cache = new CachingUserService(userService, 10, 1, TimeUnit.HOURS);
+        this.feed.subscribe(cache);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.feed.getResetCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertNull("Internal id should not be served", cache.getUser("a").get("_id"));
+        cache.getUser("b");
+        cached.countDown();
+        while (this.feed.getChangeCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Only the user removed is read again
+        MongoChangeFeedTest.logger.info("Removals delivered: {}", this.feed.getChangeCount());
+        cache.getUser("a");
+        cache.getUser("b");
+        Mockito.verify(userService, Mockito.times(2)).getUser("a", Fields.WITH_ID);
+        Mockito.verify(userService, Mockito.times(1)).getUser("b", Fields.WITH_ID);
+    }
+
+    /**
+     * Only the changes giving the user are delivered by user
+     */
+    @Test
+    public void userId() {
+        Assert.assertEquals("ID expected for a replacement", "a", MongoChangeFeed.userId(change("1", "replace", "a")));
+        Assert.assertNull("No ID expected for a user removed before the update was looked up",
+                MongoChangeFeed.userId(new Document("operationType", "update").append("fullDocument", null)));
+        Assert.assertNull("No ID expected for a drop", MongoChangeFeed.userId(change("1", "drop", null)));
+        Assert.assertEquals("Internal id expected for a removal", "c", MongoChangeFeed.removedKey(removal("1", "c")));
+        Assert.assertNull("No internal id expected for an insert",
+                MongoChangeFeed.removedKey(change("1", "insert", "a")));
+    }
+
+    /**
+     * Create a change event, as projected by the stream
+     *
+     * @param token
+     *         Resume token
+     * @param operation
+     *         Operation type
+     * @param id
+     *         ID of the user, null for none
+     * @return Change event
+     */
+    private static Document change(final String token, final String operation, final String id) {
+        final Document change = new Document("_id", new Document("token", token)).append("operationType", operation);
+        return id == null ? change : change.append("fullDocument", new Document("id", id));
+    }
+
+    /**
+     * Create a removal event, as projected by the stream
+     *
+     * @param token
+     *         Resume token
+     * @param key
+     *         Internal id of the user removed
+     * @return Change event
+     */
+    private static Document removal(final String token, final Object key) {
+        return change(token, "delete", null).append("documentKey", new Document("_id", key));
+    }
+}
@@ -0,0 +1,57 @@
+package user;
+
+import helper.JsonTestStringsFactory;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for the BSON codec of typed users
+ */
+public class UserCodecTest {
+    private static final UserCodec CODEC = new UserCodec();
+
+    /**
+     * Users are encoded as the documents they were parsed from, and decoded back
+     */
+    @Test
+    public void encodeAndDecode() {
+        final User user = UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON);
+        final BsonDocument bson = encode(user);
+        Assert.assertEquals("Same document expected", Document.parse(JsonTestStringsFactory.VALID_LONG_JSON)
+                                                              .toBsonDocument(Document.class, UserCodec.REGISTRY),
+                bson);
+        Assert.assertEquals("Same user expected", user, decode(bson));
+
+        // Fields not given are not set
+        Assert.assertEquals("Only given fields expected", BsonDocument.parse("{'id':'short','firstName':'Ekal'}"),
+                encode(new User("short", "Ekal", null, null, null, null, null, null)));
+    }
+
+    /**
+     * Fields written before the model, unknown or of another type, are skipped
+     */
+    @Test
+    public void decodeOtherFields() {
+        final User user = decode(BsonDocument.parse(
+                "{'_id':{'$oid':'5763c1f2c2c2c2c2c2c2c2c2'},'id':'one','firstName':1,'tags':['a'],'address':'here',"
+                        + "'company':{'name':'Egen','size':10}}"));
+        Assert.assertEquals("Unexpected user", new User("one", null, null, null, null, null,
+                new Company("Egen", null), null), user);
+    }
+
+    private static BsonDocument encode(final User user) {
+        final BsonDocument bson = new BsonDocument();
+        CODEC.encode(new BsonDocumentWriter(bson), user, EncoderContext.builder().build());
+        return bson;
+    }
+
+    private static User decode(final BsonDocument bson) {
+        return CODEC.decode(new BsonDocumentReader(bson), DecoderContext.builder().build());
+    }
+}
@@ -0,0 +1,78 @@
+package user;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import helper.JsonTestStringsFactory;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringReader;
+
+/**
+ * Test for reading and writing typed users as JSON
+ */
+public class UserJsonTest {
+    private static final Logger logger = LoggerFactory.getLogger(UserJsonTest.class);
+
+    /**
+     * Users are read field by field, and written back as the same document
+     *
+     * @throws Exception
+     */
+    @Test
+    public void readAndWrite() throws Exception {
+        final User user = UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON);
+        Assert.assertEquals("Unexpected id", "1630215c-2608-44b9-aad4-9d56d8aafd4c", user.getId());
+        Assert.assertEquals("Unexpected zip", "47069", user.getAddress().getZip());
+        Assert.assertEquals("Unexpected website", "http://jodie.org", user.getCompany().getWebsite());
+        Assert.assertEquals("Same user expected from a stream", user,
+                UserJson.read(new StringReader(JsonTestStringsFactory.VALID_LONG_JSON)));
+
+        // Through a mapper, as the responses are written
+        final ObjectMapper mapper = new ObjectMapper().registerModule(UserJson.MODULE);
+        final String json = mapper.writeValueAsString(user);
+        UserJsonTest.logger.info(json);
+        Assert.assertEquals("Same document expected", Document.parse(JsonTestStringsFactory.VALID_LONG_JSON),
+                Document.parse(json));
+        Assert.assertEquals("Same user expected", user, mapper.readValue(json, User.class));
+
+        // Fields not given are left out
+        final User partial = UserJson.read("{\"id\":\"short\",\"address\":null,\"company\":{\"name\":\"Egen\"}}");
+        Assert.assertNull("No address expected", partial.getAddress());
+        Assert.assertEquals("Only given fields expected", "{\"id\":\"short\",\"company\":{\"name\":\"Egen\"}}",
+                mapper.writeValueAsString(partial));
+    }
+
+    /**
+     * Malformed JSON, unknown fields and values of the wrong type are rejected
+     */
+    @Test
+    public void readInvalid() {
+        assertInvalid("{\"id\":\"one\"", "Invalid JSON at line 1, column 23");
+        assertInvalid("[\"one\"]", "expected an object");
+        assertInvalid("{\"id\":\"one\"} {}", "unexpected content");
+        assertInvalid("{\"id\":\"one\",\"$where\":\"1\"}", "Invalid field $where");
+        assertInvalid("{\"id\":1}", "Invalid field id, expected a string");
+        assertInvalid("{\"id\":\"one\",\"address\":\"here\"}", "Invalid field address, expected an object");
+        assertInvalid("{\"id\":\"one\",\"company\":{\"size\":10}}", "Invalid field company.size");
+    }
+
+    /**
+     * Check that a user is rejected
+     *
+     * @param json
+     *         JSON of the user
+     * @param message
+     *         Part of the error expected
+     */
+    private static void assertInvalid(final String json, final String message) {
+        try {
+            UserJson.read(json);
+            Assert.fail("Error expected for " + json);
+        } catch (final IllegalArgumentException e) {
+            Assert.assertTrue("Unexpected error " + e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package user;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Test for user queries
+ */
+public class UserQueryTest {
+    private static final Logger logger = LoggerFactory.getLogger(UserQueryTest.class);
+
+    /**
+     * Exact matches, prefixes and ranges
+     *
+     * @throws Exception
+     */
+    @Test
+    public void parse() throws Exception {
+        final Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("email", "a@b.c");
+        parameters.put("address.city", "South (T*");
+        parameters.put("dateCreated.gte", "2016-01-01");
+        parameters.put("dateCreated.lt", "2017-01-01");
+        final UserQuery query = UserQuery.parse(parameters);
+
+        Assert.assertEquals("Expected a filter per parameter", 4, query.getFilters().size());
+        Assert.assertEquals("Unexpected exact match", "{ \"email\" : \"a@b.c\" }", toJson(query.getFilters().get(0)));
+        Assert.assertEquals("Unexpected prefix",
+                "{ \"address.city\" : { \"$regex\" : \"^South \\\\(T\", \"$options\" : \"\" } }",
+                toJson(query.getFilters().get(1)));
+        Assert.assertEquals("Unexpected range", "{ \"dateCreated\" : { \"$gte\" : \"2016-01-01\" } }",
+                toJson(query.getFilters().get(2)));
+        Assert.assertEquals("Unexpected range", "{ \"dateCreated\" : { \"$lt\" : \"2017-01-01\" } }",
+                toJson(query.getFilters().get(3)));
+        Assert.assertTrue("Empty query expected", UserQuery.parse(Collections.emptyMap()).isEmpty());
+    }
+
+    /**
+     * Ranges and prefixes are read in the order of their index, so that the matches are never sorted in memory, and
+     * paged after the field and id of the last user. Exact matches are read in the order of the id
+     *
+     * @throws Exception
+     */
+    @Test
+    public void order() throws Exception {
+        final Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("dateCreated.gte", "2016-01-01");
+        parameters.put("dateCreated.lt", "2017-01-01");
+        UserQuery query = UserQuery.parse(parameters);
+        Assert.assertEquals("Range expected in the order of its index", "{ \"dateCreated\" : 1, \"id\" : 1 }",
+                toJson(query.sort()));
+        Assert.assertEquals("Unexpected keyset filter", "{ \"dateCreated\" : { \"$gte\" : \"2016-02-01\" }, "
+                        + "\"$or\" : [{ \"dateCreated\" : { \"$gt\" : \"2016-02-01\" } }, "
+                        + "{ \"id\" : { \"$gt\" : \"last\" } }] }",
+                toJson(query.after("last", "2016-02-01")));
+
+        query = UserQuery.parse(Collections.singletonMap("address.city", "South*"));
+        Assert.assertEquals("Prefix expected in the order of its index", "{ \"address.city\" : 1, \"id\" : 1 }",
+                toJson(query.sort()));
+
+        // With an exact match, its index reads users in the order of the id
+        parameters.put("email", "a@b.c");
+        query = UserQuery.parse(parameters);
+        Assert.assertNull("No order field expected", query.getOrderField());
+        Assert.assertEquals("Order of the id expected", "{ \"id\" : 1 }", toJson(query.sort()));
+        Assert.assertEquals("Unexpected keyset filter", "{ \"id\" : { \"$gt\" : \"last\" } }",
+                toJson(query.after("last", null)));
+    }
+
+    /**
+     * Filters on fields without an index are rejected, as are ranges on text
+     */
+    @Test
+    public void parseInvalid() {
+        for (final String name : new String[]{ "firstName", "email.gte", "dateCreated.gt", "company", "$where" }) {
+            try {
+                UserQuery.parse(Collections.singletonMap(name, "value"));
+                Assert.fail("Filter should be rejected: " + name);
+            } catch (final Exception e) {
+                UserQueryTest.logger.info(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the JSON of a filter
+     *
+     * @param filter
+     *         Filter
+     * @return JSON
+     */
+    private static String toJson(final Bson filter) {
+        return filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()).toJson();
+    }
+}
@@ -1,14 +1,34 @@
 package user;
 
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 import com.mongodb.MongoWriteException;
+import com.mongodb.client.ListIndexesIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
 import helper.JsonTestStringsFactory;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
 /**
  * Class to test implementation of each user service
  * <p>
@@ -17,6 +37,7 @@ import org.slf4j.LoggerFactory;
 public class UserServiceTest {
     private static final Logger logger = LoggerFactory.getLogger(UserServiceTest.class);
     private static final String TEST = "test";
+    private static MongoClient mongoClient;
     private static UserService userService;
     private static MongoCollection<Document> dbCollection;
 
@@ -29,12 +50,14 @@ public class UserServiceTest {
     @BeforeClass
     public static void beforeClass() {
         UserServiceTest.logger.info("Creating connection to local MongoDB..");
-        UserServiceTest.dbCollection = UserService.getCollection(UserServiceTest.TEST, UserServiceTest.TEST);
+        UserServiceTest.mongoClient = new MongoClient();
+        UserServiceTest.dbCollection = UserServiceTest.mongoClient.getDatabase(UserServiceTest.TEST)
+                                                                  .getCollection(UserServiceTest.TEST);
         if (UserServiceTest.dbCollection == null) {
             Assert.fail("Cannot get collection from MongoDB");
         }
 
-        UserServiceTest.userService = new UserService(UserServiceTest.dbCollection);
+        UserServiceTest.userService = new UserService(UserServiceTest.dbCollection, Runnable::run);
         UserServiceTest.logger.info("Connection created");
     }
 
@@ -45,17 +68,215 @@ public class UserServiceTest {
     public static void afterClass() {
         UserServiceTest.logger.info("Removing all work..");
         UserServiceTest.dbCollection.drop();
+        UserServiceTest.mongoClient.close();
         UserServiceTest.logger.info("Done!");
     }
 
     /**
-     * Return 0 documents when DB empty
+     * Scan all users in a single page
+     *
+     * @return Users, in the order of their id
+     */
+    private static List<Document> allUsers() {
+        final List<Document> users = new ArrayList<>();
+        UserServiceTest.userService.scanUsers(null, 0, users::add);
+        return users;
+    }
+
+    /**
+     * Missing indexes are created, and other indexes are kept until the collection is dropped
+     */
+    @Test
+    public void reconcileIndexes() {
+        UserServiceTest.dbCollection.createIndex(new Document("lastName", 1));
+        final UserService userService = new UserService(UserServiceTest.dbCollection, Runnable::run);
+        Assert.assertTrue("Service should be ready", userService.isReady());
+
+        // Validate the indexes
+        final List<Object> keys = new ArrayList<>();
+        for (final Document index : UserServiceTest.dbCollection.listIndexes()) {
+            keys.add(index.get("key"));
+        }
+
+        Assert.assertTrue("Existing index should be kept", keys.contains(new Document("lastName", 1)));
+        Assert.assertTrue("Expected the unique index", keys.contains(new Document("id", 1)));
+        Assert.assertTrue("Expected the query indexes", keys.contains(new Document("email", 1).append("id", 1)));
+    }
+
+    /**
+     * Not ready until the indexes are reconciled, which is tried again after a failure
      */
     @Test
-    public void getAllUsers() {
+    @SuppressWarnings("unchecked")
+    public void readiness() {
+        final MongoCollection<Document> dbCollection = Mockito.mock(MongoCollection.class);
+        Mockito.when(dbCollection.withCodecRegistry(UserCodec.REGISTRY)).thenReturn(dbCollection);
+        final ListIndexesIterable<Document> indexes = Mockito.mock(ListIndexesIterable.class);
+        Mockito.when(indexes.iterator()).thenReturn(Mockito.mock(MongoCursor.class));
+        Mockito.when(dbCollection.listIndexes()).thenThrow(new MongoException("Not reachable")).thenReturn(indexes);
+
+        // Pending, failed, then tried again
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final UserService userService = new UserService(dbCollection, tasks::add);
+        Assert.assertFalse("Service should not be ready while pending", userService.isReady());
+        tasks.remove().run();
+        Assert.assertFalse("Service should not be ready after a failure", userService.isReady());
+        tasks.remove().run();
+        Assert.assertTrue("Service should be ready", userService.isReady());
+        final ArgumentCaptor<List> created = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(dbCollection).createIndexes(created.capture());
+        Assert.assertEquals("Expected all indexes created", UserService.indexes().size(), created.getValue().size());
+        Mockito.verify(dbCollection, Mockito.never()).dropIndexes();
+    }
+
+    /**
+     * Scan no users when DB empty
+     */
+    @Test
+    public void scanEmptyUsers() {
         UserServiceTest.dbCollection.deleteMany(new Document());
-        Assert.assertEquals("Number of documents should be 0 when DB is empty", 0,
-                UserServiceTest.userService.getAllUsers().size());
+        Assert.assertEquals("Number of documents should be 0 when DB is empty", 0, allUsers().size());
+    }
+
+    /**
+     * Page through users with a keyset cursor
+     */
+    @Test
+    public void scanUsers() {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+
+        // Create multiple users
+        UserServiceTest.logger.info("Creating 2 users...");
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON);
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_SHORT_JSON);
+
+        // Full scan
+        final List<Document> all = new ArrayList<>();
+        UserServiceTest.userService.scanUsers(null, 0, all::add);
+        Assert.assertEquals("Expected all users to be scanned", 2, all.size());
+
+        // First page, ordered by id
+        final List<Document> page = new ArrayList<>();
+        UserServiceTest.userService.scanUsers(null, 1, page::add);
+        Assert.assertEquals("Expected a single user on the first page", 1, page.size());
+        Assert.assertEquals("Users should be ordered by id", "1630215c-2608-44b9-aad4-9d56d8aafd4c",
+                page.get(0).getString("id"));
+
+        // Next pages
+        page.clear();
+        UserServiceTest.userService.scanUsers("1630215c-2608-44b9-aad4-9d56d8aafd4c", 1, page::add);
+        Assert.assertEquals("Expected the second user on the next page", "short", page.get(0).getString("id"));
+        page.clear();
+        UserServiceTest.userService.scanUsers("short", 1, page::add);
+        Assert.assertEquals("No users expected after the last page", 0, page.size());
+    }
+
+    /**
+     * Only the fields requested are read, with the id
+     *
+     * @throws Exception
+     */
+    @Test
+    public void scanUsersWithFields() throws Exception {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON);
+        final List<String> fields = Fields.parse("firstName,address.city");
+
+        // Scan
+        final List<Document> page = new ArrayList<>();
+        UserServiceTest.userService.scanUsers(null, 1, fields, page::add);
+        Assert.assertEquals("Only the fields requested expected",
+                Fields.project(Document.parse(JsonTestStringsFactory.VALID_LONG_JSON), fields), page.get(0));
+
+        // Single user
+        Assert.assertEquals("Same fields expected for a single user", page.get(0),
+                UserServiceTest.userService.getUser("1630215c-2608-44b9-aad4-9d56d8aafd4c", fields));
+    }
+
+    /**
+     * Users read as BSON have the same content as decoded users
+     *
+     * @throws Exception
+     */
+    @Test
+    public void rawUsers() throws Exception {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON);
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_SHORT_JSON);
+        final List<String> fields = Fields.parse("email");
+
+        // List, filtered or not
+        final List<RawBsonDocument> raw = new ArrayList<>();
+        UserServiceTest.userService.findRawUsers(UserQuery.parse(Collections.emptyMap()), null, 10, fields, raw::add);
+        final List<Document> decoded = new ArrayList<>();
+        UserServiceTest.userService.scanUsers(null, 10, fields, decoded::add);
+        Assert.assertEquals("Expected both users", 2, raw.size());
+        for (int i = 0; i < raw.size(); i++) {
+            Assert.assertEquals("Same user expected", decoded.get(i), raw.get(i).decode(new DocumentCodec()));
+        }
+
+        raw.clear();
+        UserServiceTest.userService.findRawUsers(UserQuery.parse(Collections.singletonMap("email", "ekalgolas*")), null,
+                0, null, raw::add);
+        Assert.assertEquals("Expected the matching user", "short", raw.get(0).getString("id").getValue());
+        Assert.assertEquals("Expected only the matching user", 1, raw.size());
+
+        // Single user
+        Assert.assertEquals("Same user expected", UserServiceTest.userService.getUser("short"),
+                UserServiceTest.userService.getRawUser("short", null).decode(new DocumentCodec()));
+        Assert.assertNull("No user expected", UserServiceTest.userService.getRawUser("missing", null));
+    }
+
+    /**
+     * Filter users on indexed fields, paging through the matches
+     *
+     * @throws Exception
+     */
+    @Test
+    public void findUsers() throws Exception {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON);
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_SHORT_JSON);
+
+        // Exact match, prefix and range
+        Assert.assertEquals("Expected the user with the email", Collections.singletonList("short"),
+                findIds(Collections.singletonMap("email", "ekalgolas@gmail.com"), null, 0));
+        Assert.assertEquals("Expected the user with the email prefix",
+                Collections.singletonList("1630215c-2608-44b9-aad4-9d56d8aafd4c"),
+                findIds(Collections.singletonMap("email", "Darby_*"), null, 0));
+        Assert.assertEquals("Expected the user created in the range", Collections.singletonList("short"),
+                findIds(Collections.singletonMap("dateCreated.gte", "2016-05-01"), null, 0));
+        Assert.assertEquals("No user expected", Collections.emptyList(),
+                findIds(Collections.singletonMap("company.name", "Denesik*."), null, 0));
+
+        // Pages
+        final Map<String, String> year = new HashMap<>();
+        year.put("dateCreated.gte", "2016-01-01");
+        year.put("dateCreated.lt", "2017-01-01");
+        Assert.assertEquals("Expected the first user on the first page",
+                Collections.singletonList("1630215c-2608-44b9-aad4-9d56d8aafd4c"), findIds(year, null, 1));
+        Assert.assertEquals("Expected the second user on the next page", Collections.singletonList("short"),
+                findIds(year, "1630215c-2608-44b9-aad4-9d56d8aafd4c", 1));
+    }
+
+    /**
+     * Find the ids of the users matching filters
+     *
+     * @param filters
+     *         Filter parameters
+     * @param after
+     *         Keyset cursor
+     * @param limit
+     *         Page size
+     * @return IDs of the users found
+     * @throws Exception
+     */
+    private static List<String> findIds(final Map<String, String> filters, final String after, final int limit)
+            throws Exception {
+        final List<String> ids = new ArrayList<>();
+        UserServiceTest.userService.findUsers(UserQuery.parse(filters), after, limit, Fields.parse("id"),
+                user -> ids.add(user.getString("id")));
+        return ids;
     }
 
     /**
@@ -66,6 +287,27 @@ public class UserServiceTest {
         Assert.assertNull("Null expected when user not present", UserServiceTest.userService.getUser("testUser"));
     }
 
+    /**
+     * Several users are read by id at once, users not present are left out
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getRawUsers() throws Exception {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_LONG_JSON);
+        UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_SHORT_JSON);
+
+        // Read both users and a missing one
+        final String id = UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON).getId();
+        final Map<String, RawBsonDocument> users = UserServiceTest.userService.getRawUsers(
+                Arrays.asList(id, "short", "missing"), Fields.parse("firstName"));
+        UserServiceTest.logger.info("Users: {}", users);
+        Assert.assertEquals("Expected both users", new HashSet<>(Arrays.asList(id, "short")), users.keySet());
+        Assert.assertEquals("Expected the id and the fields requested", 2, users.get("short").size());
+        UserServiceTest.dbCollection.deleteMany(new Document());
+    }
+
     @Test
     public void createDuplicateUser() {
         // Ensure collection is empty
@@ -97,12 +339,37 @@ public class UserServiceTest {
         UserServiceTest.userService.createUser(JsonTestStringsFactory.VALID_SHORT_JSON);
 
         // Validate
-        Assert.assertEquals("Expected 2 users to be created", 2, UserServiceTest.userService.getAllUsers().size());
+        Assert.assertEquals("Expected 2 users to be created", 2, allUsers().size());
 
         final Document document = UserServiceTest.userService.getUser("short");
         Assert.assertEquals("Fields not created as expected", "Ekal", document.getString("firstName"));
     }
 
+    /**
+     * Malformed users are rejected before reaching the database
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createMalformedUser() throws Exception {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+        try {
+            UserServiceTest.userService.createUser("{'id':'one','email':'ekalgolas'}");
+            Assert.fail("Invalid email accepted");
+        } catch (final IllegalArgumentException e) {
+            Assert.assertEquals("Unexpected error", "Invalid email ekalgolas", e.getMessage());
+        }
+
+        try {
+            UserServiceTest.userService.updateUser("{'id':'one','tags':['a']}", true);
+            Assert.fail("Unknown field accepted");
+        } catch (final IllegalArgumentException e) {
+            Assert.assertEquals("Unexpected error", "Invalid field tags", e.getMessage());
+        }
+
+        Assert.assertEquals("No users should be present", 0, allUsers().size());
+    }
+
     /**
      * Check if we are able to update invalid user
      *
@@ -140,8 +407,27 @@ public class UserServiceTest {
         UserServiceTest.userService.updateUser(JsonTestStringsFactory.VALID_LONG_JSON_UPDATED);
 
         // Validate update
-        final Document document = UserServiceTest.userService.getAllUsers().get(0);
+        final Document document = allUsers().get(0);
+        Assert.assertEquals("Fields not created as expected", "Update", document.getString("lastName"));
+    }
+
+    /**
+     * Test an update creating the user
+     *
+     * @throws Exception
+     */
+    @Test
+    public void upsertUser() throws Exception {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+
+        // Upsert a user that does not exist
+        UserServiceTest.logger.info("Upserting a user..");
+        UserServiceTest.userService.updateUser(JsonTestStringsFactory.VALID_LONG_JSON_UPDATED, true);
+
+        // Validate creation
+        final Document document = UserServiceTest.userService.getUser("1630215c-2608-44b9-aad4-9d56d8aafd4c");
         Assert.assertEquals("Fields not created as expected", "Update", document.getString("lastName"));
+        Assert.assertEquals("Expected a single user", 1, allUsers().size());
     }
 
     /**
@@ -177,6 +463,97 @@ public class UserServiceTest {
         UserServiceTest.userService.removeUser("short");
 
         // Validate update
-        Assert.assertEquals("No users should be present", 0, UserServiceTest.userService.getAllUsers().size());
+        Assert.assertEquals("No users should be present", 0, allUsers().size());
+    }
+
+    /**
+     * Bulk create, update and remove with per user results
+     */
+    @Test
+    public void bulkUsers() {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+
+        // Create, with a duplicate
+        UserServiceTest.logger.info("Creating users in bulk...");
+        List<BulkResult> results = UserServiceTest.userService.createUsers(Arrays.asList(
+                UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON),
+                UserJson.read(JsonTestStringsFactory.VALID_SHORT_JSON),
+                UserJson.read(JsonTestStringsFactory.VALID_SHORT_JSON)));
+        Assert.assertEquals("Expected 2 users to be created", 2, allUsers().size());
+        Assert.assertEquals("Expected first user created", 200, results.get(0).getStatus());
+        Assert.assertEquals("Expected second user created", 200, results.get(1).getStatus());
+        Assert.assertEquals("Expected duplicate user rejected", 409, results.get(2).getStatus());
+
+        // Update, with a missing user, a user without id and an invalid user
+        UserServiceTest.logger.info("Updating users in bulk...");
+        results = UserServiceTest.userService.updateUsers(Arrays.asList(
+                UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON_UPDATED),
+                UserJson.read("{'id':'missing'}"),
+                UserJson.read(JsonTestStringsFactory.INVALID_SHORT_JSON),
+                UserJson.read("{'id':'short','email':'ekalgolas'}")));
+        Assert.assertEquals("Expected user updated", 200, results.get(0).getStatus());
+        Assert.assertEquals("Expected missing user not found", 404, results.get(1).getStatus());
+        Assert.assertEquals("Expected user without id rejected", 400, results.get(2).getStatus());
+        Assert.assertEquals("Expected invalid user rejected", 400, results.get(3).getStatus());
+        Assert.assertEquals("Fields not updated as expected", "Update",
+                UserServiceTest.userService.getUser("1630215c-2608-44b9-aad4-9d56d8aafd4c").getString("lastName"));
+        Assert.assertEquals("Invalid email should not be written", "ekalgolas@gmail.com",
+                UserServiceTest.userService.getUser("short").getString("email"));
+
+        // Remove, with a missing user and a user listed twice
+        UserServiceTest.logger.info("Removing users in bulk...");
+        results = UserServiceTest.userService.removeUsers(Arrays.asList("short", "missing",
+                "1630215c-2608-44b9-aad4-9d56d8aafd4c", "short"));
+        Assert.assertEquals("Expected user removed", 200, results.get(0).getStatus());
+        Assert.assertEquals("Expected missing user not found", 404, results.get(1).getStatus());
+        Assert.assertEquals("Expected user removed", 200, results.get(2).getStatus());
+        Assert.assertEquals("Expected user listed twice removed once", 404, results.get(3).getStatus());
+        Assert.assertEquals("No users should be present", 0, allUsers().size());
+    }
+
+    /**
+     * Users removed by another request between the lookup and the delete are still answered as removed
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void removeConcurrentUsers() {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+        UserServiceTest.userService.createUsers(Arrays.asList(UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON),
+                UserJson.read(JsonTestStringsFactory.VALID_SHORT_JSON)));
+
+        // Another request removes a user right before the bulk delete
+        final MongoCollection<Document> dbCollection = Mockito.spy(UserServiceTest.dbCollection);
+        Mockito.doAnswer(invocation -> {
+            UserServiceTest.dbCollection.deleteOne(new Document("id", "short"));
+            return invocation.callRealMethod();
+        }).when(dbCollection).bulkWrite(Matchers.anyList(), Matchers.any(BulkWriteOptions.class));
+
+        UserServiceTest.logger.info("Removing users in bulk, one of them concurrently...");
+        final List<BulkResult> results = new UserService(dbCollection, Runnable::run).removeUsers(Arrays.asList(
+                "short", "1630215c-2608-44b9-aad4-9d56d8aafd4c"));
+        Assert.assertEquals("Expected user removed", 200, results.get(0).getStatus());
+        Assert.assertEquals("Expected user removed", 200, results.get(1).getStatus());
+        Assert.assertEquals("No users should be present", 0, allUsers().size());
+    }
+
+    /**
+     * Users are validated before they are created in a single batch, with per user results
+     */
+    @Test
+    public void createInvalidUsers() {
+        UserServiceTest.dbCollection.deleteMany(new Document());
+
+        // A duplicate and an invalid user among valid users
+        final List<BulkResult> results = UserServiceTest.userService.createUsers(Arrays.asList(
+                UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON),
+                UserJson.read("{'id':'invalid','email':'ekalgolas'}"),
+                UserJson.read(JsonTestStringsFactory.VALID_SHORT_JSON),
+                UserJson.read(JsonTestStringsFactory.VALID_SHORT_JSON)));
+        Assert.assertEquals("Expected first user created", 200, results.get(0).getStatus());
+        Assert.assertEquals("Expected invalid user rejected", 400, results.get(1).getStatus());
+        Assert.assertEquals("Expected second user created", 200, results.get(2).getStatus());
+        Assert.assertEquals("Expected duplicate user rejected", 409, results.get(3).getStatus());
+        Assert.assertEquals("Expected 2 users to be created", 2, allUsers().size());
+        UserServiceTest.dbCollection.deleteMany(new Document());
     }
 }
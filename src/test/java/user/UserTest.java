@@ -0,0 +1,54 @@
+package user;
+
+import helper.JsonTestStringsFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for the validation of users
+ */
+public class UserTest {
+    /**
+     * Users need an id, and the fields given must be well formed
+     */
+    @Test
+    public void validate() {
+        UserJson.read(JsonTestStringsFactory.VALID_LONG_JSON).validate();
+        UserJson.read(JsonTestStringsFactory.VALID_SHORT_JSON).validate();
+
+        UserJson.read("{'id':'one','email':'a@b.io','dateCreated':'2016-02-29T23:59:59Z',"
+                + "'profilePic':'HTTPS://lorempixel.com','company':{'website':'http://jodie.org'}}").validate();
+
+        assertInvalid(JsonTestStringsFactory.INVALID_SHORT_JSON, "Invalid user, no id");
+        assertInvalid("{'id':' '}", "Invalid user, no id");
+        assertInvalid("{'id':'one','email':'ekalgolas'}", "Invalid email ekalgolas");
+        assertInvalid("{'id':'one','email':'a@b'}", "Invalid email");
+        assertInvalid("{'id':'one','email':'a@@b.io'}", "Invalid email");
+        assertInvalid("{'id':'one','email':'a b@c.io'}", "Invalid email");
+        assertInvalid("{'id':'one','dateCreated':'yesterday'}", "Invalid dateCreated yesterday");
+        assertInvalid("{'id':'one','dateCreated':'2015-02-29T00:00:00Z'}", "Invalid dateCreated");
+        assertInvalid("{'id':'one','dateCreated':'2016-03-15T24:00:00Z'}", "Invalid dateCreated");
+        assertInvalid("{'id':'one','dateCreated':'2016-03-15T07:02:40.Z'}", "Invalid dateCreated");
+        assertInvalid("{'id':'one','dateCreated':'2016-03-15'}", "Invalid dateCreated");
+        assertInvalid("{'id':'one','profilePic':'http:///people'}", "Invalid profilePic");
+        assertInvalid("{'id':'one','profilePic':'javascript:alert(1)'}", "Invalid profilePic");
+        assertInvalid("{'id':'one','company':{'website':'jodie.org'}}", "Invalid company.website");
+    }
+
+    /**
+     * Check that a user is rejected
+     *
+     * @param json
+     *         JSON of the user
+     * @param message
+     *         Part of the error expected
+     */
+    private static void assertInvalid(final String json, final String message) {
+        try {
+            UserJson.read(json).validate();
+            Assert.fail("Error expected for " + json);
+        } catch (final IllegalArgumentException e) {
+            Assert.assertTrue("Unexpected error " + e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package user;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the creation of users in batches, over a mocked user service
+ */
+public class WriteBehindUserServiceTest {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindUserServiceTest.class);
+    private IUserService delegate;
+    private List<List<String>> batches;
+    private CountDownLatch release;
+    private WriteBehindUserService userService;
+
+    /**
+     * Mock a service recording each batch, failing users with a duplicate id. Batches wait for the release latch
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.delegate = Mockito.mock(IUserService.class);
+        this.batches = new CopyOnWriteArrayList<>();
+        this.release = new CountDownLatch(0);
+        Mockito.when(this.delegate.createUsers(Matchers.anyListOf(User.class))).then(invocation -> {
+            this.release.await();
+            final List<String> ids = new ArrayList<>();
+            final List<BulkResult> results = new ArrayList<>();
+            for (final User user : (List<User>) invocation.getArguments()[0]) {
+                ids.add(user.getId());
+                results.add("duplicate".equals(user.getId())
+                        ? new BulkResult(user.getId(), 409, "Duplicate user duplicate")
+                        : new BulkResult(user.getId(), 200, "User created!!"));
+            }
+
+            this.batches.add(ids);
+            return results;
+        });
+    }
+
+    /**
+     * Stop the flusher
+     *
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+        this.release.countDown();
+        this.userService.close();
+    }
+
+    /**
+     * Users of concurrent callers waiting for them are written together, in batches of at most the batch size
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createDurable() throws Exception {
+        this.userService = new WriteBehindUserService(this.delegate, 100, 4, 200, TimeUnit.MILLISECONDS);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Boolean>> created = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final User user = user("user" + i);
+                created.add(executor.submit(() -> this.userService.createUser(user, true)));
+            }
+
+            for (final Future<Boolean> future : created) {
+                Assert.assertTrue("User written expected", future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Users are written together, never more than the batch size at once
+        WriteBehindUserServiceTest.logger.info("Batches: {}", this.batches);
+        int written = 0;
+        for (final List<String> batch : this.batches) {
+            Assert.assertTrue("Batch over its size", batch.size() <= 4);
+            written += batch.size();
+        }
+
+        Assert.assertEquals("All users expected to be written", 8, written);
+        Assert.assertTrue("Users expected to be batched", this.batches.size() < 8);
+        Assert.assertEquals("Queue drained expected", 0, this.userService.getQueued());
+    }
+
+    /**
+     * Callers not waiting return once their user is queued, which is written once the window elapses
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createAccepted() throws Exception {
+        this.userService = new WriteBehindUserService(this.delegate, 100, 100, 50, TimeUnit.MILLISECONDS);
+        final List<String> changed = new CopyOnWriteArrayList<>();
+        this.userService.subscribe(new UserChangeListener() {
+            @Override
+            public void changed(final String id) {
+                changed.add(id);
+            }
+
+            @Override
+            public void removed(final Object key) {
+            }
+
+            @Override
+            public void reset() {
+            }
+        });
+        final long start = System.nanoTime();
+        Assert.assertFalse("User accepted expected", this.userService.createUser(user("one"), false));
+        Assert.assertFalse("User accepted expected", this.userService.createUser(user("two"), false));
+
+        // Then, written together by the window
+        while (this.batches.isEmpty()) {
+            Thread.sleep(5);
+        }
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        WriteBehindUserServiceTest.logger.info("Written after {} ms", elapsed);
+        Assert.assertTrue("Window expected to elapse first", elapsed >= 50);
+        Assert.assertEquals("Single batch expected", 1, this.batches.size());
+        Assert.assertEquals("Both users expected", 2, this.batches.get(0).size());
+
+        // Listeners are told once the users are written
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (changed.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+
+        Assert.assertEquals("Written users expected", Arrays.asList("one", "two"), changed);
+    }
+
+    /**
+     * Users failing to be written fail their caller, invalid users are refused before being queued
+     */
+    @Test
+    public void createFailed() {
+        this.userService = new WriteBehindUserService(this.delegate, 100, 1, 1, TimeUnit.MINUTES);
+        try {
+            this.userService.createUser(user("duplicate"));
+            Assert.fail("Duplicate user expected to fail");
+        } catch (final DuplicateUserException e) {
+            Assert.assertEquals("Error does not match", "Duplicate user duplicate", e.getMessage());
+        }
+
+        try {
+            this.userService.createUser(new User("invalid", null, null, "invalid", null, null, null, null), false);
+            Assert.fail("Invalid user expected to be refused");
+        } catch (final IllegalArgumentException e) {
+            WriteBehindUserServiceTest.logger.info(e.getMessage());
+        }
+
+        Assert.assertEquals("Only the duplicate user expected to be written", 1, this.batches.size());
+    }
+
+    /**
+     * Users over the capacity are refused while the queue is full, and queued users are written on close
+     *
+     * @throws Exception
+     */
+    @Test
+    public void createFull() throws Exception {
+        this.release = new CountDownLatch(1);
+        this.userService = new WriteBehindUserService(this.delegate, 2, 1, 1, TimeUnit.MINUTES);
+
+        // The first user is taken by the flusher, which then waits on the write
+        this.userService.createUser(user("one"), false);
+        while (this.userService.getQueued() > 0) {
+            Thread.sleep(1);
+        }
+
+        this.userService.createUser(user("two"), false);
+        this.userService.createUser(user("three"), false);
+        try {
+            this.userService.createUser(user("four"), false);
+            Assert.fail("Full queue expected");
+        } catch (final WriteQueueFullException e) {
+            WriteBehindUserServiceTest.logger.info(e.getMessage());
+        }
+
+        // Then, everything queued is written before closing
+        this.release.countDown();
+        this.userService.close();
+        Assert.assertEquals("Queued users expected to be written", 3, this.batches.size());
+        try {
+            this.userService.createUser(user("five"), false);
+            Assert.fail("Closed service expected to refuse users");
+        } catch (final IllegalStateException e) {
+            WriteBehindUserServiceTest.logger.info(e.getMessage());
+        }
+    }
+
+    /**
+     * A user accepted as the service closes, after the queue is drained, is refused instead of waiting forever
+     *
+     * @throws Exception
+     */
+    @Test(timeout = 10000)
+    public void createWhileClosing() throws Exception {
+        this.userService = new WriteBehindUserService(this.delegate, 100, 100, 1, TimeUnit.MINUTES);
+
+        // The service is closed after the user passed the first check, and before it is queued
+        final User user = new User("late", "First", "Last", "late@example.com", null, null, null, null) {
+            @Override
+            public void validate() {
+                super.validate();
+                try {
+                    WriteBehindUserServiceTest.this.userService.close();
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        try {
+            this.userService.createUser(user, true);
+            Assert.fail("Closed service expected to refuse the user");
+        } catch (final IllegalStateException e) {
+            WriteBehindUserServiceTest.logger.info(e.getMessage());
+        }
+
+        Assert.assertEquals("Refused user expected to leave the queue", 0, this.userService.getQueued());
+        Assert.assertTrue("Refused user expected not to be written", this.batches.isEmpty());
+    }
+
+    /**
+     * @param id
+     *         ID of the user
+     * @return Valid user
+     */
+    private static User user(final String id) {
+        return new User(id, "First", "Last", id + "@example.com", null, null, null, null);
+    }
+}